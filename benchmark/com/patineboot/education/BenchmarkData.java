@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2020, 2021, Patineboot
+ * All rights reserved.
+ */
+
+package com.patineboot.education;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * 性能検証で使用する予定を作成するクラスです。
+ * 予定は、2000年1月1日から10年間に等間隔に配置します。
+ */
+final class BenchmarkData {
+
+    /**
+     * 予定を配置する期間の始まり(分オフセット)
+     */
+    static final long BASE = DateTimeParser.parseMinutes("200001010000");
+
+    /**
+     * 予定を配置する期間の長さ(分)
+     */
+    static final long SPAN = 10L * 365 * DateTimeParser.MINUTES_PER_DAY;
+
+    /**
+     * 重複する用件の種類の数
+     */
+    private static final int DUPLICATE_KINDS = 16;
+
+    /**
+     * 用件の種類です。
+     */
+    enum Contents {
+        /**
+         * 予定毎に異なる用件
+         */
+        UNIQUE,
+        /**
+         * 16種類の用件の繰り返し
+         */
+        DUPLICATE,
+    }
+
+    private BenchmarkData()
+    {
+    }
+
+    /**
+     * 期間に等間隔に配置した、昇順の予定を作成する。
+     * 同じ日時に配置した予定は、異なる用件とする。
+     * @param size 予定の件数
+     * @param contents 用件の種類
+     * @return 予定の一覧
+     */
+    static List<Plan> plans(int size, Contents contents)
+    {
+        var plans = new ArrayList<Plan>(size);
+        for (int i = 0; i < size; i++) {
+            long minutes = BASE + i * SPAN / size;
+            String content;
+            if (contents == Contents.UNIQUE) {
+                content = "予定" + i;
+            }
+            else {
+                // 同じ日時の予定は、連続する番号で異なる用件となる。
+                content = "定例会議" + (char)('A' + i % DUPLICATE_KINDS);
+            }
+            plans.add(new Plan(DateTimeParser.toLocalDateTime(minutes), content));
+        }
+        plans.sort(null);
+        return plans;
+    }
+
+    /**
+     * 期間の中のランダムな日時を作成する。
+     * @param count 日時の数
+     * @param seed 乱数の種
+     * @return YYYYMMDDhhmm形式の日時
+     */
+    static String[] dateTimes(int count, long seed)
+    {
+        var random = new Random(seed);
+        var dateTimes = new String[count];
+        for (int i = 0; i < count; i++) {
+            dateTimes[i] = DateTimeParser.format(BASE + (long)(random.nextDouble() * SPAN));
+        }
+        return dateTimes;
+    }
+
+    /**
+     * 指定した長さの用件を作成する。
+     * @param length 用件の長さ
+     * @param seed 用件の番号
+     * @return 用件
+     */
+    static String content(int length, int seed)
+    {
+        var builder = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            builder.append((char)('あ' + (seed + i) % 80));
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2020, 2021, Patineboot
+ * All rights reserved.
+ */
+
+package com.patineboot.education;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * 予定クラスの作成の性能検証です。
+ * 日時の解析と用件の長さの確認を含む、予定の作成の時間と割り当て量を計測します。
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PlanBenchmark {
+
+    /**
+     * 用件の長さ
+     */
+    @Param({ "4", "256" })
+    public int contentLength;
+
+    /**
+     * 作成する予定の日時
+     */
+    private String[] dateTimes;
+
+    /**
+     * 作成する予定の用件
+     */
+    private String content;
+
+    /**
+     * 次に作成する予定の位置
+     */
+    private int next;
+
+    @Setup
+    public void setup()
+    {
+        // 予定表クラスが、用件の最大サイズを設定する。
+        new Schedule(1);
+        dateTimes = BenchmarkData.dateTimes(1024, 0);
+        content = BenchmarkData.content(contentLength, 0);
+    }
+
+    @Benchmark
+    public Plan construct()
+    {
+        var dateTime = dateTimes[next++ & (dateTimes.length - 1)];
+        return new Plan(dateTime, content);
+    }
+
+    @Benchmark
+    public long parseMinutes()
+    {
+        return DateTimeParser.parseMinutes(dateTimes[next++ & (dateTimes.length - 1)]);
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2020, 2021, Patineboot
+ * All rights reserved.
+ */
+
+package com.patineboot.education;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * 予定表の検索の性能検証です。
+ * 予定の件数、格納方式、検索の範囲の幅毎に、検索して結果を全て読み出す時間と、件数を求める時間を計測します。
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Xms4g", "-Xmx4g" })
+@State(Scope.Benchmark)
+public class ScheduleFindBenchmark {
+
+    /**
+     * 予定の件数
+     */
+    @Param({ "10000", "100000", "1000000", "10000000" })
+    public int size;
+
+    /**
+     * 予定の格納方式
+     */
+    @Param({ "TREE", "PACKED", "CONCURRENT" })
+    public Schedule.Storage storage;
+
+    /**
+     * 検索の範囲の幅(分)。1時間、1日、30日。
+     */
+    @Param({ "60", "1440", "43200" })
+    public long width;
+
+    /**
+     * 予定表
+     */
+    private Schedule schedule;
+
+    /**
+     * 検索の始点日時
+     */
+    private String[] fromDateTimes;
+
+    /**
+     * 検索の終点日時
+     */
+    private String[] toDateTimes;
+
+    /**
+     * 次に検索する範囲の位置
+     */
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setup()
+    {
+        schedule = new Schedule(Long.MAX_VALUE, storage);
+        schedule.addAll(BenchmarkData.plans(size, BenchmarkData.Contents.DUPLICATE));
+        fromDateTimes = BenchmarkData.dateTimes(4096, width);
+        toDateTimes = new String[fromDateTimes.length];
+        for (int i = 0; i < fromDateTimes.length; i++) {
+            toDateTimes[i] = DateTimeParser.format(DateTimeParser.parseMinutes(fromDateTimes[i]) + width);
+        }
+    }
+
+    @Benchmark
+    public void find(Blackhole blackhole)
+    {
+        int index = next++ & (fromDateTimes.length - 1);
+        // ビューの検索結果は、読み出す時に木を辿るため、全て読み出す。
+        for (var plan : schedule.find(fromDateTimes[index], toDateTimes[index])) {
+            blackhole.consume(plan);
+        }
+    }
+
+    @Benchmark
+    public long count()
+    {
+        int index = next++ & (fromDateTimes.length - 1);
+        return schedule.count(fromDateTimes[index], toDateTimes[index]);
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (c) 2020, 2021, Patineboot
+ * All rights reserved.
+ */
+
+package com.patineboot.education;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * 予定表の登録、削除の性能検証です。
+ * 予定の件数、格納方式、用件の種類毎に、件数を変えずに予定を1件登録して削除する時間を計測します。
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Xms4g", "-Xmx4g" })
+@State(Scope.Benchmark)
+public class ScheduleUpdateBenchmark {
+
+    /**
+     * 予定の件数
+     */
+    @Param({ "10000", "100000", "1000000", "10000000" })
+    public int size;
+
+    /**
+     * 予定の格納方式
+     */
+    @Param({ "TREE", "PACKED", "CONCURRENT" })
+    public Schedule.Storage storage;
+
+    /**
+     * 用件の種類
+     */
+    @Param({ "UNIQUE", "DUPLICATE" })
+    public BenchmarkData.Contents contents;
+
+    /**
+     * 予定表
+     */
+    private Schedule schedule;
+
+    /**
+     * 登録、削除する予定の日時
+     */
+    private String[] dateTimes;
+
+    /**
+     * 次に登録、削除する予定の位置
+     */
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setup()
+    {
+        schedule = new Schedule(Long.MAX_VALUE, storage);
+        schedule.addAll(BenchmarkData.plans(size, contents));
+        dateTimes = BenchmarkData.dateTimes(4096, size);
+    }
+
+    @Benchmark
+    public void addRemove()
+    {
+        // 登録済みの予定と重複しない用件で、登録してから削除する。
+        var dateTime = dateTimes[next++ & (dateTimes.length - 1)];
+        schedule.add(dateTime, "benchmark");
+        schedule.remove(dateTime, "benchmark");
+    }
+}
@@ -0,0 +1,445 @@
+/*
+ * Copyright (c) 2020, 2021, Patineboot
+ * All rights reserved.
+ */
+
+package com.patineboot.education;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+
+/**
+ * 予定表の操作を、コマンドの一覧から一括して実行するクラスです。
+ * コマンドは1行に1つ、コンソールアプリケーションと同じ文字で指定します。
+ * - a [日時] [用件]: 予定を登録する。用件は、行の残り全て。
+ * - d [日時] [用件]: 予定を削除する。用件は、行の残り全て。
+ * - s [始点日時] [終点日時]: 予定を検索し、出力する。
+ * - l: 全ての予定を出力する。
+ * - x [形式] [始点日時] [終点日時] [ファイル]: 予定を検索し、形式(plain、csv、json、bin)でファイルに書き出す。テキストの形式のファイルはUTF-8。
+ * - i [ファイル]: bin形式のファイルの予定を、一括登録する。
+ * - e: 実行を終了する。
+ * .
+ * 空行と、#で始まる行は読み飛ばします。
+ *
+ * 連続する登録は、一括登録(addAll)にまとめて実行します。
+ * 一括登録が重複や最大登録件数の超過で失敗した場合は、1件ずつ登録し直すため、
+ * 実行結果は、1行ずつ実行した場合と同じになります。
+ * 失敗したコマンドは、行番号と理由をエラー出力に出力し、次の行から実行を続けます。
+ * @implSpec このクラスはスレッドセーフではありません。
+ */
+final class BatchExecutor {
+
+    /**
+     * コマンドの種類です。
+     */
+    enum Command {
+        /**
+         * 予定の登録(a)
+         */
+        ADD,
+        /**
+         * 予定の削除(d)
+         */
+        DELETE,
+        /**
+         * 予定の検索(s)
+         */
+        SEARCH,
+        /**
+         * 全ての予定の出力(l)
+         */
+        LIST,
+        /**
+         * 予定のファイルへの書き出し(x)
+         */
+        EXPORT,
+        /**
+         * 予定のファイルからの読み込み(i)
+         */
+        IMPORT,
+        /**
+         * 不明なコマンド
+         */
+        INVALID,
+    }
+
+    /**
+     * 一括登録にまとめる、登録の最大件数の既定値
+     */
+    static final int BATCH_SIZE = 4096;
+
+    /**
+     * 読み込みのバッファの大きさ
+     */
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    /**
+     * 予定表
+     */
+    private final Schedule schedule;
+
+    /**
+     * 一括登録にまとめる、登録の最大件数
+     */
+    private final int batchSize;
+
+    /**
+     * 検索結果の出力先
+     */
+    private final PrintWriter out;
+
+    /**
+     * 検索結果の書き出し
+     */
+    private final PlanExporter console;
+
+    /**
+     * 失敗したコマンドの出力先
+     */
+    private final PrintWriter err;
+
+    /**
+     * コマンドの種類毎の成功数
+     */
+    private final long[] succeeded = new long[Command.values().length];
+
+    /**
+     * コマンドの種類毎の失敗数
+     */
+    private final long[] failed = new long[Command.values().length];
+
+    /**
+     * 検索、出力した予定の件数
+     */
+    private long plansFound;
+
+    /**
+     * 実行にかかった時間(ナノ秒)
+     */
+    private long elapsedNanos;
+
+    /**
+     * 登録を待つ予定の日時
+     */
+    private final String[] pendingDateTimes;
+
+    /**
+     * 登録を待つ予定の用件
+     */
+    private final String[] pendingContents;
+
+    /**
+     * 登録を待つ予定の行番号
+     */
+    private final long[] pendingLines;
+
+    /**
+     * 登録を待つ予定の件数
+     */
+    private int pendingCount;
+
+    /**
+     * 一括実行クラスを作成する。
+     * @param schedule 予定表
+     * @param batchSize 一括登録にまとめる、登録の最大件数。1の場合は、1件ずつ登録する。
+     * @param out 検索結果の出力先
+     * @param err 失敗したコマンドの出力先
+     * @exception IllegalArgumentException batchSizeが0以下。schedule、out、errがnull。
+     */
+    BatchExecutor(Schedule schedule, int batchSize, PrintWriter out, PrintWriter err)
+    {
+        if (schedule == null || out == null || err == null) {
+            throw new IllegalArgumentException("schedule, out or err is null.");
+        }
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("batchSize is zero or negative value");
+        }
+        this.schedule = schedule;
+        this.batchSize = batchSize;
+        this.out = out;
+        this.console = new PlanExporter(out, PlanExporter.Format.PLAIN);
+        this.err = err;
+        this.pendingDateTimes = new String[batchSize];
+        this.pendingContents = new String[batchSize];
+        this.pendingLines = new long[batchSize];
+    }
+
+    /**
+     * コマンドの一覧を、終わりまで、またはeまで実行する。
+     * 出力先は、終了時にフラッシュする。
+     * @param input コマンドの一覧
+     * @exception IOException 読み込みに失敗した。
+     */
+    void execute(Reader input) throws IOException
+    {
+        long start = System.nanoTime();
+        var reader = input instanceof BufferedReader ? (BufferedReader)input : new BufferedReader(input, BUFFER_SIZE);
+        try {
+            long lineNumber = 0;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (line.isEmpty() || line.charAt(0) == '#') {
+                    continue;
+                }
+                if (line.charAt(0) == 'e' && (line.length() == 1 || line.charAt(1) == ' ')) {
+                    break;
+                }
+                executeLine(lineNumber, line);
+            }
+            flush();
+        }
+        finally {
+            elapsedNanos += System.nanoTime() - start;
+            console.flush();
+            out.flush();
+            err.flush();
+        }
+    }
+
+    /**
+     * 1行のコマンドを実行する。登録は、一括登録を待つ。
+     * @param lineNumber 行番号
+     * @param line コマンドの行
+     * @exception IOException 検索結果の出力に失敗した。
+     */
+    private void executeLine(long lineNumber, String line) throws IOException
+    {
+        var command = commandOf(line);
+        // 1文字のコマンドと空白の後ろが、引数となる。
+        String first = null;
+        String second = null;
+        if (command != Command.INVALID && line.length() > 2) {
+            int space = line.indexOf(' ', 2);
+            first = space < 0 ? line.substring(2) : line.substring(2, space);
+            second = space < 0 ? null : line.substring(space + 1).trim();
+        }
+
+        if (command == Command.ADD && first != null && second != null) {
+            pendingDateTimes[pendingCount] = first;
+            pendingContents[pendingCount] = second;
+            pendingLines[pendingCount] = lineNumber;
+            if (++pendingCount == batchSize) {
+                flush();
+            }
+            return;
+        }
+        // 登録以外のコマンドは、待っている登録の後に実行する。
+        flush();
+
+        try {
+            switch (command) {
+            case ADD:
+            case DELETE:
+            case SEARCH:
+                if (first == null || second == null) {
+                    throw new IllegalArgumentException("missing arguments");
+                }
+                if (command == Command.ADD) {
+                    schedule.add(first, second);
+                }
+                else if (command == Command.DELETE) {
+                    schedule.remove(first, second);
+                }
+                else {
+                    print(schedule.cursor(first, second, Schedule.Order.ASCENDING));
+                }
+                break;
+            case LIST:
+                print(schedule.cursor("000001010000", "999912312359", Schedule.Order.ASCENDING));
+                break;
+            case EXPORT:
+                export(first, second);
+                break;
+            case IMPORT:
+                // ファイル名の空白は、引数の区切りとしない。
+                load(second == null ? first : first + " " + second);
+                break;
+            case INVALID:
+            default:
+                throw new IllegalArgumentException("invalid command");
+            }
+            succeeded[command.ordinal()]++;
+        }
+        catch (RuntimeException e) {
+            fail(command, lineNumber, e);
+        }
+    }
+
+    /**
+     * 予定を検索し、ファイルに書き出す。
+     * @param format 形式
+     * @param arguments 始点日時、終点日時、ファイル
+     * @exception UncheckedIOException ファイルの書き出しに失敗した。
+     */
+    private void export(String format, String arguments)
+    {
+        var tokens = arguments == null ? new String[0] : arguments.split(" ", 3);
+        if (tokens.length < 3) {
+            throw new IllegalArgumentException("missing arguments");
+        }
+        var cursor = schedule.cursor(tokens[0], tokens[1], Schedule.Order.ASCENDING);
+        if (format.equalsIgnoreCase("bin")) {
+            try {
+                PlanArchive.write(Path.of(tokens[2].trim()), cursor);
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return;
+        }
+        try {
+            PlanExporter.export(Path.of(tokens[2].trim()), PlanExporter.Format.of(format), StandardCharsets.UTF_8, cursor);
+        }
+        catch (IOException e) {
+            // 標準出力の失敗と区別し、コマンドの失敗として数える。
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * bin形式のファイルの予定を、一括登録する。登録に失敗した場合は、それまでに登録した予定は残る。
+     * @param file ファイル
+     * @exception UncheckedIOException ファイルの読み込みに失敗した。
+     */
+    private void load(String file)
+    {
+        if (file == null) {
+            throw new IllegalArgumentException("missing arguments");
+        }
+        try {
+            PlanArchive.load(Path.of(file.trim()), schedule);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * 行の最初の文字から、コマンドの種類を求める。
+     * @param line コマンドの行
+     * @return コマンドの種類
+     */
+    private static Command commandOf(String line)
+    {
+        if (line.length() > 1 && line.charAt(1) != ' ') {
+            return Command.INVALID;
+        }
+        switch (line.charAt(0)) {
+        case 'a':
+            return Command.ADD;
+        case 'd':
+            return Command.DELETE;
+        case 's':
+            return Command.SEARCH;
+        case 'l':
+            return Command.LIST;
+        case 'x':
+            return Command.EXPORT;
+        case 'i':
+            return Command.IMPORT;
+        default:
+            return Command.INVALID;
+        }
+    }
+
+    /**
+     * 登録を待つ予定を、一括して登録する。
+     * 一括登録できない場合と、1件の場合は、1件ずつ登録する。
+     */
+    private void flush()
+    {
+        if (pendingCount > 1) {
+            try {
+                var plans = new ArrayList<Plan>(pendingCount);
+                for (int i = 0; i < pendingCount; i++) {
+                    plans.add(new Plan(pendingDateTimes[i], pendingContents[i]));
+                }
+                schedule.addAll(plans);
+                succeeded[Command.ADD.ordinal()] += pendingCount;
+                pendingCount = 0;
+            }
+            catch (RuntimeException e) {
+                // 不正な日時、用件、重複、最大登録件数の超過。失敗した行を特定するため、1件ずつ登録し直す。
+            }
+        }
+        for (int i = 0; i < pendingCount; i++) {
+            try {
+                schedule.add(pendingDateTimes[i], pendingContents[i]);
+                succeeded[Command.ADD.ordinal()]++;
+            }
+            catch (RuntimeException e) {
+                fail(Command.ADD, pendingLines[i], e);
+            }
+        }
+        pendingCount = 0;
+    }
+
+    /**
+     * 予定を出力する。
+     * @param cursor 予定のカーソル
+     * @exception IOException 出力に失敗した。
+     */
+    private void print(Iterator<Plan> cursor) throws IOException
+    {
+        plansFound += console.export(cursor);
+    }
+
+    /**
+     * 失敗したコマンドを数え、出力する。
+     * @param command コマンドの種類
+     * @param lineNumber 行番号
+     * @param exception 失敗の理由
+     */
+    private void fail(Command command, long lineNumber, RuntimeException exception)
+    {
+        failed[command.ordinal()]++;
+        err.println("line " + lineNumber + ": " + command + " failed: " + exception.getMessage());
+    }
+
+    /**
+     * 成功したコマンドの数を取得する。
+     * @param command コマンドの種類
+     * @return 成功数
+     */
+    long succeeded(Command command)
+    {
+        return succeeded[command.ordinal()];
+    }
+
+    /**
+     * 失敗したコマンドの数を取得する。
+     * @param command コマンドの種類
+     * @return 失敗数
+     */
+    long failed(Command command)
+    {
+        return failed[command.ordinal()];
+    }
+
+    /**
+     * 実行結果の要約を作成する。コマンドの種類毎の成功数、失敗数と、スループットを含む。
+     * @return 実行結果の要約
+     */
+    String summary()
+    {
+        long commands = 0;
+        var builder = new StringBuilder("Batch Summary:\n");
+        for (var command : Command.values()) {
+            int i = command.ordinal();
+            commands += succeeded[i] + failed[i];
+            builder.append(String.format(" %-8s succeeded: %d failed: %d%n", command, succeeded[i], failed[i]));
+        }
+        double seconds = elapsedNanos / 1e9;
+        builder.append(String.format(" Commands: %d Found Plans: %d elapse time(ms): %d throughput(commands/s): %.0f%n",
+                commands, plansFound, elapsedNanos / 1_000_000, seconds > 0 ? commands / seconds : 0.0));
+        return builder.toString();
+    }
+}
@@ -0,0 +1,359 @@
+/*
+ * Copyright (c) 2020, 2021, Patineboot
+ * All rights reserved.
+ */
+
+package com.patineboot.education;
+
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.SortedSet;
+
+/**
+ * 予定の日時を年、月、日の区画に分けて保持する暦の索引クラスです。
+ * 日の区画は、予定の時刻(その日の経過分)を昇順の配列で保持し、日付から直接参照します。用件は保持しません。
+ * 年と月の区画は予定の件数を持ち、範囲の検索は予定のない区画を飛ばして、予定のある最初と最後の日時を求め、
+ * その間の予定を予定のセットから読み出します。
+ * @implSpec このクラスはスレッドセーフです。年の区画を、年で分けたロックで排他するため、異なる年の予定の変更は互いに待ちません。
+ */
+final class CalendarIndex {
+
+    /**
+     * 索引に格納できる年の数。西暦0年から9999年。
+     */
+    private static final int YEARS = 10000;
+
+    /**
+     * 年の区画を排他するロックの数。2の累乗。
+     */
+    private static final int STRIPES = 64;
+
+    /**
+     * 年の区画。予定のない年はnull。年のロックを取得して操作する。
+     */
+    private final Year[] years = new Year[YEARS];
+
+    /**
+     * 年の区画を、年で分けて排他するロック
+     */
+    private final Object[] locks = new Object[STRIPES];
+
+    /**
+     * 年の区画です。
+     */
+    private static final class Year {
+
+        /**
+         * 年の予定の件数
+         */
+        int count;
+
+        /**
+         * 月の区画。予定のない月はnull。
+         */
+        final Month[] months = new Month[12];
+    }
+
+    /**
+     * 月の区画です。
+     */
+    private static final class Month {
+
+        /**
+         * 月の予定の件数
+         */
+        int count;
+
+        /**
+         * 日の区画。予定のない日はnull。
+         */
+        final Day[] days = new Day[31];
+    }
+
+    /**
+     * 日の区画です。予定の時刻を昇順に並べる。同じ時刻の予定は、その件数だけ並べる。
+     */
+    private static final class Day {
+
+        /**
+         * 予定の件数
+         */
+        int size;
+
+        /**
+         * 時刻(その日の経過分)
+         */
+        short[] minutes = new short[4];
+
+        /**
+         * 時刻以上となる、最初の位置を検索する。
+         * @param minute 時刻
+         * @return 位置
+         */
+        int lowerBound(int minute)
+        {
+            int low = 0;
+            int high = size;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (minutes[middle] < minute) {
+                    low = middle + 1;
+                }
+                else {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+
+        /**
+         * 予定の時刻を挿入する。
+         * @param minute 時刻
+         */
+        void insert(int minute)
+        {
+            int index = lowerBound(minute + 1);
+            if (size == minutes.length) {
+                minutes = Arrays.copyOf(minutes, size * 2);
+            }
+            System.arraycopy(minutes, index, minutes, index + 1, size - index);
+            minutes[index] = (short)minute;
+            size++;
+        }
+
+        /**
+         * 予定の時刻を1件削除する。
+         * @param minute 時刻
+         * @return 削除した場合はtrue。見つからなかった場合はfalse。
+         */
+        boolean delete(int minute)
+        {
+            int index = lowerBound(minute);
+            if (index == size || minutes[index] != minute) {
+                return false;
+            }
+            System.arraycopy(minutes, index + 1, minutes, index, size - index - 1);
+            size--;
+            return true;
+        }
+    }
+
+    /**
+     * 暦の索引を作成する。
+     */
+    CalendarIndex()
+    {
+        for (int i = 0; i < STRIPES; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    /**
+     * 年の区画を排他するロックを取得する。
+     * @param year 年
+     * @return ロック
+     */
+    private Object lock(int year)
+    {
+        return locks[year & (STRIPES - 1)];
+    }
+
+    /**
+     * 予定を索引に追加する。予定のセットに格納した後に呼び出す。
+     * @param plan 予定
+     */
+    void add(Plan plan)
+    {
+        var dateTime = plan.getDateTime();
+        synchronized (lock(dateTime.getYear())) {
+            var year = years[dateTime.getYear()];
+            if (year == null) {
+                year = years[dateTime.getYear()] = new Year();
+            }
+            var month = year.months[dateTime.getMonthValue() - 1];
+            if (month == null) {
+                month = year.months[dateTime.getMonthValue() - 1] = new Month();
+            }
+            var day = month.days[dateTime.getDayOfMonth() - 1];
+            if (day == null) {
+                day = month.days[dateTime.getDayOfMonth() - 1] = new Day();
+            }
+            day.insert(dateTime.getHour() * 60 + dateTime.getMinute());
+            month.count++;
+            year.count++;
+        }
+    }
+
+    /**
+     * 予定を索引から削除する。予定のセットから削除した後に呼び出す。予定のなくなった区画は、取り除く。
+     * @param plan 予定
+     */
+    void remove(Plan plan)
+    {
+        var dateTime = plan.getDateTime();
+        synchronized (lock(dateTime.getYear())) {
+            var year = years[dateTime.getYear()];
+            var month = year == null ? null : year.months[dateTime.getMonthValue() - 1];
+            var day = month == null ? null : month.days[dateTime.getDayOfMonth() - 1];
+            if (day == null || !day.delete(dateTime.getHour() * 60 + dateTime.getMinute())) {
+                return;
+            }
+            if (day.size == 0) {
+                month.days[dateTime.getDayOfMonth() - 1] = null;
+            }
+            if (--month.count == 0) {
+                year.months[dateTime.getMonthValue() - 1] = null;
+            }
+            if (--year.count == 0) {
+                years[dateTime.getYear()] = null;
+            }
+        }
+    }
+
+    /**
+     * 予定を一括して索引に追加する。
+     * @param plans 予定
+     */
+    void addAll(Plan[] plans)
+    {
+        for (var plan : plans) {
+            add(plan);
+        }
+    }
+
+    /**
+     * 日の予定の件数を取得する。
+     * @param year 年
+     * @param month 月
+     * @param day 日
+     * @return 予定の件数
+     */
+    int countDay(int year, int month, int day)
+    {
+        synchronized (lock(year)) {
+            var months = years[year];
+            var days = months == null ? null : months.months[month - 1];
+            var bucket = days == null ? null : days.days[day - 1];
+            return bucket == null ? 0 : bucket.size;
+        }
+    }
+
+    /**
+     * 月の予定の件数を取得する。
+     * @param year 年
+     * @param month 月
+     * @return 予定の件数
+     */
+    int countMonth(int year, int month)
+    {
+        synchronized (lock(year)) {
+            var months = years[year];
+            var days = months == null ? null : months.months[month - 1];
+            return days == null ? 0 : days.count;
+        }
+    }
+
+    /**
+     * 年の予定の件数を取得する。
+     * @param year 年
+     * @return 予定の件数
+     */
+    int countYear(int year)
+    {
+        synchronized (lock(year)) {
+            return years[year] == null ? 0 : years[year].count;
+        }
+    }
+
+    /**
+     * 範囲内の予定を、予定のセットから昇順に取得する。
+     * 予定のない年、月、日の区画を飛ばして、範囲内の予定のある最初と最後の日時を求め、その間を予定のセットから読み出す。
+     * @param from 始点の日時(分オフセット、これを含む)
+     * @param to 終点の日時(分オフセット、これを含まない)
+     * @param plans 予定のセット
+     * @return 予定の一覧。予定のセットの検索結果。
+     */
+    SortedSet<Plan> range(long from, long to, PlanStore plans)
+    {
+        if (from >= to) {
+            return SortedPlanSet.EMPTY;
+        }
+        long first = bound(from, to, false);
+        long last = first < 0 ? -1 : bound(first, to, true);
+        if (last < 0) {
+            return SortedPlanSet.EMPTY;
+        }
+        return plans.subSet(new Plan(DateTimeParser.toLocalDateTime(first), ""), new Plan(DateTimeParser.toLocalDateTime(last + 1), ""));
+    }
+
+    /**
+     * 範囲内で、予定のある最初または最後の日時を求める。予定のない年、月、日の区画は飛ばす。
+     * @param from 始点の日時(分オフセット、これを含む)
+     * @param to 終点の日時(分オフセット、これを含まない)
+     * @param descending 最後の日時を求める場合はtrue
+     * @return 日時(分オフセット)。範囲内に予定がない場合は-1。
+     */
+    private long bound(long from, long to, boolean descending)
+    {
+        var first = DateTimeParser.toLocalDateTime(from).toLocalDate();
+        var last = DateTimeParser.toLocalDateTime(to - 1).toLocalDate();
+        int firstYear = first.getYear();
+        int lastYear = Math.min(last.getYear(), YEARS - 1);
+        for (int i = 0; i <= lastYear - firstYear; i++) {
+            int y = descending ? lastYear - i : firstYear + i;
+            synchronized (lock(y)) {
+                long minutes = bound(y, first, last, from, to, descending);
+                if (minutes >= 0) {
+                    return minutes;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 年の区画の範囲内で、予定のある最初または最後の日時を求める。年のロックを取得して呼び出す。
+     * @param y 年
+     * @param first 範囲の最初の日付
+     * @param last 範囲の最後の日付
+     * @param from 始点の日時(分オフセット、これを含む)
+     * @param to 終点の日時(分オフセット、これを含まない)
+     * @param descending 最後の日時を求める場合はtrue
+     * @return 日時(分オフセット)。年の区画の範囲内に予定がない場合は-1。
+     */
+    private long bound(int y, LocalDate first, LocalDate last, long from, long to, boolean descending)
+    {
+        var year = years[y];
+        if (year == null) {
+            return -1;
+        }
+        int firstMonth = y == first.getYear() ? first.getMonthValue() : 1;
+        int lastMonth = y == last.getYear() ? last.getMonthValue() : 12;
+        for (int i = 0; i <= lastMonth - firstMonth; i++) {
+            int m = descending ? lastMonth - i : firstMonth + i;
+            var month = year.months[m - 1];
+            if (month == null) {
+                continue;
+            }
+            boolean isFirstMonth = y == first.getYear() && m == first.getMonthValue();
+            boolean isLastMonth = y == last.getYear() && m == last.getMonthValue();
+            int firstDay = isFirstMonth ? first.getDayOfMonth() : 1;
+            int lastDay = isLastMonth ? last.getDayOfMonth() : 31;
+            for (int j = 0; j <= lastDay - firstDay; j++) {
+                int d = descending ? lastDay - j : firstDay + j;
+                var day = month.days[d - 1];
+                if (day == null) {
+                    continue;
+                }
+                long base = DateTimeParser.daysFromYear0(y, m, d) * DateTimeParser.MINUTES_PER_DAY;
+                for (int k = 0; k < day.size; k++) {
+                    long minutes = base + day.minutes[descending ? day.size - 1 - k : k];
+                    if (minutes >= from && minutes < to) {
+                        return minutes;
+                    }
+                }
+            }
+        }
+        return -1;
+    }
+}
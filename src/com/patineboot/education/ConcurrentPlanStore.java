@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2020, 2021, Patineboot
+ * All rights reserved.
+ */
+
+package com.patineboot.education;
+
+import java.util.List;
+import java.util.SortedSet;
+import java.util.function.LongConsumer;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * ConcurrentSkipListSetで予定を格納するクラスです。
+ * 検索はロックを取得せず、登録、削除と並行して実行できます。
+ * 検索結果は、予定表の変更を反映するビューとして、反復中に予定表が変更されても例外は発生しません。
+ * 一括登録は、格納済みの予定との重複を確認してから1件ずつ格納するため、並行する検索は、登録の途中の予定の一部を参照することがあります。
+ * @implSpec このクラスはスレッドセーフです。
+ */
+final class ConcurrentPlanStore implements PlanStore {
+
+    /**
+     * 予定のセット
+     */
+    private final ConcurrentSkipListSet<Plan> plans = new ConcurrentSkipListSet<>();
+
+    @Override
+    public long size()
+    {
+        // ConcurrentSkipListSet.size()は、全ての要素を走査する。
+        return plans.size();
+    }
+
+    @Override
+    public boolean add(Plan plan)
+    {
+        return plans.add(plan);
+    }
+
+    @Override
+    public boolean remove(Plan plan)
+    {
+        return plans.remove(plan);
+    }
+
+    @Override
+    public Plan addAll(Plan[] sorted)
+    {
+        return PlanStore.addAll(plans, sorted);
+    }
+
+    @Override
+    public SortedSet<Plan> subSet(Plan from, Plan to)
+    {
+        return plans.subSet(from, to);
+    }
+
+    @Override
+    public boolean isThreadSafe()
+    {
+        return true;
+    }
+
+    @Override
+    public boolean retainsDuration()
+    {
+        return true;
+    }
+
+    @Override
+    public List<Plan> page(Plan from, boolean fromInclusive, Plan to, int limit, boolean descending)
+    {
+        return PlanStore.page(plans, from, fromInclusive, to, limit, descending);
+    }
+
+    @Override
+    public void forEachKey(Plan from, Plan to, LongConsumer action)
+    {
+        PlanStore.forEachKey(plans, from, to, action);
+    }
+}
@@ -5,12 +5,71 @@
 
 package com.patineboot.education;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
 import java.time.format.DateTimeParseException;
+import java.time.format.ResolverStyle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.ConcurrentModificationException;
 import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
 import java.util.Scanner;
+import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.IntConsumer;
 import java.text.SimpleDateFormat;
 
+import javax.management.JMException;
+import javax.management.openmbean.TabularData;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordingFile;
+
 public class ConsoleApplication {
 
     public static void main(String[] args) {
@@ -21,10 +80,32 @@ public class ConsoleApplication {
     public void execute(String[] args) {
         var schedule = new Schedule(Long.parseLong(args[0]));
 
+        // --batch [ファイル]: プロンプトを出力せずに、ファイルまたは標準入力のコマンドを一括して実行する。
+        if (args.length > 1 && args[1].equals("--batch")) {
+            executeBatch(schedule, args.length > 2 ? Path.of(args[2]) : null);
+            return;
+        }
+        // --server [ポート]: 予定表をローカルホストのTCPで共有し、標準入力の終わりまたはeまで要求を処理する。
+        if (args.length > 1 && args[1].equals("--server")) {
+            executeServer(Long.parseLong(args[0]), args.length > 2 ? Integer.parseInt(args[2]) : 7070);
+            return;
+        }
+        // --load [ポート] [接続数] [要求数] [パイプラインの深さ]: サーバに負荷をかけ、スループットと応答時間を出力する。
+        if (args.length > 1 && args[1].equals("--load")) {
+            executeLoad(args.length > 2 ? Integer.parseInt(args[2]) : 7070,
+                    args.length > 3 ? Integer.parseInt(args[3]) : 4,
+                    args.length > 4 ? Integer.parseInt(args[4]) : 100_000,
+                    args.length > 5 ? Integer.parseInt(args[5]) : 16);
+            return;
+        }
+
+        // 検索結果は、大きなバッファを通して標準出力に書き出す。
+        var console = new PlanExporter(new OutputStreamWriter(System.out, Charset.defaultCharset()), PlanExporter.Format.PLAIN);
+
         try (var scanner = new Scanner(System.in)) {
             mainloop: for (;;) {
                 try {
-                    System.out.println("\nType a control command and return.\nCommands a: ADD, d: DELETE, s: SEARCH, l: LIST t: TEST e: END");
+                    System.out.println("\nType a control command and return.\nCommands a: ADD, d: DELETE, s: SEARCH, l: LIST x: EXPORT i: IMPORT t: TEST b: BENCHMARK e: END");
                     var charString = scanner.nextLine();
                     var type = charString.charAt(0);
 
@@ -54,37 +135,169 @@ public class ConsoleApplication {
                         // 標準入力を次の行まで読み捨て
                         scanner.nextLine();
 
-                        var subset = schedule.find(from, to);
-
-                        for (var plan: subset) {
-                            System.out.println("DateTime: " + plan.getDateTime() + " Content: " + plan.getContent());
-                        }
+                        console.export(schedule.cursor(from, to, Schedule.Order.ASCENDING));
+                        console.flush();
                         break;
                     case 'l':
                         System.out.println("\nLIST of plans.");
 
                         var start = "000001010000";
                         var end = "999912312339";
-                        var all = schedule.find(start, end);
+                        console.export(schedule.cursor(start, end, Schedule.Order.ASCENDING));
+                        console.flush();
+                        break;
+                    case 'x':
+                        System.out.println("\nEXPORT Command: Type format, start and end date time, and file.\n [plain|csv|json|bin]<space>[Start Date Time]<space>[End Date Time]<space>[File].");
+                        var formatName = scanner.next();
+                        var exportFrom = scanner.next();
+                        var exportTo = scanner.next();
+                        var file = Path.of(scanner.nextLine().trim());
 
-                        for (var plan: all) {
-                            System.out.println("DateTime: " + plan.getDateTime() + " Content: " + plan.getContent());
+                        long exportStart = System.nanoTime();
+                        long exported;
+                        if (formatName.equalsIgnoreCase("bin")) {
+                            exported = PlanArchive.write(file, schedule.cursor(exportFrom, exportTo, Schedule.Order.ASCENDING));
                         }
+                        else {
+                            var format = PlanExporter.Format.of(formatName);
+                            exported = PlanExporter.export(file, format, StandardCharsets.UTF_8,
+                                    schedule.cursor(exportFrom, exportTo, Schedule.Order.ASCENDING));
+                        }
+                        System.out.println("Exported Plans(num): " + exported + " elapse time(ms): " + (System.nanoTime() - exportStart) / 1_000_000);
+                        break;
+                    case 'i':
+                        System.out.println("\nIMPORT Command: Type the file exported in bin format.\n [File].");
+                        var importFile = Path.of(scanner.nextLine().trim());
+
+                        long importStart = System.nanoTime();
+                        long imported = PlanArchive.load(importFile, schedule);
+                        System.out.println("Imported Plans(num): " + imported + " elapse time(ms): " + (System.nanoTime() - importStart) / 1_000_000);
                         break;
                     case 't':
                         System.out.println("\nAuto Test Start: " + new SimpleDateFormat("yyyy/MM/dd HH:mm:ss").format(new Date()) + "\n");
 
                         var test = new AutoTest();
+                        test.DateTimeParser_parse();
                         test.Schedule_Schedule();
                         test.Schedule_add();
                         test.Schedule_add_datetime_invalid();
                         test.Schedule_add_content_invalid();
                         test.Schedule_remove_invalid();
                         test.Schedule_find_invalid();
-                        test.Schedule_benchmark();
+                        test.Schedule_storage();
+                        test.Schedule_concurrent();
+                        test.Schedule_sharded();
+                        test.Schedule_offHeap();
+                        test.Schedule_findPage();
+                        test.Schedule_addAll();
+                        test.Schedule_sharesContent();
+                        test.Schedule_findDay();
+                        test.Schedule_count();
+                        test.Schedule_recurring();
+                        test.Schedule_evict();
+                        test.Schedule_subscribe();
+                        test.Schedule_search();
+                        test.Schedule_overlaps();
+                        test.Schedule_queryCache();
+                        test.Schedule_metrics();
+                        test.BatchExecutor_execute();
+                        test.PlanExporter_export();
+                        test.PlanArchive_readWrite();
+                        test.ScheduleServer_serve();
+                        test.DurableSchedule_recover();
+                        test.ScheduleJournal_writeFailure();
+                        test.TieredSchedule_segments();
+                        test.ScheduleRegistry_unload();
 
                         System.out.println("\nAuto Test end: " + new SimpleDateFormat("yyyy/MM/dd HH:mm:ss").format(new Date()));
                         break;
+                    case 'b':
+                        System.out.println("\nBenchmark Command: Type the name of benchmark.\n e.g. parse, storage, concurrent, sharded, offheap [plans], recurring, evict [plans], subscribe, search [plans], overlap [plans], cache [plans], bulk, journal [plans], tiered [plans], registry [tenants], content, calendar, count, metrics, batch [lines], export [plans], archive [plans], server [requests]");
+                        var name = scanner.next();
+                        // 標準入力の行の残りは、性能検証の件数
+                        var option = scanner.nextLine().trim();
+                        long size = option.isEmpty() ? 0 : Long.parseLong(option);
+
+                        System.out.println("\nBenchmark Start: " + new SimpleDateFormat("yyyy/MM/dd HH:mm:ss").format(new Date()) + "\n");
+
+                        var benchmark = new Benchmark();
+                        switch (name) {
+                        case "parse":
+                            benchmark.Plan_parse();
+                            break;
+                        case "storage":
+                            benchmark.Schedule_storage();
+                            break;
+                        case "concurrent":
+                            benchmark.Schedule_concurrent();
+                            break;
+                        case "sharded":
+                            benchmark.Schedule_sharded();
+                            break;
+                        case "offheap":
+                            benchmark.Schedule_offHeap(size > 0 ? size : 2_000_000);
+                            break;
+                        case "recurring":
+                            benchmark.Schedule_recurring();
+                            break;
+                        case "evict":
+                            benchmark.Schedule_evict((int)(size > 0 ? size : 1_000_000));
+                            break;
+                        case "subscribe":
+                            benchmark.Schedule_subscribe();
+                            break;
+                        case "search":
+                            benchmark.Schedule_search((int)(size > 0 ? size : 1_000_000));
+                            break;
+                        case "overlap":
+                            benchmark.Schedule_overlaps((int)(size > 0 ? size : 1_000_000));
+                            break;
+                        case "cache":
+                            benchmark.Schedule_queryCache((int)(size > 0 ? size : 1_000_000));
+                            break;
+                        case "bulk":
+                            benchmark.Schedule_addAll();
+                            break;
+                        case "journal":
+                            benchmark.DurableSchedule_journal(size > 0 ? size : 1_000_000);
+                            break;
+                        case "content":
+                            benchmark.Schedule_sharesContent();
+                            break;
+                        case "count":
+                            benchmark.Schedule_count();
+                            break;
+                        case "calendar":
+                            benchmark.Schedule_findDay();
+                            break;
+                        case "metrics":
+                            benchmark.Schedule_metrics();
+                            break;
+                        case "export":
+                            benchmark.PlanExporter_export(size > 0 ? size : 1_000_000);
+                            break;
+                        case "archive":
+                            benchmark.PlanArchive_readWrite(size > 0 ? size : 1_000_000);
+                            break;
+                        case "server":
+                            benchmark.ScheduleServer_serve((int)(size > 0 ? size : 100_000));
+                            break;
+                        case "batch":
+                            benchmark.BatchExecutor_execute((int)(size > 0 ? size : 1_000_000));
+                            break;
+                        case "tiered":
+                            benchmark.TieredSchedule_segments(size > 0 ? size : 10_000_000);
+                            break;
+                        case "registry":
+                            benchmark.ScheduleRegistry_unload((int)(size > 0 ? size : 10_000));
+                            break;
+                        default:
+                            System.out.println("Invalid Benchmark.");
+                            break;
+                        }
+
+                        System.out.println("\nBenchmark end: " + new SimpleDateFormat("yyyy/MM/dd HH:mm:ss").format(new Date()));
+                        break;
                     case 'e':
                         break mainloop;
                     default:
@@ -99,7 +312,142 @@ public class ConsoleApplication {
         }
     }
 
+    private void executeBatch(Schedule schedule, Path file) {
+        var out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out, Charset.defaultCharset()), 1 << 16));
+        var err = new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.err, Charset.defaultCharset()), 1 << 16));
+        var batch = new BatchExecutor(schedule, BatchExecutor.BATCH_SIZE, out, err);
+        try (var reader = file == null ? new BufferedReader(new InputStreamReader(System.in, Charset.defaultCharset()), 1 << 16)
+                : Files.newBufferedReader(file, Charset.defaultCharset())) {
+            batch.execute(reader);
+        }
+        catch (IOException ioe) {
+            ioe.printStackTrace();
+        }
+        System.out.print(batch.summary());
+    }
+
+    private void executeServer(long maxPlans, int port) {
+        var schedule = new Schedule(maxPlans, Schedule.Storage.CONCURRENT);
+        try (var server = new ScheduleServer(schedule, port);
+                var scanner = new Scanner(System.in)) {
+            System.out.println("Schedule Server: " + server.address() + " virtual threads: " + server.isVirtual()
+                    + "\nType e or EOF to stop.");
+            while (scanner.hasNextLine()) {
+                if (scanner.nextLine().trim().equals("e")) {
+                    break;
+                }
+            }
+        }
+        catch (IOException ioe) {
+            ioe.printStackTrace();
+        }
+        System.out.println("Schedule Server stopped. Plans(num): " + schedule.size());
+    }
+
+    private void executeLoad(int port, int connections, int requests, int depth) {
+        var address = new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+        try {
+            var result = new ScheduleLoadGenerator(address, connections, requests, depth).run();
+            System.out.println("[Connections " + connections + "][Depth " + depth + "] " + result);
+        }
+        catch (IOException ioe) {
+            ioe.printStackTrace();
+        }
+        catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
     private class AutoTest {
+        public void DateTimeParser_parse() {
+            var dtf = DateTimeFormatter.ofPattern("uuuuMMddHHmm").withResolverStyle(ResolverStyle.STRICT);
+
+            // 有効、無効な日付の組み合わせで、DateTimeFormatterと同じ結果になる
+            for (int year = 0; year < 10000; year += 97) {
+                for (int month = 0; month < 14; month++) {
+                    for (int day = 0; day < 33; day++) {
+                        for (int time : new int[] { 0, 59, 60, 1439, 1440, 2359, 2360, 2400 }) {
+                            var date = String.format("%04d%02d%02d%04d", year, month, day, time);
+                            LocalDateTime expected = null;
+                            LocalDateTime actual = null;
+                            try {
+                                expected = LocalDateTime.parse(date, dtf);
+                            }
+                            catch (DateTimeParseException dtpe) {
+                                // no operation
+                            }
+                            try {
+                                actual = DateTimeParser.parse(date);
+                            }
+                            catch (DateTimeParseException dtpe) {
+                                // no operation
+                            }
+                            if (expected == null ? actual != null : !expected.equals(actual)) {
+                                throw new RuntimeException(date);
+                            }
+                            // 分オフセットとの相互変換
+                            if (actual != null
+                                    && !actual.equals(DateTimeParser.toLocalDateTime(DateTimeParser.toMinutes(actual)))) {
+                                throw new RuntimeException(date);
+                            }
+                        }
+                    }
+                }
+            }
+
+            // 閏年の2月29日
+            {
+                String[][] dates = {
+                    { "000002290000", "true" },
+                    { "190002290000", "false" },
+                    { "200002290000", "true" },
+                    { "202102290000", "false" },
+                    { "202402290000", "true" },
+                };
+                for (var date : dates) {
+                    boolean isValid = true;
+                    try {
+                        DateTimeParser.parse(date[0]);
+                    }
+                    catch (DateTimeParseException dtpe) {
+                        isValid = false;
+                    }
+                    if (isValid != Boolean.parseBoolean(date[1])) { throw new RuntimeException(date[0]); }
+                }
+            }
+
+            // パースエラー 数字以外、符号、全角数字
+            {
+                String[] dates = { "+02011220123", "-02011220123", "2020112201２3", "2020 1220123", "", "2020112201230" };
+                for (var date : dates) {
+                    boolean isOk = false;
+                    try {
+                        DateTimeParser.parse(date);
+                    }
+                    catch (DateTimeParseException dtpe) {
+                        isOk = true;
+                    }
+                    if (!isOk) { throw new RuntimeException(date); }
+                }
+            }
+
+            // 符号を付けた年は、DateTimeFormatterでは有効でも、4桁の年に限定して無効とする
+            {
+                String[] dates = { "+0443304151436", "-804111012251", "+1000001010000" };
+                for (var date : dates) {
+                    LocalDateTime.parse(date, dtf);
+                    boolean isOk = false;
+                    try {
+                        DateTimeParser.parse(date);
+                    }
+                    catch (DateTimeParseException dtpe) {
+                        isOk = true;
+                    }
+                    if (!isOk) { throw new RuntimeException(date); }
+                }
+            }
+        }
+
         public void Schedule_Schedule() {
 
             // 最大登録件数の有効範囲の下限
@@ -489,6 +837,22 @@ public class ConsoleApplication {
                 }
                 if (!isOk) { throw new RuntimeException(); }
             }
+
+            // 用件の最大サイズは、予定表毎に設定し、他の予定表に影響しない
+            {
+                var large = new Schedule(Long.MAX_VALUE, 300, Schedule.Storage.TREE);
+                var small = new Schedule(Long.MAX_VALUE, 4, Schedule.Storage.PACKED);
+                var s = new Schedule(Long.MAX_VALUE);
+                large.add(VALID_DATE_TIME, VALID_CONTENT_MAX + "あ");
+                small.add(VALID_DATE_TIME, "予定あり");
+                expectFailure(() -> small.add(VALID_DATE_TIME, "予定ありx"));
+                expectFailure(() -> small.addAll(List.of(new Plan(VALID_DATE_TIME, VALID_CONTENT))));
+                expectFailure(() -> small.addRecurring(new RecurringPlan(VALID_DATE_TIME, RecurringPlan.Frequency.DAILY, "202012220000", "予定ありx")));
+                expectFailure(() -> small.search(VALID_DATE_TIME, "202011230000", "予定ありx"));
+                expectFailure(() -> s.add(VALID_DATE_TIME, VALID_CONTENT_MAX + "あ"));
+                expectFailure(() -> new Schedule(Long.MAX_VALUE, Plan.MAX_CONTENT_LENGTH + 1, Schedule.Storage.TREE));
+                if (large.size() != 1 || small.size() != 1 || s.size() != 0) { throw new RuntimeException(); }
+            }
         }
 
         public void Schedule_remove_invalid() {
@@ -579,63 +943,3936 @@ public class ConsoleApplication {
             }
         }
 
-        public void Schedule_benchmark() {
-            // 全ての日時に予定を 2件登録。検索は5000年間。
-            var schedule = new Schedule(Long.MAX_VALUE);
+        public void Schedule_storage() {
+            for (var storage : Schedule.Storage.values()) {
+                if (storage != Schedule.Storage.TREE) {
+                    Schedule_storage(storage);
+                }
+            }
+        }
 
-            for (int year = 0; year < 10000; year += 100 ) {
-                for (int month = 1; month < 13; month++) {
-                    for (int day = 1; day < 31; day++) {
-                        for (int time = 0; time < 24 * 60; time += 100) {
-                            var date = String.format("%04d%02d%02d%02d%02d", year, month, day, time/60, time%60);
+        private void Schedule_storage(Schedule.Storage storage) {
+            // TREEと他の格納方式に同じ操作を行い、同じ結果になる
+            var random = new Random(20201122);
+            var expected = new Schedule(Long.MAX_VALUE, Schedule.Storage.TREE);
+            var actual = new Schedule(Long.MAX_VALUE, storage);
+            String[] contents = { "", VALID_CONTENT, VALID_CONTENT2, "定例会議", "1", "2" };
+            long base = DateTimeParser.parseMinutes(VALID_DATE_TIME);
+
+            for (int number = 0; number < 100000; number++) {
+                var date = DateTimeParser.format(base + random.nextInt(20000));
+                var content = contents[random.nextInt(contents.length)];
+                boolean isAddition = random.nextInt(10) < 7;
+                boolean isExpected = true;
+                boolean isActual = true;
+                try {
+                    if (isAddition) {
+                        expected.add(date, content);
+                    }
+                    else {
+                        expected.remove(date, content);
+                    }
+                }
+                catch (IllegalStateException ise) {
+                    isExpected = false;
+                }
+                try {
+                    if (isAddition) {
+                        actual.add(date, content);
+                    }
+                    else {
+                        actual.remove(date, content);
+                    }
+                }
+                catch (IllegalStateException ise) {
+                    isActual = false;
+                }
+                if (isExpected != isActual) { throw new RuntimeException(date + " " + content); }
+
+                if (number % 1000 == 0) {
+                    var from = DateTimeParser.format(base + random.nextInt(20000));
+                    var to = DateTimeParser.format(base + 20000);
+                    if (!new ArrayList<>(expected.find(from, to)).equals(new ArrayList<>(actual.find(from, to)))) {
+                        throw new RuntimeException(from + " " + to);
+                    }
+                }
+            }
+
+            var all = new ArrayList<>(actual.find("000001010000", "999912312359"));
+            if (!new ArrayList<>(expected.find("000001010000", "999912312359")).equals(all)) {
+                throw new RuntimeException();
+            }
+
+            // 終了日時が始点日時より前の場合はエラー
+            {
+                boolean isOk = false;
+                try {
+                    actual.find("202011220123", "202011220122");
+                }
+                catch (IllegalArgumentException iae) {
+                    isOk = true;
+                }
+                if (!isOk) { throw new RuntimeException(); }
+            }
+
+            // 最大登録件数まで登録でき、それ以上登録するとエラー
+            {
+                boolean isOk = false;
+                int number = -1;
+                try {
+                    var s = new Schedule(10, storage);
+                    for(number = 0; number < 11; number++) {
+                        s.add(VALID_DATE_TIME, Integer.toString(number));
+                    }
+                }
+                catch (IllegalStateException ise) {
+                    if (number == 10) {
+                        isOk = true;
+                    }
+                }
+                if (!isOk) { throw new RuntimeException();}
+            }
+        }
+
+        public void Schedule_concurrent() throws InterruptedException {
+            for (var storage : new Schedule.Storage[] { Schedule.Storage.CONCURRENT, Schedule.Storage.SYNCHRONIZED, Schedule.Storage.SHARDED }) {
+                final int threads = 8;
+
+                // 複数のスレッドから登録しても、最大登録件数ちょうどまで登録できる
+                {
+                    var s = new Schedule(1000, storage);
+                    var added = new AtomicInteger();
+                    runConcurrently(threads, thread -> {
+                        for (int number = 0; number < 500; number++) {
                             try {
-                                schedule.add(date, VALID_CONTENT);
-                                schedule.add(date, VALID_CONTENT2);
+                                s.add(VALID_DATE_TIME, thread + "-" + number);
+                                added.incrementAndGet();
                             }
-                            catch (DateTimeParseException ise) {
-                                if (isValidDay(year, month, day)) {
-                                    throw ise;
-                                }
+                            catch (IllegalStateException ise) {
+                                // no operation
                             }
                         }
+                    });
+                    if (added.get() != 1000) { throw new RuntimeException(storage + " " + added); }
+                    if (s.find(VALID_DATE_TIME, "202011220124").size() != 1000) { throw new RuntimeException(); }
+                }
+
+                // 複数のスレッドから同じ予定を登録しても、1件のみ登録できる
+                {
+                    var s = new Schedule(Long.MAX_VALUE, storage);
+                    var added = new AtomicInteger();
+                    runConcurrently(threads, thread -> {
+                        for (int number = 0; number < 500; number++) {
+                            try {
+                                s.add(VALID_DATE_TIME, Integer.toString(number));
+                                added.incrementAndGet();
+                            }
+                            catch (IllegalStateException ise) {
+                                // no operation
+                            }
+                        }
+                    });
+                    if (added.get() != 500) { throw new RuntimeException(storage + " " + added); }
+                }
+
+                // 登録と削除を繰り返しても、削除した分は再び登録できる
+                {
+                    var s = new Schedule(threads, storage);
+                    runConcurrently(threads, thread -> {
+                        for (int number = 0; number < 1000; number++) {
+                            s.add(VALID_DATE_TIME, Integer.toString(thread));
+                            // 反復中の変更で、例外が発生しない
+                            for (var plan : s.find(VALID_DATE_TIME, "202011220124")) {
+                                plan.getContent();
+                            }
+                            s.remove(VALID_DATE_TIME, Integer.toString(thread));
+                        }
+                    });
+                }
+            }
+        }
+
+        public void Schedule_offHeap() {
+            // Latin-1とUTF-16の用件を、符号化したまま文字列と同じ順序で比較し、復元できる
+            {
+                String[] contents = { "", "a", "café", "ÿ", "Ā", "ÿa", "東京", "東京駅", VALID_CONTENT, VALID_CONTENT2, VALID_CONTENT_MAX };
+                var arena = new ContentArena();
+                var handles = new long[contents.length];
+                for (int i = 0; i < contents.length; i++) {
+                    handles[i] = arena.put(contents[i]);
+                }
+                for (int i = 0; i < contents.length; i++) {
+                    if (!contents[i].equals(arena.get(handles[i]))) { throw new RuntimeException(contents[i]); }
+                    for (var content : contents) {
+                        if (Integer.signum(arena.compare(handles[i], content)) != Integer.signum(contents[i].compareTo(content))) {
+                            throw new RuntimeException(contents[i] + " " + content);
+                        }
                     }
                 }
+                // Latin-1の用件は1文字1バイト、それ以外は1文字2バイトで、2バイトの接頭辞を付ける
+                long allocated = arena.allocated();
+                arena.put("café");
+                if (arena.allocated() - allocated != 2 + 4) { throw new RuntimeException(); }
+                allocated = arena.allocated();
+                arena.put("東京");
+                if (arena.allocated() - allocated != 2 + 2 * 2) { throw new RuntimeException(); }
             }
 
-            long start1 = System.nanoTime();
-            var set1 = schedule.find("250001010000", "750012312359");
-            long end1 = System.nanoTime();
-            System.out.println("full elapse time: " + (end1 - start1));
-            System.out.println("Found Plans:" + set1.size());
+            // 削除した用件が有効な用件以上になると、コンパクションが必要になる
+            {
+                var arena = new ContentArena();
+                var handles = new ArrayList<Long>();
+                while (arena.allocated() < ContentArena.CHUNK_SIZE * 3L) {
+                    handles.add(arena.put(VALID_CONTENT_MAX));
+                }
+                for (int i = 0; i < handles.size() / 2; i++) {
+                    arena.free(handles.get(i));
+                }
+                if (arena.needsCompaction()) { throw new RuntimeException(); }
+                arena.free(handles.get(handles.size() / 2));
+                if (!arena.needsCompaction()) { throw new RuntimeException(); }
+                // 複写した用件は、チャンクをまたがずに詰める
+                var compacted = new ContentArena();
+                long handle = 0;
+                for (int i = handles.size() / 2 + 1; i < handles.size(); i++) {
+                    handle = compacted.copy(arena, handles.get(i));
+                }
+                if (!VALID_CONTENT_MAX.equals(compacted.get(handle)) || compacted.allocated() != arena.allocated() - arena.garbage()) {
+                    throw new RuntimeException();
+                }
+            }
 
+            // 登録と削除を繰り返し、コンパクションした後も、TREEと同じ結果になる
+            {
+                var expected = new Schedule(Long.MAX_VALUE, Schedule.Storage.TREE);
+                var actual = new Schedule(Long.MAX_VALUE, Schedule.Storage.OFF_HEAP);
+                long base = DateTimeParser.parseMinutes(VALID_DATE_TIME);
+                int count = ContentArena.CHUNK_SIZE * 4 / (VALID_CONTENT_MAX.length() * 2);
+                var plans = new ArrayList<Plan>();
+                for (int number = 0; number < count; number++) {
+                    plans.add(new Plan(DateTimeParser.format(base + number), VALID_CONTENT_MAX.substring(1) + number % 7));
+                }
+                expected.addAll(plans);
+                actual.addAll(plans);
 
-            // 全ての日時に予定を  1件登録。検索は50年間。
-            schedule = new Schedule(Long.MAX_VALUE);
+                // 削除する前に検索した予定は、用件を取得していない
+                var before = new ArrayList<>(actual.find("000001010000", "999912312359"));
+                for (int number = 0; number < count; number++) {
+                    if (number % 4 != 0) {
+                        var plan = plans.get(number);
+                        expected.remove(DateTimeParser.format(base + number), plan.getContent());
+                        actual.remove(DateTimeParser.format(base + number), plan.getContent());
+                    }
+                }
+                // 古い領域の用件を、手放した後も復元できる
+                if (!plans.equals(before)) { throw new RuntimeException(); }
+                var all = new ArrayList<>(actual.find("000001010000", "999912312359"));
+                if (!new ArrayList<>(expected.find("000001010000", "999912312359")).equals(all) || all.size() != (count + 3) / 4) {
+                    throw new RuntimeException();
+                }
 
-            for (int year = 0; year < 10000; year += 100) {
-                for (int month = 1; month < 13; month++) {
-                    for (int day = 1; day < 31; day++) {
-                        for (int time = 0; time < 24 * 60; time += 100) {
-                            var date = String.format("%04d%02d%02d%02d%02d", year, month, day, time/60, time%60);
-                            try {
-                                schedule.add(date, VALID_CONTENT);
-                            }
-                            catch (DateTimeParseException ise) {
-                                if (isValidDay(year, month, day)) {
-                                    throw ise;
-                                }
+                // 削除した日時に、異なる用件を再び登録できる
+                for (int number = 1; number < count; number += 4) {
+                    expected.add(DateTimeParser.format(base + number), VALID_CONTENT);
+                    actual.add(DateTimeParser.format(base + number), VALID_CONTENT);
+                }
+                if (!new ArrayList<>(expected.find("000001010000", "999912312359")).equals(new ArrayList<>(actual.find("000001010000", "999912312359")))) {
+                    throw new RuntimeException();
+                }
+                if (expected.count("000001010000", "999912312359") != actual.count("000001010000", "999912312359")) {
+                    throw new RuntimeException();
+                }
+            }
+        }
+
+        public void Schedule_sharded() throws InterruptedException {
+            // 全ての年に散らばる予定で、TREEと同じ結果になる
+            var expected = new Schedule(Long.MAX_VALUE, Schedule.Storage.TREE);
+            var actual = new Schedule(Long.MAX_VALUE, Schedule.Storage.SHARDED);
+            var random = new Random(16);
+            long max = DateTimeParser.parseMinutes("999912312359");
+            var dates = new ArrayList<String>(List.of("000001010000", "999912312359", "202012312359", "202101010000"));
+            for (int number = 0; number < 20000; number++) {
+                dates.add(DateTimeParser.format((long)(random.nextDouble() * max)));
+            }
+            for (var date : dates) {
+                for (var content : new String[] { VALID_CONTENT, VALID_CONTENT2 }) {
+                    try {
+                        expected.add(date, content);
+                    }
+                    catch (IllegalStateException ise) {
+                        continue;
+                    }
+                    actual.add(date, content);
+                }
+            }
+            assertSameSchedule(actual, expected);
+            String[][] ranges = {
+                { "250001010000", "750012312359" },
+                { "202012312359", "202101010001" },
+                { "202101010000", "202101010000" },
+                { "000001010000", "999912312359" },
+                { "202001010000", "202101010000" },
+            };
+            for (var range : ranges) {
+                if (!new ArrayList<>(actual.find(range[0], range[1])).equals(new ArrayList<>(expected.find(range[0], range[1])))
+                        || actual.count(range[0], range[1]) != expected.count(range[0], range[1])) {
+                    throw new RuntimeException(range[0] + " " + range[1]);
+                }
+            }
+            if (actual.size() != expected.size()) {
+                throw new RuntimeException();
+            }
+
+            // 複数の年にまたがる一括登録は、重複があればいずれの年にも登録しない
+            long size = actual.size();
+            var plans = List.of(new Plan("201906010000", VALID_CONTENT), new Plan("202012312359", VALID_CONTENT),
+                    new Plan("202106010000", VALID_CONTENT));
+            try {
+                actual.addAll(plans);
+                throw new RuntimeException();
+            }
+            catch (IllegalStateException ise) {
+                // no operation
+            }
+            if (actual.size() != size || actual.count("201901010000", "202201010000") != expected.count("201901010000", "202201010000")) {
+                throw new RuntimeException();
+            }
+
+            // 異なる年に並行して登録しても、最大登録件数ちょうどまで登録でき、検索結果は昇順となる
+            final int threads = 8;
+            var s = new Schedule(1000, Schedule.Storage.SHARDED);
+            var added = new AtomicInteger();
+            runConcurrently(threads, thread -> {
+                for (int number = 0; number < 500; number++) {
+                    try {
+                        s.add(String.format("%04d0101%04d", 1000 + thread * 1000 + number, number % 60), VALID_CONTENT);
+                        added.incrementAndGet();
+                    }
+                    catch (IllegalStateException ise) {
+                        // no operation
+                    }
+                    if (number % 50 == 0) {
+                        Plan previous = null;
+                        for (var plan : s.find("000001010000", "999912312359")) {
+                            if (previous != null && previous.compareTo(plan) >= 0) {
+                                throw new RuntimeException();
                             }
+                            previous = plan;
                         }
                     }
                 }
+            });
+            if (added.get() != 1000 || s.size() != 1000 || s.count("000001010000", "999912312359") != 1000) {
+                throw new RuntimeException(added + " " + s.size());
+            }
+        }
+
+        /**
+         * スレッドを同時に開始し、全てのスレッドが終了するまで待つ。
+         * @param threads スレッドの数
+         * @param task スレッドで実行する処理。引数はスレッドの番号。
+         */
+        private void runConcurrently(int threads, IntConsumer task) throws InterruptedException {
+            var start = new CountDownLatch(1);
+            var errors = new ConcurrentLinkedQueue<Throwable>();
+            var workers = new Thread[threads];
+            for (int i = 0; i < threads; i++) {
+                final int thread = i;
+                workers[i] = new Thread(() -> {
+                    try {
+                        start.await();
+                        task.accept(thread);
+                    }
+                    catch (Throwable t) {
+                        errors.add(t);
+                    }
+                });
+                workers[i].start();
+            }
+            start.countDown();
+            for (var worker : workers) {
+                worker.join();
+            }
+            if (!errors.isEmpty()) {
+                throw new RuntimeException(errors.peek());
             }
+        }
+
+        public void Schedule_findPage() {
+            for (var storage : Schedule.Storage.values()) {
+                var s = new Schedule(Long.MAX_VALUE, storage);
+                long base = DateTimeParser.parseMinutes(VALID_DATE_TIME);
+                for (int number = 0; number < 3000; number++) {
+                    s.add(DateTimeParser.format(base + number / 3), Integer.toString(number % 3));
+                }
+                var from = DateTimeParser.format(base + 10);
+                var to = DateTimeParser.format(base + 990);
+                var expected = new ArrayList<>(s.find(from, to));
+
+                // 昇順、降順に、ページを辿ると検索結果と同じになる
+                for (var order : Schedule.Order.values()) {
+                    for (int limit : new int[] { 1, 7, 1024, 5000 }) {
+                        var actual = new ArrayList<Plan>();
+                        Plan after = null;
+                        do {
+                            var page = s.findPage(from, to, after, limit, order);
+                            if (page.getPlans().size() > limit) { throw new RuntimeException(); }
+                            actual.addAll(page.getPlans());
+                            after = page.getContinuation();
+                        } while (after != null);
+
+                        var list = new ArrayList<>(expected);
+                        if (order == Schedule.Order.DESCENDING) {
+                            Collections.reverse(list);
+                        }
+                        if (!list.equals(actual)) { throw new RuntimeException(storage + " " + order + " " + limit); }
+                    }
+
+                    // カーソルも、検索結果と同じになる
+                    var actual = new ArrayList<Plan>();
+                    s.cursor(from, to, order).forEachRemaining(actual::add);
+                    var list = new ArrayList<>(expected);
+                    if (order == Schedule.Order.DESCENDING) {
+                        Collections.reverse(list);
+                    }
+                    if (!list.equals(actual)) { throw new RuntimeException(storage + " " + order); }
+                }
+
+                // ページの間に継続位置の予定を削除しても、続きから検索できる
+                {
+                    var page = s.findPage(from, to, null, 10, Schedule.Order.ASCENDING);
+                    var last = page.getContinuation();
+                    s.remove(DateTimeParser.format(DateTimeParser.toMinutes(last.getDateTime())),
+                            last.getContent());
+                    var next = s.findPage(from, to, last, 1, Schedule.Order.ASCENDING);
+                    if (!next.getPlans().get(0).equals(expected.get(10))) { throw new RuntimeException(storage.toString()); }
+                }
 
-            long start2 = System.nanoTime();
-            var set2 = schedule.find("497501012359", "502501012359");
-            long end2 = System.nanoTime();
-            System.out.println("1/200 part elapse time: " + (end2 - start2));
-            System.out.println("Found Plans: " + set2.size());
+                // 検索で0件を発見した
+                if (!s.findPage(to, to, null, 1, Schedule.Order.DESCENDING).getPlans().isEmpty()) {
+                    throw new RuntimeException();
+                }
+
+                // 最大件数が0
+                {
+                    boolean isOk = false;
+                    try {
+                        s.findPage(from, to, null, 0, Schedule.Order.ASCENDING);
+                    }
+                    catch (IllegalArgumentException iae) {
+                        isOk = true;
+                    }
+                    if (!isOk) { throw new RuntimeException(); }
+                }
+
+                // 終了日時が始点日時より前の場合
+                {
+                    boolean isOk = false;
+                    try {
+                        s.cursor(to, from, Schedule.Order.ASCENDING);
+                    }
+                    catch (IllegalArgumentException iae) {
+                        isOk = true;
+                    }
+                    if (!isOk) { throw new RuntimeException(); }
+                }
+            }
         }
-    }
-}
 
+        public void Schedule_addAll() {
+            for (var storage : Schedule.Storage.values()) {
+                long base = DateTimeParser.parseMinutes(VALID_DATE_TIME);
+                var plans = new ArrayList<Plan>();
+                for (int number = 0; number < 5000; number++) {
+                    plans.add(new Plan(DateTimeParser.format(base + number / 2), Integer.toString(number % 2)));
+                }
+
+                // 空の予定表に、ソート済みの予定を一括して登録する
+                {
+                    var s = new Schedule(plans.size(), storage);
+                    s.addAll(plans);
+                    if (!new ArrayList<>(s.find("000001010000", "999912312359")).equals(plans)) {
+                        throw new RuntimeException(storage.toString());
+                    }
+                }
+
+                // 登録済みの予定表に、ソートされていない予定を一括して登録する
+                {
+                    var s = new Schedule(Long.MAX_VALUE, storage);
+                    var reversed = new ArrayList<Plan>();
+                    for (int i = 0; i < plans.size(); i++) {
+                        if (i % 5 == 0) {
+                            s.add(DateTimeParser.format(DateTimeParser.toMinutes(plans.get(i).getDateTime())), plans.get(i).getContent());
+                        }
+                        else {
+                            reversed.add(0, plans.get(i));
+                        }
+                    }
+                    s.addAll(reversed);
+                    if (!new ArrayList<>(s.find("000001010000", "999912312359")).equals(plans)) {
+                        throw new RuntimeException(storage.toString());
+                    }
+                }
+
+                // 登録済みの予定表に多くの予定を一括して登録しても、登録前の検索結果のビューは変更を反映する
+                {
+                    var s = new Schedule(Long.MAX_VALUE, storage);
+                    s.add(DateTimeParser.format(DateTimeParser.toMinutes(plans.get(0).getDateTime())), plans.get(0).getContent());
+                    var view = s.find("000001010000", "999912312359");
+                    s.addAll(plans.subList(1, plans.size()));
+                    if ((storage == Schedule.Storage.TREE || storage == Schedule.Storage.CONCURRENT) && !new ArrayList<>(view).equals(plans)) {
+                        throw new RuntimeException(storage.toString());
+                    }
+                    if (!new ArrayList<>(s.find("000001010000", "999912312359")).equals(plans)) {
+                        throw new RuntimeException(storage.toString());
+                    }
+                }
+
+                // 最大登録件数を超える場合は、1件も登録しない
+                {
+                    boolean isOk = false;
+                    var s = new Schedule(plans.size() - 1, storage);
+                    try {
+                        s.addAll(plans);
+                    }
+                    catch (IllegalStateException ise) {
+                        isOk = true;
+                    }
+                    if (!isOk || !s.find("000001010000", "999912312359").isEmpty()) { throw new RuntimeException(); }
+                    // 最大登録件数までは登録できる
+                    s.addAll(plans.subList(1, plans.size()));
+                }
+
+                // 登録済みの予定と重複する場合は、1件も登録しない
+                for (int size : new int[] { 1, plans.size() }) {
+                    boolean isOk = false;
+                    var s = new Schedule(plans.size(), storage);
+                    s.add(DateTimeParser.format(DateTimeParser.toMinutes(plans.get(size - 1).getDateTime())), plans.get(size - 1).getContent());
+                    try {
+                        s.addAll(plans.subList(0, size));
+                    }
+                    catch (IllegalStateException ise) {
+                        isOk = true;
+                    }
+                    if (!isOk || s.find("000001010000", "999912312359").size() != 1) { throw new RuntimeException(); }
+                    // 重複を除けば、最大登録件数まで登録できる
+                    s.addAll(plans.subList(size, plans.size()));
+                    s.addAll(plans.subList(0, size - 1));
+                }
+
+                // 一覧の中で重複する場合は、1件も登録しない
+                {
+                    boolean isOk = false;
+                    var s = new Schedule(Long.MAX_VALUE, storage);
+                    try {
+                        s.addAll(List.of(plans.get(1), plans.get(0), plans.get(1)));
+                    }
+                    catch (IllegalStateException ise) {
+                        isOk = true;
+                    }
+                    if (!isOk || !s.find("000001010000", "999912312359").isEmpty()) { throw new RuntimeException(); }
+                }
+
+                // 予定がnull
+                {
+                    boolean isOk = false;
+                    var s = new Schedule(Long.MAX_VALUE, storage);
+                    try {
+                        s.addAll(Arrays.asList(plans.get(0), null));
+                    }
+                    catch (IllegalArgumentException iae) {
+                        isOk = true;
+                    }
+                    if (!isOk) { throw new RuntimeException(); }
+                }
+            }
+        }
+
+        public void Schedule_sharesContent() {
+            for (var storage : Schedule.Storage.values()) {
+                var s = new Schedule(Long.MAX_VALUE, storage, Schedule.Option.SHARE_CONTENT);
+                long base = DateTimeParser.parseMinutes(VALID_DATE_TIME);
+
+                // 同じ用件の予定は、一つの文字列を共有する。OFF_HEAPは、検索結果の予定毎に用件を復元する。
+                for (int number = 0; number < 100; number++) {
+                    s.add(DateTimeParser.format(base + number), new String(VALID_CONTENT));
+                }
+                Plan first = null;
+                for (var plan : s.find("000001010000", "999912312359")) {
+                    if (first != null && storage != Schedule.Storage.OFF_HEAP && first.getContent() != plan.getContent()) {
+                        throw new RuntimeException();
+                    }
+                    first = plan;
+                }
+                if (s.sharedContentCount() != 1) { throw new RuntimeException(); }
+
+                // 登録できなかった予定の用件は、辞書に残らない
+                boolean isOk = false;
+                try {
+                    s.add(VALID_DATE_TIME, new String(VALID_CONTENT));
+                }
+                catch (IllegalStateException ise) {
+                    isOk = true;
+                }
+                if (!isOk) { throw new RuntimeException(); }
+                isOk = false;
+                try {
+                    s.addAll(List.of(new Plan(VALID_DATE_TIME, VALID_CONTENT2), new Plan(VALID_DATE_TIME, VALID_CONTENT)));
+                }
+                catch (IllegalStateException ise) {
+                    isOk = true;
+                }
+                if (!isOk || s.sharedContentCount() != 1) { throw new RuntimeException(); }
+
+                // 全ての予定を削除すると、辞書は空になる
+                s.addAll(List.of(new Plan(VALID_DATE_TIME, VALID_CONTENT2)));
+                if (s.sharedContentCount() != 2) { throw new RuntimeException(); }
+                s.remove(VALID_DATE_TIME, VALID_CONTENT2);
+                for (int number = 0; number < 100; number++) {
+                    s.remove(DateTimeParser.format(base + number), VALID_CONTENT);
+                }
+                if (s.sharedContentCount() != 0 || s.size() != 0) { throw new RuntimeException(); }
+            }
+
+            // 辞書は、同じ用件に一つの文字列を返し、参照がなくなった用件を取り除く
+            var dictionary = new ContentDictionary();
+            var shared = dictionary.intern(VALID_CONTENT);
+            if (dictionary.intern(new String(VALID_CONTENT)) != shared || dictionary.size() != 1) { throw new RuntimeException(); }
+            dictionary.intern(VALID_CONTENT2);
+            dictionary.release(VALID_CONTENT);
+            if (dictionary.intern(new String(VALID_CONTENT)) != shared) { throw new RuntimeException(); }
+            dictionary.release(VALID_CONTENT);
+            dictionary.release(VALID_CONTENT);
+            if (dictionary.size() != 1 || dictionary.intern(new String(VALID_CONTENT)) == shared) { throw new RuntimeException(); }
+        }
+
+        public void Schedule_findDay() throws InterruptedException {
+            for (var storage : Schedule.Storage.values()) {
+                var expected = new Schedule(Long.MAX_VALUE);
+                var s = new Schedule(Long.MAX_VALUE, storage, Schedule.Option.CALENDAR_INDEX);
+                var random = new Random(11);
+                long base = DateTimeParser.parseMinutes("202401150000");
+
+                // 閏年の2月を含む3か月に、予定を登録、削除する
+                for (int number = 0; number < 3000; number++) {
+                    var date = DateTimeParser.format(base + random.nextInt(90 * 24 * 60));
+                    var content = random.nextBoolean() ? VALID_CONTENT : VALID_CONTENT2;
+                    try {
+                        expected.add(date, content);
+                        s.add(date, content);
+                    }
+                    catch (IllegalStateException ise) {
+                        expected.remove(date, content);
+                        s.remove(date, content);
+                    }
+                }
+                s.addAll(List.of(new Plan("202402290000", VALID_CONTENT_MAX), new Plan("202402292359", VALID_CONTENT_MAX)));
+                expected.addAll(List.of(new Plan("202402290000", VALID_CONTENT_MAX), new Plan("202402292359", VALID_CONTENT_MAX)));
+
+                for (int day = 1; day <= 29; day++) {
+                    var from = String.format("202402%02d0000", day);
+                    var to = day < 29 ? String.format("202402%02d0000", day + 1) : "202403010000";
+                    if (!new ArrayList<>(s.findDay(2024, 2, day)).equals(new ArrayList<>(expected.find(from, to)))) {
+                        throw new RuntimeException();
+                    }
+                }
+                for (int month = 1; month <= 4; month++) {
+                    var from = String.format("2024%02d010000", month);
+                    var to = String.format("2024%02d010000", month + 1);
+                    if (!new ArrayList<>(s.findMonth(2024, month)).equals(new ArrayList<>(expected.find(from, to)))) {
+                        throw new RuntimeException();
+                    }
+                }
+                // 索引を作成しない予定表も、同じ結果となる
+                if (!new ArrayList<>(expected.findMonth(2024, 2)).equals(new ArrayList<>(s.findMonth(2024, 2)))) {
+                    throw new RuntimeException();
+                }
+                if (!s.findDay(9999, 12, 31).isEmpty() || !s.findMonth(0, 1).isEmpty()) {
+                    throw new RuntimeException();
+                }
+
+                // 存在しない日付は、指定できない
+                boolean isOk = false;
+                try {
+                    s.findDay(2023, 2, 29);
+                }
+                catch (IllegalArgumentException iae) {
+                    isOk = true;
+                }
+                if (!isOk) { throw new RuntimeException(); }
+            }
+
+            // 索引は索引毎のロックで排他し、異なる年の予定を並行して登録、削除しても、予定のセットと一致する
+            var concurrent = new Schedule(Long.MAX_VALUE, Schedule.Storage.CONCURRENT, Schedule.Option.CALENDAR_INDEX, Schedule.Option.COUNT_INDEX,
+                    Schedule.Option.INTERVAL_INDEX);
+            runConcurrently(4, thread -> {
+                long base = DateTimeParser.parseMinutes(String.format("%04d01010000", 2020 + thread));
+                for (int number = 0; number < 2000; number++) {
+                    concurrent.add(DateTimeParser.format(base + number * 60), number % 2 == 0 ? VALID_CONTENT : VALID_CONTENT2);
+                }
+                for (int number = 0; number < 2000; number += 3) {
+                    concurrent.remove(DateTimeParser.format(base + number * 60), number % 2 == 0 ? VALID_CONTENT : VALID_CONTENT2);
+                }
+            });
+            for (int year = 2020; year < 2024; year++) {
+                var from = String.format("%04d01010000", year);
+                var to = String.format("%04d01010000", year + 1);
+                var expected = new ArrayList<>(concurrent.find(from, to));
+                if (expected.size() != 1333 || !new ArrayList<>(concurrent.findMonth(year, 1)).equals(expected.subList(0, 744 - 744 / 3))
+                        || concurrent.count(from, to) != expected.size() || concurrent.overlaps(from, to).size() != expected.size()) {
+                    throw new RuntimeException(Integer.toString(year));
+                }
+            }
+        }
+
+        public void Schedule_recurring() {
+            // 繰り返しの予定は、全ての回を1件ずつ登録した場合と同じ結果になる
+            var recurring = List.of(
+                    new RecurringPlan("202001061000", RecurringPlan.Frequency.WEEKLY, "202201010000", "定例").except("202003021000"),
+                    new RecurringPlan("202001311200", RecurringPlan.Frequency.MONTHLY, "202101010000", "月末締め"),
+                    new RecurringPlan("202012250900", RecurringPlan.Frequency.DAILY, "202101050900", "朝会"),
+                    new RecurringPlan("202012280900", RecurringPlan.Frequency.WEEKLY, "202102010900", "朝会"));
+            var random = new Random(17);
+            long base = DateTimeParser.parseMinutes("202001010000");
+            var dates = new ArrayList<String>(List.of("202001131000", "202003021000"));
+            for (int number = 0; number < 2000; number++) {
+                dates.add(DateTimeParser.format(base + random.nextInt(2 * 366 * 1440)));
+            }
+
+            var expected = new Schedule(Long.MAX_VALUE);
+            for (var date : dates) {
+                try {
+                    expected.add(date, "定例");
+                }
+                catch (IllegalStateException ise) {
+                    // no operation
+                }
+            }
+            for (var rule : recurring) {
+                var first = rule.getFirstDateTime();
+                for (int k = 0; ; k++) {
+                    var dateTime = rule.getFrequency() == RecurringPlan.Frequency.DAILY ? first.plusDays(k)
+                            : rule.getFrequency() == RecurringPlan.Frequency.WEEKLY ? first.plusWeeks(k) : first.plusMonths(k);
+                    if (!dateTime.isBefore(rule.getUntilDateTime())) {
+                        break;
+                    }
+                    if (rule.getFrequency() == RecurringPlan.Frequency.MONTHLY && dateTime.getDayOfMonth() != first.getDayOfMonth()
+                            || rule.getExceptions().contains(dateTime)) {
+                        continue;
+                    }
+                    try {
+                        expected.add(DateTimeParser.format(DateTimeParser.toMinutes(dateTime)), rule.getContent());
+                    }
+                    catch (IllegalStateException ise) {
+                        // no operation
+                    }
+                }
+            }
+
+            String[][] ranges = {
+                { "000001010000", "999912312359" },
+                { "202002010000", "202003150000" },
+                { "202012310000", "202101020000" },
+                { "202001131000", "202001131000" },
+            };
+            var schedules = List.of(new Schedule(Long.MAX_VALUE, Schedule.Storage.TREE),
+                    new Schedule(Long.MAX_VALUE, Schedule.Storage.PACKED),
+                    new Schedule(Long.MAX_VALUE, Schedule.Storage.SHARDED),
+                    new Schedule(Long.MAX_VALUE, Schedule.Storage.TREE, Schedule.Option.CALENDAR_INDEX, Schedule.Option.COUNT_INDEX));
+            for (var actual : schedules) {
+                for (var date : dates) {
+                    try {
+                        actual.add(date, "定例");
+                    }
+                    catch (IllegalStateException ise) {
+                        // no operation
+                    }
+                }
+                for (var rule : recurring) {
+                    actual.addRecurring(rule);
+                }
+                assertSameSchedule(actual, expected);
+                for (var range : ranges) {
+                    if (!new ArrayList<>(actual.find(range[0], range[1])).equals(new ArrayList<>(expected.find(range[0], range[1])))
+                            || actual.count(range[0], range[1]) != expected.count(range[0], range[1])
+                            || !actual.histogram(range[0], range[1], Schedule.Granularity.DAY)
+                                    .equals(expected.histogram(range[0], range[1], Schedule.Granularity.DAY))) {
+                        throw new RuntimeException(range[0] + " " + range[1]);
+                    }
+                }
+                if (!new ArrayList<>(actual.findMonth(2020, 12)).equals(new ArrayList<>(expected.findMonth(2020, 12)))
+                        || !new ArrayList<>(actual.findDay(2021, 1, 4)).equals(new ArrayList<>(expected.findDay(2021, 1, 4)))) {
+                    throw new RuntimeException();
+                }
+                // 予定の件数は、繰り返しの予定を展開しない
+                if (actual.recurringPlans().size() != recurring.size() || actual.size() >= expected.size()) {
+                    throw new RuntimeException();
+                }
+            }
+
+            // 除外日時の回と、その月に同じ日がない回は含めない
+            var schedule = new Schedule(3);
+            schedule.addRecurring(recurring.get(1));
+            if (schedule.count("202001010000", "202101010000") != 7 || !schedule.findMonth(2020, 2).isEmpty()) {
+                throw new RuntimeException();
+            }
+            schedule.addRecurring(recurring.get(0));
+            if (schedule.find("202003021000", "202003021001").size() != 0 || schedule.find("202003091000", "202003091001").size() != 1) {
+                throw new RuntimeException();
+            }
+
+            // 繰り返しの予定は、回の数によらず1件として数える
+            schedule.add(VALID_DATE_TIME, VALID_CONTENT);
+            expectFailure(() -> schedule.add(VALID_DATE_TIME, VALID_CONTENT2));
+            expectFailure(() -> schedule.addRecurring(recurring.get(2)));
+            schedule.removeRecurring(recurring.get(1));
+            schedule.addRecurring(recurring.get(2));
+            expectFailure(() -> schedule.removeRecurring(recurring.get(1)));
+            expectFailure(() -> schedule.addRecurring(recurring.get(0)));
+
+            // 数千年の繰り返しも、検索した範囲の回のみを作成する
+            var longest = new Schedule(1);
+            longest.addRecurring(new RecurringPlan("000001030900", RecurringPlan.Frequency.WEEKLY, "999912312359", "定例"));
+            if (longest.findDay(5000, 1, 6).size() + longest.findDay(5000, 1, 7).size() != 1
+                    || longest.count("000001010000", "999912312359") != (DateTimeParser.parseMinutes("999912312359")
+                            - DateTimeParser.parseMinutes("000001030900") + 7 * 1440 - 1) / (7 * 1440)) {
+                throw new RuntimeException();
+            }
+
+            expectFailure(() -> new RecurringPlan("202001010000", RecurringPlan.Frequency.DAILY, "202001010000", "定例"));
+            expectFailure(() -> new RecurringPlan("202001010000", null, "202101010000", "定例"));
+            expectFailure(() -> new RecurringPlan("202001010000", RecurringPlan.Frequency.DAILY, "202013010000", "定例"));
+        }
+
+        public void Schedule_count() throws IOException {
+            var directory = Files.createTempDirectory("schedule");
+            try (var tiered = new TieredSchedule(directory, Long.MAX_VALUE, Schedule.Storage.TREE, 100)) {
+                var schedules = new ArrayList<Schedule>();
+                for (var storage : Schedule.Storage.values()) {
+                    schedules.add(new Schedule(Long.MAX_VALUE, storage));
+                    schedules.add(new Schedule(Long.MAX_VALUE, storage, Schedule.Option.COUNT_INDEX));
+                }
+                schedules.add(tiered);
+
+                // 同じ日時に複数の予定を含めて、登録、削除する
+                var random = new Random(13);
+                long base = DateTimeParser.parseMinutes("202312300000");
+                var expected = new Schedule(Long.MAX_VALUE);
+                for (int number = 0; number < 3000; number++) {
+                    var date = DateTimeParser.format(base + random.nextInt(70 * 24 * 60));
+                    var content = Integer.toString(random.nextInt(3));
+                    boolean isAdded = true;
+                    try {
+                        expected.add(date, content);
+                    }
+                    catch (IllegalStateException ise) {
+                        expected.remove(date, content);
+                        isAdded = false;
+                    }
+                    for (var s : schedules) {
+                        if (isAdded) {
+                            s.add(date, content);
+                        }
+                        else {
+                            s.remove(date, content);
+                        }
+                    }
+                }
+
+                for (int round = 0; round < 50; round++) {
+                    long from = base - 100 + random.nextInt(72 * 24 * 60);
+                    long to = from + random.nextInt(20 * 24 * 60);
+                    var fromDate = DateTimeParser.format(from);
+                    var toDate = DateTimeParser.format(to);
+                    var found = expected.find(fromDate, toDate);
+
+                    // 区間毎の件数を、検索結果から求める
+                    var histograms = new ArrayList<TreeMap<LocalDateTime, Long>>();
+                    for (var granularity : Schedule.Granularity.values()) {
+                        var histogram = new TreeMap<LocalDateTime, Long>();
+                        for (var plan : found) {
+                            var dateTime = plan.getDateTime();
+                            var start = granularity == Schedule.Granularity.HOUR ? dateTime.withMinute(0)
+                                    : granularity == Schedule.Granularity.DAY ? dateTime.toLocalDate().atStartOfDay()
+                                    : dateTime.toLocalDate().withDayOfMonth(1).atStartOfDay();
+                            histogram.merge(start, 1L, Long::sum);
+                        }
+                        histograms.add(histogram);
+                    }
+
+                    for (var s : schedules) {
+                        if (s.count(fromDate, toDate) != found.size()) {
+                            throw new RuntimeException();
+                        }
+                        for (var granularity : Schedule.Granularity.values()) {
+                            if (!s.histogram(fromDate, toDate, granularity).equals(histograms.get(granularity.ordinal()))) {
+                                throw new RuntimeException();
+                            }
+                        }
+                    }
+                }
+                if (schedules.get(1).count("000001010000", "999912312359") != expected.size()) {
+                    throw new RuntimeException();
+                }
+            }
+            finally {
+                deleteDirectory(directory);
+            }
+        }
+
+        public void Schedule_evict() throws InterruptedException {
+            long base = DateTimeParser.parseMinutes(VALID_DATE_TIME);
+
+            // 範囲内の予定を一括して削除し、TreeSetと同じ結果になる
+            for (var storage : Schedule.Storage.values()) {
+                var store = Schedule.createStore(storage);
+                var expected = new TreeSet<Plan>();
+                var random = new Random(19);
+                var plans = new ArrayList<Plan>();
+                for (int number = 0; number < 5000; number++) {
+                    plans.add(new Plan(DateTimeParser.toLocalDateTime(base + random.nextInt(4000)), Integer.toString(number % 3)));
+                }
+                for (var plan : plans) {
+                    if (expected.add(plan)) {
+                        store.add(plan);
+                    }
+                }
+                for (int round = 0; round < 20; round++) {
+                    var from = plans.get(random.nextInt(plans.size()));
+                    var to = new Plan(from.getDateTime().plusMinutes(random.nextInt(round < 10 ? 50 : 2000)), "1");
+                    var range = expected.subSet(from, to);
+                    var removed = store.removeRange(from, to);
+                    if (!new ArrayList<>(range).equals(Arrays.asList(removed))) { throw new RuntimeException(storage + " " + round); }
+                    range.clear();
+                    if (store.size() != expected.size()
+                            || !new ArrayList<>(expected).equals(new ArrayList<>(store.subSet(Schedule.PLAN_MIN, Schedule.PLAN_MAX)))) {
+                        throw new RuntimeException(storage + " " + round);
+                    }
+                }
+                if (store.removeRange(Schedule.PLAN_MIN, Schedule.PLAN_MAX).length != expected.size() || store.size() != 0) {
+                    throw new RuntimeException(storage.toString());
+                }
+            }
+
+            // 最大登録件数に達すると、最も古い予定を追い出して登録し、追い出した予定を保管先に渡す
+            for (var storage : Schedule.Storage.values()) {
+                for (var options : new Schedule.Option[][] { {}, { Schedule.Option.SHARE_CONTENT, Schedule.Option.CALENDAR_INDEX, Schedule.Option.COUNT_INDEX } }) {
+                    var s = new Schedule(100, storage, options);
+                    var archived = new ArrayList<Plan>();
+                    var calls = new AtomicInteger();
+                    s.setEvictionPolicy(EvictionPolicy.oldest().archiveTo(plans -> {
+                        archived.addAll(plans);
+                        calls.incrementAndGet();
+                    }));
+                    for (int number = 0; number < 150; number++) {
+                        s.add(DateTimeParser.format(base + number), VALID_CONTENT);
+                    }
+                    var all = new ArrayList<>(s.find("000001010000", "999912312359"));
+                    if (s.size() != 100 || all.size() != 100 || !all.get(0).getDateTime().equals(DateTimeParser.toLocalDateTime(base + 50))) {
+                        throw new RuntimeException(storage.toString());
+                    }
+                    if (archived.size() != 50 || calls.get() != 50 || !archived.get(49).getDateTime().equals(DateTimeParser.toLocalDateTime(base + 49))) {
+                        throw new RuntimeException(storage.toString());
+                    }
+                    if (s.count("000001010000", "999912312359") != 100 || s.findDay(2020, 11, 22).size() != 100) {
+                        throw new RuntimeException(storage.toString());
+                    }
+
+                    // 一括登録は、必要な件数を一度に追い出す
+                    var added = new ArrayList<Plan>();
+                    for (int number = 0; number < 30; number++) {
+                        added.add(new Plan(DateTimeParser.format(base + 1000 + number), VALID_CONTENT2));
+                    }
+                    s.addAll(added);
+                    if (s.size() != 100 || calls.get() != 51 || archived.size() != 80 || s.count("000001010000", "202011220123") != 0) {
+                        throw new RuntimeException(storage.toString());
+                    }
+                    if (options.length > 0 && s.sharedContentCount() != 2) { throw new RuntimeException(storage.toString()); }
+
+                    // 最大登録件数を超える一括登録は、追い出さずに例外
+                    var tooMany = new ArrayList<Plan>();
+                    for (int number = 0; number < 101; number++) {
+                        tooMany.add(new Plan(DateTimeParser.format(base + 2000 + number), VALID_CONTENT));
+                    }
+                    expectFailure(() -> s.addAll(tooMany));
+                    if (s.size() != 100 || archived.size() != 80) { throw new RuntimeException(storage.toString()); }
+
+                    // 不正な予定、登録済みの予定は、追い出さずに例外
+                    var stored = all.get(all.size() - 1);
+                    var storedDateTime = DateTimeParser.format(DateTimeParser.toMinutes(stored.getDateTime()));
+                    expectFailure(() -> s.add("202013010000", VALID_CONTENT));
+                    expectFailure(() -> s.add(VALID_DATE_TIME, VALID_CONTENT_MAX + "a"));
+                    expectFailure(() -> s.add(storedDateTime, stored.getContent()));
+                    expectFailure(() -> s.addAll(List.of(new Plan(VALID_DATE_TIME, VALID_CONTENT_MAX + "a"))));
+                    expectFailure(() -> s.addAll(List.of(new Plan("203001010000", VALID_CONTENT), stored)));
+                    expectFailure(() -> s.addAll(List.of(new Plan("203001010000", VALID_CONTENT), new Plan("203001010000", VALID_CONTENT))));
+                    if (s.size() != 100 || archived.size() != 80 || calls.get() != 51) { throw new RuntimeException(storage.toString()); }
+                    if (options.length > 0 && s.sharedContentCount() != 2) { throw new RuntimeException(storage.toString()); }
+                }
+            }
+
+            // 有効期間を過ぎた予定を、範囲で一括して追い出す
+            {
+                var clock = Clock.fixed(LocalDateTime.of(2020, 11, 22, 12, 0).toInstant(ZoneOffset.UTC), ZoneOffset.UTC);
+                var s = new Schedule(10, Schedule.Storage.PACKED);
+                var archived = new ArrayList<List<Plan>>();
+                s.setEvictionPolicy(EvictionPolicy.expireAfter(Duration.ofDays(1)).archiveTo(archived::add).withClock(clock));
+                for (var date : new String[] { "202011200000", "202011211159", "202011211200", "202011221200", "202011230000" }) {
+                    s.add(date, VALID_CONTENT);
+                }
+                if (s.expire() != 2 || s.size() != 3 || archived.size() != 1 || archived.get(0).size() != 2) { throw new RuntimeException(); }
+                if (s.expire() != 0 || archived.size() != 1) { throw new RuntimeException(); }
+
+                // 期限切れの予定がない場合は、最大登録件数の例外
+                for (int number = 0; number < 7; number++) {
+                    s.add("202012010000", Integer.toString(number));
+                }
+                expectFailure(() -> s.add("202012020000", VALID_CONTENT));
+                if (s.size() != 10) { throw new RuntimeException(); }
+
+                // 期限切れの予定がない場合に、最も古い予定を追い出す
+                s.setEvictionPolicy(EvictionPolicy.expireAfter(Duration.ofDays(1)).orOldest().withClock(clock));
+                s.add("202012020000", VALID_CONTENT);
+                if (s.size() != 10 || s.count("202011211200", "202011211201") != 0) { throw new RuntimeException(); }
+
+                // 方針を取り消すと、最大登録件数の例外
+                s.setEvictionPolicy(null);
+                expectFailure(() -> s.add("202012030000", VALID_CONTENT));
+                if (s.expire() != 0) { throw new RuntimeException(); }
+            }
+
+            // 保管先が例外を投げた場合は、追い出した予定を予定表に戻す
+            for (var storage : Schedule.Storage.values()) {
+                var clock = Clock.fixed(LocalDateTime.of(2020, 11, 22, 12, 0).toInstant(ZoneOffset.UTC), ZoneOffset.UTC);
+                var s = new Schedule(3, storage, Schedule.Option.SHARE_CONTENT, Schedule.Option.CALENDAR_INDEX);
+                s.setEvictionPolicy(EvictionPolicy.expireAfter(Duration.ofDays(1)).orOldest().withClock(clock).archiveTo(plans -> {
+                    throw new IllegalStateException("archive");
+                }));
+                for (var date : new String[] { "202011200000", "202011210000", "202011220000" }) {
+                    s.add(date, VALID_CONTENT);
+                }
+                var before = new ArrayList<>(s.find("000001010000", "999912312359"));
+                expectFailure(() -> s.expire());
+                expectFailure(() -> s.add("202011230000", VALID_CONTENT));
+                if (s.size() != 3 || !new ArrayList<>(s.find("000001010000", "999912312359")).equals(before)
+                        || s.findDay(2020, 11, 20).size() != 1 || s.sharedContentCount() != 1) {
+                    throw new RuntimeException(storage.toString());
+                }
+            }
+
+            // 掃除で発生した例外は、方針の通知先に渡す
+            {
+                var s = new Schedule(Long.MAX_VALUE, Schedule.Storage.CONCURRENT);
+                s.add("202011200000", VALID_CONTENT);
+                var failures = new LinkedBlockingQueue<RuntimeException>();
+                s.setEvictionPolicy(EvictionPolicy.expireAfter(Duration.ofDays(1)).archiveTo(plans -> {
+                    throw new IllegalStateException("archive");
+                }).sweepEvery(Duration.ofMillis(10)).onSweepFailure(failures::add));
+                var failure = failures.poll(5, TimeUnit.SECONDS);
+                s.setEvictionPolicy(null);
+                if (!(failure instanceof IllegalStateException) || s.size() != 1) { throw new RuntimeException(); }
+                expectFailure(() -> EvictionPolicy.oldest().onSweepFailure(null));
+            }
+
+            // バックグラウンドのスレッドで、期限切れの予定を掃除する
+            {
+                var s = new Schedule(Long.MAX_VALUE, Schedule.Storage.CONCURRENT);
+                for (int number = 0; number < 1000; number++) {
+                    s.add(DateTimeParser.format(base + number), VALID_CONTENT);
+                }
+                var now = DateTimeParser.toLocalDateTime(base + 600).plusDays(1);
+                var clock = Clock.fixed(now.toInstant(ZoneOffset.UTC), ZoneOffset.UTC);
+                s.setEvictionPolicy(EvictionPolicy.expireAfter(Duration.ofDays(1)).sweepEvery(Duration.ofMillis(10)).withClock(clock));
+                for (int wait = 0; wait < 500 && s.size() != 400; wait++) {
+                    Thread.sleep(10);
+                }
+                if (s.size() != 400 || s.count("000001010000", DateTimeParser.format(base + 600)) != 0) { throw new RuntimeException(); }
+                s.setEvictionPolicy(null);
+
+                // スレッドセーフでない格納方式は、掃除できない
+                var tree = new Schedule(Long.MAX_VALUE, Schedule.Storage.TREE);
+                boolean isOk = false;
+                try {
+                    tree.setEvictionPolicy(EvictionPolicy.expireAfter(Duration.ofDays(1)).sweepEvery(Duration.ofMinutes(1)));
+                }
+                catch (IllegalArgumentException iae) {
+                    isOk = true;
+                }
+                if (!isOk) { throw new RuntimeException(); }
+            }
+
+            // 不正な方針
+            expectFailure(() -> EvictionPolicy.expireAfter(Duration.ofSeconds(59)));
+            expectFailure(() -> EvictionPolicy.expireAfter(null));
+            expectFailure(() -> EvictionPolicy.oldest().archiveTo(null));
+            expectFailure(() -> EvictionPolicy.expireAfter(Duration.ofDays(1)).sweepEvery(Duration.ZERO));
+            expectFailure(() -> EvictionPolicy.oldest().sweepEvery(Duration.ofMinutes(1)));
+        }
+
+        public void Schedule_subscribe() throws InterruptedException {
+            // 区間木の検索が、全ての購読を調べた結果と同じになる
+            {
+                var index = new SubscriptionIndex();
+                var random = new Random(20);
+                var all = new ArrayList<PlanSubscription>();
+                for (int number = 0; number < 300; number++) {
+                    long from = random.nextInt(10000);
+                    var subscription = new PlanSubscription(from, from + random.nextInt(number % 10 == 0 ? 5000 : 100), changes -> {}, 1, Runnable::run, index);
+                    index.add(subscription);
+                    all.add(subscription);
+                }
+                for (int number = 0; number < 100; number++) {
+                    index.remove(all.remove(random.nextInt(all.size())));
+                }
+                for (long minutes = -1; minutes < 15100; minutes += 7) {
+                    var found = new ArrayList<PlanSubscription>();
+                    index.forEachContaining(minutes, found::add);
+                    long expected = 0;
+                    for (var subscription : all) {
+                        if (subscription.from() <= minutes && minutes < subscription.to()) {
+                            expected++;
+                        }
+                    }
+                    if (found.size() != expected || found.stream().anyMatch(subscription -> !all.contains(subscription))) {
+                        throw new RuntimeException(Long.toString(minutes));
+                    }
+                }
+                if (index.size() != 200 || index.overlapping(0, 20000).size() != 200) { throw new RuntimeException(); }
+            }
+
+            // 範囲内の登録、削除、一括登録、追い出し、繰り返しの予定を通知し、範囲外は通知しない
+            for (var storage : Schedule.Storage.values()) {
+                var s = new Schedule(20, storage);
+                var changes = new ArrayList<String>();
+                var subscription = s.subscribe("202011230000", "202011300000", batch -> batch.forEach(change -> changes.add(change.toString())), 16, Runnable::run);
+                s.add("202011230000", VALID_CONTENT);
+                s.add("202011222359", VALID_CONTENT);
+                s.add("202011300000", VALID_CONTENT);
+                s.add("202011292359", VALID_CONTENT2);
+                s.remove("202011230000", VALID_CONTENT);
+                s.addAll(List.of(new Plan("202011240900", "1"), new Plan("202011010900", "2")));
+                s.addRecurring(new RecurringPlan("202011280800", RecurringPlan.Frequency.DAILY, "202012010000", "朝会"));
+                s.setEvictionPolicy(EvictionPolicy.oldest());
+                for (int number = 0; number < 14; number++) {
+                    s.add("202011250900", Integer.toString(number));
+                }
+                var expected = List.of(
+                        "ADDED 2020-11-23T00:00 " + VALID_CONTENT,
+                        "ADDED 2020-11-29T23:59 " + VALID_CONTENT2,
+                        "REMOVED 2020-11-23T00:00 " + VALID_CONTENT,
+                        "ADDED 2020-11-24T09:00 1",
+                        "ADDED 2020-11-28T08:00 朝会",
+                        "ADDED 2020-11-29T08:00 朝会");
+                var added = changes.stream().filter(change -> change.startsWith("ADDED 2020-11-25T09:00")).count();
+                changes.removeIf(change -> change.startsWith("ADDED 2020-11-25T09:00"));
+                if (!changes.equals(expected) || added != 14) { throw new RuntimeException(storage + " " + changes); }
+
+                // 最大登録件数に達し、範囲外の予定に続いて範囲内の予定を追い出す
+                changes.clear();
+                s.add("202012010000", VALID_CONTENT);
+                s.add("202012010001", VALID_CONTENT);
+                s.add("202012010002", VALID_CONTENT);
+                if (!changes.equals(List.of("REMOVED 2020-11-24T09:00 1"))) { throw new RuntimeException(storage + " " + changes); }
+
+                // 解除した後は、通知しない
+                changes.clear();
+                subscription.close();
+                s.removeRecurring(new RecurringPlan("202011280800", RecurringPlan.Frequency.DAILY, "202012010000", "朝会"));
+                s.remove("202011292359", VALID_CONTENT2);
+                if (!changes.isEmpty() || !subscription.isClosed()) { throw new RuntimeException(storage.toString()); }
+            }
+
+            // 購読者が遅れると、溜まった変更をOVERFLOWに置き換え、登録は待たない
+            {
+                var s = new Schedule(Long.MAX_VALUE, Schedule.Storage.TREE);
+                var pending = new ArrayList<Runnable>();
+                Executor deferred = pending::add;
+                var batches = new ArrayList<List<PlanChange>>();
+                var subscription = s.subscribe("202011220000", "202011230000", batches::add, 4, deferred);
+                for (int number = 0; number < 10; number++) {
+                    s.add(DateTimeParser.format(base(number)), VALID_CONTENT);
+                }
+                if (pending.size() != 1 || subscription.getOverflowCount() != 2 || !batches.isEmpty()) { throw new RuntimeException(); }
+                pending.remove(0).run();
+                if (batches.size() != 1 || batches.get(0).size() != 2 || batches.get(0).get(0).getType() != PlanChange.Type.OVERFLOW
+                        || batches.get(0).get(0).getPlan() != null || !batches.get(0).get(1).getPlan().getDateTime().equals(DateTimeParser.toLocalDateTime(base(9)))) {
+                    throw new RuntimeException(batches.toString());
+                }
+                s.add("202011221200", VALID_CONTENT);
+                pending.remove(0).run();
+                if (batches.size() != 2 || batches.get(1).size() != 1 || batches.get(1).get(0).getType() != PlanChange.Type.ADDED) { throw new RuntimeException(); }
+                subscription.close();
+            }
+
+            // 複数のスレッドの変更を、遅い購読者が非同期に受け取り、検索し直して予定表と同じ状態になる
+            {
+                var s = new Schedule(Long.MAX_VALUE, Schedule.Storage.CONCURRENT);
+                var state = new TreeSet<Plan>();
+                var isDone = new CountDownLatch(1);
+                var subscription = s.subscribe("202011220000", "202011290000", batch -> {
+                    for (var change : batch) {
+                        switch (change.getType()) {
+                        case OVERFLOW:
+                            state.clear();
+                            state.addAll(s.find("202011220000", "202011290000"));
+                            break;
+                        case ADDED:
+                            state.add(change.getPlan());
+                            break;
+                        case REMOVED:
+                            state.remove(change.getPlan());
+                            break;
+                        }
+                        if (change.getPlan() != null && change.getPlan().getContent().equals("end")) {
+                            isDone.countDown();
+                        }
+                    }
+                    try {
+                        Thread.sleep(2);
+                    }
+                    catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                    }
+                }, 64, PlanSubscription.DEFAULT_EXECUTOR);
+                var threads = new ArrayList<Thread>();
+                for (int t = 0; t < 4; t++) {
+                    final int offset = t;
+                    var thread = new Thread(() -> {
+                        for (int number = 0; number < 3000; number++) {
+                            var dateTime = DateTimeParser.format(base(number % 10000));
+                            s.add(dateTime, Integer.toString(offset + number));
+                            if (number % 3 == 0) {
+                                s.remove(dateTime, Integer.toString(offset + number));
+                            }
+                        }
+                    });
+                    threads.add(thread);
+                    thread.start();
+                }
+                for (var thread : threads) {
+                    thread.join();
+                }
+                s.add("202011281200", "end");
+                if (!isDone.await(10, java.util.concurrent.TimeUnit.SECONDS)) { throw new RuntimeException("timeout"); }
+                if (!new ArrayList<>(state).equals(new ArrayList<>(s.find("202011220000", "202011290000"))) || subscription.getOverflowCount() == 0) {
+                    throw new RuntimeException(state.size() + " " + subscription.getOverflowCount());
+                }
+                subscription.close();
+            }
+
+            // 不正な購読
+            var s = new Schedule(1);
+            expectFailure(() -> s.subscribe(null, "202011230000", changes -> {}));
+            expectFailure(() -> s.subscribe("202011230000", null, changes -> {}));
+            expectFailure(() -> s.subscribe("202011230000", "202011230000", null));
+            expectFailure(() -> s.subscribe("202011230000", "202011220000", changes -> {}));
+            expectFailure(() -> s.subscribe("202011320000", "202011330000", changes -> {}));
+            expectFailure(() -> s.subscribe("202011220000", "202011230000", changes -> {}, 0, Runnable::run));
+            expectFailure(() -> s.subscribe("202011220000", "202011230000", changes -> {}, 1, null));
+        }
+
+        public void Schedule_search() {
+            // 用件の索引の検索が、範囲の予定を辿って用件を確認した結果と同じになる
+            var letters = "東京駅大阪の会議aaＡ☺";
+            for (var storage : new Schedule.Storage[] { Schedule.Storage.TREE, Schedule.Storage.PACKED, Schedule.Storage.SHARDED, Schedule.Storage.OFF_HEAP }) {
+                var indexed = new Schedule(Long.MAX_VALUE, storage, Schedule.Option.CONTENT_INDEX, Schedule.Option.SHARE_CONTENT);
+                var scanned = new Schedule(Long.MAX_VALUE, storage);
+                var random = new Random(21);
+                var added = new ArrayList<Plan>();
+                for (int number = 0; number < 3000; number++) {
+                    var content = new StringBuilder();
+                    for (int length = random.nextInt(8); length > 0; length--) {
+                        content.append(letters.charAt(random.nextInt(letters.length())));
+                    }
+                    var dateTime = DateTimeParser.format(base(random.nextInt(60 * 24 * 400)));
+                    try {
+                        indexed.add(dateTime, content.toString());
+                    }
+                    catch (IllegalStateException ise) {
+                        continue;
+                    }
+                    scanned.add(dateTime, content.toString());
+                    added.add(new Plan(dateTime, content.toString()));
+                }
+                // 削除、一括登録、追い出しを索引に反映する
+                for (int number = 0; number < 500; number++) {
+                    var plan = added.remove(random.nextInt(added.size()));
+                    var dateTime = DateTimeParser.format(DateTimeParser.toMinutes(plan.getDateTime()));
+                    indexed.remove(dateTime, plan.getContent());
+                    scanned.remove(dateTime, plan.getContent());
+                }
+                var bulk = List.of(new Plan("202011220000", "東京駅で会議"), new Plan("202011220000", "会議"), new Plan("202101010000", "東"));
+                indexed.addAll(bulk);
+                scanned.addAll(bulk);
+                indexed.setEvictionPolicy(EvictionPolicy.oldest());
+                scanned.setEvictionPolicy(EvictionPolicy.oldest());
+                indexed.addRecurring(new RecurringPlan("202011230900", RecurringPlan.Frequency.WEEKLY, "202103010000", "大阪の会議"));
+                scanned.addRecurring(new RecurringPlan("202011230900", RecurringPlan.Frequency.WEEKLY, "202103010000", "大阪の会議"));
+                var removed = new ArrayList<Plan>();
+                indexed.setEvictionPolicy(EvictionPolicy.expireAfter(Duration.ofDays(1))
+                        .withClock(Clock.fixed(LocalDateTime.of(2020, 12, 2, 0, 0).toInstant(ZoneOffset.UTC), ZoneOffset.UTC)).archiveTo(removed::addAll));
+                scanned.setEvictionPolicy(EvictionPolicy.expireAfter(Duration.ofDays(1))
+                        .withClock(Clock.fixed(LocalDateTime.of(2020, 12, 2, 0, 0).toInstant(ZoneOffset.UTC), ZoneOffset.UTC)));
+                if (indexed.expire() != scanned.expire() || removed.isEmpty()) { throw new RuntimeException(storage.toString()); }
+
+                for (int round = 0; round < 300; round++) {
+                    var keyword = new StringBuilder();
+                    for (int length = 1 + random.nextInt(round % 3 == 0 ? 1 : 3); length > 0; length--) {
+                        keyword.append(letters.charAt(random.nextInt(letters.length())));
+                    }
+                    long from = base(random.nextInt(60 * 24 * 400)) - 60 * 24 * 30;
+                    var fromDateTime = DateTimeParser.format(from);
+                    var toDateTime = DateTimeParser.format(from + random.nextInt(60 * 24 * 200));
+                    var expected = new ArrayList<Plan>();
+                    for (var plan : scanned.find(fromDateTime, toDateTime)) {
+                        if (plan.getContent().contains(keyword)) {
+                            expected.add(plan);
+                        }
+                    }
+                    var actual = new ArrayList<>(indexed.search(fromDateTime, toDateTime, keyword.toString()));
+                    if (!actual.equals(expected) || !new ArrayList<>(scanned.search(fromDateTime, toDateTime, keyword.toString())).equals(expected)) {
+                        throw new RuntimeException(storage + " " + keyword + " " + fromDateTime + " " + toDateTime + " " + expected.size() + " " + actual.size());
+                    }
+                }
+
+                // 範囲の全ての予定、1文字、繰り返しの予定の回
+                if (!new ArrayList<>(indexed.search("202011220000", "202012220000", "")).equals(new ArrayList<>(indexed.find("202011220000", "202012220000")))) {
+                    throw new RuntimeException(storage.toString());
+                }
+                var meetings = indexed.search("202012070000", "202012080000", "大阪の会議");
+                if (meetings.isEmpty() || !meetings.first().getContent().equals("大阪の会議")) { throw new RuntimeException(storage.toString()); }
+            }
+
+            // 検索の計測
+            var s = new Schedule(10, Schedule.Storage.TREE, Schedule.Option.CONTENT_INDEX, Schedule.Option.METRICS);
+            s.add(VALID_DATE_TIME, VALID_CONTENT);
+            if (s.search("202011220000", "202011230000", "新幹線").size() != 1 || s.search("202011220000", "202011230000", "新線").size() != 0
+                    || s.metrics().snapshot().count(ScheduleMetrics.Operation.SEARCH) != 2) {
+                throw new RuntimeException();
+            }
+            s.remove(VALID_DATE_TIME, VALID_CONTENT);
+            if (!s.search("202011220000", "202011230000", "新").isEmpty()) { throw new RuntimeException(); }
+
+            // 不正な検索
+            expectFailure(() -> s.search(null, "202011230000", "東京"));
+            expectFailure(() -> s.search("202011220000", null, "東京"));
+            expectFailure(() -> s.search("202011220000", "202011230000", null));
+            expectFailure(() -> s.search("202011230000", "202011220000", "東京"));
+            expectFailure(() -> s.search("202011220000", "202011230000", VALID_CONTENT_MAX + "東"));
+        }
+
+        public void Schedule_overlaps() throws IOException {
+            // 14:00から15:30と重なる予定。終了日時は含まない。所要時間が0の予定は、日時が範囲内の場合のみ。
+            {
+                var s = new Schedule(Long.MAX_VALUE, Schedule.Storage.TREE, Schedule.Option.INTERVAL_INDEX);
+                s.add("202011221300", "前の会議", 60);
+                s.add("202011221330", "昼の会議", 60);
+                s.add("202011221400", "締め切り");
+                s.add("202011221529", "電話");
+                s.add("202011221530", "次の締め切り");
+                s.add("202011221530", "夕方の会議", 90);
+                s.add("202011211200", "出張", 60 * 48);
+                var overlapped = new ArrayList<String>();
+                for (var plan : s.overlaps("202011221400", "202011221530")) {
+                    overlapped.add(plan.getContent());
+                }
+                if (!overlapped.equals(List.of("出張", "昼の会議", "締め切り", "電話"))) { throw new RuntimeException(overlapped.toString()); }
+                var meeting = s.overlaps("202011221330", "202011221331").last();
+                if (meeting.getDuration() != 60 || !meeting.getEndDateTime().equals(LocalDateTime.of(2020, 11, 22, 14, 30))) { throw new RuntimeException(); }
+                if (!s.overlaps("202011221400", "202011221400").isEmpty()) { throw new RuntimeException(); }
+
+                // 出張の後の、60分以上の空き時間。所要時間が0の予定は時間を占めない。
+                var slots = s.freeSlots("202011231100", "202011232000", 60);
+                if (!slots.equals(Map.of(LocalDateTime.of(2020, 11, 23, 12, 0), LocalDateTime.of(2020, 11, 23, 20, 0)))) { throw new RuntimeException(slots.toString()); }
+                if (!s.freeSlots("202011221200", "202011221800", 30).isEmpty() || s.nextFreeSlot("202011221200", "202011221800", 1) != null) { throw new RuntimeException(); }
+                s.remove("202011211200", "出張");
+                slots = s.freeSlots("202011221200", "202011221800", 30);
+                if (slots.size() != 3 || !slots.get(LocalDateTime.of(2020, 11, 22, 14, 30)).equals(LocalDateTime.of(2020, 11, 22, 15, 30))) { throw new RuntimeException(slots.toString()); }
+                if (!LocalDateTime.of(2020, 11, 22, 14, 30).equals(s.nextFreeSlot("202011221300", "202011230000", 60))
+                        || s.nextFreeSlot("202011221300", "202011221700", 61) != null) {
+                    throw new RuntimeException();
+                }
+
+                // 所要時間は予定の同一性に含まない。削除は所要時間を指定しない。
+                expectFailure(() -> s.add("202011221330", "昼の会議", 30));
+                expectFailure(() -> s.addAll(List.of(new Plan("202011221330", "昼の会議", 30))));
+                s.remove("202011221330", "昼の会議");
+                if (s.overlaps("202011221400", "202011221401").size() != 1) { throw new RuntimeException(); }
+
+                // 繰り返しの予定の回は、所要時間が0の予定として重なり、時間を占めない
+                s.addRecurring(new RecurringPlan("202011220800", RecurringPlan.Frequency.DAILY, "202012010000", "朝会"));
+                if (s.overlaps("202011250000", "202011260000").size() != 1 || s.freeSlots("202011250000", "202011260000", 60).size() != 1) {
+                    throw new RuntimeException();
+                }
+
+                // 不正な引数
+                expectFailure(() -> new Plan(VALID_DATE_TIME, VALID_CONTENT, -1));
+                expectFailure(() -> new Plan(VALID_DATE_TIME, VALID_CONTENT, Plan.MAX_DURATION + 1));
+                expectFailure(() -> s.add(VALID_DATE_TIME, VALID_CONTENT, Plan.MAX_DURATION + 1));
+                expectFailure(() -> s.overlaps(null, "202011230000"));
+                expectFailure(() -> s.overlaps("202011230000", "202011220000"));
+                expectFailure(() -> s.freeSlots("202011220000", "202011230000", 0));
+                expectFailure(() -> s.nextFreeSlot("202011230000", "202011220000", 60));
+            }
+
+            // 索引の検索と、索引のない予定表の検索が、予定を全て辿った結果と同じになる
+            for (var storage : new Schedule.Storage[] { Schedule.Storage.TREE, Schedule.Storage.CONCURRENT, Schedule.Storage.SHARDED }) {
+                var indexed = new Schedule(Long.MAX_VALUE, storage, Schedule.Option.INTERVAL_INDEX, Schedule.Option.SHARE_CONTENT);
+                var plain = new Schedule(Long.MAX_VALUE, storage);
+                var random = new Random(25);
+                var added = new ArrayList<Plan>();
+                for (int number = 0; number < 3000; number++) {
+                    var dateTime = DateTimeParser.format(base(random.nextInt(60 * 24 * 60)));
+                    var content = Integer.toString(random.nextInt(4));
+                    int duration = random.nextInt(4) == 0 ? 0 : random.nextInt(100) == 0 ? random.nextInt(Plan.MAX_DURATION + 1) : random.nextInt(600);
+                    try {
+                        indexed.add(dateTime, content, duration);
+                    }
+                    catch (IllegalStateException ise) {
+                        continue;
+                    }
+                    plain.add(dateTime, content, duration);
+                    added.add(new Plan(dateTime, content, duration));
+                }
+                for (int number = 0; number < 500; number++) {
+                    var plan = added.remove(random.nextInt(added.size()));
+                    var dateTime = DateTimeParser.format(DateTimeParser.toMinutes(plan.getDateTime()));
+                    indexed.remove(dateTime, plan.getContent());
+                    plain.remove(dateTime, plan.getContent());
+                }
+                var bulk = List.of(new Plan("202101100000", "a", 60 * 24 * 3), new Plan("202101100000", "b"), new Plan("202101110900", "c", 30));
+                indexed.addAll(bulk);
+                plain.addAll(bulk);
+                indexed.setEvictionPolicy(EvictionPolicy.expireAfter(Duration.ofDays(1))
+                        .withClock(Clock.fixed(LocalDateTime.of(2020, 12, 2, 0, 0).toInstant(ZoneOffset.UTC), ZoneOffset.UTC)));
+                plain.setEvictionPolicy(EvictionPolicy.expireAfter(Duration.ofDays(1))
+                        .withClock(Clock.fixed(LocalDateTime.of(2020, 12, 2, 0, 0).toInstant(ZoneOffset.UTC), ZoneOffset.UTC)));
+                if (indexed.expire() != plain.expire()) { throw new RuntimeException(storage.toString()); }
+                var all = new ArrayList<>(plain.find("000001010000", "999912312359"));
+
+                for (int round = 0; round < 300; round++) {
+                    long from = base(random.nextInt(60 * 24 * 70)) - 60 * 24 * 5;
+                    long to = from + 1 + random.nextInt(round % 2 == 0 ? 60 * 4 : 60 * 24 * 3);
+                    var fromDateTime = DateTimeParser.format(from);
+                    var toDateTime = DateTimeParser.format(to);
+                    var expected = new ArrayList<Plan>();
+                    var busy = new boolean[(int)(to - from)];
+                    for (var plan : all) {
+                        long start = DateTimeParser.toMinutes(plan.getDateTime());
+                        if (start < to && start + Math.max(plan.getDuration(), 1) > from) {
+                            expected.add(plan);
+                        }
+                        for (long minute = Math.max(start, from); minute < Math.min(start + plan.getDuration(), to); minute++) {
+                            busy[(int)(minute - from)] = true;
+                        }
+                    }
+                    var actual = new ArrayList<>(indexed.overlaps(fromDateTime, toDateTime));
+                    if (!actual.equals(expected) || !new ArrayList<>(plain.overlaps(fromDateTime, toDateTime)).equals(expected)) {
+                        throw new RuntimeException(storage + " " + fromDateTime + " " + toDateTime + " " + expected.size() + " " + actual.size());
+                    }
+                    for (int i = 0; i < actual.size(); i++) {
+                        if (actual.get(i).getDuration() != expected.get(i).getDuration()) { throw new RuntimeException(actual.get(i).getContent()); }
+                    }
+
+                    int minutes = 1 + random.nextInt(120);
+                    var slots = new TreeMap<LocalDateTime, LocalDateTime>();
+                    for (int start = 0, end; start < busy.length; start = end + 1) {
+                        for (end = start; end < busy.length && !busy[end]; end++) {
+                        }
+                        if (end - start >= minutes) {
+                            slots.put(DateTimeParser.toLocalDateTime(from + start), DateTimeParser.toLocalDateTime(from + end));
+                        }
+                    }
+                    if (!indexed.freeSlots(fromDateTime, toDateTime, minutes).equals(slots) || !plain.freeSlots(fromDateTime, toDateTime, minutes).equals(slots)) {
+                        throw new RuntimeException(storage + " " + fromDateTime + " " + toDateTime + " " + minutes + " " + slots);
+                    }
+                    var next = indexed.nextFreeSlot(fromDateTime, toDateTime, minutes);
+                    if (slots.isEmpty() ? next != null : !slots.firstKey().equals(next)) { throw new RuntimeException(storage + " " + next); }
+                }
+            }
+
+            // 所要時間を格納できない格納方式には、所要時間のある予定を登録できない
+            for (var storage : new Schedule.Storage[] { Schedule.Storage.PACKED, Schedule.Storage.OFF_HEAP }) {
+                var s = new Schedule(Long.MAX_VALUE, storage, Schedule.Option.INTERVAL_INDEX);
+                expectFailure(() -> s.add(VALID_DATE_TIME, VALID_CONTENT, 30));
+                expectFailure(() -> s.addAll(List.of(new Plan(VALID_DATE_TIME, VALID_CONTENT2), new Plan(VALID_DATE_TIME, VALID_CONTENT, 30))));
+                s.add(VALID_DATE_TIME, VALID_CONTENT, 0);
+                if (s.size() != 1 || s.overlaps("202011220000", "202011230000").size() != 1 || s.freeSlots("202011220000", "202011230000", 60).size() != 1) {
+                    throw new RuntimeException(storage.toString());
+                }
+            }
+            var directory = Files.createTempDirectory("schedule");
+            try {
+                // 永続化する予定表は、所要時間をジャーナルに記録し、開き直すと復元する
+                var durable = directory.resolve("durable");
+                var recorded = List.of(new Plan(VALID_DATE_TIME, VALID_CONTENT, 30), new Plan(VALID_DATE_TIME, VALID_CONTENT2),
+                        new Plan("202011230000", VALID_CONTENT, Plan.MAX_DURATION), new Plan("202011240000", VALID_CONTENT, 1));
+                try (var s = new DurableSchedule(durable, Long.MAX_VALUE, Schedule.Storage.TREE, DurableSchedule.SyncMode.GROUP)) {
+                    s.add(VALID_DATE_TIME, VALID_CONTENT, 30);
+                    s.add(VALID_DATE_TIME, VALID_CONTENT2);
+                    s.addAll(recorded.subList(2, 4));
+                }
+                try (var packed = new DurableSchedule(directory.resolve("packed"), Long.MAX_VALUE, Schedule.Storage.PACKED, DurableSchedule.SyncMode.GROUP)) {
+                    expectFailure(() -> packed.add(VALID_DATE_TIME, VALID_CONTENT, 30));
+                }
+                for (int i = 0; i < 2; i++) {
+                    try (var s = new DurableSchedule(durable, Long.MAX_VALUE, Schedule.Storage.TREE, DurableSchedule.SyncMode.GROUP)) {
+                        var restored = new ArrayList<>(s.find("000001010000", "999912312359"));
+                        if (!restored.equals(recorded)) { throw new RuntimeException(restored.toString()); }
+                        for (int j = 0; j < restored.size(); j++) {
+                            if (restored.get(j).getDuration() != recorded.get(j).getDuration()) { throw new RuntimeException(restored.get(j).toString()); }
+                        }
+                        // 2回目は、スナップショットから復元する
+                        s.checkpoint();
+                    }
+                }
+
+                // スナップショットとアーカイブは、所要時間を含めて読み書きする
+                var expected = new Schedule(Long.MAX_VALUE);
+                expected.add(VALID_DATE_TIME, VALID_CONTENT, 90);
+                expected.add(VALID_DATE_TIME, VALID_CONTENT2);
+                expected.add("202011230000", VALID_CONTENT, Plan.MAX_DURATION);
+                var snapshot = directory.resolve("durations.dat");
+                ScheduleSnapshot.write(snapshot, 0, expected.size(), expected.storedPlans());
+                var archive = directory.resolve("durations.bin");
+                PlanArchive.write(archive, expected.storedPlans());
+                for (int i = 0; i < 2; i++) {
+                    var actual = new Schedule(Long.MAX_VALUE, Schedule.Storage.TREE, Schedule.Option.INTERVAL_INDEX);
+                    if (i == 0) {
+                        ScheduleSnapshot.read(snapshot, actual::addAll);
+                    }
+                    else {
+                        PlanArchive.load(archive, actual);
+                    }
+                    var durations = new ArrayList<Integer>();
+                    for (var plan : actual.overlaps("202011220000", "202012240000")) {
+                        durations.add(plan.getDuration());
+                    }
+                    if (!durations.equals(List.of(90, 0, Plan.MAX_DURATION))) { throw new RuntimeException(durations.toString()); }
+                }
+            }
+            finally {
+                deleteDirectory(directory);
+            }
+        }
+
+        public void Schedule_queryCache() throws InterruptedException {
+            // 重みの上限を超えると、最も長く使用していない結果から追い出す
+            {
+                var cache = new QueryCache(10);
+                var three = new SortedPlanSet(new Plan[] { new Plan("202011220000", "1"), new Plan("202011220001", "2"), new Plan("202011220002", "3") });
+                cache.putFind(0, 10, three, cache.generation());
+                cache.putFind(10, 20, three, cache.generation());
+                cache.putCount(0, 10, 3, cache.generation());
+                if (cache.getFind(0, 10) != three || cache.getCount(0, 10) != 3 || cache.getWeight() != 9) { throw new RuntimeException(); }
+                cache.putFind(20, 30, three, cache.generation());
+                if (cache.getFind(10, 20) != null || cache.getFind(0, 10) == null || cache.getWeight() != 9 || cache.getEvictionCount() != 1) {
+                    throw new RuntimeException(cache.toString());
+                }
+                // 上限より重い結果と、計算中に変更された結果は保持しない
+                var eleven = new Plan[10];
+                for (int i = 0; i < eleven.length; i++) {
+                    eleven[i] = new Plan(DateTimeParser.format(base(i)), VALID_CONTENT);
+                }
+                cache.putFind(30, 40, new SortedPlanSet(eleven), cache.generation());
+                long generation = cache.generation();
+                cache.invalidate(100);
+                cache.putCount(40, 50, 1, generation);
+                if (cache.getFind(30, 40) != null || cache.getCount(40, 50) != null || cache.size() != 3) { throw new RuntimeException(cache.toString()); }
+                // 日時を範囲に含む結果のみを無効にする
+                cache.invalidate(9);
+                if (cache.size() != 1 || cache.getFind(20, 30) == null || cache.getInvalidationCount() != 2) { throw new RuntimeException(cache.toString()); }
+                cache.invalidate(new Plan[] { new Plan(DateTimeParser.toLocalDateTime(19), "a"), new Plan(DateTimeParser.toLocalDateTime(30), "a") });
+                if (cache.size() != 1) { throw new RuntimeException(cache.toString()); }
+                cache.invalidate(new Plan[] { new Plan(DateTimeParser.toLocalDateTime(5), "a"), new Plan(DateTimeParser.toLocalDateTime(29), "a") });
+                if (cache.size() != 0 || cache.getWeight() != 0) { throw new RuntimeException(cache.toString()); }
+            }
+
+            // 長い範囲の結果は、始点から離れた日時の変更でも無効にし、範囲外の結果は残す
+            {
+                var cache = new QueryCache(100);
+                cache.putCount(0, 1000, 1, cache.generation());
+                for (int from = 0; from < 1000; from += 100) {
+                    cache.putCount(from, from + 10, 1, cache.generation());
+                }
+                cache.invalidate(955);
+                if (cache.getEvictionCount() != 0 || cache.getCount(0, 1000) != null || cache.getCount(900, 910) == null || cache.size() != 10) { throw new RuntimeException(cache.toString()); }
+                cache.invalidate(new Plan[] { new Plan(DateTimeParser.toLocalDateTime(305), "a"), new Plan(DateTimeParser.toLocalDateTime(950), "a") });
+                if (cache.getCount(300, 310) != null || cache.getCount(0, 10) == null || cache.size() != 9) { throw new RuntimeException(cache.toString()); }
+                cache.clear();
+                cache.invalidate(5);
+                if (cache.size() != 0 || cache.getWeight() != 0) { throw new RuntimeException(cache.toString()); }
+            }
+
+            // キャッシュした結果が、キャッシュしない予定表の結果と同じになる
+            for (var storage : Schedule.Storage.values()) {
+                var cached = new Schedule(Long.MAX_VALUE, storage, Schedule.Option.QUERY_CACHE);
+                var plain = new Schedule(Long.MAX_VALUE, storage);
+                var random = new Random(22);
+                var windows = new String[][] { { "202011220000", "202011230000" }, { "202011220000", "202011290000" }, { "202011010000", "202012010000" },
+                        { "202011250000", "202011250000" } };
+                for (int round = 0; round < 400; round++) {
+                    var dateTime = DateTimeParser.format(base(random.nextInt(60 * 24 * 40) - 60 * 24 * 30));
+                    var content = Integer.toString(random.nextInt(3));
+                    switch (random.nextInt(round % 100 == 0 ? 5 : 4)) {
+                    case 0:
+                    case 1:
+                        try {
+                            cached.add(dateTime, content);
+                            plain.add(dateTime, content);
+                        }
+                        catch (IllegalStateException ise) {
+                            cached.remove(dateTime, content);
+                            plain.remove(dateTime, content);
+                        }
+                        break;
+                    case 2:
+                        var bulk = List.of(new Plan(dateTime, "bulk" + round), new Plan(dateTime, "bulk" + round + "x"));
+                        cached.addAll(bulk);
+                        plain.addAll(bulk);
+                        break;
+                    case 3:
+                        break;
+                    default:
+                        var recurring = new RecurringPlan(dateTime, RecurringPlan.Frequency.DAILY, "202012310000", "毎日" + round);
+                        cached.addRecurring(recurring);
+                        plain.addRecurring(recurring);
+                        break;
+                    }
+                    for (var window : windows) {
+                        for (int repeat = 0; repeat < 2; repeat++) {
+                            if (!new ArrayList<>(cached.find(window[0], window[1])).equals(new ArrayList<>(plain.find(window[0], window[1])))
+                                    || cached.count(window[0], window[1]) != plain.count(window[0], window[1])) {
+                                throw new RuntimeException(storage + " " + round + " " + window[0]);
+                            }
+                        }
+                    }
+                }
+                var cache = cached.queryCache();
+                if (cache.getHitCount() < 400 * 4 * 2 || cache.getInvalidationCount() == 0 || cache.getHitRate() <= 0.5) {
+                    throw new RuntimeException(storage + " " + cache);
+                }
+                // 繰り返しの予定の削除、追い出しで無効にする
+                for (var recurring : cached.recurringPlans()) {
+                    cached.removeRecurring(recurring);
+                }
+                if (cached.find("202011250000", "202011260000").stream().anyMatch(plan -> plan.getContent().startsWith("毎日"))) {
+                    throw new RuntimeException(storage.toString());
+                }
+                if (cached.count("202011010000", "202011220000") == 0 || cached.find("202011010000", "202011220000").isEmpty()) {
+                    throw new RuntimeException(storage.toString());
+                }
+                cached.setEvictionPolicy(EvictionPolicy.expireAfter(Duration.ofDays(1))
+                        .withClock(Clock.fixed(LocalDateTime.of(2020, 11, 23, 0, 0).toInstant(ZoneOffset.UTC), ZoneOffset.UTC)));
+                cached.expire();
+                if (cached.count("202011010000", "202011220000") != 0 || cached.find("202011010000", "202011220000").size() != 0) {
+                    throw new RuntimeException(storage.toString());
+                }
+                // 結果は変更できない
+                expectFailure(() -> cached.find("202011220000", "202011230000").add(new Plan(VALID_DATE_TIME, VALID_CONTENT)));
+            }
+
+            // 範囲外の予定の変更では、無効にしない
+            {
+                var s = new Schedule(Long.MAX_VALUE, Schedule.Storage.TREE, Schedule.Option.QUERY_CACHE);
+                s.add("202011221000", VALID_CONTENT);
+                var day = s.find("202011220000", "202011230000");
+                s.count("202011220000", "202011230000");
+                s.find("202011220000", "202011290000");
+                s.add("202011300000", VALID_CONTENT);
+                s.remove("202011300000", VALID_CONTENT);
+                if (s.find("202011220000", "202011230000") != day || s.queryCache().getInvalidationCount() != 0 || s.queryCache().size() != 3) {
+                    throw new RuntimeException(s.queryCache().toString());
+                }
+                s.add("202011230000", VALID_CONTENT);
+                if (s.find("202011220000", "202011230000") != day || s.queryCache().getInvalidationCount() != 1) { throw new RuntimeException(); }
+                s.queryCache().clear();
+                if (s.queryCache().size() != 0 || s.find("202011220000", "202011230000").size() != 1) { throw new RuntimeException(); }
+                expectFailure(() -> new Schedule(1).queryCache());
+            }
+
+            // 複数のスレッドで変更、検索しても、変更の後の検索は古い結果を返さない
+            {
+                var s = new Schedule(Long.MAX_VALUE, Schedule.Storage.CONCURRENT, Schedule.Option.QUERY_CACHE);
+                var threads = new ArrayList<Thread>();
+                var failure = new AtomicBoolean();
+                for (int t = 0; t < 4; t++) {
+                    final int offset = t;
+                    var thread = new Thread(() -> {
+                        for (int number = 0; number < 2000; number++) {
+                            var dateTime = DateTimeParser.format(base(number % 1440));
+                            var content = offset + "-" + number;
+                            s.add(dateTime, content);
+                            // 自分の登録は、直後の検索に含まれる
+                            if (!s.find("202011220000", "202011230000").contains(new Plan(dateTime, content))) {
+                                failure.set(true);
+                            }
+                        }
+                    });
+                    threads.add(thread);
+                    thread.start();
+                }
+                for (var thread : threads) {
+                    thread.join();
+                }
+                if (failure.get() || s.find("202011220000", "202011230000").size() != 8000 || s.count("202011220000", "202011230000") != 8000) {
+                    throw new RuntimeException(s.queryCache().toString());
+                }
+            }
+        }
+
+        /**
+         * 2020年11月22日0時0分から、指定した分だけ後の日時を求める。
+         * @param minutes 分
+         * @return 日時(分オフセット)
+         */
+        private static long base(int minutes) {
+            return DateTimeParser.parseMinutes("202011220000") + minutes;
+        }
+
+        public void Schedule_metrics() throws IOException, JMException {
+            // 計測しない予定表では、計測を取得できない
+            try {
+                new Schedule(1).metrics();
+                throw new RuntimeException();
+            }
+            catch (IllegalStateException ise) {
+                // no operation
+            }
+
+            var schedule = new Schedule(3, Schedule.Storage.TREE, Schedule.Option.METRICS);
+            var metrics = schedule.metrics();
+            var file = Files.createTempFile("schedule", ".jfr");
+            try (var recording = new Recording()) {
+                recording.enable("com.patineboot.education.ScheduleOperation").withThreshold(Duration.ZERO);
+                recording.start();
+
+                // 成功と、例外の種類毎の失敗を数える
+                schedule.add("202001010000", VALID_CONTENT);
+                schedule.add("202001010100", VALID_CONTENT);
+                expectFailure(() -> schedule.add("202001010000", VALID_CONTENT));
+                expectFailure(() -> schedule.add("202002300000", VALID_CONTENT));
+                expectFailure(() -> schedule.add(null, VALID_CONTENT));
+                schedule.add("202001010200", VALID_CONTENT);
+                expectFailure(() -> schedule.add("202001010300", VALID_CONTENT));
+                schedule.remove("202001010200", VALID_CONTENT);
+                expectFailure(() -> schedule.remove("202001010200", VALID_CONTENT));
+                if (schedule.find("202001010000", "202001020000").size() != 2
+                        || !schedule.find("202001020000", "202001020000").isEmpty()) {
+                    throw new RuntimeException();
+                }
+                expectFailure(() -> schedule.find("202001020000", "202001010000"));
+                if (schedule.count("202001010000", "202001020000") != 2) {
+                    throw new RuntimeException();
+                }
+
+                recording.stop();
+                recording.dump(file);
+            }
+
+            var snapshot = metrics.snapshot();
+            var add = ScheduleMetrics.Operation.ADD;
+            if (snapshot.count(add, ScheduleMetrics.Outcome.SUCCEEDED) != 3
+                    || snapshot.count(add, ScheduleMetrics.Outcome.DUPLICATE) != 1
+                    || snapshot.count(add, ScheduleMetrics.Outcome.INVALID_DATE_TIME) != 1
+                    || snapshot.count(add, ScheduleMetrics.Outcome.INVALID_ARGUMENT) != 1
+                    || snapshot.count(add, ScheduleMetrics.Outcome.NO_CAPACITY) != 1
+                    || snapshot.count(add) != 7) {
+                throw new RuntimeException(snapshot.toString());
+            }
+            var remove = ScheduleMetrics.Operation.REMOVE;
+            if (snapshot.count(remove, ScheduleMetrics.Outcome.SUCCEEDED) != 1
+                    || snapshot.count(remove, ScheduleMetrics.Outcome.NOT_FOUND) != 1) {
+                throw new RuntimeException(snapshot.toString());
+            }
+            var find = ScheduleMetrics.Operation.FIND;
+            if (snapshot.count(find, ScheduleMetrics.Outcome.SUCCEEDED) != 2
+                    || snapshot.count(find, ScheduleMetrics.Outcome.INVALID_ARGUMENT) != 1
+                    || snapshot.count(ScheduleMetrics.Operation.COUNT) != 1
+                    || snapshot.count(ScheduleMetrics.Operation.ADD_ALL) != 0) {
+                throw new RuntimeException(snapshot.toString());
+            }
+
+            // ビューを返すTREEの検索は、件数を記録しない
+            if (!snapshot.findResultSizes().isEmpty()) {
+                throw new RuntimeException(snapshot.toString());
+            }
+            // スナップショットを返すPACKEDの検索結果の件数の分布と、時間の百分位数
+            var packed = new Schedule(3, Schedule.Storage.PACKED, Schedule.Option.METRICS);
+            packed.add("202001010000", VALID_CONTENT);
+            packed.add("202001010100", VALID_CONTENT);
+            packed.find("202001010000", "202001020000");
+            packed.find("202001020000", "202001020000");
+            var packedSnapshot = packed.metrics().snapshot();
+            if (!packedSnapshot.findResultSizes().equals(new TreeMap<>(Map.of(0L, 1L, 2L, 1L)))
+                    || packedSnapshot.findResultSize(1.0) != 2) {
+                throw new RuntimeException(packedSnapshot.toString());
+            }
+            if (snapshot.latency(add, 0.5) <= 0 || snapshot.latency(add, 1.0) != snapshot.maxLatency(add)
+                    || snapshot.meanLatency(add) > snapshot.maxLatency(add)) {
+                throw new RuntimeException(snapshot.toString());
+            }
+
+            // 操作毎に、JDK Flight Recorderのイベントを記録する
+            try {
+                long events = RecordingFile.readAllEvents(file).stream()
+                        .filter(event -> event.getEventType().getName().equals("com.patineboot.education.ScheduleOperation"))
+                        .count();
+                if (events != snapshot.count(add) + snapshot.count(remove) + snapshot.count(find) + 1) {
+                    throw new RuntimeException("events: " + events);
+                }
+            }
+            finally {
+                Files.delete(file);
+            }
+
+            // JMXで公開し、リセットする
+            var server = ManagementFactory.getPlatformMBeanServer();
+            var objectName = metrics.register("test");
+            try {
+                var counts = (TabularData)server.getAttribute(objectName, "Counts");
+                if (counts.size() != ScheduleMetrics.Operation.values().length * ScheduleMetrics.Outcome.values().length) {
+                    throw new RuntimeException();
+                }
+                server.invoke(objectName, "reset", null, null);
+                if (metrics.snapshot().count(add) != 0 || metrics.getFindResultSizes().get("max") != 0) {
+                    throw new RuntimeException();
+                }
+            }
+            finally {
+                metrics.unregister();
+            }
+            if (server.isRegistered(objectName)) {
+                throw new RuntimeException();
+            }
+        }
+
+        public void BatchExecutor_execute() throws IOException {
+            // コマンドの種類毎の成功、失敗と、検索結果の出力
+            var script = String.join("\n",
+                    "# comment",
+                    "a 202001010000 会議 A",
+                    "a 202001010100 会議",
+                    "a 202001010000 会議 A",
+                    "a 202002300000 会議",
+                    "a 202001010200",
+                    "d 202001010100 会議",
+                    "d 202001010100 会議",
+                    "s 202001010000 202001020000",
+                    "z",
+                    "ab 202001010000 foo",
+                    "l",
+                    "",
+                    "e",
+                    "a 202001010300 会議");
+            var schedule = new Schedule(Long.MAX_VALUE);
+            var out = new StringWriter();
+            var err = new StringWriter();
+            var batch = new BatchExecutor(schedule, BatchExecutor.BATCH_SIZE, new PrintWriter(out), new PrintWriter(err));
+            batch.execute(new StringReader(script));
+
+            if (batch.succeeded(BatchExecutor.Command.ADD) != 2 || batch.failed(BatchExecutor.Command.ADD) != 3
+                    || batch.succeeded(BatchExecutor.Command.DELETE) != 1 || batch.failed(BatchExecutor.Command.DELETE) != 1
+                    || batch.succeeded(BatchExecutor.Command.SEARCH) != 1 || batch.succeeded(BatchExecutor.Command.LIST) != 1
+                    || batch.failed(BatchExecutor.Command.INVALID) != 2) {
+                throw new RuntimeException(batch.summary());
+            }
+            var line = "DateTime: 2020-01-01T00:00 Content: 会議 A\n";
+            if (!out.toString().equals(line + line)) {
+                throw new RuntimeException(out.toString());
+            }
+            if (!err.toString().startsWith("line 4: ADD failed: ") || err.toString().lines().count() != 6) {
+                throw new RuntimeException(err.toString());
+            }
+            // eより後ろは実行しない
+            if (schedule.size() != 1) {
+                throw new RuntimeException();
+            }
+
+            // 一括登録と、1件ずつの登録で、重複や最大登録件数の超過を含めて結果が同じ
+            var random = new Random(17);
+            var builder = new StringBuilder();
+            long base = DateTimeParser.parseMinutes(VALID_DATE_TIME);
+            for (int number = 0; number < 3000; number++) {
+                var date = DateTimeParser.format(base + random.nextInt(2000));
+                builder.append(random.nextInt(10) == 0 ? "d " : "a ").append(date).append(' ').append(VALID_CONTENT).append('\n');
+                if (number % 500 == 0) {
+                    builder.append("s ").append(VALID_DATE_TIME).append(' ').append(date).append('\n');
+                }
+            }
+            var expected = new Schedule(1200);
+            var expectedOut = new StringWriter();
+            var expectedErr = new StringWriter();
+            var oneByOne = new BatchExecutor(expected, 1, new PrintWriter(expectedOut), new PrintWriter(expectedErr));
+            oneByOne.execute(new StringReader(builder.toString()));
+            var actual = new Schedule(1200);
+            var actualOut = new StringWriter();
+            var actualErr = new StringWriter();
+            var batched = new BatchExecutor(actual, 64, new PrintWriter(actualOut), new PrintWriter(actualErr));
+            batched.execute(new StringReader(builder.toString()));
+
+            assertSameSchedule(actual, expected);
+            if (!actualOut.toString().equals(expectedOut.toString()) || !actualErr.toString().equals(expectedErr.toString())
+                    || batched.failed(BatchExecutor.Command.ADD) == 0) {
+                throw new RuntimeException();
+            }
+        }
+
+        public void PlanExporter_export() throws IOException {
+            var schedule = new Schedule(Long.MAX_VALUE);
+            schedule.add("000101020304", "会議, \"定例\"");
+            schedule.add("202011221700", "a\\b\tc\u0001");
+            schedule.add("202011221700", "締め切り");
+
+            // 形式毎の書き出し。日時はISO-8601形式、用件はエスケープする
+            var expected = new String[] {
+                "DateTime: 0001-01-02T03:04 Content: 会議, \"定例\"\n"
+                        + "DateTime: 2020-11-22T17:00 Content: a\\b\tc\u0001\n"
+                        + "DateTime: 2020-11-22T17:00 Content: 締め切り\n",
+                "dateTime,content\r\n"
+                        + "0001-01-02T03:04,\"会議, \"\"定例\"\"\"\r\n"
+                        + "2020-11-22T17:00,a\\b\tc\u0001\r\n"
+                        + "2020-11-22T17:00,締め切り\r\n",
+                "{\"dateTime\":\"0001-01-02T03:04\",\"content\":\"会議, \\\"定例\\\"\"}\n"
+                        + "{\"dateTime\":\"2020-11-22T17:00\",\"content\":\"a\\\\b\\tc\\u0001\"}\n"
+                        + "{\"dateTime\":\"2020-11-22T17:00\",\"content\":\"締め切り\"}\n",
+            };
+            for (var format : PlanExporter.Format.values()) {
+                var writer = new StringWriter();
+                var exporter = new PlanExporter(writer, format);
+                if (exporter.export(schedule.cursor("000001010000", "999912312359", Schedule.Order.ASCENDING)) != 3) {
+                    throw new RuntimeException();
+                }
+                exporter.flush();
+                if (!writer.toString().equals(expected[format.ordinal()])) {
+                    throw new RuntimeException(writer.toString());
+                }
+            }
+            // PLAINは、LocalDateTimeの文字列と同じ
+            for (var plan : schedule.find("000001010000", "999912312359")) {
+                var writer = new StringWriter();
+                var exporter = new PlanExporter(writer, PlanExporter.Format.PLAIN);
+                exporter.export(List.of(plan).iterator());
+                exporter.flush();
+                if (!writer.toString().equals("DateTime: " + plan.getDateTime() + " Content: " + plan.getContent() + "\n")) {
+                    throw new RuntimeException();
+                }
+            }
+
+            // 一括実行のxで、UTF-8のファイルに書き出す
+            var file = Files.createTempFile("schedule", ".jsonl");
+            try {
+                var out = new StringWriter();
+                var batch = new BatchExecutor(schedule, BatchExecutor.BATCH_SIZE, new PrintWriter(out), new PrintWriter(out));
+                batch.execute(new StringReader("x json 202011220000 202011230000 " + file + "\nx xml 202011220000 202011230000 " + file));
+                if (batch.succeeded(BatchExecutor.Command.EXPORT) != 1 || batch.failed(BatchExecutor.Command.EXPORT) != 1
+                        || !Files.readString(file, StandardCharsets.UTF_8).equals(expected[2].substring(expected[2].indexOf('\n') + 1))) {
+                    throw new RuntimeException(out.toString());
+                }
+            }
+            finally {
+                Files.delete(file);
+            }
+
+            // 書き出しに失敗した場合は、既存のファイルを置き換えず、一時ファイルを残さない
+            var directory = Files.createTempDirectory("schedule");
+            try {
+                var csv = directory.resolve("plans.csv");
+                Files.writeString(csv, "old", StandardCharsets.UTF_8);
+                var plans = schedule.find("000001010000", "999912312359").iterator();
+                var failing = new Iterator<Plan>() {
+                    @Override
+                    public boolean hasNext() {
+                        return true;
+                    }
+
+                    @Override
+                    public Plan next() {
+                        if (!plans.hasNext()) {
+                            throw new IllegalStateException();
+                        }
+                        return plans.next();
+                    }
+                };
+                expectFailure(() -> {
+                    try {
+                        PlanExporter.export(csv, PlanExporter.Format.CSV, StandardCharsets.UTF_8, failing);
+                    }
+                    catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+                if (!Files.readString(csv, StandardCharsets.UTF_8).equals("old")
+                        || Files.exists(directory.resolve("plans.csv.tmp"))) {
+                    throw new RuntimeException();
+                }
+                // 成功した場合は置き換える
+                if (PlanExporter.export(csv, PlanExporter.Format.CSV, StandardCharsets.UTF_8,
+                        schedule.cursor("000001010000", "999912312359", Schedule.Order.ASCENDING)) != 3
+                        || !Files.readString(csv, StandardCharsets.UTF_8).equals(expected[1])
+                        || Files.exists(directory.resolve("plans.csv.tmp"))) {
+                    throw new RuntimeException();
+                }
+                Files.delete(csv);
+            }
+            finally {
+                Files.delete(directory);
+            }
+
+            try {
+                PlanExporter.Format.of("xml");
+                throw new RuntimeException();
+            }
+            catch (IllegalArgumentException iae) {
+                // no operation
+            }
+        }
+
+        public void PlanArchive_readWrite() throws IOException {
+            var directory = Files.createTempDirectory("schedule");
+            try {
+                var file = directory.resolve("plans.bin");
+
+                // 繰り返す用件、異なる用件、空の用件、日時の上限と下限の予定を、複数のブロックに書き出し、読み込む
+                var s = new Schedule(Long.MAX_VALUE, Schedule.Storage.PACKED);
+                var plans = new ArrayList<Plan>();
+                String[] contents = { "", "a", "café", "東京", "😀", VALID_CONTENT, VALID_CONTENT_MAX };
+                for (int number = 0; number < 30_000; number++) {
+                    var content = number % 3 == 0 ? "予定" + number : contents[number % contents.length];
+                    plans.add(new Plan(DateTimeParser.toLocalDateTime(base(number * 7)), content));
+                }
+                plans.add(new Plan("000001010000", VALID_CONTENT));
+                plans.add(new Plan("999912312358", VALID_CONTENT));
+                s.addAll(plans);
+                if (PlanArchive.write(file, s.cursor("000001010000", "999912312359", Schedule.Order.ASCENDING)) != plans.size()) {
+                    throw new RuntimeException();
+                }
+                var loaded = new Schedule(Long.MAX_VALUE, Schedule.Storage.TREE);
+                if (PlanArchive.load(file, loaded) != plans.size()) { throw new RuntimeException(); }
+                assertSameSchedule(loaded, s);
+
+                // ブロック毎に読み込み、ファイル全体を読み込まない
+                int blocks = 0;
+                long count = 0;
+                try (var reader = PlanArchive.Reader.open(file)) {
+                    List<Plan> block;
+                    while ((block = reader.readBlock()) != null) {
+                        blocks++;
+                        count += block.size();
+                    }
+                }
+                if (blocks < 2 || count != plans.size()) { throw new RuntimeException(); }
+
+                // テキストの形式より小さい
+                var csv = directory.resolve("plans.csv");
+                PlanExporter.export(csv, PlanExporter.Format.CSV, StandardCharsets.UTF_8,
+                        s.cursor("000001010000", "999912312359", Schedule.Order.ASCENDING));
+                if (Files.size(file) * 2 > Files.size(csv)) { throw new RuntimeException(); }
+
+                // 辞書の上限を超える、異なる用件
+                var unique = new Schedule(Long.MAX_VALUE, Schedule.Storage.PACKED);
+                var uniquePlans = new ArrayList<Plan>();
+                for (int number = 0; number < PlanArchive.DICTIONARY_SIZE + 100; number++) {
+                    uniquePlans.add(new Plan(DateTimeParser.toLocalDateTime(base(number / 4)), Integer.toString(number % 1000) + "-" + number));
+                }
+                unique.addAll(uniquePlans);
+                PlanArchive.write(file, unique.cursor("000001010000", "999912312359", Schedule.Order.ASCENDING));
+                var uniqueLoaded = new Schedule(Long.MAX_VALUE, Schedule.Storage.PACKED);
+                PlanArchive.load(file, uniqueLoaded);
+                assertSameSchedule(uniqueLoaded, unique);
+
+                // 昇順でない予定は、書き出せない
+                try (var writer = PlanArchive.Writer.open(file)) {
+                    writer.write(new Plan(VALID_DATE_TIME, VALID_CONTENT2));
+                    expectFailure(() -> {
+                        try {
+                            writer.write(new Plan(VALID_DATE_TIME, VALID_CONTENT));
+                        }
+                        catch (IOException ioe) {
+                            throw new UncheckedIOException(ioe);
+                        }
+                    });
+                }
+
+                // 書き出しに失敗した場合は、終端を書き出さず、既存のファイルを置き換えない
+                var source = s.cursor("000001010000", "999912312359", Schedule.Order.ASCENDING);
+                var failing = new Iterator<Plan>() {
+                    int remaining = 2;
+
+                    @Override
+                    public boolean hasNext() {
+                        return true;
+                    }
+
+                    @Override
+                    public Plan next() {
+                        if (remaining-- == 0) {
+                            throw new ConcurrentModificationException();
+                        }
+                        return source.next();
+                    }
+                };
+                expectFailure(() -> {
+                    try {
+                        PlanArchive.write(file, failing);
+                    }
+                    catch (IOException ioe) {
+                        throw new UncheckedIOException(ioe);
+                    }
+                });
+                var kept = new Schedule(Long.MAX_VALUE, Schedule.Storage.PACKED);
+                PlanArchive.load(file, kept);
+                assertSameSchedule(kept, unique);
+                if (Files.exists(directory.resolve("plans.bin.tmp"))) { throw new RuntimeException(); }
+
+                // 中止した書き出しも、既存のファイルを置き換えない
+                var aborted = PlanArchive.Writer.open(file);
+                aborted.write(new Plan(VALID_DATE_TIME, VALID_CONTENT));
+                aborted.abort();
+                aborted.close();
+                kept = new Schedule(Long.MAX_VALUE, Schedule.Storage.PACKED);
+                PlanArchive.load(file, kept);
+                assertSameSchedule(kept, unique);
+                if (Files.exists(directory.resolve("plans.bin.tmp"))) { throw new RuntimeException(); }
+
+                // 壊れたファイル、途中で終わるファイル、形式の異なるファイルは、読み込めない
+                PlanArchive.write(file, s.cursor("000001010000", "999912312359", Schedule.Order.ASCENDING));
+                var bytes = Files.readAllBytes(file);
+                var broken = bytes.clone();
+                broken[bytes.length / 2] ^= 0x10;
+                var truncated = Arrays.copyOf(bytes, bytes.length - 5);
+                var csvBytes = Files.readAllBytes(csv);
+                for (var content : new byte[][] { broken, truncated, csvBytes }) {
+                    Files.write(file, content);
+                    boolean isOk = false;
+                    try {
+                        PlanArchive.load(file, new Schedule(Long.MAX_VALUE));
+                    }
+                    catch (IOException ioe) {
+                        isOk = true;
+                    }
+                    if (!isOk) { throw new RuntimeException(); }
+                }
+
+                // 一括実行で書き出し、読み込む
+                var batchFile = directory.resolve("batch plans.bin");
+                var out = new StringWriter();
+                var err = new StringWriter();
+                new BatchExecutor(s, BatchExecutor.BATCH_SIZE, new PrintWriter(out), new PrintWriter(err))
+                        .execute(new StringReader("x bin 000001010000 999912312359 " + batchFile));
+                var imported = new Schedule(Long.MAX_VALUE, Schedule.Storage.CONCURRENT);
+                var batch = new BatchExecutor(imported, BatchExecutor.BATCH_SIZE, new PrintWriter(out), new PrintWriter(err));
+                batch.execute(new StringReader("i " + batchFile + "\ni " + directory.resolve("none.bin")));
+                if (batch.succeeded(BatchExecutor.Command.IMPORT) != 1 || batch.failed(BatchExecutor.Command.IMPORT) != 1) {
+                    throw new RuntimeException(batch.summary());
+                }
+                assertSameSchedule(imported, s);
+            }
+            finally {
+                deleteDirectory(directory);
+            }
+        }
+
+        public void ScheduleServer_serve() throws IOException, InterruptedException {
+            var schedule = new Schedule(Long.MAX_VALUE, Schedule.Storage.CONCURRENT);
+            try (var server = new ScheduleServer(schedule, 0)) {
+                // 応答を待たずに送信した要求に、要求の順に応答する
+                var script = "ADD 202011221700 締め切り, \"定例\"\n"
+                        + "ADD 202011221700 締め切り, \"定例\"\n"
+                        + "ADD 202011220900 朝会\n"
+                        + "COUNT 202011220000 202011230000\n"
+                        + "FIND 202011220000 202011230000\n"
+                        + "FIND 202011221800 202011221700\n"
+                        + "REMOVE 202011220900 朝会\n"
+                        + "REMOVE 202011220900 朝会\n"
+                        + "COUNT 202011220000\n"
+                        + "GET 202011220000 202011230000\n"
+                        + "QUIT\n"
+                        + "COUNT 202011220000 202011230000\n";
+                var expected = List.of(
+                        "OK",
+                        "ERROR IllegalStateException duptilcate plan",
+                        "OK",
+                        "OK 2",
+                        "{\"dateTime\":\"2020-11-22T09:00\",\"content\":\"朝会\"}",
+                        "{\"dateTime\":\"2020-11-22T17:00\",\"content\":\"締め切り, \\\"定例\\\"\"}",
+                        "END 2",
+                        "ERROR IllegalArgumentException",
+                        "OK",
+                        "ERROR IllegalStateException Not found",
+                        "ERROR IllegalArgumentException",
+                        "ERROR IllegalArgumentException invalid command: GET",
+                        "BYE");
+                var actual = new ArrayList<String>();
+                try (var socket = new Socket(server.address().getAddress(), server.address().getPort());
+                        var reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8))) {
+                    socket.getOutputStream().write(script.getBytes(StandardCharsets.UTF_8));
+                    socket.getOutputStream().flush();
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        actual.add(line);
+                    }
+                }
+                if (actual.size() != expected.size()) {
+                    throw new RuntimeException(actual.toString());
+                }
+                for (int i = 0; i < expected.size(); i++) {
+                    // 理由の文言は、例外のクラス名までを比較する。
+                    if (!actual.get(i).startsWith(expected.get(i))) {
+                        throw new RuntimeException(actual.get(i));
+                    }
+                }
+
+                // 複数の接続から、パイプラインで要求を送信する
+                var result = new ScheduleLoadGenerator(server.address(), 2, 200, 8).run();
+                // 10件の周期毎に、5件を登録し、1件を削除する
+                if (result.requests() != 400 || result.errors() != 0 || schedule.size() != 1 + 2 * 20 * 4
+                        || result.latency(50) > result.latency(99) || result.latency(99) > result.latency(100)) {
+                    throw new RuntimeException(result.toString());
+                }
+            }
+            expectFailure(() -> new ScheduleLoadGenerator(null, 1, 1, 1));
+            expectFailure(() -> new ScheduleLoadGenerator(new InetSocketAddress(0), 1, 1, 0));
+        }
+
+        private void expectFailure(Runnable operation) {
+            try {
+                operation.run();
+            }
+            catch (RuntimeException re) {
+                return;
+            }
+            throw new RuntimeException("no exception");
+        }
+
+        public void ScheduleJournal_writeFailure() throws IOException {
+            // 書き込み、fsync、切り詰めを1回ずつ失敗させるファイル。書き込みは、半分を書き込んでから失敗する。
+            class FailingChannel extends FileChannel {
+                final FileChannel file;
+                volatile boolean failsWrite;
+                volatile boolean failsForce;
+                volatile boolean failsTruncate;
+
+                FailingChannel(FileChannel file) {
+                    this.file = file;
+                }
+
+                @Override
+                public int write(ByteBuffer src) throws IOException {
+                    if (failsWrite) {
+                        failsWrite = false;
+                        int limit = src.limit();
+                        src.limit(src.position() + src.remaining() / 2);
+                        file.write(src);
+                        src.limit(limit);
+                        throw new IOException("write failure");
+                    }
+                    return file.write(src);
+                }
+
+                @Override
+                public void force(boolean metaData) throws IOException {
+                    if (failsForce) {
+                        failsForce = false;
+                        throw new IOException("force failure");
+                    }
+                    file.force(metaData);
+                }
+
+                @Override
+                public FileChannel truncate(long size) throws IOException {
+                    if (failsTruncate) {
+                        failsTruncate = false;
+                        throw new IOException("truncate failure");
+                    }
+                    file.truncate(size);
+                    return this;
+                }
+
+                @Override
+                public int read(ByteBuffer dst) throws IOException {
+                    return file.read(dst);
+                }
+
+                @Override
+                public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+                    return file.read(dsts, offset, length);
+                }
+
+                @Override
+                public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+                    return file.write(srcs, offset, length);
+                }
+
+                @Override
+                public long position() throws IOException {
+                    return file.position();
+                }
+
+                @Override
+                public FileChannel position(long newPosition) throws IOException {
+                    file.position(newPosition);
+                    return this;
+                }
+
+                @Override
+                public long size() throws IOException {
+                    return file.size();
+                }
+
+                @Override
+                public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+                    return file.transferTo(position, count, target);
+                }
+
+                @Override
+                public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException {
+                    return file.transferFrom(src, position, count);
+                }
+
+                @Override
+                public int read(ByteBuffer dst, long position) throws IOException {
+                    return file.read(dst, position);
+                }
+
+                @Override
+                public int write(ByteBuffer src, long position) throws IOException {
+                    return file.write(src, position);
+                }
+
+                @Override
+                public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+                    return file.map(mode, position, size);
+                }
+
+                @Override
+                public FileLock lock(long position, long size, boolean shared) throws IOException {
+                    return file.lock(position, size, shared);
+                }
+
+                @Override
+                public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+                    return file.tryLock(position, size, shared);
+                }
+
+                @Override
+                protected void implCloseChannel() throws IOException {
+                    file.close();
+                }
+            }
+
+            var directory = Files.createTempDirectory("schedule");
+            try {
+                var file = directory.resolve("journal-0.log");
+                var replayed = new ArrayList<String>();
+                ScheduleJournal.Replayer replayer = (op, minutes, content, duration) -> replayed.add(op + ":" + minutes + ":" + content);
+
+                // EACHで書き込み、fsyncに失敗したレコードは取り消し、ファイルを書き込み前の長さに切り詰める
+                var channel = new FailingChannel(FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE));
+                try (var journal = new ScheduleJournal(channel, DurableSchedule.SyncMode.EACH)) {
+                    journal.append(ScheduleJournal.ADD, 0, "a", 0);
+                    long size = Files.size(file);
+                    channel.failsWrite = true;
+                    expectFailure(() -> journal.append(ScheduleJournal.ADD, 1, "b", 0));
+                    channel.failsForce = true;
+                    expectFailure(() -> journal.append(ScheduleJournal.ADD, 2, "c", 0));
+                    if (journal.size() != 1 || Files.size(file) != size) { throw new RuntimeException(); }
+                    journal.append(ScheduleJournal.REMOVE, 0, "a", 0);
+                }
+                ScheduleJournal.replay(file, replayer);
+                if (!replayed.equals(List.of("1:0:a", "2:0:a"))) { throw new RuntimeException(replayed.toString()); }
+
+                // 切り詰めにも失敗した場合は、以降の追記を失敗とする
+                Files.delete(file);
+                replayed.clear();
+                channel = new FailingChannel(FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE));
+                try (var journal = new ScheduleJournal(channel, DurableSchedule.SyncMode.EACH)) {
+                    channel.failsForce = true;
+                    channel.failsTruncate = true;
+                    expectFailure(() -> journal.append(ScheduleJournal.ADD, 0, "a", 0));
+                    expectFailure(() -> journal.append(ScheduleJournal.ADD, 1, "b", 0));
+                    if (journal.size() != 0) { throw new RuntimeException(); }
+                }
+
+                // GROUPで書き込みに失敗したレコードは、次の同期で続きから書き込む
+                Files.delete(file);
+                channel = new FailingChannel(FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE));
+                try (var journal = new ScheduleJournal(channel, DurableSchedule.SyncMode.GROUP)) {
+                    journal.append(ScheduleJournal.ADD, 0, "a", 0);
+                    long record = journal.append(ScheduleJournal.ADD, 1, "b", 0);
+                    channel.failsWrite = true;
+                    expectFailure(() -> journal.await(record));
+                    journal.append(ScheduleJournal.ADD, 2, "c", 0);
+                }
+                ScheduleJournal.replay(file, replayer);
+                if (!replayed.equals(List.of("1:0:a", "1:1:b", "1:2:c"))) { throw new RuntimeException(replayed.toString()); }
+
+                // 一括登録は一つのレコードとし、書き込みに失敗した場合は、いずれの予定も記録しない
+                Files.delete(file);
+                var batch = List.of(new Plan("202011220000", "a", 0), new Plan("202011220001", "b", 30));
+                var replayedAll = new ArrayList<String>();
+                ScheduleJournal.Replayer replayerAll = (op, minutes, content, duration) -> replayedAll.add(op + ":" + content + ":" + duration);
+                channel = new FailingChannel(FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE));
+                try (var journal = new ScheduleJournal(channel, DurableSchedule.SyncMode.EACH)) {
+                    channel.failsWrite = true;
+                    expectFailure(() -> journal.appendAll(batch));
+                    if (journal.size() != 0 || Files.size(file) != 0) { throw new RuntimeException(); }
+                    if (journal.appendAll(batch) != 2 || journal.appendAll(List.of()) != 2) { throw new RuntimeException(); }
+                }
+                if (ScheduleJournal.replay(file, replayerAll) != 2 || !replayedAll.equals(List.of("1:a:0", "1:b:30"))) {
+                    throw new RuntimeException(replayedAll.toString());
+                }
+
+                // 書き込み途中の一括登録のレコードは、いずれの予定も再生しない
+                var bytes = Files.readAllBytes(file);
+                Files.write(file, Arrays.copyOf(bytes, bytes.length - 3));
+                replayedAll.clear();
+                if (ScheduleJournal.replay(file, replayerAll) != 0 || !replayedAll.isEmpty() || Files.size(file) != 0) {
+                    throw new RuntimeException(replayedAll.toString());
+                }
+            }
+            finally {
+                deleteDirectory(directory);
+            }
+        }
+
+        public void DurableSchedule_recover() throws IOException, InterruptedException {
+            var directory = Files.createTempDirectory("schedule");
+            try {
+                long base = DateTimeParser.parseMinutes(VALID_DATE_TIME);
+                var expected = new Schedule(Long.MAX_VALUE);
+
+                // 登録、削除した予定が、開き直すと復元される
+                try (var s = new DurableSchedule(directory, Long.MAX_VALUE, Schedule.Storage.TREE, DurableSchedule.SyncMode.EACH)) {
+                    for (int number = 0; number < 100; number++) {
+                        s.add(DateTimeParser.format(base + number), VALID_CONTENT);
+                        expected.add(DateTimeParser.format(base + number), VALID_CONTENT);
+                    }
+                    for (int number = 0; number < 100; number += 3) {
+                        s.remove(DateTimeParser.format(base + number), VALID_CONTENT);
+                        expected.remove(DateTimeParser.format(base + number), VALID_CONTENT);
+                    }
+                    // 一括登録も復元される
+                    var batch = new ArrayList<Plan>();
+                    for (int number = 0; number < 100; number++) {
+                        batch.add(new Plan(DateTimeParser.toLocalDateTime(base + 500 + number), VALID_CONTENT2));
+                    }
+                    s.addAll(batch);
+                    expected.addAll(batch);
+                }
+                try (var s = new DurableSchedule(directory, Long.MAX_VALUE, Schedule.Storage.PACKED, DurableSchedule.SyncMode.GROUP)) {
+                    if (!new ArrayList<>(s.find("000001010000", "999912312359")).equals(new ArrayList<>(expected.find("000001010000", "999912312359")))) {
+                        throw new RuntimeException();
+                    }
+
+                    // スナップショットの後の登録、削除も復元される
+                    s.checkpoint();
+                    s.add(VALID_DATE_TIME, VALID_CONTENT2);
+                    expected.add(VALID_DATE_TIME, VALID_CONTENT2);
+                    s.remove(DateTimeParser.format(base + 1), VALID_CONTENT);
+                    expected.remove(DateTimeParser.format(base + 1), VALID_CONTENT);
+                }
+
+                // ジャーナルの末尾が書き込み途中でも、それまでのレコードは復元される
+                try (var stream = Files.newDirectoryStream(directory, "journal-*.log")) {
+                    for (var file : stream) {
+                        Files.write(file, new byte[] { 0, 0, 0, 40, 1, 2 }, StandardOpenOption.APPEND);
+                    }
+                }
+
+                // 複数のスレッドから登録した予定も復元される
+                try (var s = new DurableSchedule(directory, Long.MAX_VALUE, Schedule.Storage.CONCURRENT, DurableSchedule.SyncMode.GROUP)) {
+                    if (!new ArrayList<>(s.find("000001010000", "999912312359")).equals(new ArrayList<>(expected.find("000001010000", "999912312359")))) {
+                        throw new RuntimeException();
+                    }
+                    runConcurrently(4, thread -> {
+                        for (int number = 0; number < 50; number++) {
+                            s.add(DateTimeParser.format(base + 1000 + number), Integer.toString(thread));
+                        }
+                    });
+                    for (int thread = 0; thread < 4; thread++) {
+                        for (int number = 0; number < 50; number++) {
+                            expected.add(DateTimeParser.format(base + 1000 + number), Integer.toString(thread));
+                        }
+                    }
+                }
+                try (var s = new DurableSchedule(directory, Long.MAX_VALUE, Schedule.Storage.TREE, DurableSchedule.SyncMode.PERIODIC)) {
+                    if (!new ArrayList<>(s.find("000001010000", "999912312359")).equals(new ArrayList<>(expected.find("000001010000", "999912312359")))) {
+                        throw new RuntimeException();
+                    }
+                    // 失敗した登録、削除は、ジャーナルに記録しない
+                    expectFailure(() -> s.add(VALID_DATE_TIME, VALID_CONTENT2));
+                    expectFailure(() -> s.remove(DateTimeParser.format(base + 3), VALID_CONTENT));
+                }
+
+                // 世代が数値でないファイルは、ジャーナルとして扱わずに残す
+                var other = Files.writeString(directory.resolve("journal-backup.log"), "");
+                try (var s = new DurableSchedule(directory, Long.MAX_VALUE, Schedule.Storage.TREE, DurableSchedule.SyncMode.EACH)) {
+                    if (!new ArrayList<>(s.find("000001010000", "999912312359")).equals(new ArrayList<>(expected.find("000001010000", "999912312359")))) {
+                        throw new RuntimeException();
+                    }
+                    s.checkpoint();
+                }
+                if (!Files.exists(other)) { throw new RuntimeException(); }
+
+                // 閉じた後は、登録できない
+                {
+                    boolean isOk = false;
+                    var s = new DurableSchedule(directory, Long.MAX_VALUE, Schedule.Storage.TREE, DurableSchedule.SyncMode.EACH);
+                    s.close();
+                    try {
+                        s.add(VALID_DATE_TIME, VALID_CONTENT);
+                    }
+                    catch (IllegalStateException ise) {
+                        isOk = true;
+                    }
+                    if (!isOk) { throw new RuntimeException(); }
+                }
+            }
+            finally {
+                deleteDirectory(directory);
+            }
+        }
+
+        public void TieredSchedule_segments() throws IOException {
+            var directory = Files.createTempDirectory("schedule");
+            try {
+                long base = DateTimeParser.parseMinutes(VALID_DATE_TIME);
+                var expected = new Schedule(Long.MAX_VALUE);
+                var random = new Random(7);
+
+                // メモリの上限を超えた予定は、セグメントファイルに書き出され、検索結果は変わらない
+                try (var s = new TieredSchedule(directory, Long.MAX_VALUE, Schedule.Storage.PACKED, 100)) {
+                    for (int number = 0; number < 2000; number++) {
+                        var date = DateTimeParser.format(base + random.nextInt(5000));
+                        try {
+                            expected.add(date, VALID_CONTENT);
+                        }
+                        catch (IllegalStateException ise) {
+                            continue;
+                        }
+                        s.add(date, VALID_CONTENT);
+                    }
+                    if (s.segmentCount() == 0 || s.segmentCount() > 3 * TieredPlanStore.FANOUT) {
+                        throw new RuntimeException();
+                    }
+
+                    // セグメントファイルの予定の削除と、再登録
+                    var plans = new ArrayList<>(expected.find("000001010000", "999912312359"));
+                    for (int i = 0; i < plans.size(); i += 5) {
+                        var date = DateTimeParser.format(DateTimeParser.toMinutes(plans.get(i).getDateTime()));
+                        s.remove(date, VALID_CONTENT);
+                        expected.remove(date, VALID_CONTENT);
+                    }
+                    s.add(DateTimeParser.format(DateTimeParser.toMinutes(plans.get(0).getDateTime())), VALID_CONTENT);
+                    expected.add(DateTimeParser.format(DateTimeParser.toMinutes(plans.get(0).getDateTime())), VALID_CONTENT);
+
+                    // セグメントファイルの予定と重複する登録はできない
+                    boolean isOk = false;
+                    try {
+                        s.addAll(List.of(new Plan(DateTimeParser.toLocalDateTime(base - 1), VALID_CONTENT), plans.get(1)));
+                    }
+                    catch (IllegalStateException ise) {
+                        isOk = true;
+                    }
+                    if (!isOk || s.size() != expected.size()) { throw new RuntimeException(); }
+
+                    assertSameSchedule(s, expected);
+
+                    // 検索結果を絞り込むと、墓標を除いたセグメントファイルの予定を読み出す
+                    var found = s.find("000001010000", "999912312359");
+                    var all = new ArrayList<>(expected.find("000001010000", "999912312359"));
+                    var middle = all.get(all.size() / 2);
+                    if (!new ArrayList<>(found.headSet(middle)).equals(all.subList(0, all.size() / 2))
+                            || !new ArrayList<>(found.tailSet(middle)).equals(all.subList(all.size() / 2, all.size()))
+                            || found.headSet(middle).size() != all.size() / 2
+                            || !found.last().equals(all.get(all.size() - 1)) || !found.first().equals(all.get(0))
+                            || found.contains(plans.get(5)) || !found.contains(middle)) {
+                        throw new RuntimeException();
+                    }
+
+                    // スレッドセーフな格納方式のため、掃除する追い出しの方針を設定できる
+                    s.setEvictionPolicy(EvictionPolicy.expireAfter(Duration.ofDays(1)).sweepEvery(Duration.ofHours(1)));
+                    s.setEvictionPolicy(null);
+                }
+
+                // 開き直すと、メモリの予定と削除が反映されている
+                try (var s = new TieredSchedule(directory, Long.MAX_VALUE, Schedule.Storage.TREE, 1000)) {
+                    assertSameSchedule(s, expected);
+                    s.add(VALID_DATE_TIME, VALID_CONTENT2);
+                    expected.add(VALID_DATE_TIME, VALID_CONTENT2);
+                    s.flush("999912312359");
+                    s.compact();
+                    if (s.segmentCount() != 1) { throw new RuntimeException(); }
+                    assertSameSchedule(s, expected);
+                }
+
+                // 一覧にないセグメントファイルは、削除せずに隔離し、その番号は再び使わない
+                Path listed;
+                try (var files = Files.newDirectoryStream(directory, "segment-*.seg")) {
+                    listed = files.iterator().next();
+                }
+                var unlisted = directory.resolve("segment-999.seg");
+                Files.copy(listed, unlisted);
+                try (var s = new TieredSchedule(directory, Long.MAX_VALUE, Schedule.Storage.TREE, 1000)) {
+                    assertSameSchedule(s, expected);
+                    if (Files.exists(unlisted) || !Files.exists(directory.resolve("quarantine").resolve("segment-999.seg"))) {
+                        throw new RuntimeException();
+                    }
+                    s.add("203001010000", VALID_CONTENT);
+                    expected.add("203001010000", VALID_CONTENT);
+                    s.flush("999912312359");
+                    if (!Files.exists(directory.resolve("segment-1000.seg"))) { throw new RuntimeException(); }
+                }
+                try (var s = new TieredSchedule(directory, Long.MAX_VALUE, Schedule.Storage.TREE, 1000)) {
+                    assertSameSchedule(s, expected);
+                }
+
+                // 墓標が上限を超えた場合は、墓標のあるセグメントファイルのみを書き直す
+                var purged = directory.resolve("purged");
+                var remaining = new Schedule(Long.MAX_VALUE);
+                try (var s = new TieredSchedule(purged, Long.MAX_VALUE, Schedule.Storage.TREE, 100)) {
+                    for (int number = 0; number < 1000; number++) {
+                        s.add(DateTimeParser.format(base + number), VALID_CONTENT);
+                        remaining.add(DateTimeParser.format(base + number), VALID_CONTENT);
+                    }
+                    s.flush("999912312359");
+                    var before = segmentNames(purged);
+                    for (int number = 0; number <= 100; number++) {
+                        s.remove(DateTimeParser.format(base + number), VALID_CONTENT);
+                        remaining.remove(DateTimeParser.format(base + number), VALID_CONTENT);
+                    }
+                    var after = segmentNames(purged);
+                    var kept = new TreeSet<>(before);
+                    kept.retainAll(after);
+                    if (kept.isEmpty() || kept.size() == before.size()) { throw new RuntimeException(before + " " + after); }
+                    assertSameSchedule(s, remaining);
+                }
+                try (var s = new TieredSchedule(purged, Long.MAX_VALUE, Schedule.Storage.TREE, 100)) {
+                    assertSameSchedule(s, remaining);
+                }
+
+                // 最大登録件数を超えるセグメントファイルは開けない
+                boolean isOk = false;
+                try (var s = new TieredSchedule(directory, 10, Schedule.Storage.TREE, 1000)) {
+                    s.size();
+                }
+                catch (IllegalStateException ise) {
+                    isOk = true;
+                }
+                if (!isOk) { throw new RuntimeException(); }
+            }
+            finally {
+                deleteDirectory(directory);
+            }
+        }
+
+        public void ScheduleRegistry_unload() throws IOException, InterruptedException {
+            var directory = Files.createTempDirectory("schedule");
+            try {
+                // 予定表毎に、最大登録件数と用件の最大サイズを設定する
+                Function<String, Schedule> factory = id -> id.startsWith("small")
+                        ? new Schedule(3, 4, Schedule.Storage.TREE) : new Schedule(100, Schedule.DEFAULT_CONTENT_LENGTH, Schedule.Storage.PACKED);
+                var expected = new TreeMap<String, List<Plan>>();
+                try (var registry = new ScheduleRegistry(directory, 25, factory)) {
+                    registry.accept("small", s -> s.add(VALID_DATE_TIME, "予定あり"));
+                    expectFailure(() -> registry.accept("small", s -> s.add(VALID_DATE_TIME, "予定ありx")));
+                    // 処理の途中の例外では、それまでの変更は残る
+                    expectFailure(() -> registry.accept("small", s -> {
+                        s.add("202011220124", "a");
+                        s.add("202011220125", "b");
+                        s.add("202011220126", "c");
+                    }));
+                    registry.accept("large", s -> s.add(VALID_DATE_TIME, VALID_CONTENT_MAX));
+
+                    // 重みの上限を超えると、最も長く使用していない予定表をアンロードする
+                    for (int tenant = 0; tenant < 5; tenant++) {
+                        var id = "tenant-" + tenant;
+                        var plans = new ArrayList<Plan>();
+                        for (int number = 0; number < 9; number++) {
+                            plans.add(new Plan(DateTimeParser.toLocalDateTime(base(number * 60)), id));
+                        }
+                        registry.accept(id, s -> s.addAll(plans));
+                        expected.put(id, plans);
+                    }
+                    if (registry.getWeight() > 25 || registry.getResidentCount() > 2 || registry.getUnloadCount() < 5) {
+                        throw new RuntimeException(registry.toString());
+                    }
+
+                    // アンロードした予定表は、次に使用する時に読み込む
+                    long loads = registry.getLoadCount();
+                    var found = registry.apply("tenant-0", s -> new ArrayList<>(s.find("000001010000", "999912312359")));
+                    if (!found.equals(expected.get("tenant-0")) || registry.getLoadCount() != loads + 1) {
+                        throw new RuntimeException();
+                    }
+                    if (registry.apply("small", s -> s.size()) != 3 || !registry.exists("large") || registry.exists("none")) {
+                        throw new RuntimeException();
+                    }
+
+                    // 変更のない予定表は、保存しない
+                    registry.flush();
+                    long saves = registry.getSaveCount();
+                    for (var id : expected.keySet()) {
+                        registry.apply(id, s -> s.count("000001010000", "999912312359"));
+                    }
+                    registry.flush();
+                    if (registry.getSaveCount() != saves) { throw new RuntimeException(); }
+
+                    // 繰り返しの予定を持つ予定表は、アンロードしない
+                    registry.accept("recurring", s -> s.addRecurring(
+                            new RecurringPlan(VALID_DATE_TIME, RecurringPlan.Frequency.DAILY, "202012220000", VALID_CONTENT)));
+                    for (var id : expected.keySet()) {
+                        registry.apply(id, s -> s.size());
+                    }
+                    loads = registry.getLoadCount();
+                    if (registry.apply("recurring", s -> s.recurringPlans().size()) != 1 || registry.getLoadCount() != loads) {
+                        throw new RuntimeException();
+                    }
+
+                    // 複数のスレッドから使用しても、予定は失われない
+                    runConcurrently(4, thread -> {
+                        for (int number = 0; number < 50; number++) {
+                            int minutes = 10_000 + thread * 100 + number;
+                            registry.accept("tenant-" + number % 5, s -> s.add(DateTimeParser.format(base(minutes)), VALID_CONTENT));
+                        }
+                    });
+                    for (var entry : expected.entrySet()) {
+                        long count = registry.apply(entry.getKey(), s -> s.size());
+                        if (count != entry.getValue().size() + 40) { throw new RuntimeException(); }
+                    }
+
+                    // 削除した予定表は、空の予定表として作成し直す
+                    registry.delete("tenant-4");
+                    expected.remove("tenant-4");
+                    if (registry.exists("tenant-4") || registry.apply("tenant-4", s -> s.size()) != 0) {
+                        throw new RuntimeException();
+                    }
+
+                    expectFailure(() -> registry.apply("../tenant", s -> s.size()));
+                    expectFailure(() -> registry.accept("tenant-0", null));
+                }
+
+                // 閉じると全ての予定表を保存し、開き直すと読み込む
+                {
+                    var registry = new ScheduleRegistry(directory, 1000, factory);
+                    for (var entry : expected.entrySet()) {
+                        long count = registry.apply(entry.getKey(), s -> s.size());
+                        if (count != entry.getValue().size() + 40) { throw new RuntimeException(); }
+                    }
+                    if (registry.apply("small", s -> s.size()) != 3 || registry.apply("large", s -> s.size()) != 1) {
+                        throw new RuntimeException();
+                    }
+                    registry.close();
+                    expectFailure(() -> registry.apply("small", s -> s.size()));
+                }
+
+                // ファクトリは、空の予定表クラスを作成すること
+                try (var registry = new ScheduleRegistry(directory, 1000, id -> {
+                    var s = new Schedule(10);
+                    s.add(VALID_DATE_TIME, VALID_CONTENT);
+                    return s;
+                })) {
+                    expectFailure(() -> registry.apply("other", s -> s.size()));
+                    if (registry.getResidentCount() != 0) { throw new RuntimeException(); }
+                }
+            }
+            finally {
+                deleteDirectory(directory);
+            }
+        }
+
+        /**
+         * 予定表の検索結果が、期待する予定表と等しいことを確認する。
+         * @param actual 予定表
+         * @param expected 期待する予定表
+         */
+        private void assertSameSchedule(Schedule actual, Schedule expected) {
+            var all = new ArrayList<>(expected.find("000001010000", "999912312359"));
+            if (!new ArrayList<>(actual.find("000001010000", "999912312359")).equals(all)) {
+                throw new RuntimeException();
+            }
+            var part = new ArrayList<>(expected.find("202011220300", "202011230300"));
+            if (!new ArrayList<>(actual.find("202011220300", "202011230300")).equals(part)) {
+                throw new RuntimeException();
+            }
+            var descending = new ArrayList<Plan>();
+            actual.cursor("000001010000", "999912312359", Schedule.Order.DESCENDING).forEachRemaining(descending::add);
+            Collections.reverse(descending);
+            if (!descending.equals(all)) {
+                throw new RuntimeException();
+            }
+            var paged = new ArrayList<Plan>();
+            Plan after = null;
+            PlanPage page;
+            do {
+                page = actual.findPage("000001010000", "999912312359", after, 7, Schedule.Order.ASCENDING);
+                paged.addAll(page.getPlans());
+                after = page.getContinuation();
+            } while (page.hasNext());
+            if (!paged.equals(all)) {
+                throw new RuntimeException();
+            }
+        }
+
+        /**
+         * ディレクトリのセグメントファイルの名前を取得する。
+         * @param directory ディレクトリ
+         * @return セグメントファイルの名前
+         */
+        private TreeSet<String> segmentNames(Path directory) throws IOException {
+            var names = new TreeSet<String>();
+            try (var files = Files.newDirectoryStream(directory, "segment-*.seg")) {
+                for (var file : files) {
+                    names.add(file.getFileName().toString());
+                }
+            }
+            return names;
+        }
+
+        /**
+         * ディレクトリを、含まれるファイルと共に削除する。
+         * @param directory ディレクトリ
+         */
+        void deleteDirectory(Path directory) throws IOException {
+            try (var files = Files.walk(directory)) {
+                var paths = new ArrayList<Path>();
+                files.forEach(paths::add);
+                Collections.reverse(paths);
+                for (var path : paths) {
+                    Files.delete(path);
+                }
+            }
+        }
+    }
+    private class Benchmark {
+        private static final int PLAN_COUNT = 1_000_000;
+        private static final int ROUND = 5;
+
+        public void Plan_parse() {
+            // 有効な日時をあらかじめ作成しておき、解析のみを計測する。
+            var dates = new String[PLAN_COUNT];
+            for (int i = 0; i < PLAN_COUNT; i++) {
+                long minutes = DateTimeParser.daysFromYear0(i % 10000, 1, 1) * DateTimeParser.MINUTES_PER_DAY + i % (365 * 24 * 60);
+                var dateTime = DateTimeParser.toLocalDateTime(minutes);
+                dates[i] = String.format("%04d%02d%02d%02d%02d", dateTime.getYear(), dateTime.getMonthValue(),
+                        dateTime.getDayOfMonth(), dateTime.getHour(), dateTime.getMinute());
+            }
+
+            // 最初の周回はウォームアップとして扱う。
+            for (int round = 0; round < ROUND; round++) {
+                long check = 0;
+                long start1 = System.nanoTime();
+                for (var date : dates) {
+                    var dtf = DateTimeFormatter.ofPattern("uuuuMMddHHmm").withResolverStyle(ResolverStyle.STRICT);
+                    check += LocalDateTime.parse(date, dtf).getMinute();
+                }
+                long end1 = System.nanoTime();
+
+                long start2 = System.nanoTime();
+                for (var date : dates) {
+                    check -= DateTimeParser.parse(date).getMinute();
+                }
+                long end2 = System.nanoTime();
+
+                long start3 = System.nanoTime();
+                for (var date : dates) {
+                    check += DateTimeParser.parseMinutes(date) % 60;
+                }
+                long end3 = System.nanoTime();
+
+                System.out.println("[Round " + round + "] DateTimeFormatter(ns/op): " + (end1 - start1) / PLAN_COUNT
+                        + " DateTimeParser.parse(ns/op): " + (end2 - start2) / PLAN_COUNT
+                        + " DateTimeParser.parseMinutes(ns/op): " + (end3 - start3) / PLAN_COUNT
+                        + " (check: " + check + ")");
+            }
+        }
+
+        public void Schedule_storage() {
+            // 格納方式毎に、全ての日時に予定を 2件登録し、1件あたりのヒープ使用量を比較する。
+            for (var storage : Schedule.Storage.values()) {
+                long before = usedMemory();
+                var schedule = new Schedule(Long.MAX_VALUE, storage);
+                long count = load(schedule);
+                long after = usedMemory();
+
+                System.out.println("[" + storage + "] Plans(num): " + count
+                        + " Heap(bytes): " + (after - before)
+                        + " bytes per plan: " + (after - before) / count);
+                // 計測が終わるまで、予定表を回収させない。
+                if (schedule.find("000001010000", "000001010001").isEmpty()) {
+                    throw new RuntimeException();
+                }
+                schedule = null;
+            }
+        }
+
+        public void Schedule_concurrent() throws InterruptedException {
+            // 読み出しスレッドが多く、書き込みスレッドが少ない場合のスループットを比較する。
+            final int readers = Math.max(Runtime.getRuntime().availableProcessors() - 1, 2);
+            final int writers = 1;
+            final long duration = 3_000_000_000L;
+            final long base = DateTimeParser.parseMinutes(AutoTest.VALID_DATE_TIME);
+            final int range = 1_000_000;
+
+            for (var storage : new Schedule.Storage[] { Schedule.Storage.SYNCHRONIZED, Schedule.Storage.CONCURRENT }) {
+                var schedule = new Schedule(Long.MAX_VALUE, storage);
+                for (int i = 0; i < range; i += 10) {
+                    schedule.add(DateTimeParser.format(base + i), AutoTest.VALID_CONTENT);
+                }
+
+                var isRunning = new AtomicBoolean(true);
+                var reads = new LongAdder();
+                var writes = new LongAdder();
+                var workers = new Thread[readers + writers];
+                for (int i = 0; i < workers.length; i++) {
+                    final boolean isWriter = i < writers;
+                    final long seed = i;
+                    workers[i] = new Thread(() -> {
+                        var random = new Random(seed);
+                        while (isRunning.get()) {
+                            long minutes = base + random.nextInt(range);
+                            var date = DateTimeParser.format(minutes);
+                            if (isWriter) {
+                                try {
+                                    schedule.add(date, AutoTest.VALID_CONTENT2);
+                                }
+                                catch (IllegalStateException ise) {
+                                    schedule.remove(date, AutoTest.VALID_CONTENT2);
+                                }
+                                writes.increment();
+                            }
+                            else {
+                                // 約1日分の予定を検索し、結果を全て読み出す。
+                                int found = 0;
+                                for (var plan : schedule.find(date, DateTimeParser.format(minutes + 1440))) {
+                                    found += plan.getContent().length();
+                                }
+                                if (found < 0) {
+                                    throw new RuntimeException();
+                                }
+                                reads.increment();
+                            }
+                        }
+                    });
+                }
+                for (var worker : workers) {
+                    worker.start();
+                }
+                Thread.sleep(duration / 1_000_000);
+                isRunning.set(false);
+                for (var worker : workers) {
+                    worker.join();
+                }
+
+                System.out.println("[" + storage + "] readers: " + readers + " writers: " + writers
+                        + " find(ops/s): " + reads.sum() * 1_000_000_000L / duration
+                        + " add/remove(ops/s): " + writes.sum() * 1_000_000_000L / duration);
+            }
+        }
+
+        public void Schedule_sharded() throws InterruptedException {
+            // 約5000年間の検索と件数の時間を、格納方式毎に比較する。
+            for (var storage : new Schedule.Storage[] { Schedule.Storage.TREE, Schedule.Storage.CONCURRENT, Schedule.Storage.SHARDED }) {
+                var schedule = new Schedule(Long.MAX_VALUE, storage);
+                long count = load(schedule);
+                for (int round = 0; round < 3; round++) {
+                    long start = System.nanoTime();
+                    int found = schedule.find("250001010000", "750012312359").size();
+                    long end1 = System.nanoTime();
+                    long counted = schedule.count("250001010000", "750012312359");
+                    long end2 = System.nanoTime();
+                    System.out.println("[Round " + round + "][" + storage + "] Plans(num): " + count
+                            + " Found Plans(num): " + found
+                            + " find(ms): " + (end1 - start) / 1_000_000
+                            + " count(ms): " + (end2 - end1) / 1_000_000
+                            + " (counted: " + counted + ")");
+                }
+                schedule = null;
+            }
+
+            // 書き込みスレッド毎に異なる年へ登録、削除し、スループットを比較する。
+            final int writers = Math.max(Runtime.getRuntime().availableProcessors(), 4);
+            final long duration = 3_000_000_000L;
+            for (var storage : new Schedule.Storage[] { Schedule.Storage.SYNCHRONIZED, Schedule.Storage.CONCURRENT, Schedule.Storage.SHARDED }) {
+                var schedule = new Schedule(Long.MAX_VALUE, storage);
+                var isRunning = new AtomicBoolean(true);
+                var writes = new LongAdder();
+                var workers = new Thread[writers];
+                for (int i = 0; i < workers.length; i++) {
+                    final long base = DateTimeParser.parseMinutes(String.format("%04d01010000", 2000 + i * 10));
+                    workers[i] = new Thread(() -> {
+                        var random = new Random(base);
+                        while (isRunning.get()) {
+                            var date = DateTimeParser.format(base + random.nextInt(500_000));
+                            try {
+                                schedule.add(date, AutoTest.VALID_CONTENT);
+                            }
+                            catch (IllegalStateException ise) {
+                                schedule.remove(date, AutoTest.VALID_CONTENT);
+                            }
+                            writes.increment();
+                        }
+                    });
+                }
+                for (var worker : workers) {
+                    worker.start();
+                }
+                Thread.sleep(duration / 1_000_000);
+                isRunning.set(false);
+                for (var worker : workers) {
+                    worker.join();
+                }
+                System.out.println("[" + storage + "] writers: " + writers
+                        + " add/remove(ops/s): " + writes.sum() * 1_000_000_000L / duration);
+            }
+        }
+
+        public void Schedule_offHeap(long size) {
+            // 全て異なる用件の予定を登録し、ヒープとヒープ外の使用量、全体GCの時間、検索して用件を取得する時間を比較する。
+            long base = DateTimeParser.parseMinutes("190001010000");
+            for (var storage : new Schedule.Storage[] { Schedule.Storage.PACKED, Schedule.Storage.OFF_HEAP }) {
+                long before = usedMemory();
+                long directBefore = directMemory();
+                var schedule = new Schedule(Long.MAX_VALUE, storage);
+                var plans = new ArrayList<Plan>();
+                for (long number = 0; number < size; number++) {
+                    plans.add(new Plan(DateTimeParser.toLocalDateTime(base + number), AutoTest.VALID_CONTENT + number));
+                    if (plans.size() == 100_000 || number == size - 1) {
+                        schedule.addAll(plans);
+                        plans.clear();
+                    }
+                }
+                long after = usedMemory();
+                long direct = directMemory() - directBefore;
+
+                // 全体GCの時間
+                long gcTime = 0;
+                for (int round = 0; round < 3; round++) {
+                    long collection = collectionTime();
+                    System.gc();
+                    gcTime += collectionTime() - collection;
+                }
+                System.out.println("[" + storage + "] Plans(num): " + size
+                        + " Heap(bytes): " + (after - before) + " Off-heap(bytes): " + direct
+                        + " full GC(ms/op): " + gcTime / 3);
+
+                var random = new Random(1);
+                for (int round = 0; round < 3; round++) {
+                    long length = 0;
+                    long start = System.nanoTime();
+                    for (int i = 0; i < 10_000; i++) {
+                        long minutes = base + (long)(random.nextDouble() * size);
+                        for (var plan : schedule.find(DateTimeParser.format(minutes), DateTimeParser.format(minutes + 1440))) {
+                            length += plan.getContent().length();
+                        }
+                    }
+                    long end = System.nanoTime();
+                    System.out.println("[Round " + round + "][" + storage + "] find 1 day and getContent(us/op): " + (end - start) / 10_000 / 1000
+                            + " (check: " + length + ")");
+                }
+                schedule = null;
+            }
+        }
+
+        public void Schedule_subscribe() throws InterruptedException {
+            // 購読がない場合、1週間の範囲の購読が1万件ある場合、全ての範囲の遅い購読者がいる場合で、
+            // 複数のスレッドから登録、削除するスループットと、配信した変更の件数を比較する。
+            final int writers = Math.max(Runtime.getRuntime().availableProcessors() / 2, 2);
+            final long duration = 2_000_000_000L;
+            final long base = DateTimeParser.parseMinutes(AutoTest.VALID_DATE_TIME);
+            final int range = 1_000_000;
+
+            for (var kind : new String[] { "none", "10000 weekly", "slow" }) {
+                var schedule = new Schedule(Long.MAX_VALUE, Schedule.Storage.CONCURRENT);
+                var delivered = new LongAdder();
+                var subscriptions = new ArrayList<PlanSubscription>();
+                if (kind.equals("10000 weekly")) {
+                    var random = new Random(20);
+                    for (int i = 0; i < 10000; i++) {
+                        long from = base + random.nextInt(range);
+                        subscriptions.add(schedule.subscribe(DateTimeParser.format(from), DateTimeParser.format(from + 7 * 1440),
+                                changes -> delivered.add(changes.size())));
+                    }
+                }
+                else if (kind.equals("slow")) {
+                    subscriptions.add(schedule.subscribe("000001010000", "999912312359", changes -> {
+                        delivered.add(changes.size());
+                        try {
+                            Thread.sleep(10);
+                        }
+                        catch (InterruptedException ie) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }));
+                }
+
+                var isRunning = new AtomicBoolean(true);
+                var writes = new LongAdder();
+                var workers = new Thread[writers];
+                for (int i = 0; i < workers.length; i++) {
+                    final long seed = i;
+                    workers[i] = new Thread(() -> {
+                        var random = new Random(seed);
+                        while (isRunning.get()) {
+                            var date = DateTimeParser.format(base + random.nextInt(range));
+                            try {
+                                schedule.add(date, AutoTest.VALID_CONTENT);
+                            }
+                            catch (IllegalStateException ise) {
+                                schedule.remove(date, AutoTest.VALID_CONTENT);
+                            }
+                            writes.increment();
+                        }
+                    });
+                }
+                for (var worker : workers) {
+                    worker.start();
+                }
+                Thread.sleep(duration / 1_000_000);
+                isRunning.set(false);
+                for (var worker : workers) {
+                    worker.join();
+                }
+                long overflows = 0;
+                for (var subscription : subscriptions) {
+                    overflows += subscription.getOverflowCount();
+                    subscription.close();
+                }
+
+                System.out.println("[" + kind + "] writers: " + writers
+                        + " add/remove(ops/s): " + writes.sum() * 1_000_000_000L / duration
+                        + " delivered(changes): " + delivered.sum()
+                        + " overflows(num): " + overflows);
+            }
+        }
+
+        public void Schedule_search(int size) {
+            // 用件の索引の有無で、1年間の範囲から検索語を含む予定を検索する時間と、索引のヒープ使用量を比較する。
+            // 予定は約2年間に分散し、検索語は、まれな語(0.1%)、よくある語(10%)、1文字とする。
+            var words = new String[] { "定例会議", "打ち合わせ", "週次報告", "歯医者", "買い物", "ランチ", "出張準備", "資料作成", "面談", "勉強会" };
+            long base = DateTimeParser.parseMinutes("202001010000");
+            for (var options : new Schedule.Option[][] { {}, { Schedule.Option.CONTENT_INDEX } }) {
+                long before = usedMemory();
+                var schedule = new Schedule(Long.MAX_VALUE, Schedule.Storage.PACKED, options);
+                var random = new Random(21);
+                var plans = new ArrayList<Plan>(size);
+                for (int number = 0; number < size; number++) {
+                    var content = (number % 1000 == 0 ? "東京駅で" : "") + words[random.nextInt(words.length)] + " #" + number % 5000;
+                    plans.add(new Plan(DateTimeParser.toLocalDateTime(base + (long)number * 1051200 / size), content));
+                }
+                long start0 = System.nanoTime();
+                schedule.addAll(plans);
+                long end0 = System.nanoTime();
+                plans = null;
+                long after = usedMemory();
+
+                for (int round = 0; round < 3; round++) {
+                    var line = new StringBuilder("[Round " + round + "][" + (options.length == 0 ? "scan" : "CONTENT_INDEX") + "]");
+                    for (var keyword : new String[] { "東京駅", "歯医者", "会" }) {
+                        int found = 0;
+                        long start = System.nanoTime();
+                        for (int i = 0; i < 10; i++) {
+                            found = schedule.search("202006010000", "202106010000", keyword).size();
+                        }
+                        long end = System.nanoTime();
+                        line.append(" " + keyword + "(us/op): " + (end - start) / 10_000 + " (" + found + ")");
+                    }
+                    System.out.println(line + " addAll(ms): " + (end0 - start0) / 1_000_000 + " Heap(bytes): " + (after - before));
+                }
+                schedule = null;
+            }
+        }
+
+        public void Schedule_overlaps(int size) {
+            // 平均1時間に1件、10分から60分の予定(1%は3日までの予定)で、90分の範囲と重なる予定の検索と、1週間の60分以上の最初の空き時間の検索を交互に行い、
+            // 全ての予定を検索して確認するアプリケーションのコード、所要時間の索引のない予定表、索引のある予定表のスループットを比較する。
+            long base = DateTimeParser.parseMinutes("200001010000");
+            long span = size * 60L;
+            var random = new Random(25);
+            var plans = new ArrayList<Plan>(size);
+            for (int number = 0; number < size; number++) {
+                int duration = random.nextInt(100) == 0 ? random.nextInt(60 * 24 * 3) : 10 + random.nextInt(51);
+                plans.add(new Plan(DateTimeParser.toLocalDateTime(base + (long)number * span / size), AutoTest.VALID_CONTENT, duration));
+            }
+            for (var mode : new String[] { "scan", "TREE", "TREE INTERVAL_INDEX" }) {
+                var schedule = mode.endsWith("INTERVAL_INDEX") ? new Schedule(Long.MAX_VALUE, Schedule.Storage.TREE, Schedule.Option.INTERVAL_INDEX)
+                        : new Schedule(Long.MAX_VALUE, Schedule.Storage.TREE);
+                schedule.addAll(plans);
+                final int operations = mode.equals("scan") ? 20 : mode.equals("TREE") ? 2_000 : 100_000;
+                for (int round = 0; round < 3; round++) {
+                    var queries = new Random(round);
+                    long found = 0;
+                    long start = System.nanoTime();
+                    for (int i = 0; i < operations; i++) {
+                        long from = base + (long)(queries.nextDouble() * (span - 60 * 24 * 7));
+                        long to = i % 2 == 0 ? from + 90 : from + 60 * 24 * 7;
+                        if (mode.equals("scan")) {
+                            // 全ての予定を辿り、重なる予定、空き時間をアプリケーションで求める。
+                            long free = from;
+                            LocalDateTime slot = null;
+                            for (var plan : schedule.find("000001010000", "999912312359")) {
+                                long begin = DateTimeParser.toMinutes(plan.getDateTime());
+                                long end = begin + plan.getDuration();
+                                if (i % 2 == 0 && begin < to && end > from) {
+                                    found++;
+                                }
+                                if (i % 2 == 1 && slot == null && end > from && begin < to) {
+                                    if (begin - free >= 60) {
+                                        slot = DateTimeParser.toLocalDateTime(free);
+                                    }
+                                    free = Math.max(free, end);
+                                }
+                            }
+                            found += slot != null ? 1 : 0;
+                        }
+                        else if (i % 2 == 0) {
+                            found += schedule.overlaps(DateTimeParser.format(from), DateTimeParser.format(to)).size();
+                        }
+                        else {
+                            found += schedule.nextFreeSlot(DateTimeParser.format(from), DateTimeParser.format(to), 60) != null ? 1 : 0;
+                        }
+                    }
+                    long end = System.nanoTime();
+                    System.out.println("[Round " + round + "][" + mode + "] Plans(num): " + size + " overlaps/nextFreeSlot(ops/s): "
+                            + operations * 1_000_000_000L / (end - start) + " (check: " + found + ")");
+                }
+            }
+        }
+
+        public void Schedule_queryCache(int size) {
+            // 今日、今週、今月の範囲を3万回検索する間に、1000回に1回、約2年間のいずれかの日時へ登録する場合の、
+            // findとcountのスループットを、キャッシュの有無で比較する。
+            long base = DateTimeParser.parseMinutes("202001010000");
+            var windows = new String[][] { { "202011220000", "202011230000" }, { "202011160000", "202011230000" }, { "202011010000", "202012010000" } };
+            final int operations = 30_000;
+            for (var storage : new Schedule.Storage[] { Schedule.Storage.TREE, Schedule.Storage.PACKED }) {
+                for (var options : new Schedule.Option[][] { {}, { Schedule.Option.QUERY_CACHE } }) {
+                    var schedule = new Schedule(Long.MAX_VALUE, storage, options);
+                    var plans = new ArrayList<Plan>(size);
+                    for (int number = 0; number < size; number++) {
+                        plans.add(new Plan(DateTimeParser.toLocalDateTime(base + (long)number * 1051200 / size), AutoTest.VALID_CONTENT));
+                    }
+                    schedule.addAll(plans);
+                    for (int round = 0; round < 3; round++) {
+                        var random = new Random(round);
+                        long found = 0;
+                        long start = System.nanoTime();
+                        for (int i = 0; i < operations; i++) {
+                            if (i % 1000 == 999) {
+                                var date = DateTimeParser.format(base + random.nextInt(1051200));
+                                try {
+                                    schedule.add(date, AutoTest.VALID_CONTENT2);
+                                }
+                                catch (IllegalStateException ise) {
+                                    schedule.remove(date, AutoTest.VALID_CONTENT2);
+                                }
+                            }
+                            var window = windows[i % windows.length];
+                            if (i % 2 == 0) {
+                                found += schedule.find(window[0], window[1]).size();
+                            }
+                            else {
+                                found += schedule.count(window[0], window[1]);
+                            }
+                        }
+                        long end = System.nanoTime();
+                        var cache = options.length == 0 ? "" : " hit rate: " + String.format("%.4f", schedule.queryCache().getHitRate())
+                                + " invalidations: " + schedule.queryCache().getInvalidationCount();
+                        System.out.println("[Round " + round + "][" + storage + (options.length == 0 ? "" : " QUERY_CACHE") + "] find/count(ops/s): "
+                                + operations * 1_000_000_000L / (end - start) + cache + " (check: " + found + ")");
+                    }
+                }
+            }
+        }
+
+        public void Schedule_evict(int size) {
+            // 期限切れの予定の半分を、範囲で一括して追い出す時間と、1件ずつ削除する時間を比較する。
+            // 最大登録件数に達した予定表へ、最も古い予定を追い出しながら登録するスループットを計測する。
+            long base = DateTimeParser.parseMinutes("200001010000");
+            var now = DateTimeParser.toLocalDateTime(base + size / 2).plusDays(1);
+            var clock = Clock.fixed(now.toInstant(ZoneOffset.UTC), ZoneOffset.UTC);
+            for (var storage : new Schedule.Storage[] { Schedule.Storage.TREE, Schedule.Storage.PACKED, Schedule.Storage.SHARDED }) {
+                for (int round = 0; round < 3; round++) {
+                    var bulk = new Schedule(Long.MAX_VALUE, storage);
+                    var single = new Schedule(Long.MAX_VALUE, storage);
+                    var plans = new ArrayList<Plan>(size);
+                    for (int number = 0; number < size; number++) {
+                        plans.add(new Plan(DateTimeParser.toLocalDateTime(base + number), AutoTest.VALID_CONTENT));
+                    }
+                    bulk.addAll(plans);
+                    single.addAll(plans);
+
+                    bulk.setEvictionPolicy(EvictionPolicy.expireAfter(Duration.ofDays(1)).withClock(clock));
+                    long start1 = System.nanoTime();
+                    long expired = bulk.expire();
+                    long end1 = System.nanoTime();
+
+                    long start2 = System.nanoTime();
+                    for (int number = 0; number < size / 2; number++) {
+                        single.remove(DateTimeParser.format(base + number), AutoTest.VALID_CONTENT);
+                    }
+                    long end2 = System.nanoTime();
+
+                    var full = new Schedule(size, storage);
+                    full.addAll(plans);
+                    full.setEvictionPolicy(EvictionPolicy.oldest());
+                    long start3 = System.nanoTime();
+                    for (int number = 0; number < size / 2; number++) {
+                        full.add(DateTimeParser.format(base + size + number), AutoTest.VALID_CONTENT);
+                    }
+                    long end3 = System.nanoTime();
+
+                    System.out.println("[Round " + round + "][" + storage + "] Expired Plans(num): " + expired
+                            + " expire(ms): " + (end1 - start1) / 1_000_000
+                            + " remove one by one(ms): " + (end2 - start2) / 1_000_000
+                            + " add with eviction(ops/s): " + (size / 2) * 1_000_000_000L / (end3 - start3));
+                }
+            }
+        }
+
+        /**
+         * ヒープ外に確保した、ダイレクトバッファの使用量を取得する。
+         * @return ダイレクトバッファの使用量(バイト)
+         */
+        private long directMemory() {
+            for (var pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+                if (pool.getName().equals("direct")) {
+                    return pool.getMemoryUsed();
+                }
+            }
+            return 0;
+        }
+
+        /**
+         * 全てのGCの、累積の実行時間を取得する。
+         * @return GCの実行時間(ミリ秒)
+         */
+        private long collectionTime() {
+            long time = 0;
+            for (var collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+                time += Math.max(collector.getCollectionTime(), 0);
+            }
+            return time;
+        }
+
+        public void Schedule_recurring() {
+            // 20件の毎週の予定を1000年間、全ての回を登録した場合と、繰り返しの予定で登録した場合を比較する。
+            var rules = new ArrayList<RecurringPlan>();
+            for (int i = 0; i < 20; i++) {
+                rules.add(new RecurringPlan(String.format("20000103%02d00", i), RecurringPlan.Frequency.WEEKLY, "300001010000", "定例" + i));
+            }
+            for (boolean isRecurring : new boolean[] { false, true }) {
+                long before = usedMemory();
+                long start = System.nanoTime();
+                var schedule = new Schedule(Long.MAX_VALUE);
+                for (var rule : rules) {
+                    if (isRecurring) {
+                        schedule.addRecurring(rule);
+                        continue;
+                    }
+                    var plans = new ArrayList<Plan>();
+                    for (var dateTime = rule.getFirstDateTime(); dateTime.isBefore(rule.getUntilDateTime()); dateTime = dateTime.plusWeeks(1)) {
+                        plans.add(new Plan(dateTime, rule.getContent()));
+                    }
+                    schedule.addAll(plans);
+                }
+                long end = System.nanoTime();
+                long after = usedMemory();
+                long total = schedule.count("000001010000", "999912312359");
+                System.out.println("[recurring: " + isRecurring + "] Plans(num): " + total
+                        + " Heap(bytes): " + (after - before)
+                        + " add(ms): " + (end - start) / 1_000_000);
+
+                var random = new Random(1);
+                long base = DateTimeParser.parseMinutes("200001010000");
+                for (int round = 0; round < 3; round++) {
+                    long found = 0;
+                    start = System.nanoTime();
+                    for (int i = 0; i < 10_000; i++) {
+                        long minutes = base + (long)(random.nextDouble() * 999 * 365 * 1440);
+                        found += schedule.find(DateTimeParser.format(minutes), DateTimeParser.format(minutes + 30 * 1440)).size();
+                    }
+                    end = System.nanoTime();
+                    System.out.println("[Round " + round + "][recurring: " + isRecurring + "] find 30 days(us/op): " + (end - start) / 10_000 / 1000
+                            + " Found Plans(avg): " + found / 10_000);
+                }
+                schedule = null;
+            }
+        }
+
+        public void Schedule_addAll() {
+            // 全ての日時の1/10000の予定を、1件ずつ登録した場合と、一括して登録した場合を比較する。
+            var plans = new ArrayList<Plan>();
+            for (int year = 0; year < 10000; year += 100) {
+                for (int month = 1; month < 13; month++) {
+                    for (int day = 1; day <= DateTimeParser.lengthOfMonth(year, month); day++) {
+                        for (int time = 0; time < 24 * 60; time += 100) {
+                            var date = String.format("%04d%02d%02d%02d%02d", year, month, day, time/60, time%60);
+                            plans.add(new Plan(date, AutoTest.VALID_CONTENT));
+                            plans.add(new Plan(date, AutoTest.VALID_CONTENT2));
+                        }
+                    }
+                }
+            }
+            var dates = new String[plans.size()];
+            for (int i = 0; i < dates.length; i++) {
+                dates[i] = DateTimeParser.format(DateTimeParser.toMinutes(plans.get(i).getDateTime()));
+            }
+            // 登録済みの予定表への一括登録は、半分の予定を登録した予定表に、残りの半分を登録する。
+            var firstHalf = new ArrayList<Plan>();
+            var secondHalf = new ArrayList<Plan>();
+            for (int i = 0; i < plans.size(); i++) {
+                (i % 2 == 0 ? firstHalf : secondHalf).add(plans.get(i));
+            }
+
+            for (int round = 0; round < 3; round++) {
+                for (var storage : Schedule.Storage.values()) {
+                    var schedule1 = new Schedule(Long.MAX_VALUE, storage);
+                    long start1 = System.nanoTime();
+                    for (int i = 0; i < dates.length; i++) {
+                        schedule1.add(dates[i], plans.get(i).getContent());
+                    }
+                    long end1 = System.nanoTime();
+                    schedule1 = null;
+
+                    var schedule2 = new Schedule(Long.MAX_VALUE, storage);
+                    long start2 = System.nanoTime();
+                    schedule2.addAll(plans);
+                    long end2 = System.nanoTime();
+                    schedule2 = null;
+
+                    var schedule3 = new Schedule(Long.MAX_VALUE, storage);
+                    schedule3.addAll(firstHalf);
+                    long start3 = System.nanoTime();
+                    schedule3.addAll(secondHalf);
+                    long end3 = System.nanoTime();
+                    schedule3 = null;
+
+                    System.out.println("[Round " + round + "][" + storage + "] Plans(num): " + plans.size()
+                            + " add(ms): " + (end1 - start1) / 1_000_000
+                            + " addAll(ms): " + (end2 - start2) / 1_000_000
+                            + " addAll to half(ms): " + (end3 - start3) / 1_000_000);
+                }
+            }
+        }
+
+        public void DurableSchedule_journal(long size) throws IOException, InterruptedException {
+            var test = new AutoTest();
+            long base = DateTimeParser.parseMinutes(AutoTest.VALID_DATE_TIME);
+
+            // 同期方式毎の、登録の時間
+            for (var syncMode : DurableSchedule.SyncMode.values()) {
+                final int threads = syncMode == DurableSchedule.SyncMode.GROUP ? 8 : 1;
+                final int operations = syncMode == DurableSchedule.SyncMode.PERIODIC ? 100_000 : 2_000;
+                var directory = Files.createTempDirectory("schedule");
+                try (var schedule = new DurableSchedule(directory, Long.MAX_VALUE, Schedule.Storage.CONCURRENT, syncMode)) {
+                    var latency = new LongAdder();
+                    long start = System.nanoTime();
+                    test.runConcurrently(threads, thread -> {
+                        for (int number = thread; number < operations; number += threads) {
+                            long begin = System.nanoTime();
+                            schedule.add(DateTimeParser.format(base + number), AutoTest.VALID_CONTENT);
+                            latency.add(System.nanoTime() - begin);
+                        }
+                    });
+                    long end = System.nanoTime();
+                    System.out.println("[" + syncMode + "] threads: " + threads + " Plans(num): " + operations
+                            + " add(ops/s): " + operations * 1_000_000_000L / (end - start)
+                            + " latency(us/op): " + latency.sum() / operations / 1000);
+                }
+                finally {
+                    test.deleteDirectory(directory);
+                }
+            }
+
+            // スナップショットからの復元と、ジャーナルの再生の時間
+            var directory = Files.createTempDirectory("schedule");
+            try {
+                long replayed = Math.min(size, DurableSchedule.CHECKPOINT_RECORDS - 1);
+                try (var schedule = new DurableSchedule(directory, Long.MAX_VALUE, Schedule.Storage.PACKED, DurableSchedule.SyncMode.PERIODIC)) {
+                    var plans = new ArrayList<Plan>(ScheduleSnapshot.CHUNK_SIZE);
+                    for (long number = 0; number < size; number++) {
+                        plans.add(new Plan(DateTimeParser.toLocalDateTime(base + number / 2), AutoTest.VALID_CONTENT + number % 2));
+                        if (plans.size() == ScheduleSnapshot.CHUNK_SIZE) {
+                            schedule.addAll(plans);
+                            plans.clear();
+                        }
+                    }
+                    schedule.addAll(plans);
+                    long start = System.nanoTime();
+                    schedule.checkpoint();
+                    long end = System.nanoTime();
+                    System.out.println("[Snapshot] Plans(num): " + size + " write(ms): " + (end - start) / 1_000_000);
+
+                    for (long number = 0; number < replayed; number++) {
+                        schedule.add(DateTimeParser.format(base - 1 - number), AutoTest.VALID_CONTENT);
+                    }
+                }
+
+                long start = System.nanoTime();
+                try (var schedule = new DurableSchedule(directory, Long.MAX_VALUE, Schedule.Storage.PACKED, DurableSchedule.SyncMode.PERIODIC)) {
+                    long end = System.nanoTime();
+                    System.out.println("[Recovery] Snapshot Plans(num): " + size + " Journal Plans(num): " + replayed
+                            + " recovery(ms): " + (end - start) / 1_000_000);
+                    if (schedule.size() != size + replayed) {
+                        throw new RuntimeException();
+                    }
+                }
+            }
+            finally {
+                test.deleteDirectory(directory);
+            }
+        }
+
+        public void Schedule_count() {
+            // 全ての日時の1/10000に予定を登録し、範囲の件数と1日毎の集計の時間を、格納方式と順位の索引の有無で比較する。
+            var names = new ArrayList<String>();
+            var schedules = new ArrayList<Schedule>();
+            for (var storage : new Schedule.Storage[] { Schedule.Storage.TREE, Schedule.Storage.PACKED }) {
+                names.add(storage.toString());
+                schedules.add(new Schedule(Long.MAX_VALUE, storage));
+                names.add(storage + "+COUNT_INDEX");
+                schedules.add(new Schedule(Long.MAX_VALUE, storage, Schedule.Option.COUNT_INDEX));
+            }
+            for (var schedule : schedules) {
+                load(schedule);
+            }
+
+            for (int round = 0; round < 3; round++) {
+                for (int i = 0; i < schedules.size(); i++) {
+                    var schedule = schedules.get(i);
+                    long check = 0;
+                    long start1 = System.nanoTime();
+                    long start2 = start1;
+                    var random = new Random(round);
+                    for (int op = 0; op < 1000; op++) {
+                        // 約5000年間の件数
+                        int year = random.nextInt(5000);
+                        check += schedule.count(String.format("%04d01010000", year), String.format("%04d01010000", year + 5000));
+                    }
+                    long end1 = System.nanoTime();
+                    start2 = System.nanoTime();
+                    for (int op = 0; op < 1000; op++) {
+                        // 1年間の1日毎の集計
+                        int year = random.nextInt(100) * 100;
+                        check += schedule.histogram(String.format("%04d01010000", year), String.format("%04d01010000", year + 1), Schedule.Granularity.DAY).size();
+                    }
+                    long end2 = System.nanoTime();
+
+                    System.out.println("[Round " + round + "][" + names.get(i) + "]"
+                            + " count 5000 years(us/op): " + (end1 - start1) / 1000 / 1000.0
+                            + " histogram 1 year by day(us/op): " + (end2 - start2) / 1000 / 1000.0
+                            + " (check: " + check + ")");
+                }
+            }
+        }
+
+        public void Schedule_findDay() {
+            // 全ての日時の1/10000に予定を登録し、ランダムな日、月の予定の検索を、暦の索引の有無で比較する。
+            var schedules = new Schedule[] {
+                new Schedule(Long.MAX_VALUE),
+                new Schedule(Long.MAX_VALUE, Schedule.Storage.TREE, Schedule.Option.CALENDAR_INDEX),
+            };
+            for (var schedule : schedules) {
+                load(schedule);
+            }
+
+            final int operations = 100_000;
+            for (int round = 0; round < 3; round++) {
+                for (int i = 0; i < schedules.length; i++) {
+                    var random = new Random(round);
+                    long found = 0;
+                    long start1 = System.nanoTime();
+                    for (int op = 0; op < operations; op++) {
+                        int year = random.nextInt(100) * 100;
+                        int month = random.nextInt(12) + 1;
+                        found += schedules[i].findDay(year, month, random.nextInt(28) + 1).size();
+                    }
+                    long end1 = System.nanoTime();
+                    long start2 = System.nanoTime();
+                    for (int op = 0; op < operations / 100; op++) {
+                        found += schedules[i].findMonth(random.nextInt(100) * 100, random.nextInt(12) + 1).size();
+                    }
+                    long end2 = System.nanoTime();
+
+                    System.out.println("[Round " + round + "][" + (i == 0 ? "TREE" : "CALENDAR_INDEX") + "]"
+                            + " findDay(us/op): " + (end1 - start1) / operations / 1000.0
+                            + " findMonth(us/op): " + (end2 - start2) / (operations / 100) / 1000.0
+                            + " (found: " + found + ")");
+                }
+            }
+        }
+
+        public void Schedule_metrics() {
+            // 予定の登録、検索、削除の時間を、計測の有無で比較する。
+            final int operations = 200_000;
+            for (int round = 0; round < 3; round++) {
+                for (var storage : new Schedule.Storage[] { Schedule.Storage.TREE, Schedule.Storage.PACKED }) {
+                    for (boolean measures : new boolean[] { false, true }) {
+                        var schedule = measures ? new Schedule(Long.MAX_VALUE, storage, Schedule.Option.METRICS)
+                                : new Schedule(Long.MAX_VALUE, storage);
+                        // 重複しない日時を、ランダムな順序で登録する。
+                        var dates = new ArrayList<String>(operations);
+                        for (int i = 0; i < operations; i++) {
+                            dates.add(DateTimeParser.format(i * 26_000L));
+                        }
+                        Collections.shuffle(dates, new Random(round));
+
+                        long start1 = System.nanoTime();
+                        for (var date : dates) {
+                            schedule.add(date, AutoTest.VALID_CONTENT);
+                        }
+                        long end1 = System.nanoTime();
+                        long found = 0;
+                        long start2 = System.nanoTime();
+                        for (var date : dates) {
+                            // 日時から約1か月の範囲を検索する。
+                            found += schedule.find(date, DateTimeParser.format(DateTimeParser.parseMinutes(date) + 30 * 24 * 60)).size();
+                        }
+                        long end2 = System.nanoTime();
+                        long start3 = System.nanoTime();
+                        for (var date : dates) {
+                            schedule.remove(date, AutoTest.VALID_CONTENT);
+                        }
+                        long end3 = System.nanoTime();
+
+                        System.out.println("[Round " + round + "][" + storage + (measures ? "+METRICS" : "") + "]"
+                                + " add(ns/op): " + (end1 - start1) / operations
+                                + " find(ns/op): " + (end2 - start2) / operations
+                                + " remove(ns/op): " + (end3 - start3) / operations
+                                + " (found: " + found + ")");
+                        if (measures && round == 2) {
+                            System.out.print(schedule.metrics().snapshot());
+                        }
+                    }
+                }
+            }
+        }
+
+        public void PlanExporter_export(long size) throws IOException {
+            // 予定毎のprintlnと、形式毎の書き出しで、ファイルへの全件の書き出しの時間を比較する。
+            var schedule = new Schedule(Long.MAX_VALUE, Schedule.Storage.PACKED);
+            var plans = new ArrayList<Plan>();
+            for (long i = 0; i < size; i++) {
+                plans.add(new Plan(DateTimeParser.toLocalDateTime(i * 5000), AutoTest.VALID_CONTENT));
+            }
+            schedule.addAll(plans);
+            plans = null;
+
+            var file = Files.createTempFile("schedule", ".out");
+            try {
+                for (int round = 0; round < 3; round++) {
+                    // 標準出力と同じ、自動フラッシュするPrintStream
+                    long start = System.nanoTime();
+                    try (var print = new PrintStream(Files.newOutputStream(file), true)) {
+                        var cursor = schedule.cursor("000001010000", "999912312359", Schedule.Order.ASCENDING);
+                        while (cursor.hasNext()) {
+                            var plan = cursor.next();
+                            print.println("DateTime: " + plan.getDateTime() + " Content: " + plan.getContent());
+                        }
+                    }
+                    long end = System.nanoTime();
+                    System.out.println("[Round " + round + "][println] Plans(num): " + size
+                            + " elapse time(ms): " + (end - start) / 1_000_000
+                            + " File(bytes): " + Files.size(file));
+
+                    for (var format : PlanExporter.Format.values()) {
+                        start = System.nanoTime();
+                        PlanExporter.export(file, format, StandardCharsets.UTF_8,
+                                schedule.cursor("000001010000", "999912312359", Schedule.Order.ASCENDING));
+                        end = System.nanoTime();
+                        System.out.println("[Round " + round + "][" + format + "] Plans(num): " + size
+                                + " elapse time(ms): " + (end - start) / 1_000_000
+                                + " File(bytes): " + Files.size(file)
+                                + " MB/s: " + Files.size(file) * 1000 / (end - start));
+                    }
+                }
+            }
+            finally {
+                Files.delete(file);
+            }
+        }
+
+        public void PlanArchive_readWrite(long size) throws IOException {
+            // 16種類の用件を繰り返す予定と、全て異なる用件の予定で、バイナリ形式と一括実行のテキスト形式(a [日時] [用件])の、
+            // ファイルの大きさと、書き出し、読み込み(一括登録)の時間を比較する。
+            var file = Files.createTempFile("schedule", ".out");
+            try {
+                for (boolean isUnique : new boolean[] { false, true }) {
+                    var schedule = new Schedule(Long.MAX_VALUE, Schedule.Storage.PACKED);
+                    var plans = new ArrayList<Plan>();
+                    for (long i = 0; i < size; i++) {
+                        var content = isUnique ? AutoTest.VALID_CONTENT + i : AutoTest.VALID_CONTENT + i % 16;
+                        plans.add(new Plan(DateTimeParser.toLocalDateTime(i * 5000), content));
+                    }
+                    schedule.addAll(plans);
+                    plans = null;
+                    var contents = isUnique ? "unique" : "16 contents";
+
+                    for (int round = 0; round < 3; round++) {
+                        long start = System.nanoTime();
+                        try (var writer = new PrintWriter(Files.newBufferedWriter(file, StandardCharsets.UTF_8))) {
+                            var cursor = schedule.cursor(Schedule.Order.ASCENDING);
+                            while (cursor.hasNext()) {
+                                var plan = cursor.next();
+                                writer.append("a ").append(DateTimeParser.format(DateTimeParser.toMinutes(plan.getDateTime())))
+                                        .append(' ').append(plan.getContent()).append('\n');
+                            }
+                        }
+                        long written = System.nanoTime();
+                        long textSize = Files.size(file);
+                        var loaded = new Schedule(Long.MAX_VALUE, Schedule.Storage.PACKED);
+                        try (var reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                            var batch = new BatchExecutor(loaded, BatchExecutor.BATCH_SIZE, new PrintWriter(Writer.nullWriter()), new PrintWriter(Writer.nullWriter()));
+                            batch.execute(reader);
+                        }
+                        long end = System.nanoTime();
+                        System.out.println("[Round " + round + "][text][" + contents + "] Plans(num): " + loaded.size()
+                                + " File(bytes): " + textSize + " write(ms): " + (written - start) / 1_000_000 + " read(ms): " + (end - written) / 1_000_000);
+
+                        start = System.nanoTime();
+                        PlanArchive.write(file, schedule.cursor(Schedule.Order.ASCENDING));
+                        written = System.nanoTime();
+                        loaded = new Schedule(Long.MAX_VALUE, Schedule.Storage.PACKED);
+                        PlanArchive.load(file, loaded);
+                        end = System.nanoTime();
+                        System.out.println("[Round " + round + "][bin][" + contents + "] Plans(num): " + loaded.size()
+                                + " File(bytes): " + Files.size(file) + " write(ms): " + (written - start) / 1_000_000 + " read(ms): " + (end - written) / 1_000_000);
+                    }
+                }
+            }
+            finally {
+                Files.delete(file);
+            }
+        }
+
+        public void ScheduleServer_serve(int requests) throws IOException, InterruptedException {
+            // 接続数とパイプラインの深さ毎に、スループットと応答時間を計測する。
+            for (int round = 0; round < 2; round++) {
+                for (int connections : new int[] { 1, 4, 16 }) {
+                    for (int depth : new int[] { 1, 16 }) {
+                        var schedule = new Schedule(Long.MAX_VALUE, Schedule.Storage.CONCURRENT);
+                        try (var server = new ScheduleServer(schedule, 0)) {
+                            var result = new ScheduleLoadGenerator(server.address(), connections, requests / connections, depth).run();
+                            System.out.println("[Round " + round + "][Connections " + connections + "][Depth " + depth
+                                    + "][virtual: " + server.isVirtual() + "] " + result);
+                        }
+                    }
+                }
+            }
+        }
+
+        public void BatchExecutor_execute(int lines) throws IOException {
+            // 登録のコマンドを、対話的な読み込み、1件ずつの一括実行、まとめて登録する一括実行で比較する。
+            var interactive = new StringBuilder();
+            var script = new StringBuilder();
+            for (int i = 0; i < lines; i++) {
+                var date = DateTimeParser.format(i * 5000L);
+                interactive.append("a\n").append(date).append(' ').append(AutoTest.VALID_CONTENT).append('\n');
+                script.append("a ").append(date).append(' ').append(AutoTest.VALID_CONTENT).append('\n');
+            }
+
+            for (int round = 0; round < 3; round++) {
+                var schedule = new Schedule(Long.MAX_VALUE);
+                var prompt = new PrintStream(OutputStream.nullOutputStream());
+                long start = System.nanoTime();
+                try (var scanner = new Scanner(new StringReader(interactive.toString()))) {
+                    while (scanner.hasNextLine()) {
+                        prompt.println("\nType a control command and return.");
+                        scanner.nextLine();
+                        prompt.println("\nADD Command: Type date time and content of the plan.");
+                        var dateTime = scanner.next();
+                        var content = scanner.next();
+                        scanner.nextLine();
+                        schedule.add(dateTime, content);
+                    }
+                }
+                long end = System.nanoTime();
+                System.out.println("[Round " + round + "][Scanner] Plans(num): " + schedule.size()
+                        + " elapse time(ms): " + (end - start) / 1_000_000
+                        + " throughput(commands/s): " + lines * 1_000_000_000L / (end - start));
+
+                for (int batchSize : new int[] { 1, BatchExecutor.BATCH_SIZE }) {
+                    schedule = new Schedule(Long.MAX_VALUE);
+                    var out = new PrintWriter(OutputStream.nullOutputStream());
+                    var batch = new BatchExecutor(schedule, batchSize, out, out);
+                    start = System.nanoTime();
+                    batch.execute(new StringReader(script.toString()));
+                    end = System.nanoTime();
+                    System.out.println("[Round " + round + "][Batch size " + batchSize + "] Plans(num): " + schedule.size()
+                            + " elapse time(ms): " + (end - start) / 1_000_000
+                            + " throughput(commands/s): " + lines * 1_000_000_000L / (end - start));
+                }
+            }
+        }
+
+        public void Schedule_sharesContent() {
+            // 16種類の用件を繰り返し登録し、用件の共有の有無で、1件あたりのヒープ使用量を比較する。
+            for (var storage : new Schedule.Storage[] { Schedule.Storage.TREE, Schedule.Storage.PACKED }) {
+                for (boolean sharesContent : new boolean[] { false, true }) {
+                    long before = usedMemory();
+                    var schedule = sharesContent ? new Schedule(Long.MAX_VALUE, storage, Schedule.Option.SHARE_CONTENT)
+                            : new Schedule(Long.MAX_VALUE, storage);
+                    long start = System.nanoTime();
+                    long count = loadRepeated(schedule);
+                    long end = System.nanoTime();
+                    long after = usedMemory();
+
+                    System.out.println("[" + storage + "][sharesContent: " + sharesContent + "] Plans(num): " + count
+                            + " Heap(bytes): " + (after - before)
+                            + " bytes per plan: " + (after - before) / count
+                            + " add(ms): " + (end - start) / 1_000_000);
+                    // 計測が終わるまで、予定表を回収させない。
+                    if (schedule.find("000001010000", "000001010001").isEmpty()) {
+                        throw new RuntimeException();
+                    }
+                    schedule = null;
+                }
+            }
+        }
+
+        /**
+         * 全ての日時の1/10000に、16種類の用件を繰り返して予定を 2件登録する。
+         * 用件は、入力から読み込んだ場合と同じく、予定毎に別の文字列とする。
+         * @param schedule 予定表
+         * @return 登録した予定の件数
+         */
+        private long loadRepeated(Schedule schedule) {
+            long count = 0;
+            for (int year = 0; year < 10000; year += 100) {
+                for (int month = 1; month < 13; month++) {
+                    for (int day = 1; day <= DateTimeParser.lengthOfMonth(year, month); day++) {
+                        for (int time = 0; time < 24 * 60; time += 100) {
+                            var date = String.format("%04d%02d%02d%02d%02d", year, month, day, time/60, time%60);
+                            schedule.add(date, "定例会議" + (count % 16));
+                            schedule.add(date, "進捗確認" + (count % 16));
+                            count += 2;
+                        }
+                    }
+                }
+            }
+            return count;
+        }
+
+        public void TieredSchedule_segments(long size) throws IOException {
+            // メモリの上限を一定にして登録し、ヒープの使用量と検索の時間を計測する。
+            var test = new AutoTest();
+            long base = DateTimeParser.parseMinutes("190001010000");
+            var directory = Files.createTempDirectory("schedule");
+            try (var schedule = new TieredSchedule(directory, Long.MAX_VALUE, Schedule.Storage.PACKED, 1_000_000)) {
+                long before = usedMemory();
+                long start = System.nanoTime();
+                for (long number = 0; number < size; number++) {
+                    schedule.add(DateTimeParser.format(base + number), AutoTest.VALID_CONTENT);
+                }
+                long end = System.nanoTime();
+                long after = usedMemory();
+                System.out.println("[Load] Plans(num): " + size + " Segments(num): " + schedule.segmentCount()
+                        + " add(ops/s): " + size * 1_000_000_000L / (end - start)
+                        + " Heap(bytes): " + (after - before));
+
+                // 古い予定の1日分を検索する。
+                var random = new Random(1);
+                for (int round = 0; round < 3; round++) {
+                    long found = 0;
+                    start = System.nanoTime();
+                    for (int i = 0; i < 10_000; i++) {
+                        long minutes = base + (long)(random.nextDouble() * size);
+                        found += schedule.find(DateTimeParser.format(minutes), DateTimeParser.format(minutes + 1440)).size();
+                    }
+                    end = System.nanoTime();
+                    System.out.println("[Round " + round + "] find 1 day(us/op): " + (end - start) / 10_000 / 1000
+                            + " Found Plans(avg): " + found / 10_000);
+                }
+            }
+            finally {
+                test.deleteDirectory(directory);
+            }
+        }
+
+        /**
+         * 全ての日時の1/10000に、予定を 2件登録する。
+         * @param schedule 予定表
+         * @return 登録した予定の件数
+         */
+        private long load(Schedule schedule) {
+            long count = 0;
+            for (int year = 0; year < 10000; year += 100) {
+                for (int month = 1; month < 13; month++) {
+                    for (int day = 1; day <= DateTimeParser.lengthOfMonth(year, month); day++) {
+                        for (int time = 0; time < 24 * 60; time += 100) {
+                            var date = String.format("%04d%02d%02d%02d%02d", year, month, day, time/60, time%60);
+                            schedule.add(date, AutoTest.VALID_CONTENT);
+                            schedule.add(date, AutoTest.VALID_CONTENT2);
+                            count += 2;
+                        }
+                    }
+                }
+            }
+            return count;
+        }
+
+        /**
+         * GCを実行し、使用中のヒープのサイズを取得する。
+         * @return 使用中のヒープのサイズ
+         */
+        public void ScheduleRegistry_unload(int tenants) throws IOException {
+            // 予定表毎に100件の予定を登録し、5%の予定表への90%の使用と、残りの予定表への10%の使用を繰り返す。
+            // 重みの上限を全ての予定の10%とした場合と、上限なしの場合で、ヒープの使用量とスループットを比較する。
+            final int plansPerTenant = 100;
+            final int operations = 200_000;
+            long base = DateTimeParser.parseMinutes("202001010000");
+            for (long maximumWeight : new long[] { (long)tenants * (plansPerTenant + 1) / 10, Long.MAX_VALUE }) {
+                var directory = Files.createTempDirectory("schedule");
+                long before = usedMemory();
+                try (var registry = new ScheduleRegistry(directory, maximumWeight,
+                        id -> new Schedule(1000, 64, Schedule.Storage.PACKED))) {
+                    long start = System.nanoTime();
+                    for (int tenant = 0; tenant < tenants; tenant++) {
+                        var plans = new ArrayList<Plan>(plansPerTenant);
+                        for (int number = 0; number < plansPerTenant; number++) {
+                            plans.add(new Plan(DateTimeParser.toLocalDateTime(base + number * 1440L), AutoTest.VALID_CONTENT));
+                        }
+                        registry.accept("tenant-" + tenant, s -> s.addAll(plans));
+                    }
+                    long end = System.nanoTime();
+                    long after = usedMemory();
+                    var limit = maximumWeight == Long.MAX_VALUE ? "unlimited" : Long.toString(maximumWeight);
+                    System.out.println("[Load][Weight " + limit + "] Tenants(num): " + tenants + " Plans(num): " + (long)tenants * plansPerTenant
+                            + " addAll(tenants/s): " + tenants * 1_000_000_000L / (end - start)
+                            + " Resident(num): " + registry.getResidentCount() + " Heap(bytes): " + (after - before));
+
+                    int hot = Math.max(1, tenants / 20);
+                    var random = new Random(1);
+                    for (int round = 0; round < 3; round++) {
+                        long loads = registry.getLoadCount();
+                        long found = 0;
+                        start = System.nanoTime();
+                        for (int i = 0; i < operations; i++) {
+                            int tenant = random.nextInt(10) < 9 ? random.nextInt(hot) : hot + random.nextInt(Math.max(1, tenants - hot));
+                            long day = base + random.nextInt(plansPerTenant) * 1440L;
+                            found += registry.apply("tenant-" + tenant,
+                                    s -> s.count(DateTimeParser.format(day), DateTimeParser.format(day + 1440)));
+                        }
+                        end = System.nanoTime();
+                        System.out.println("[Round " + round + "][Weight " + limit + "] count(ops/s): " + operations * 1_000_000_000L / (end - start)
+                                + " Loads(num): " + (registry.getLoadCount() - loads) + " Resident(num): " + registry.getResidentCount()
+                                + " (check: " + found + ")");
+                    }
+                }
+                finally {
+                    new AutoTest().deleteDirectory(directory);
+                }
+            }
+        }
+
+        private long usedMemory() {
+            var runtime = Runtime.getRuntime();
+            for (int i = 0; i < 3; i++) {
+                System.gc();
+            }
+            return runtime.totalMemory() - runtime.freeMemory();
+        }
+    }
+}
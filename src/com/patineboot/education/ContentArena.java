@@ -0,0 +1,277 @@
+/*
+ * Copyright (c) 2020, 2021, Patineboot
+ * All rights reserved.
+ */
+
+package com.patineboot.education;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * 用件を、ヒープ外のバイトバッファに格納するクラスです。
+ * 用件は、ヒープ外に確保した固定長のチャンクに、先頭から詰めて追記します。
+ * 用件毎の文字列オブジェクトを持たないため、予定の件数が増えてもGCで辿るオブジェクトは増えません。
+ *
+ * 用件は、長さの接頭辞と文字の並びで符号化します。
+ * - 接頭辞: 2バイト。最上位ビットは文字の幅、下位15ビットは文字(char)の数。
+ * - 文字: 全ての文字がLatin-1の範囲の場合は1文字1バイト、それ以外はUTF-16の1文字2バイト。
+ * .
+ * 格納した用件は、チャンクの番号と位置を組み合わせたハンドルで参照します。
+ *
+ * 削除した用件の領域は上書きせず、不要な領域として数えます。
+ * 不要な領域が増えた場合は、格納方式が有効な用件のみを新しい領域に複写(コンパクション)し、古い領域を手放します。
+ * 用件の領域は上書きしないため、手放したチャンクを参照する予定は、チャンクが回収されるまで用件を読み出せます。
+ * @implSpec このクラスはスレッドセーフではありません。格納済みの用件の読み出しは、複数のスレッドから同時に行えます。
+ */
+final class ContentArena {
+
+    /**
+     * チャンクの大きさ(バイト)
+     */
+    static final int CHUNK_SIZE = 1 << 20;
+
+    /**
+     * 接頭辞の大きさ(バイト)
+     */
+    private static final int HEADER_SIZE = 2;
+
+    /**
+     * 接頭辞の、UTF-16で符号化したことを示すビット
+     */
+    private static final int WIDE = 0x8000;
+
+    /**
+     * チャンクの一覧
+     */
+    private ByteBuffer[] chunks = new ByteBuffer[4];
+
+    /**
+     * チャンクの数
+     */
+    private int chunkCount;
+
+    /**
+     * 最後のチャンクの、次に書き込む位置
+     */
+    private int position = CHUNK_SIZE;
+
+    /**
+     * 書き込んだ領域の合計(バイト)
+     */
+    private long allocated;
+
+    /**
+     * 削除した用件の領域の合計(バイト)
+     */
+    private long garbage;
+
+    /**
+     * 用件を追記する。
+     * @param content 用件。32767文字以内。
+     * @return ハンドル
+     * @exception IllegalArgumentException contentの長さが長すぎる。
+     */
+    long put(String content)
+    {
+        int length = content.length();
+        if (length >= WIDE) {
+            throw new IllegalArgumentException("content length over");
+        }
+        boolean isWide = false;
+        for (int i = 0; i < length && !isWide; i++) {
+            isWide = content.charAt(i) > 0xFF;
+        }
+
+        var chunk = reserve(HEADER_SIZE + (isWide ? length * 2 : length));
+        int offset = position;
+        chunk.putShort(offset, (short)(isWide ? length | WIDE : length));
+        int index = offset + HEADER_SIZE;
+        if (isWide) {
+            for (int i = 0; i < length; i++, index += 2) {
+                chunk.putChar(index, content.charAt(i));
+            }
+        }
+        else {
+            for (int i = 0; i < length; i++, index++) {
+                chunk.put(index, (byte)content.charAt(i));
+            }
+        }
+        return advance(index);
+    }
+
+    /**
+     * 他の領域の用件を、符号化したまま複写する。
+     * @param source 複写元の領域
+     * @param handle 複写元のハンドル
+     * @return 複写先のハンドル
+     */
+    long copy(ContentArena source, long handle)
+    {
+        var from = source.chunk(handle);
+        int fromOffset = offset(handle);
+        int size = sizeOf(from, fromOffset);
+
+        var chunk = reserve(size);
+        chunk.put(position, from, fromOffset, size);
+        return advance(position + size);
+    }
+
+    /**
+     * 用件を削除する。領域は上書きせず、不要な領域として数える。
+     * @param handle ハンドル
+     */
+    void free(long handle)
+    {
+        garbage += sizeOf(chunk(handle), offset(handle));
+    }
+
+    /**
+     * コンパクションが必要かを判定する。不要な領域が、1チャンク以上かつ有効な用件の領域以上の場合に必要とする。
+     * 複写する量は不要な領域の量以下となるため、削除1件あたりのコンパクションの費用は一定となる。
+     * @return 必要な場合はtrue
+     */
+    boolean needsCompaction()
+    {
+        return garbage >= CHUNK_SIZE && garbage >= allocated - garbage;
+    }
+
+    /**
+     * ハンドルの用件を、文字列に復元する。
+     * @param handle ハンドル
+     * @return 用件
+     */
+    String get(long handle)
+    {
+        return decode(chunk(handle), offset(handle));
+    }
+
+    /**
+     * ハンドルの用件を格納しているチャンクを取得する。
+     * @param handle ハンドル
+     * @return チャンク
+     */
+    ByteBuffer chunk(long handle)
+    {
+        return chunks[(int)(handle >>> 32)];
+    }
+
+    /**
+     * ハンドルの用件の、チャンクでの位置を取得する。
+     * @param handle ハンドル
+     * @return 位置
+     */
+    static int offset(long handle)
+    {
+        return (int)handle;
+    }
+
+    /**
+     * ハンドルの用件と文字列を、文字列に復元せずに比較する。
+     * @param handle ハンドル
+     * @param content 用件
+     * @return String.compareToと同じ比較の結果
+     */
+    int compare(long handle, String content)
+    {
+        var chunk = chunk(handle);
+        int offset = offset(handle);
+        int header = chunk.getShort(offset) & 0xFFFF;
+        int length = header & ~WIDE;
+        boolean isWide = (header & WIDE) != 0;
+        int index = offset + HEADER_SIZE;
+        int limit = Math.min(length, content.length());
+        for (int i = 0; i < limit; i++) {
+            char c = isWide ? chunk.getChar(index + i * 2) : (char)(chunk.get(index + i) & 0xFF);
+            if (c != content.charAt(i)) {
+                return c - content.charAt(i);
+            }
+        }
+        return length - content.length();
+    }
+
+    /**
+     * 書き込んだ領域の合計を取得する。
+     * @return 書き込んだ領域の合計(バイト)
+     */
+    long allocated()
+    {
+        return allocated;
+    }
+
+    /**
+     * 削除した用件の領域の合計を取得する。
+     * @return 削除した用件の領域の合計(バイト)
+     */
+    long garbage()
+    {
+        return garbage;
+    }
+
+    /**
+     * チャンクの位置の用件を、文字列に復元する。
+     * 用件の領域は上書きしないため、手放したチャンクからも復元できる。
+     * @param chunk チャンク
+     * @param offset 位置
+     * @return 用件
+     */
+    static String decode(ByteBuffer chunk, int offset)
+    {
+        int header = chunk.getShort(offset) & 0xFFFF;
+        int length = header & ~WIDE;
+        // 文字の配列、バイトの配列へ一括で読み出す。
+        if ((header & WIDE) != 0) {
+            var chars = new char[length];
+            chunk.slice(offset + HEADER_SIZE, length * 2).asCharBuffer().get(chars);
+            return new String(chars);
+        }
+        var bytes = new byte[length];
+        chunk.get(offset + HEADER_SIZE, bytes);
+        return new String(bytes, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * チャンクの位置の用件の、接頭辞を含む大きさを求める。
+     * @param chunk チャンク
+     * @param offset 位置
+     * @return 大きさ(バイト)
+     */
+    private static int sizeOf(ByteBuffer chunk, int offset)
+    {
+        int header = chunk.getShort(offset) & 0xFFFF;
+        int length = header & ~WIDE;
+        return HEADER_SIZE + ((header & WIDE) != 0 ? length * 2 : length);
+    }
+
+    /**
+     * 書き込む領域を確保する。最後のチャンクに収まらない場合は、新しいチャンクを確保する。
+     * 用件はチャンクをまたがない。
+     * @param size 大きさ(バイト)
+     * @return 書き込むチャンク。書き込む位置はposition。
+     */
+    private ByteBuffer reserve(int size)
+    {
+        if (position + size > CHUNK_SIZE) {
+            if (chunkCount == chunks.length) {
+                chunks = Arrays.copyOf(chunks, chunkCount * 2);
+            }
+            chunks[chunkCount++] = ByteBuffer.allocateDirect(CHUNK_SIZE);
+            position = 0;
+        }
+        return chunks[chunkCount - 1];
+    }
+
+    /**
+     * 書き込んだ用件のハンドルを作成し、次に書き込む位置を進める。
+     * @param end 書き込んだ用件の終わりの位置
+     * @return 書き込んだ用件のハンドル
+     */
+    private long advance(int end)
+    {
+        long handle = (long)(chunkCount - 1) << 32 | position;
+        allocated += end - position;
+        position = end;
+        return handle;
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2020, 2021, Patineboot
+ * All rights reserved.
+ */
+
+package com.patineboot.education;
+
+import java.util.HashMap;
+
+/**
+ * 予定の用件を重複なく保持する辞書クラスです。
+ * 同じ用件は一つの文字列を共有します。
+ * 共有する文字列は参照が等しいため、予定の比較は文字を比較せずに済みます。
+ *
+ * 用件は参照数を数え、参照がなくなった用件は辞書から取り除きます。
+ * @implSpec このクラスは、全ての操作を一つのロックで排他するため、スレッドセーフです。
+ */
+final class ContentDictionary {
+
+    /**
+     * 辞書の用件です。
+     */
+    private static final class Entry {
+
+        /**
+         * 共有する用件の文字列
+         */
+        final String content;
+
+        /**
+         * 参照数
+         */
+        int references = 1;
+
+        /**
+         * 辞書の用件を作成する。参照数は1。
+         * @param content 用件
+         */
+        Entry(String content)
+        {
+            this.content = content;
+        }
+    }
+
+    /**
+     * 用件から辞書の用件への対応
+     */
+    private final HashMap<String, Entry> entries = new HashMap<>();
+
+    /**
+     * 用件を辞書に登録し、共有する文字列を取得する。参照数を1増やす。
+     * @param content 用件
+     * @return 辞書の用件。同じ用件が登録済みの場合は、その文字列。
+     */
+    synchronized String intern(String content)
+    {
+        var entry = entries.get(content);
+        if (entry == null) {
+            entries.put(content, new Entry(content));
+            return content;
+        }
+        entry.references++;
+        return entry.content;
+    }
+
+    /**
+     * 用件の参照数を1減らす。参照がなくなった用件は、辞書から取り除く。
+     * @param content 用件
+     */
+    synchronized void release(String content)
+    {
+        var entry = entries.get(content);
+        if (entry != null && --entry.references == 0) {
+            entries.remove(content);
+        }
+    }
+
+    /**
+     * 登録している用件の数を取得する。
+     * @return 用件の数
+     */
+    synchronized int size()
+    {
+        return entries.size();
+    }
+}
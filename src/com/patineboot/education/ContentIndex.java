@@ -0,0 +1,371 @@
+/*
+ * Copyright (c) 2020, 2021, Patineboot
+ * All rights reserved.
+ */
+
+package com.patineboot.education;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeMap;
+
+/**
+ * 用件の文字の2-gramから予定を引く、転置索引クラスです。
+ * 用件の隣り合う2文字の組毎に、その組を含む予定の一覧(ポスティング)を、日時と用件の昇順で保持します。
+ * 用件の最後の文字は、終端との組としても登録し、1文字の検索語は、その文字で始まる全ての組から探します。
+ * 日本語の用件は単語の区切りがないため、形態素ではなく文字の2-gramで索引します。
+ *
+ * 2文字以上の検索語は、検索語の組のうち、最も予定の少ないポスティングの日時の範囲を辿り、用件が検索語を含むかを確認します。
+ * 検索の費用は、範囲の予定の件数ではなく、最も少ない組の範囲内の予定の件数で決まります。
+ *
+ * ポスティングは、日時と用件の昇順の配列をブロックに分けて保持し、登録、削除はブロック内の移動で済ませます。
+ * @implSpec このクラスは、全ての操作を一つのロックで排他するため、スレッドセーフです。
+ */
+final class ContentIndex {
+
+    /**
+     * ブロックに格納できる予定の件数
+     */
+    private static final int BLOCK_CAPACITY = 256;
+
+    /**
+     * 用件の終端を表す、2文字目の値。charの範囲の外。
+     */
+    private static final int END = 0x10000;
+
+    /**
+     * 2文字の組から、ポスティングへの対応。1文字の検索のため、組の順に並べる。
+     */
+    private final TreeMap<Long, Posting> postings = new TreeMap<>();
+
+    /**
+     * 索引した予定の件数
+     */
+    private long size;
+
+    /**
+     * ポスティングのブロックです。予定は、日時と用件の昇順に並べる。
+     */
+    private static final class Block {
+
+        /**
+         * 予定の件数
+         */
+        int size;
+
+        /**
+         * 日時(分オフセット)
+         */
+        long[] minutes = new long[2];
+
+        /**
+         * 用件
+         */
+        String[] contents = new String[2];
+
+        /**
+         * 予定以上となる、最初の位置を検索する。
+         * @param minute 日時(分オフセット)
+         * @param content 用件
+         * @return 位置
+         */
+        int lowerBound(long minute, String content)
+        {
+            int low = 0;
+            int high = size;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (compare(middle, minute, content) < 0) {
+                    low = middle + 1;
+                }
+                else {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+
+        /**
+         * 位置の予定と、予定を比較する。
+         * @param index 位置
+         * @param minute 日時(分オフセット)
+         * @param content 用件
+         * @return 位置の予定が小さい場合は負、等しい場合は0、大きい場合は正
+         */
+        int compare(int index, long minute, String content)
+        {
+            int result = Long.compare(minutes[index], minute);
+            return result != 0 ? result : contents[index].compareTo(content);
+        }
+    }
+
+    /**
+     * 2文字の組を含む予定の一覧です。
+     */
+    private static final class Posting {
+
+        /**
+         * 予定の件数
+         */
+        int size;
+
+        /**
+         * 予定のブロック。ブロックの順に、日時と用件の昇順に並ぶ。
+         */
+        final List<Block> blocks = new ArrayList<>();
+
+        /**
+         * 予定を含む可能性のある、最初のブロックを検索する。
+         * 最後の予定が、予定以上となる最初のブロック。全てのブロックより大きい場合は、最後のブロック。
+         * @param minute 日時(分オフセット)
+         * @param content 用件
+         * @return ブロックの位置
+         */
+        int findBlock(long minute, String content)
+        {
+            int low = 0;
+            int high = blocks.size() - 1;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                var block = blocks.get(middle);
+                if (block.compare(block.size - 1, minute, content) < 0) {
+                    low = middle + 1;
+                }
+                else {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+
+        /**
+         * 予定を挿入する。ブロックが満杯の場合は、二つに分割する。
+         * @param minute 日時(分オフセット)
+         * @param content 用件
+         */
+        void insert(long minute, String content)
+        {
+            if (blocks.isEmpty()) {
+                blocks.add(new Block());
+            }
+            int b = findBlock(minute, content);
+            var block = blocks.get(b);
+            int index = block.lowerBound(minute, content);
+            if (index < block.size && block.compare(index, minute, content) == 0) {
+                return;
+            }
+            if (block.size == BLOCK_CAPACITY) {
+                // 後半を新しいブロックに移し、挿入する側のブロックを選び直す。
+                int half = BLOCK_CAPACITY / 2;
+                var next = new Block();
+                next.minutes = Arrays.copyOfRange(block.minutes, half, BLOCK_CAPACITY);
+                next.contents = Arrays.copyOfRange(block.contents, half, BLOCK_CAPACITY);
+                next.size = BLOCK_CAPACITY - half;
+                Arrays.fill(block.contents, half, BLOCK_CAPACITY, null);
+                block.size = half;
+                blocks.add(b + 1, next);
+                if (index > half) {
+                    block = next;
+                    index -= half;
+                }
+            }
+            if (block.size == block.minutes.length) {
+                block.minutes = Arrays.copyOf(block.minutes, block.size * 2);
+                block.contents = Arrays.copyOf(block.contents, block.size * 2);
+            }
+            System.arraycopy(block.minutes, index, block.minutes, index + 1, block.size - index);
+            System.arraycopy(block.contents, index, block.contents, index + 1, block.size - index);
+            block.minutes[index] = minute;
+            block.contents[index] = content;
+            block.size++;
+            size++;
+        }
+
+        /**
+         * 予定を削除する。空になったブロックは取り除く。
+         * @param minute 日時(分オフセット)
+         * @param content 用件
+         */
+        void delete(long minute, String content)
+        {
+            if (blocks.isEmpty()) {
+                return;
+            }
+            int b = findBlock(minute, content);
+            var block = blocks.get(b);
+            int index = block.lowerBound(minute, content);
+            if (index == block.size || block.compare(index, minute, content) != 0) {
+                return;
+            }
+            System.arraycopy(block.minutes, index + 1, block.minutes, index, block.size - index - 1);
+            System.arraycopy(block.contents, index + 1, block.contents, index, block.size - index - 1);
+            block.contents[--block.size] = null;
+            size--;
+            if (block.size == 0) {
+                blocks.remove(b);
+            }
+        }
+
+        /**
+         * 範囲内の予定のうち、用件が検索語を含む予定を追加する。
+         * @param from 始点の日時(分オフセット、これを含む)
+         * @param to 終点の日時(分オフセット、これを含まない)
+         * @param keyword 検索語。nullの場合は確認しない。
+         * @param found 予定を追加する一覧
+         */
+        void collect(long from, long to, String keyword, List<Plan> found)
+        {
+            if (blocks.isEmpty()) {
+                return;
+            }
+            int b = findBlock(from, "");
+            int index = blocks.get(b).lowerBound(from, "");
+            for (; b < blocks.size(); b++, index = 0) {
+                var block = blocks.get(b);
+                for (; index < block.size; index++) {
+                    if (block.minutes[index] >= to) {
+                        return;
+                    }
+                    if (keyword == null || block.contents[index].contains(keyword)) {
+                        found.add(new Plan(DateTimeParser.toLocalDateTime(block.minutes[index]), block.contents[index]));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * 2文字の組を、索引のキーにする。
+     * @param first 1文字目
+     * @param second 2文字目。終端の場合はEND。
+     * @return キー
+     */
+    private static long key(char first, int second)
+    {
+        return (long)first << 17 | second;
+    }
+
+    /**
+     * 用件の、重複のない2文字の組のキーを求める。最後の文字と終端の組を含む。
+     * @param content 用件
+     * @return キーの配列。昇順。
+     */
+    private static long[] keys(String content)
+    {
+        int length = content.length();
+        if (length == 0) {
+            return new long[0];
+        }
+        var keys = new long[length];
+        for (int i = 0; i < length - 1; i++) {
+            keys[i] = key(content.charAt(i), content.charAt(i + 1));
+        }
+        keys[length - 1] = key(content.charAt(length - 1), END);
+        Arrays.sort(keys);
+        int distinct = 1;
+        for (int i = 1; i < length; i++) {
+            if (keys[i] != keys[distinct - 1]) {
+                keys[distinct++] = keys[i];
+            }
+        }
+        return Arrays.copyOf(keys, distinct);
+    }
+
+    /**
+     * 予定を索引に追加する。
+     * @param plan 予定
+     */
+    synchronized void add(Plan plan)
+    {
+        long minute = DateTimeParser.toMinutes(plan.getDateTime());
+        var content = plan.getContent();
+        for (long key : keys(content)) {
+            postings.computeIfAbsent(key, k -> new Posting()).insert(minute, content);
+        }
+        size++;
+    }
+
+    /**
+     * 予定を索引から削除する。
+     * @param plan 予定
+     */
+    synchronized void remove(Plan plan)
+    {
+        long minute = DateTimeParser.toMinutes(plan.getDateTime());
+        var content = plan.getContent();
+        for (long key : keys(content)) {
+            var posting = postings.get(key);
+            if (posting != null) {
+                posting.delete(minute, content);
+                if (posting.size == 0) {
+                    postings.remove(key);
+                }
+            }
+        }
+        size--;
+    }
+
+    /**
+     * 範囲内の、用件が検索語を含む予定を、昇順に取得する。
+     * @param from 始点の日時(分オフセット、これを含む)
+     * @param to 終点の日時(分オフセット、これを含まない)
+     * @param keyword 検索語。1文字以上。
+     * @return 予定の一覧
+     */
+    synchronized List<Plan> search(long from, long to, String keyword)
+    {
+        var found = new ArrayList<Plan>();
+        if (from >= to) {
+            return found;
+        }
+        if (keyword.length() == 1) {
+            // 文字で始まる全ての組の予定を集め、重複を除く。
+            char c = keyword.charAt(0);
+            for (var posting : postings.subMap(key(c, 0), true, key(c, END), true).values()) {
+                posting.collect(from, to, null, found);
+            }
+            found.sort(null);
+            int distinct = 0;
+            for (var plan : found) {
+                if (distinct == 0 || !found.get(distinct - 1).equals(plan)) {
+                    found.set(distinct++, plan);
+                }
+            }
+            found.subList(distinct, found.size()).clear();
+            return found;
+        }
+
+        // 検索語の組のうち、最も予定の少ないポスティングを辿る。
+        Posting rarest = null;
+        for (int i = 0; i < keyword.length() - 1; i++) {
+            var posting = postings.get(key(keyword.charAt(i), keyword.charAt(i + 1)));
+            if (posting == null) {
+                return found;
+            }
+            if (rarest == null || posting.size < rarest.size) {
+                rarest = posting;
+            }
+        }
+        rarest.collect(from, to, keyword, found);
+        return found;
+    }
+
+    /**
+     * 索引した予定の件数を取得する。
+     * @return 予定の件数
+     */
+    synchronized long size()
+    {
+        return size;
+    }
+
+    /**
+     * ポスティングの数を取得する。
+     * @return 2文字の組の数
+     */
+    synchronized int postingCount()
+    {
+        return postings.size();
+    }
+}
@@ -0,0 +1,234 @@
+/*
+ * Copyright (c) 2020, 2021, Patineboot
+ * All rights reserved.
+ */
+
+package com.patineboot.education;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeParseException;
+
+/**
+ * YYYYMMDDhhmm形式の日時を解析するクラスです。
+ * 符号のない12桁の日時は、DateTimeFormatter.ofPattern("uuuuMMddHHmm")をResolverStyle.STRICTで使用した場合と同じ日時を有効とします。
+ * 日時は、文字を直接確認して解析し、検証の過程でオブジェクトを生成しません。
+ *
+ * DateTimeFormatterは、符号を付けた5桁以上の年(例: "+0443304151436"は4433年)と負の年(例: "-804111012251"は-8041年)も有効としますが、
+ * このクラスは、年を西暦0年から西暦9999年の4桁に限定し、符号を付けた日時は全て無効とします。
+ * 分オフセット、format、予定の書き出しと保存の形式は、4桁の年を前提とするためです。
+ *
+ * 日時は、西暦0年1月1日0時0分からの経過分(以下、分オフセット)で表現することもできます。
+ * @implSpec このクラスはスレッドセーフです。
+ */
+final class DateTimeParser {
+
+    /**
+     * 日時文字列の長さ
+     */
+    static final int LENGTH = 12;
+
+    /**
+     * 1日の分数
+     */
+    static final int MINUTES_PER_DAY = 24 * 60;
+
+    /**
+     * 西暦1970年1月1日の、西暦0年1月1日からの経過日数
+     */
+    private static final long DAYS_0000_TO_1970 = 719528L;
+
+    /**
+     * 月毎の日数(閏年でない年)
+     */
+    private static final int[] DAYS_OF_MONTH = { 31, 28, 31, 30, 31, 30, 31, 31, 30, 31, 30, 31 };
+
+    private DateTimeParser()
+    {
+    }
+
+    /**
+     * 日時を解析し、LocalDateTimeとして取得する。
+     * @param text 日時。YYYYMMDDhhmm形式で指定する。
+     * @return 日時
+     * @exception DateTimeParseException 日時形式が不正。年に符号を付けた。
+     */
+    static LocalDateTime parse(CharSequence text)
+    {
+        // 検証と分オフセットへの変換を共通化する。
+        return toLocalDateTime(parseMinutes(text));
+    }
+
+    /**
+     * 日時を解析し、分オフセットとして取得する。
+     * @param text 日時。YYYYMMDDhhmm形式で指定する。
+     * @return 分オフセット
+     * @exception DateTimeParseException 日時形式が不正。
+     */
+    static long parseMinutes(CharSequence text)
+    {
+        if (text.length() != LENGTH) {
+            // DateTimeFormatterと同様に、不足時は末尾、超過時は先頭を不正箇所とする。
+            int errorIndex = text.length() < LENGTH ? Math.max(text.length() - 1, 0) : 0;
+            throw new DateTimeParseException("Text '" + text + "' could not be parsed at index " + errorIndex,
+                    text, errorIndex);
+        }
+
+        int year = digits(text, 0, 4);
+        int month = digits(text, 4, 2);
+        int day = digits(text, 6, 2);
+        int hour = digits(text, 8, 2);
+        int minute = digits(text, 10, 2);
+
+        if (month < 1 || month > 12) {
+            throw invalidValue(text, "MonthOfYear (valid values 1 - 12): " + month);
+        }
+        if (day < 1 || day > 31) {
+            throw invalidValue(text, "DayOfMonth (valid values 1 - 28/31): " + day);
+        }
+        if (hour > 23) {
+            throw invalidValue(text, "HourOfDay (valid values 0 - 23): " + hour);
+        }
+        if (minute > 59) {
+            throw invalidValue(text, "MinuteOfHour (valid values 0 - 59): " + minute);
+        }
+        if (day > lengthOfMonth(year, month)) {
+            throw new DateTimeParseException("Text '" + text + "' could not be parsed: Invalid date", text, 0);
+        }
+
+        return daysFromYear0(year, month, day) * MINUTES_PER_DAY + hour * 60 + minute;
+    }
+
+    /**
+     * 分オフセットをLocalDateTimeに変換する。
+     * @param minutes 分オフセット
+     * @return 日時
+     */
+    static LocalDateTime toLocalDateTime(long minutes)
+    {
+        long days = Math.floorDiv(minutes, MINUTES_PER_DAY);
+        int minuteOfDay = Math.floorMod(minutes, MINUTES_PER_DAY);
+        var date = LocalDate.ofEpochDay(days - DAYS_0000_TO_1970);
+        return date.atTime(minuteOfDay / 60, minuteOfDay % 60);
+    }
+
+    /**
+     * LocalDateTimeを分オフセットに変換する。
+     * @param dateTime 日時
+     * @return 分オフセット
+     */
+    static long toMinutes(LocalDateTime dateTime)
+    {
+        long days = dateTime.toLocalDate().toEpochDay() + DAYS_0000_TO_1970;
+        return days * MINUTES_PER_DAY + dateTime.getHour() * 60 + dateTime.getMinute();
+    }
+
+    /**
+     * 分オフセットをYYYYMMDDhhmm形式の日時に変換する。
+     * @param minutes 分オフセット。西暦0年から西暦9999年の範囲であること。
+     * @return 日時
+     */
+    static String format(long minutes)
+    {
+        var dateTime = toLocalDateTime(minutes);
+        var chars = new char[LENGTH];
+        putDigits(chars, 0, 4, dateTime.getYear());
+        putDigits(chars, 4, 2, dateTime.getMonthValue());
+        putDigits(chars, 6, 2, dateTime.getDayOfMonth());
+        putDigits(chars, 8, 2, dateTime.getHour());
+        putDigits(chars, 10, 2, dateTime.getMinute());
+        return new String(chars);
+    }
+
+    /**
+     * 閏年であるかを判定する。
+     * @param year 年
+     * @return 閏年の場合は、true
+     */
+    static boolean isLeapYear(int year)
+    {
+        return (year % 4 == 0) && (year % 100 != 0 || year % 400 == 0);
+    }
+
+    /**
+     * 月の日数を取得する。
+     * @param year 年
+     * @param month 月(1 - 12)
+     * @return 月の日数
+     */
+    static int lengthOfMonth(int year, int month)
+    {
+        if (month == 2 && isLeapYear(year)) {
+            return 29;
+        }
+        return DAYS_OF_MONTH[month - 1];
+    }
+
+    /**
+     * 西暦0年1月1日からの経過日数を取得する。
+     * @param year 年(0 - 9999)
+     * @param month 月(1 - 12)
+     * @param day 日(1 - 31)
+     * @return 経過日数
+     */
+    static long daysFromYear0(int year, int month, int day)
+    {
+        // 3月始まりの年として計算すると、閏日が年の最後になる。
+        int y = month <= 2 ? year - 1 : year;
+        int era = Math.floorDiv(y, 400);
+        int yearOfEra = y - era * 400;
+        int monthFromMarch = (month + 9) % 12;
+        int dayOfYear = (153 * monthFromMarch + 2) / 5 + day - 1;
+        int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        // 3月1日起点の日数を、西暦0年1月1日起点に補正する。
+        return era * 146097L + dayOfEra + 60;
+    }
+
+    /**
+     * 数字の並びを数値に変換する。
+     * @param text 日時
+     * @param index 開始位置
+     * @param count 桁数
+     * @return 数値
+     * @exception DateTimeParseException 数字以外の文字を含む。
+     */
+    private static int digits(CharSequence text, int index, int count)
+    {
+        int value = 0;
+        for (int i = index; i < index + count; i++) {
+            int digit = text.charAt(i) - '0';
+            if (digit < 0 || digit > 9) {
+                throw new DateTimeParseException("Text '" + text + "' could not be parsed at index " + i, text, i);
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    /**
+     * 数値を、指定した桁数の数字の並びに変換する。
+     * @param chars 出力先
+     * @param index 開始位置
+     * @param count 桁数
+     * @param value 数値
+     */
+    private static void putDigits(char[] chars, int index, int count, int value)
+    {
+        for (int i = index + count - 1; i >= index; i--) {
+            chars[i] = (char)('0' + value % 10);
+            value /= 10;
+        }
+    }
+
+    /**
+     * 範囲外の値に対する例外を作成する。
+     * @param text 日時
+     * @param detail 詳細
+     * @return 例外
+     */
+    private static DateTimeParseException invalidValue(CharSequence text, String detail)
+    {
+        return new DateTimeParseException("Text '" + text + "' could not be parsed: Invalid value for " + detail,
+                text, 0);
+    }
+}
@@ -0,0 +1,389 @@
+/*
+ * Copyright (c) 2020, 2021, Patineboot
+ * All rights reserved.
+ */
+
+package com.patineboot.education;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+
+/**
+ * ファイルに永続化する予定表クラスです。
+ * 予定の登録、削除は、ジャーナルに追記してから呼び出し元に戻ります。
+ * ジャーナルが一定の件数に達すると、全ての予定をスナップショットに保存し、ジャーナルを新しくします。
+ * 予定表を開くと、スナップショットを読み込み、その後のジャーナルを再生して、予定を復元します。
+ *
+ * ディレクトリには、次のファイルを作成します。
+ * - snapshot.dat: スナップショット
+ * - journal-[世代].log: スナップショットの後のジャーナル
+ *
+ * 登録、削除とジャーナルへの追記は、一つのロックで順序を保ちます。fsyncの完了は、ロックの外で待ちます。
+ * 予定表を変更してからジャーナルに追記し、追記に失敗した場合は、予定表の変更を取り消してから例外を投げます。
+ * EACHでは、書き込みとfsyncも追記に含め、失敗した場合はレコードをジャーナルから取り除いて、変更を取り消します。
+ * GROUPで追記した後の、fsyncの完了を待つ間の失敗では、変更は取り消しません。レコードはジャーナルに追記済みで、永続化されたかは不明となります。
+ */
+public class DurableSchedule extends Schedule implements Closeable {
+
+    /**
+     * ジャーナルの同期方式です。
+     */
+    public enum SyncMode {
+        /**
+         * 操作毎にfsyncする。
+         */
+        EACH,
+        /**
+         * 同時に操作したスレッドのレコードを、まとめてfsyncする。操作はfsyncの完了を待つ。
+         */
+        GROUP,
+        /**
+         * 一定の間隔でfsyncする。操作はfsyncの完了を待たない。
+         * 異常終了時は、最後の間隔の操作が失われることがある。
+         */
+        PERIODIC,
+    }
+
+    /**
+     * スナップショットを作成するジャーナルのレコード数
+     */
+    static final long CHECKPOINT_RECORDS = 1_000_000;
+
+    /**
+     * スナップショットのファイル名
+     */
+    private static final String SNAPSHOT = "snapshot.dat";
+
+    /**
+     * 予定表のディレクトリ
+     */
+    private final Path directory;
+
+    /**
+     * 同期方式
+     */
+    private final SyncMode syncMode;
+
+    /**
+     * 登録、削除とジャーナルへの追記の順序を保つロック
+     */
+    private final Object lock = new Object();
+
+    /**
+     * ジャーナルの世代
+     */
+    private long generation;
+
+    /**
+     * ジャーナル。閉じた後はnull。
+     */
+    private ScheduleJournal journal;
+
+    /**
+     * ディレクトリから予定表を開く。ディレクトリがない場合は作成する。
+     * スナップショットとジャーナルから、予定を復元する。
+     *
+     * @param directory 予定表のディレクトリ
+     * @param capacity 最大登録可能件数
+     * @param storage 予定の格納方式
+     * @param syncMode ジャーナルの同期方式
+     * @exception IOException ファイルの読み書きに失敗した。
+     * @exception IllegalArgumentException capacityが0以下の場合。directory、storage、syncModeがnullの場合。
+     * @exception IllegalStateException 復元した予定が、最大登録件数を超える。
+     */
+    public DurableSchedule(Path directory, long capacity, Storage storage, SyncMode syncMode) throws IOException
+    {
+        super(capacity, storage);
+        if (directory == null || syncMode == null) {
+            throw new IllegalArgumentException("directory or syncMode is null.");
+        }
+        this.directory = directory;
+        this.syncMode = syncMode;
+
+        Files.createDirectories(directory);
+        var snapshot = directory.resolve(SNAPSHOT);
+        if (Files.exists(snapshot)) {
+            generation = ScheduleSnapshot.read(snapshot, super::addAll);
+        }
+
+        long replayed = ScheduleJournal.replay(journalFile(generation), (op, minutes, content, duration) -> {
+            var dateTime = DateTimeParser.format(minutes);
+            if (op == ScheduleJournal.ADD) {
+                super.add(dateTime, content, duration);
+            }
+            else {
+                super.remove(dateTime, content);
+            }
+        });
+        deleteJournals(generation);
+        journal = new ScheduleJournal(journalFile(generation), syncMode);
+
+        // 次回の復元で再生するジャーナルを、一定の件数以内に保つ。
+        if (replayed >= CHECKPOINT_RECORDS) {
+            checkpoint();
+        }
+    }
+
+    /**
+     * @inheritDoc
+     * 予定は、ジャーナルに追記する。
+     * @exception UncheckedIOException ジャーナルへの書き込みに失敗した。
+     */
+    @Override
+    public void add(String dateTime, String content)
+    {
+        ScheduleJournal current;
+        long record;
+        synchronized (lock) {
+            ensureOpen();
+            super.add(dateTime, content);
+            current = journal;
+            try {
+                record = journal.append(ScheduleJournal.ADD, DateTimeParser.parseMinutes(dateTime), content, 0);
+            }
+            catch (RuntimeException e) {
+                super.remove(dateTime, content);
+                throw e;
+            }
+            checkpointIfNeeded();
+        }
+        current.await(record);
+    }
+
+    /**
+     * @inheritDoc
+     * 予定は、所要時間と共にジャーナルに追記する。
+     * @exception UncheckedIOException ジャーナルへの書き込みに失敗した。
+     */
+    @Override
+    public void add(String dateTime, String content, int duration)
+    {
+        ScheduleJournal current;
+        long record;
+        synchronized (lock) {
+            ensureOpen();
+            super.add(dateTime, content, duration);
+            current = journal;
+            try {
+                record = journal.append(ScheduleJournal.ADD, DateTimeParser.parseMinutes(dateTime), content, duration);
+            }
+            catch (RuntimeException e) {
+                super.remove(dateTime, content);
+                throw e;
+            }
+            checkpointIfNeeded();
+        }
+        current.await(record);
+    }
+
+    /**
+     * @inheritDoc
+     * 予定は、所要時間と共に一つの一括登録のレコードとしてジャーナルに追記する。復元時は、全ての予定を登録するか、いずれも登録しない。
+     * @exception UncheckedIOException ジャーナルへの書き込みに失敗した。
+     */
+    @Override
+    public void addAll(Iterable<Plan> plans)
+    {
+        if (plans == null) {
+            throw new IllegalArgumentException("plans is null.");
+        }
+        // 一度しか反復できない一覧のため、先にコピーする。
+        var list = new ArrayList<Plan>();
+        for (var plan : plans) {
+            list.add(plan);
+        }
+
+        ScheduleJournal current;
+        long record;
+        synchronized (lock) {
+            ensureOpen();
+            super.addAll(list);
+            current = journal;
+            try {
+                record = current.appendAll(list);
+            }
+            catch (RuntimeException e) {
+                for (var plan : list) {
+                    super.remove(DateTimeParser.format(DateTimeParser.toMinutes(plan.getDateTime())), plan.getContent());
+                }
+                throw e;
+            }
+            checkpointIfNeeded();
+        }
+        // スナップショットを保存した場合は、閉じたジャーナルは同期済みとなる。
+        current.await(record);
+    }
+
+    /**
+     * @inheritDoc
+     * 削除は、ジャーナルに追記する。
+     * @exception UncheckedIOException ジャーナルへの書き込みに失敗した。
+     */
+    @Override
+    public void remove(String dateTime, String content)
+    {
+        ScheduleJournal current;
+        long record;
+        synchronized (lock) {
+            ensureOpen();
+            // 追記に失敗した場合に登録し直すため、所要時間を取得しておく。
+            int duration = durationOf(dateTime, content);
+            super.remove(dateTime, content);
+            current = journal;
+            try {
+                record = journal.append(ScheduleJournal.REMOVE, DateTimeParser.parseMinutes(dateTime), content, 0);
+            }
+            catch (RuntimeException e) {
+                super.add(dateTime, content, duration);
+                throw e;
+            }
+            checkpointIfNeeded();
+        }
+        current.await(record);
+    }
+
+    /**
+     * 登録済みの予定の所要時間を取得する。
+     * @param dateTime 日時
+     * @param content 用件
+     * @return 所要時間(分)。予定が見つからない、または日時か用件がnullの場合は0。
+     * @exception DateTimeParseException 日時形式が不正。
+     */
+    private int durationOf(String dateTime, String content)
+    {
+        if (dateTime == null || content == null) {
+            return 0;
+        }
+        long minutes = DateTimeParser.parseMinutes(dateTime);
+        for (var plan : find(dateTime, DateTimeParser.format(minutes + 1))) {
+            if (plan.getContent().equals(content)) {
+                return plan.getDuration();
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * 繰り返しの予定は、ジャーナルとスナップショットに保存できないため、登録できない。
+     * @param recurringPlan 繰り返しの予定
+     * @exception UnsupportedOperationException 常に発生する。
+     */
+    @Override
+    public void addRecurring(RecurringPlan recurringPlan)
+    {
+        throw new UnsupportedOperationException("recurring plans are not durable");
+    }
+
+    /**
+     * 追い出した予定は、ジャーナルに記録できないため、追い出す方針は設定できない。
+     * @param policy 追い出す方針
+     * @exception UnsupportedOperationException 常に発生する。
+     */
+    @Override
+    public void setEvictionPolicy(EvictionPolicy policy)
+    {
+        throw new UnsupportedOperationException("eviction is not durable");
+    }
+
+    /**
+     * 全ての予定をスナップショットに保存し、ジャーナルを新しくする。
+     * 保存中は、予定の登録、削除を待たせる。
+     * @exception IOException ファイルの書き込みに失敗した。
+     */
+    public void checkpoint() throws IOException
+    {
+        synchronized (lock) {
+            ensureOpen();
+            journal.sync();
+            ScheduleSnapshot.write(directory.resolve(SNAPSHOT), generation + 1, size(), cursor(Order.ASCENDING));
+
+            // スナップショットの保存後は、古いジャーナルは不要となる。
+            journal.close();
+            generation++;
+            journal = new ScheduleJournal(journalFile(generation), syncMode);
+            deleteJournals(generation);
+        }
+    }
+
+    /**
+     * 全てのジャーナルをfsyncし、予定表を閉じる。閉じた後は、予定の登録、削除はできない。
+     * @exception IOException ファイルの書き込みに失敗した。
+     */
+    @Override
+    public void close() throws IOException
+    {
+        synchronized (lock) {
+            if (journal != null) {
+                journal.close();
+                journal = null;
+            }
+        }
+    }
+
+    /**
+     * ジャーナルのレコード数が一定に達した場合に、スナップショットを保存する。
+     */
+    private void checkpointIfNeeded()
+    {
+        if (journal.size() >= CHECKPOINT_RECORDS) {
+            try {
+                checkpoint();
+            }
+            catch (IOException ioe) {
+                throw new UncheckedIOException(ioe);
+            }
+        }
+    }
+
+    /**
+     * 予定表が閉じていないことを確認する。
+     * @exception IllegalStateException 予定表が閉じている。
+     */
+    private void ensureOpen()
+    {
+        if (journal == null) {
+            throw new IllegalStateException("schedule is closed");
+        }
+    }
+
+    /**
+     * ジャーナルのファイルを取得する。
+     * @param generation 世代
+     * @return ジャーナルのファイル
+     */
+    private Path journalFile(long generation)
+    {
+        return directory.resolve("journal-" + generation + ".log");
+    }
+
+    /**
+     * 指定した世代より前のジャーナルを削除する。世代が数値でないファイルは、ジャーナルではないため残す。
+     * @param generation 世代
+     * @exception UncheckedIOException 削除に失敗した。
+     */
+    private void deleteJournals(long generation)
+    {
+        try (var files = Files.newDirectoryStream(directory, "journal-*.log")) {
+            for (var file : files) {
+                var name = file.getFileName().toString();
+                long fileGeneration;
+                try {
+                    fileGeneration = Long.parseLong(name.substring("journal-".length(), name.length() - ".log".length()));
+                }
+                catch (NumberFormatException nfe) {
+                    continue;
+                }
+                if (fileGeneration < generation) {
+                    Files.delete(file);
+                }
+            }
+        }
+        catch (IOException ioe) {
+            throw new UncheckedIOException(ioe);
+        }
+    }
+}
@@ -0,0 +1,249 @@
+/*
+ * Copyright (c) 2020, 2021, Patineboot
+ * All rights reserved.
+ */
+
+package com.patineboot.education;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * 予定表の予定を追い出す方針クラスです。
+ * 最大登録件数に達した予定表への登録は、例外とせずに、方針に従って予定を追い出してから登録します。
+ *
+ * 方針は次の通りです。
+ * - oldest: 日時の最も古い予定から、登録に必要な件数を追い出す。
+ * - expireAfter: 現在の日時から有効期間を引いた日時より前の予定を、期限切れとして追い出す。
+ *   期限切れの予定がない場合は、登録は最大登録件数の例外となる。orOldestを指定した場合は、最も古い予定を追い出す。
+ * .
+ * 追い出す予定は、日時の範囲で一括して削除します。
+ * 保管先を指定した場合は、追い出した予定を、予定表から削除した後に日時の昇順で渡します。保管できなかった予定は、予定表に戻します。
+ * 掃除の間隔を指定した場合は、予定表がバックグラウンドのスレッドで、期限切れの予定を定期的に追い出します。
+ * 掃除で発生した例外は、通知先に渡します。通知先を指定しない場合は、System.Loggerに警告として出力します。
+ * 繰り返しの予定は、追い出しません。
+ * @implSpec このクラスは不変でスレッドセーフです。
+ */
+public final class EvictionPolicy {
+
+    /**
+     * 有効期間。期限切れとしない場合はnull。
+     */
+    private final Duration timeToLive;
+
+    /**
+     * 最も古い予定を追い出す場合はtrue
+     */
+    private final boolean evictsOldest;
+
+    /**
+     * 追い出した予定の保管先。保管しない場合はnull。
+     */
+    private final Consumer<List<Plan>> archive;
+
+    /**
+     * 期限切れの予定を掃除する間隔。掃除しない場合はnull。
+     */
+    private final Duration sweepInterval;
+
+    /**
+     * 掃除で発生した例外の通知先。ログに出力する場合はnull。
+     */
+    private final Consumer<RuntimeException> sweepFailure;
+
+    /**
+     * 現在の日時を取得する時計
+     */
+    private final Clock clock;
+
+    /**
+     * 掃除で発生した例外を出力するロガー
+     */
+    private static final System.Logger LOGGER = System.getLogger(EvictionPolicy.class.getName());
+
+    /**
+     * 追い出す方針を作成する。
+     * @param timeToLive 有効期間
+     * @param evictsOldest 最も古い予定を追い出す場合はtrue
+     * @param archive 追い出した予定の保管先
+     * @param sweepInterval 期限切れの予定を掃除する間隔
+     * @param sweepFailure 掃除で発生した例外の通知先
+     * @param clock 現在の日時を取得する時計
+     */
+    private EvictionPolicy(Duration timeToLive, boolean evictsOldest, Consumer<List<Plan>> archive, Duration sweepInterval,
+            Consumer<RuntimeException> sweepFailure, Clock clock)
+    {
+        this.timeToLive = timeToLive;
+        this.evictsOldest = evictsOldest;
+        this.archive = archive;
+        this.sweepInterval = sweepInterval;
+        this.sweepFailure = sweepFailure;
+        this.clock = clock;
+    }
+
+    /**
+     * 日時の最も古い予定から追い出す方針を作成する。
+     * @return 追い出す方針
+     */
+    public static EvictionPolicy oldest()
+    {
+        return new EvictionPolicy(null, true, null, null, null, Clock.systemDefaultZone());
+    }
+
+    /**
+     * 有効期間を過ぎた予定を追い出す方針を作成する。
+     * @param timeToLive 有効期間。1分以上。
+     * @return 追い出す方針
+     * @exception IllegalArgumentException timeToLiveがnull。1分未満。
+     */
+    public static EvictionPolicy expireAfter(Duration timeToLive)
+    {
+        if (timeToLive == null || timeToLive.compareTo(Duration.ofMinutes(1)) < 0) {
+            throw new IllegalArgumentException("timeToLive is null or shorter than a minute.");
+        }
+        return new EvictionPolicy(timeToLive, false, null, null, null, Clock.systemDefaultZone());
+    }
+
+    /**
+     * 期限切れの予定がない場合に、最も古い予定を追い出す方針を作成する。この方針は変更しない。
+     * @return 追い出す方針
+     */
+    public EvictionPolicy orOldest()
+    {
+        return new EvictionPolicy(timeToLive, true, archive, sweepInterval, sweepFailure, clock);
+    }
+
+    /**
+     * 追い出した予定を保管先に渡す方針を作成する。この方針は変更しない。
+     * 保管先は、予定を追い出したスレッド(登録または掃除のスレッド)で、予定表のロックの外で呼び出す。
+     * 保管先が例外を投げた場合、追い出した予定は予定表に戻し、例外は追い出したスレッドに伝わる。
+     * @param archive 追い出した予定の保管先。日時の昇順の予定の一覧を受け取る。
+     * @return 追い出す方針
+     * @exception IllegalArgumentException archiveがnull。
+     */
+    public EvictionPolicy archiveTo(Consumer<List<Plan>> archive)
+    {
+        if (archive == null) {
+            throw new IllegalArgumentException("archive is null.");
+        }
+        return new EvictionPolicy(timeToLive, evictsOldest, archive, sweepInterval, sweepFailure, clock);
+    }
+
+    /**
+     * 期限切れの予定を、一定の間隔で掃除する方針を作成する。この方針は変更しない。
+     * 掃除は、予定表とは別のスレッドで行うため、スレッドセーフな格納方式の予定表にのみ設定できる。
+     * @param interval 掃除の間隔
+     * @return 追い出す方針
+     * @exception IllegalArgumentException intervalがnull、0以下。
+     * @exception IllegalStateException 有効期間を指定していない。
+     */
+    public EvictionPolicy sweepEvery(Duration interval)
+    {
+        if (interval == null || interval.isZero() || interval.isNegative()) {
+            throw new IllegalArgumentException("interval is null, zero or negative.");
+        }
+        if (timeToLive == null) {
+            throw new IllegalStateException("timeToLive is not specified.");
+        }
+        return new EvictionPolicy(timeToLive, evictsOldest, archive, interval, sweepFailure, clock);
+    }
+
+    /**
+     * 掃除で発生した例外の通知先を指定した方針を作成する。この方針は変更しない。
+     * 通知先は、掃除のスレッドで呼び出す。通知先が投げた例外は、ログに出力する。
+     * @param handler 例外の通知先
+     * @return 追い出す方針
+     * @exception IllegalArgumentException handlerがnull。
+     */
+    public EvictionPolicy onSweepFailure(Consumer<RuntimeException> handler)
+    {
+        if (handler == null) {
+            throw new IllegalArgumentException("handler is null.");
+        }
+        return new EvictionPolicy(timeToLive, evictsOldest, archive, sweepInterval, handler, clock);
+    }
+
+    /**
+     * 現在の日時を取得する時計を変更した方針を作成する。この方針は変更しない。
+     * @param clock 時計
+     * @return 追い出す方針
+     * @exception IllegalArgumentException clockがnull。
+     */
+    public EvictionPolicy withClock(Clock clock)
+    {
+        if (clock == null) {
+            throw new IllegalArgumentException("clock is null.");
+        }
+        return new EvictionPolicy(timeToLive, evictsOldest, archive, sweepInterval, sweepFailure, clock);
+    }
+
+    /**
+     * 最も古い予定を追い出すかを取得する。
+     * @return 追い出す場合はtrue
+     */
+    boolean evictsOldest()
+    {
+        return evictsOldest;
+    }
+
+    /**
+     * 期限切れの予定を掃除する間隔を取得する。
+     * @return 掃除の間隔。掃除しない場合はnull。
+     */
+    Duration sweepInterval()
+    {
+        return sweepInterval;
+    }
+
+    /**
+     * 期限切れとする日時の境界を求める。現在の日時から有効期間を引き、分未満を切り捨てる。
+     * @return この日時より前の予定を期限切れとする。期限切れとしない場合はnull。
+     */
+    LocalDateTime expiryLimit()
+    {
+        if (timeToLive == null) {
+            return null;
+        }
+        return LocalDateTime.now(clock).minus(timeToLive).truncatedTo(ChronoUnit.MINUTES);
+    }
+
+    /**
+     * 追い出した予定を、保管先に渡す。保管しない場合は何もしない。
+     * @param plans 追い出した予定の一覧。日時の昇順。
+     */
+    void archive(List<Plan> plans)
+    {
+        if (archive != null && !plans.isEmpty()) {
+            archive.accept(plans);
+        }
+    }
+
+    /**
+     * 掃除で発生した例外を、通知先に渡す。通知先を指定していない場合は、ログに出力する。
+     * @param exception 掃除で発生した例外
+     */
+    void sweepFailed(RuntimeException exception)
+    {
+        if (sweepFailure != null) {
+            try {
+                sweepFailure.accept(exception);
+                return;
+            }
+            catch (RuntimeException e) {
+                exception.addSuppressed(e);
+            }
+        }
+        LOGGER.log(System.Logger.Level.WARNING, "failed to sweep expired plans.", exception);
+    }
+
+    @Override
+    public String toString()
+    {
+        return "EvictionPolicy[timeToLive=" + timeToLive + ", evictsOldest=" + evictsOldest
+                + ", archive=" + (archive != null) + ", sweepInterval=" + sweepInterval + "]";
+    }
+}
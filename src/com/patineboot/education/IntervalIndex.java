@@ -0,0 +1,324 @@
+/*
+ * Copyright (c) 2020, 2021, Patineboot
+ * All rights reserved.
+ */
+
+package com.patineboot.education;
+
+import java.util.function.Predicate;
+
+/**
+ * 予定を、予定が占める時間の範囲で引く索引クラスです。
+ * 予定を日時と用件の順に並べたAVL木とし、節毎に部分木の予定の終了日時の最大値を持たせた区間木です。
+ * 範囲と重なる予定の検索は、予定の件数をn、見つかった予定の件数をkとして、O(log n + k)で行います。
+ * 予定の区間が長く入れ子になり、範囲と重ならない予定の部分木を多く辿る場合は、最悪でO(k log n)となります。
+ * 予定の登録、削除は、木の回転と、根までの経路の終了日時の最大値の更新で、O(log n)で行います。
+ *
+ * 予定は、日時から所要時間が経過するまでの時間を占めます。
+ * 所要時間が0の予定は日時の時点のみを占め、日時が範囲の始点以上、終点より前の場合に範囲と重なるとします。
+ * @implSpec このクラスはスレッドセーフではありません。呼び出し元で排他してください。
+ */
+final class IntervalIndex {
+
+    /**
+     * 木の節です。
+     */
+    private static final class Node {
+
+        /**
+         * 予定の日時(分オフセット)
+         */
+        final long start;
+
+        /**
+         * 予定の終了日時(分オフセット、これを含まない)。所要時間が0の予定は、日時の1分後。
+         */
+        final long end;
+
+        /**
+         * 予定
+         */
+        final Plan plan;
+
+        /**
+         * 節を根とする部分木の、終了日時の最大値
+         */
+        long maxEnd;
+
+        /**
+         * 節を根とする部分木の高さ
+         */
+        int height = 1;
+
+        /**
+         * 左の部分木。節より前の予定。
+         */
+        Node left;
+
+        /**
+         * 右の部分木。節より後の予定。
+         */
+        Node right;
+
+        /**
+         * 予定の節を作成する。
+         * @param plan 予定
+         */
+        Node(Plan plan)
+        {
+            this.start = DateTimeParser.toMinutes(plan.getDateTime());
+            this.end = start + Math.max(plan.getDuration(), 1);
+            this.plan = plan;
+            this.maxEnd = end;
+        }
+
+        /**
+         * 予定と、節の予定を比較する。
+         * @param minutes 日時(分オフセット)
+         * @param content 用件
+         * @return 予定が小さい場合は負、等しい場合は0、大きい場合は正
+         */
+        int compare(long minutes, String content)
+        {
+            int result = Long.compare(minutes, start);
+            return result != 0 ? result : content.compareTo(plan.getContent());
+        }
+    }
+
+    /**
+     * 木の根。予定がない場合はnull。
+     */
+    private Node root;
+
+    /**
+     * 索引した予定の件数
+     */
+    private long size;
+
+    /**
+     * 予定を索引に追加する。同じ日時と用件の予定を索引済みの場合は、置き換える。
+     * @param plan 予定
+     */
+    void add(Plan plan)
+    {
+        root = insert(root, new Node(plan));
+    }
+
+    /**
+     * 予定を索引から削除する。所要時間は比較しない。
+     * @param plan 予定
+     */
+    void remove(Plan plan)
+    {
+        root = delete(root, DateTimeParser.toMinutes(plan.getDateTime()), plan.getContent());
+    }
+
+    /**
+     * 範囲と重なる予定を、日時と用件の昇順に受け渡す。
+     * @param from 始点の日時(分オフセット、これを含む)
+     * @param to 終点の日時(分オフセット、これを含まない)
+     * @param action 予定を受け取る処理。falseを返した場合は、以降の予定を受け渡さない。
+     * @return 全ての予定を受け渡した場合はtrue。処理が中断した場合はfalse。
+     */
+    boolean forEachOverlapping(long from, long to, Predicate<Plan> action)
+    {
+        return overlapping(root, from, to, action);
+    }
+
+    /**
+     * 索引した予定の件数を取得する。
+     * @return 予定の件数
+     */
+    long size()
+    {
+        return size;
+    }
+
+    /**
+     * 部分木から、範囲と重なる予定を昇順に受け渡す。
+     * @param node 部分木の根
+     * @param from 始点の日時(分オフセット、これを含む)
+     * @param to 終点の日時(分オフセット、これを含まない)
+     * @param action 予定を受け取る処理
+     * @return 全ての予定を受け渡した場合はtrue。処理が中断した場合はfalse。
+     */
+    private static boolean overlapping(Node node, long from, long to, Predicate<Plan> action)
+    {
+        // 部分木の全ての予定が、始点までに終わる場合は辿らない。
+        while (node != null && node.maxEnd > from) {
+            if (!overlapping(node.left, from, to, action)) {
+                return false;
+            }
+            // 節と右の部分木の予定は、終点以降に始まる。
+            if (node.start >= to) {
+                return true;
+            }
+            if (node.end > from && !action.test(node.plan)) {
+                return false;
+            }
+            node = node.right;
+        }
+        return true;
+    }
+
+    /**
+     * 部分木に節を挿入し、平衡させる。
+     * @param node 部分木の根
+     * @param added 挿入する節
+     * @return 部分木の新しい根
+     */
+    private Node insert(Node node, Node added)
+    {
+        if (node == null) {
+            size++;
+            return added;
+        }
+        int result = node.compare(added.start, added.plan.getContent());
+        if (result < 0) {
+            node.left = insert(node.left, added);
+        }
+        else if (result > 0) {
+            node.right = insert(node.right, added);
+        }
+        else {
+            added.left = node.left;
+            added.right = node.right;
+            node = added;
+        }
+        return balance(node);
+    }
+
+    /**
+     * 部分木から予定の節を削除し、平衡させる。
+     * @param node 部分木の根
+     * @param minutes 日時(分オフセット)
+     * @param content 用件
+     * @return 部分木の新しい根
+     */
+    private Node delete(Node node, long minutes, String content)
+    {
+        if (node == null) {
+            return null;
+        }
+        int result = node.compare(minutes, content);
+        if (result < 0) {
+            node.left = delete(node.left, minutes, content);
+        }
+        else if (result > 0) {
+            node.right = delete(node.right, minutes, content);
+        }
+        else {
+            size--;
+            if (node.left == null) {
+                return node.right;
+            }
+            if (node.right == null) {
+                return node.left;
+            }
+            // 右の部分木の最小の節で置き換える。
+            var successor = node.right;
+            while (successor.left != null) {
+                successor = successor.left;
+            }
+            successor.right = deleteMin(node.right);
+            successor.left = node.left;
+            node = successor;
+        }
+        return balance(node);
+    }
+
+    /**
+     * 部分木から最小の節を取り除き、平衡させる。
+     * @param node 部分木の根
+     * @return 部分木の新しい根
+     */
+    private static Node deleteMin(Node node)
+    {
+        if (node.left == null) {
+            return node.right;
+        }
+        node.left = deleteMin(node.left);
+        return balance(node);
+    }
+
+    /**
+     * 部分木の高さを取得する。
+     * @param node 部分木の根
+     * @return 高さ。空の部分木は0。
+     */
+    private static int height(Node node)
+    {
+        return node == null ? 0 : node.height;
+    }
+
+    /**
+     * 子の部分木から、節の高さと終了日時の最大値を求め直す。
+     * @param node 節
+     */
+    private static void update(Node node)
+    {
+        node.height = Math.max(height(node.left), height(node.right)) + 1;
+        long maxEnd = node.end;
+        if (node.left != null) {
+            maxEnd = Math.max(maxEnd, node.left.maxEnd);
+        }
+        if (node.right != null) {
+            maxEnd = Math.max(maxEnd, node.right.maxEnd);
+        }
+        node.maxEnd = maxEnd;
+    }
+
+    /**
+     * 左右の部分木の高さの差が2の場合は、回転して平衡させる。
+     * @param node 部分木の根
+     * @return 部分木の新しい根
+     */
+    private static Node balance(Node node)
+    {
+        update(node);
+        int difference = height(node.left) - height(node.right);
+        if (difference > 1) {
+            if (height(node.left.left) < height(node.left.right)) {
+                node.left = rotateLeft(node.left);
+            }
+            return rotateRight(node);
+        }
+        if (difference < -1) {
+            if (height(node.right.right) < height(node.right.left)) {
+                node.right = rotateRight(node.right);
+            }
+            return rotateLeft(node);
+        }
+        return node;
+    }
+
+    /**
+     * 部分木を左に回転する。右の子が根となる。
+     * @param node 部分木の根
+     * @return 部分木の新しい根
+     */
+    private static Node rotateLeft(Node node)
+    {
+        var top = node.right;
+        node.right = top.left;
+        top.left = node;
+        update(node);
+        update(top);
+        return top;
+    }
+
+    /**
+     * 部分木を右に回転する。左の子が根となる。
+     * @param node 部分木の根
+     * @return 部分木の新しい根
+     */
+    private static Node rotateRight(Node node)
+    {
+        var top = node.left;
+        node.left = top.right;
+        top.right = node;
+        update(node);
+        update(top);
+        return top;
+    }
+}
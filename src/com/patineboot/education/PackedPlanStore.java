@@ -0,0 +1,710 @@
+/*
+ * Copyright (c) 2020, 2021, Patineboot
+ * All rights reserved.
+ */
+
+package com.patineboot.education;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SortedSet;
+import java.util.function.LongConsumer;
+
+/**
+ * 日時を分オフセットのlongで、用件を配列で格納するクラスです。
+ * 予定は、ソート済みの固定長のブロックに分けて格納します。
+ * 予定、LocalDateTime、木のノードを保持しないため、TreeSetより少ないメモリで格納できます。
+ *
+ * 用件は、ヒープ外の領域に格納することもできます。その場合、ブロックは用件の文字列の代わりにハンドルを持ち、
+ * 用件の比較は文字列に復元せずに行います。検索結果の予定は、用件を取得する時に復元します。
+ * 削除した用件が、有効な用件以上に増えた場合は、全ての用件を新しい領域に複写し、ハンドルを付け替えます。
+ *
+ * 検索結果は、検索時のスナップショットとして、予定表の変更を反映しません。
+ */
+final class PackedPlanStore implements PlanStore {
+
+    /**
+     * ブロックに格納できる予定の件数
+     */
+    static final int BLOCK_CAPACITY = 1024;
+
+    /**
+     * 予定のブロックです。日時と用件を、ソート済みで先頭から詰めて格納します。
+     */
+    private static final class Block {
+
+        /**
+         * 日時(分オフセット)
+         */
+        final long[] keys = new long[BLOCK_CAPACITY];
+
+        /**
+         * 用件。用件をヒープ外に格納する場合はnull。
+         */
+        final String[] contents;
+
+        /**
+         * ヒープ外に格納した用件のハンドル。用件をヒープ外に格納しない場合はnull。
+         */
+        final long[] handles;
+
+        /**
+         * 格納している予定の件数
+         */
+        int size;
+
+        /**
+         * ブロックを作成する。
+         * @param isOffHeap 用件をヒープ外に格納する場合はtrue
+         */
+        Block(boolean isOffHeap)
+        {
+            contents = isOffHeap ? null : new String[BLOCK_CAPACITY];
+            handles = isOffHeap ? new long[BLOCK_CAPACITY] : null;
+        }
+    }
+
+    /**
+     * ソート済みのブロックの一覧
+     */
+    private Block[] blocks = new Block[16];
+
+    /**
+     * ブロックの数
+     */
+    private int blockCount;
+
+    /**
+     * 格納している予定の件数
+     */
+    private long size;
+
+    /**
+     * 用件を格納するヒープ外の領域。用件をヒープ外に格納しない場合はnull。
+     */
+    private ContentArena arena;
+
+    /**
+     * 用件を配列で格納する、予定の格納先を作成する。
+     */
+    PackedPlanStore()
+    {
+        this(false);
+    }
+
+    /**
+     * 予定の格納先を作成する。
+     * @param isOffHeap 用件をヒープ外の領域に格納する場合はtrue
+     */
+    PackedPlanStore(boolean isOffHeap)
+    {
+        this.arena = isOffHeap ? new ContentArena() : null;
+    }
+
+    @Override
+    public long size()
+    {
+        return size;
+    }
+
+    @Override
+    public boolean add(Plan plan)
+    {
+        long key = DateTimeParser.toMinutes(plan.getDateTime());
+        var content = plan.getContent();
+
+        if (blockCount == 0) {
+            insertBlock(0, newBlock());
+        }
+        int blockIndex = blocks[0].size == 0 ? 0 : findBlock(key, content);
+        if (blockIndex == blockCount) {
+            // 全ての予定より後ろの予定は、最後のブロックに追加する。
+            blockIndex--;
+        }
+        var block = blocks[blockIndex];
+        int index = search(block, key, content);
+        if (index >= 0) {
+            return false;
+        }
+        index = -index - 1;
+
+        if (block.size == BLOCK_CAPACITY) {
+            if (index == BLOCK_CAPACITY) {
+                // 末尾への追加は、ブロックを分割せずに新しいブロックに追加する。
+                block = newBlock();
+                blockIndex++;
+                insertBlock(blockIndex, block);
+                index = 0;
+            }
+            else {
+                var upper = split(blockIndex);
+                if (index > block.size) {
+                    block = upper;
+                    index -= BLOCK_CAPACITY - upper.size;
+                }
+            }
+        }
+
+        move(block, index, block, index + 1, block.size - index);
+        set(block, index, key, content);
+        block.size++;
+        size++;
+        return true;
+    }
+
+    @Override
+    public boolean remove(Plan plan)
+    {
+        long key = DateTimeParser.toMinutes(plan.getDateTime());
+        var content = plan.getContent();
+
+        int blockIndex = findBlock(key, content);
+        if (blockIndex == blockCount) {
+            return false;
+        }
+        var block = blocks[blockIndex];
+        int index = search(block, key, content);
+        if (index < 0) {
+            return false;
+        }
+
+        if (arena != null) {
+            arena.free(block.handles[index]);
+        }
+        move(block, index + 1, block, index, block.size - index - 1);
+        block.size--;
+        if (block.contents != null) {
+            block.contents[block.size] = null;
+        }
+        if (block.size == 0) {
+            removeBlock(blockIndex);
+        }
+        size--;
+        if (arena != null && arena.needsCompaction()) {
+            compact();
+        }
+        return true;
+    }
+
+    @Override
+    public Plan addAll(Plan[] sorted)
+    {
+        if (sorted.length == 0) {
+            return null;
+        }
+        if (blockCount > 0) {
+            var last = blocks[blockCount - 1];
+            if (compare(last, last.size - 1, DateTimeParser.toMinutes(sorted[0].getDateTime()), sorted[0].getContent()) < 0) {
+                // 全ての予定より後ろの予定は、最後のブロックから詰めて追加する。
+                append(sorted);
+                return null;
+            }
+        }
+        if ((long)sorted.length * (BLOCK_CAPACITY / 2) <= size) {
+            // 少数の予定は、重複を確認してから、1件ずつ挿入する。
+            for (var plan : sorted) {
+                if (contains(DateTimeParser.toMinutes(plan.getDateTime()), plan.getContent())) {
+                    return plan;
+                }
+            }
+            for (var plan : sorted) {
+                add(plan);
+            }
+            return null;
+        }
+
+        // 格納済みの予定と併合し、ブロックを詰めて作り直す。
+        var merged = new Block[(int)((size + sorted.length) / BLOCK_CAPACITY) + 1];
+        var added = arena != null ? new long[sorted.length] : null;
+        int mergedCount = 0;
+        var current = newBlock();
+        int b = 0;
+        int index = 0;
+        int i = 0;
+        while (i < sorted.length || b < blockCount) {
+            if (b < blockCount && index >= blocks[b].size) {
+                b++;
+                index = 0;
+                continue;
+            }
+            if (current.size == BLOCK_CAPACITY) {
+                merged[mergedCount++] = current;
+                current = newBlock();
+            }
+            if (i < sorted.length) {
+                long newKey = DateTimeParser.toMinutes(sorted[i].getDateTime());
+                var newContent = sorted[i].getContent();
+                int result = b < blockCount ? compare(blocks[b], index, newKey, newContent) : 1;
+                if (result == 0) {
+                    // 格納済みのブロックは変更していない。追記した用件は削除する。
+                    if (arena != null) {
+                        for (int n = 0; n < i; n++) {
+                            arena.free(added[n]);
+                        }
+                    }
+                    return sorted[i];
+                }
+                if (result > 0) {
+                    set(current, current.size, newKey, newContent);
+                    if (arena != null) {
+                        added[i] = current.handles[current.size];
+                    }
+                    i++;
+                    current.size++;
+                    continue;
+                }
+            }
+            move(blocks[b], index, current, current.size, 1);
+            index++;
+            current.size++;
+        }
+        if (current.size > 0) {
+            merged[mergedCount++] = current;
+        }
+
+        blocks = merged;
+        blockCount = mergedCount;
+        size += sorted.length;
+        return null;
+    }
+
+    @Override
+    public SortedSet<Plan> subSet(Plan from, Plan to)
+    {
+        long fromKey = DateTimeParser.toMinutes(from.getDateTime());
+        long toKey = DateTimeParser.toMinutes(to.getDateTime());
+
+        // 始点の位置から、終点の位置の前までを取り出す。
+        int fromBlock = findBlock(fromKey, from.getContent());
+        int fromIndex = fromBlock == blockCount ? 0 : lowerBound(blocks[fromBlock], fromKey, from.getContent());
+        int toBlock = findBlock(toKey, to.getContent());
+        int toIndex = toBlock == blockCount ? 0 : lowerBound(blocks[toBlock], toKey, to.getContent());
+
+        long count = 0;
+        for (int b = fromBlock; b < toBlock; b++) {
+            count += blocks[b].size;
+        }
+        count += toIndex - fromIndex;
+        if (count == 0) {
+            return SortedPlanSet.EMPTY;
+        }
+
+        var plans = new Plan[Math.toIntExact(count)];
+        int i = 0;
+        for (int b = fromBlock; b <= toBlock && b < blockCount; b++) {
+            var block = blocks[b];
+            int start = b == fromBlock ? fromIndex : 0;
+            int end = b == toBlock ? toIndex : block.size;
+            for (int index = start; index < end; index++) {
+                plans[i++] = toPlan(block, index);
+            }
+        }
+        return new SortedPlanSet(plans);
+    }
+
+    @Override
+    public List<Plan> page(Plan from, boolean fromInclusive, Plan to, int limit, boolean descending)
+    {
+        var page = new ArrayList<Plan>(Math.min(limit, BLOCK_CAPACITY));
+        long fromKey = DateTimeParser.toMinutes(from.getDateTime());
+        long toKey = DateTimeParser.toMinutes(to.getDateTime());
+
+        int fromBlock = findBlock(fromKey, from.getContent());
+        int fromIndex = fromBlock == blockCount ? 0 : lowerBound(blocks[fromBlock], fromKey, from.getContent());
+        if (!fromInclusive && fromBlock < blockCount && search(blocks[fromBlock], fromKey, from.getContent()) >= 0) {
+            // 始点と同じ予定は含めない。
+            fromIndex++;
+        }
+        int toBlock = findBlock(toKey, to.getContent());
+        int toIndex = toBlock == blockCount ? 0 : lowerBound(blocks[toBlock], toKey, to.getContent());
+
+        if (!descending) {
+            int b = fromBlock;
+            int index = fromIndex;
+            while (page.size() < limit && (b < toBlock || (b == toBlock && index < toIndex))) {
+                if (index >= blocks[b].size) {
+                    b++;
+                    index = 0;
+                    continue;
+                }
+                page.add(toPlan(blocks[b], index));
+                index++;
+            }
+        }
+        else {
+            // 終点の位置から、一つずつ前に戻る。
+            int b = toBlock;
+            int index = toIndex;
+            while (page.size() < limit) {
+                if (index == 0) {
+                    if (b == 0) {
+                        break;
+                    }
+                    b--;
+                    index = blocks[b].size;
+                    continue;
+                }
+                index--;
+                if (b < fromBlock || (b == fromBlock && index < fromIndex)) {
+                    break;
+                }
+                page.add(toPlan(blocks[b], index));
+            }
+        }
+        return page;
+    }
+
+    @Override
+    public void forEachKey(Plan from, Plan to, LongConsumer action)
+    {
+        long fromKey = DateTimeParser.toMinutes(from.getDateTime());
+        long toKey = DateTimeParser.toMinutes(to.getDateTime());
+        int fromBlock = findBlock(fromKey, from.getContent());
+        int fromIndex = fromBlock == blockCount ? 0 : lowerBound(blocks[fromBlock], fromKey, from.getContent());
+        int toBlock = findBlock(toKey, to.getContent());
+        int toIndex = toBlock == blockCount ? 0 : lowerBound(blocks[toBlock], toKey, to.getContent());
+
+        for (int b = fromBlock; b <= toBlock && b < blockCount; b++) {
+            var block = blocks[b];
+            int end = b == toBlock ? toIndex : block.size;
+            for (int index = b == fromBlock ? fromIndex : 0; index < end; index++) {
+                action.accept(block.keys[index]);
+            }
+        }
+    }
+
+    /**
+     * @inheritDoc
+     * 始点と終点の位置を二分探索し、その間のブロックの件数を合計する。
+     */
+    @Override
+    public long count(Plan from, Plan to)
+    {
+        long fromKey = DateTimeParser.toMinutes(from.getDateTime());
+        long toKey = DateTimeParser.toMinutes(to.getDateTime());
+        int fromBlock = findBlock(fromKey, from.getContent());
+        int fromIndex = fromBlock == blockCount ? 0 : lowerBound(blocks[fromBlock], fromKey, from.getContent());
+        int toBlock = findBlock(toKey, to.getContent());
+        int toIndex = toBlock == blockCount ? 0 : lowerBound(blocks[toBlock], toKey, to.getContent());
+
+        long count = toIndex - fromIndex;
+        for (int b = fromBlock; b < toBlock; b++) {
+            count += blocks[b].size;
+        }
+        return Math.max(count, 0);
+    }
+
+    /**
+     * @inheritDoc
+     * 範囲の間のブロックは、配列から取り除く。始点と終点のブロックは、範囲外の予定を詰める。
+     */
+    @Override
+    public Plan[] removeRange(Plan from, Plan to)
+    {
+        long fromKey = DateTimeParser.toMinutes(from.getDateTime());
+        long toKey = DateTimeParser.toMinutes(to.getDateTime());
+        int fromBlock = findBlock(fromKey, from.getContent());
+        int fromIndex = fromBlock == blockCount ? 0 : lowerBound(blocks[fromBlock], fromKey, from.getContent());
+        int toBlock = findBlock(toKey, to.getContent());
+        int toIndex = toBlock == blockCount ? 0 : lowerBound(blocks[toBlock], toKey, to.getContent());
+
+        long count = toIndex - fromIndex;
+        for (int b = fromBlock; b < toBlock; b++) {
+            count += blocks[b].size;
+        }
+        if (count <= 0) {
+            return new Plan[0];
+        }
+
+        var removed = new Plan[Math.toIntExact(count)];
+        int i = 0;
+        for (int b = fromBlock; b <= toBlock && b < blockCount; b++) {
+            var block = blocks[b];
+            int end = b == toBlock ? toIndex : block.size;
+            for (int index = b == fromBlock ? fromIndex : 0; index < end; index++) {
+                // ヒープ外の用件は上書きしないため、削除した予定からも復元できる。
+                removed[i++] = toPlan(block, index);
+                if (arena != null) {
+                    arena.free(block.handles[index]);
+                }
+            }
+        }
+
+        if (fromBlock == toBlock) {
+            var block = blocks[fromBlock];
+            move(block, toIndex, block, fromIndex, block.size - toIndex);
+            truncate(block, block.size - (toIndex - fromIndex));
+            if (block.size == 0) {
+                removeBlock(fromBlock);
+            }
+        }
+        else {
+            // 始点のブロックの後半と、終点のブロックの前半を削除し、空になったブロックと間のブロックを取り除く。
+            truncate(blocks[fromBlock], fromIndex);
+            if (toBlock < blockCount) {
+                var last = blocks[toBlock];
+                move(last, toIndex, last, 0, last.size - toIndex);
+                truncate(last, last.size - toIndex);
+            }
+            int removeFrom = blocks[fromBlock].size == 0 ? fromBlock : fromBlock + 1;
+            int removeTo = toBlock < blockCount && blocks[toBlock].size == 0 ? toBlock + 1 : toBlock;
+            System.arraycopy(blocks, removeTo, blocks, removeFrom, blockCount - removeTo);
+            Arrays.fill(blocks, blockCount - (removeTo - removeFrom), blockCount, null);
+            blockCount -= removeTo - removeFrom;
+        }
+        size -= removed.length;
+        if (arena != null && arena.needsCompaction()) {
+            compact();
+        }
+        return removed;
+    }
+
+    /**
+     * ブロックの件数を減らし、範囲外となった用件の参照を消す。
+     * @param block ブロック
+     * @param size 新しい件数
+     */
+    private static void truncate(Block block, int size)
+    {
+        if (block.contents != null) {
+            Arrays.fill(block.contents, size, block.size, null);
+        }
+        block.size = size;
+    }
+
+    /**
+     * 全ての予定より後ろの予定を、最後のブロックから詰めて追加する。
+     * @param sorted 予定の配列。昇順にソート済みで、重複がないこと。
+     */
+    private void append(Plan[] sorted)
+    {
+        var block = blocks[blockCount - 1];
+        for (var plan : sorted) {
+            if (block.size == BLOCK_CAPACITY) {
+                block = newBlock();
+                insertBlock(blockCount, block);
+            }
+            set(block, block.size, DateTimeParser.toMinutes(plan.getDateTime()), plan.getContent());
+            block.size++;
+        }
+        size += sorted.length;
+    }
+
+    /**
+     * 予定を格納しているかを確認する。
+     * @param key 日時
+     * @param content 用件
+     * @return 格納している場合はtrue
+     */
+    private boolean contains(long key, String content)
+    {
+        int blockIndex = findBlock(key, content);
+        return blockIndex < blockCount && search(blocks[blockIndex], key, content) >= 0;
+    }
+
+    /**
+     * ブロックに格納している日時と用件から、予定を作成する。
+     * @param block ブロック
+     * @param index 位置
+     * @return 予定
+     */
+    private Plan toPlan(Block block, int index)
+    {
+        var dateTime = DateTimeParser.toLocalDateTime(block.keys[index]);
+        if (arena != null) {
+            long handle = block.handles[index];
+            return new Plan(dateTime, arena.chunk(handle), ContentArena.offset(handle));
+        }
+        return new Plan(dateTime, block.contents[index]);
+    }
+
+    /**
+     * ブロックに格納している予定と、日時と用件の順序を比較する。
+     * @param block ブロック
+     * @param index 位置
+     * @param key 日時
+     * @param content 用件
+     * @return ブロックの予定が前の場合は負、等しい場合は0、後の場合は正
+     */
+    private int compare(Block block, int index, long key, String content)
+    {
+        int result = Long.compare(block.keys[index], key);
+        if (result == 0) {
+            result = arena != null ? arena.compare(block.handles[index], content) : block.contents[index].compareTo(content);
+        }
+        return result;
+    }
+
+    /**
+     * 用件の格納方法に合わせて、ブロックを作成する。
+     * @return ブロック
+     */
+    private Block newBlock()
+    {
+        return new Block(arena != null);
+    }
+
+    /**
+     * ブロックの位置に、日時と用件を書き込む。用件をヒープ外に格納する場合は、用件を追記する。
+     * @param block ブロック
+     * @param index 位置
+     * @param key 日時
+     * @param content 用件
+     */
+    private void set(Block block, int index, long key, String content)
+    {
+        block.keys[index] = key;
+        if (arena != null) {
+            block.handles[index] = arena.put(content);
+        }
+        else {
+            block.contents[index] = content;
+        }
+    }
+
+    /**
+     * ブロックの予定を、他のブロックまたは同じブロックの位置に移動する。
+     * @param from 移動元のブロック
+     * @param fromIndex 移動元の位置
+     * @param to 移動先のブロック
+     * @param toIndex 移動先の位置
+     * @param length 件数
+     */
+    private static void move(Block from, int fromIndex, Block to, int toIndex, int length)
+    {
+        System.arraycopy(from.keys, fromIndex, to.keys, toIndex, length);
+        if (from.handles != null) {
+            System.arraycopy(from.handles, fromIndex, to.handles, toIndex, length);
+        }
+        else {
+            System.arraycopy(from.contents, fromIndex, to.contents, toIndex, length);
+        }
+    }
+
+    /**
+     * 有効な用件のみを新しい領域に複写し、ハンドルを付け替える。
+     * 古い領域は上書きしないため、検索結果の予定は、古い領域から用件を復元できる。
+     */
+    private void compact()
+    {
+        var compacted = new ContentArena();
+        for (int b = 0; b < blockCount; b++) {
+            var block = blocks[b];
+            for (int index = 0; index < block.size; index++) {
+                block.handles[index] = compacted.copy(arena, block.handles[index]);
+            }
+        }
+        arena = compacted;
+    }
+
+    /**
+     * 予定を格納している、または格納すべきブロックを検索する。
+     * 最後の予定が、指定した予定以上となる最初のブロックを返す。
+     * @param key 日時
+     * @param content 用件
+     * @return ブロックの位置。全ての予定より後ろの場合は、blockCount。
+     */
+    private int findBlock(long key, String content)
+    {
+        int low = 0;
+        int high = blockCount;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            var block = blocks[middle];
+            int last = block.size - 1;
+            if (compare(block, last, key, content) < 0) {
+                low = middle + 1;
+            }
+            else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * ブロックから予定を検索する。
+     * @param block ブロック
+     * @param key 日時
+     * @param content 用件
+     * @return 見つかった場合は位置。見つからない場合は、(-(挿入位置) - 1)。
+     */
+    private int search(Block block, long key, String content)
+    {
+        int index = lowerBound(block, key, content);
+        if (index < block.size && compare(block, index, key, content) == 0) {
+            return index;
+        }
+        return -index - 1;
+    }
+
+    /**
+     * ブロックから、指定した予定以上となる最初の位置を検索する。
+     * @param block ブロック
+     * @param key 日時
+     * @param content 用件
+     * @return 位置。全ての予定より後ろの場合は、ブロックの件数。
+     */
+    private int lowerBound(Block block, long key, String content)
+    {
+        int low = 0;
+        int high = block.size;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (compare(block, middle, key, content) < 0) {
+                low = middle + 1;
+            }
+            else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * ブロックを二つに分割する。後半の予定を、新しいブロックに移動する。
+     * @param blockIndex ブロックの位置
+     * @return 新しいブロック
+     */
+    private Block split(int blockIndex)
+    {
+        var lower = blocks[blockIndex];
+        var upper = newBlock();
+        int half = lower.size / 2;
+        upper.size = lower.size - half;
+        move(lower, half, upper, 0, upper.size);
+        if (lower.contents != null) {
+            Arrays.fill(lower.contents, half, lower.size, null);
+        }
+        lower.size = half;
+        insertBlock(blockIndex + 1, upper);
+        return upper;
+    }
+
+    /**
+     * ブロックを挿入する。
+     * @param blockIndex 挿入する位置
+     * @param block ブロック
+     */
+    private void insertBlock(int blockIndex, Block block)
+    {
+        if (blockCount == blocks.length) {
+            blocks = Arrays.copyOf(blocks, blocks.length * 2);
+        }
+        System.arraycopy(blocks, blockIndex, blocks, blockIndex + 1, blockCount - blockIndex);
+        blocks[blockIndex] = block;
+        blockCount++;
+    }
+
+    /**
+     * ブロックを削除する。
+     * @param blockIndex 削除する位置
+     */
+    private void removeBlock(int blockIndex)
+    {
+        System.arraycopy(blocks, blockIndex + 1, blocks, blockIndex, blockCount - blockIndex - 1);
+        blockCount--;
+        blocks[blockCount] = null;
+    }
+}
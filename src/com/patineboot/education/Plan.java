@@ -5,23 +5,31 @@
 
 package com.patineboot.education;
 
+import java.nio.ByteBuffer;
 import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
-import java.time.format.ResolverStyle;
 
 
 /**
  * 予定クラスです。
- * 日時と用件で構築することができます。
- * 日時と用件を取得することができます。
+ * 日時と用件、または日時、用件と所要時間で構築することができます。
+ * 日時と用件、所要時間を取得することができます。
+ * 所要時間は予定の付帯情報で、予定の同一性(比較、等価)は日時と用件のみで決まります。
  * @implSpec このクラスは不変でスレッドセーフです。
  */
 public class Plan implements Comparable<Plan> {
 
     /**
-     * 設定している用件の最大サイズ
+     * 用件の最大サイズの上限。予定表毎の用件の最大サイズは、この値以内で予定表に設定する。
+     * 予定表の格納方式とファイルの形式が、格納できる用件の長さ。
+     * @see Schedule#Schedule(long, int, Schedule.Storage, Schedule.Option...)
      */
-    private static int contentMaxLength;
+    public static final int MAX_CONTENT_LENGTH = 4096;
+
+    /**
+     * 所要時間の上限。31日(分)。
+     * 所要時間のある予定の索引を作成しない予定表は、範囲の始点からこの時間だけ前の予定を辿って、重なる予定を探す。
+     */
+    public static final int MAX_DURATION = 31 * 24 * 60;
 
     /**
      * 日時
@@ -29,55 +37,122 @@ public class Plan implements Comparable<Plan> {
     private final LocalDateTime dateTime;
 
     /**
-     * 用件
+     * 用件。ヒープ外の用件から作成した予定は、最初に取得するまでnull。
+     * 復元した文字列は不変のため、複数のスレッドが同時に復元しても同じ用件となる。
      */
-    private final String content;
+    private String content;
 
     /**
-     * 用件の最大サイズを設定する。
-     * @param length 用件の最大サイズ
-     * @exception IlligalArgumentException 負の値を指定したとき
-     *
-     * メモ：
-     * Planを生成するクラス(Builder)を導入し、PlanはBuilderでのみ生成する。
-     * アプリケーションは、Builderに用件の最大サイズを設定することで、
-     * Plan毎に用件の最大サイズを設定できる。
-     * しかし、顧客の想定はstatic fieldでの即値を使用したチェックだろう。
+     * 用件を格納しているヒープ外のチャンク。文字列の用件で作成した予定はnull。
      */
-    static void configureContentLength(int length)
-    {
-        contentMaxLength = length;
-    }
+    private final ByteBuffer contentChunk;
+
+    /**
+     * 用件の、チャンクでの位置
+     */
+    private final int contentOffset;
+
+    /**
+     * 所要時間(分)。所要時間のない予定は0。
+     */
+    private final int duration;
 
     /**
      * 日時、用件から読み出しのみ可能な予定を作成する。
      * 
      * @param dateTime 日時。YYYYMMDDhhmm形式で指定する。
-     * @param content 用件。全角文字列、事前に設定した文字列以内で指定する。
+     * @param content 用件。全角文字列、MAX_CONTENT_LENGTH文字以内で指定する。予定表毎の最大サイズは、予定表で確認する。
      * @exception DateTimeParseException 日時形式が不正。
      * @exception IllegalArgumentException contentの長さが長すぎる。dateTimeまたはcontentが、null。
-     * @see configureContentLength
+     * @see MAX_CONTENT_LENGTH
+     * @see DateTimeParser
      * @see YYYYMMDDhhmm形式の参考。大文字小文字に意味がある。
      * @see <a href="https://qiita.com/tasogarei/items/df9e43ac36bde55aa928">JavaのDateFormatの小文字vs大文字</a>
      * 日付は、西暦0年1月1日から西暦9999年12月31日。時刻は00:00から23:59の範囲が有効。
      */
     public Plan(String dateTime, String content)
+    {
+        this(dateTime, content, 0);
+    }
+
+    /**
+     * 日時、用件、所要時間から読み出しのみ可能な予定を作成する。
+     * 予定は、日時から所要時間が経過するまでの時間を占める。所要時間が0の予定は、日時の時点のみの予定となる。
+     *
+     * @param dateTime 日時。YYYYMMDDhhmm形式で指定する。
+     * @param content 用件。全角文字列、MAX_CONTENT_LENGTH文字以内で指定する。
+     * @param duration 所要時間(分)。0以上、MAX_DURATION以下で指定する。
+     * @exception DateTimeParseException 日時形式が不正。
+     * @exception IllegalArgumentException contentの長さが長すぎる。durationが範囲外。dateTimeまたはcontentが、null。
+     * @see MAX_DURATION
+     */
+    public Plan(String dateTime, String content, int duration)
     {
         if (dateTime == null || content == null) {
             throw new IllegalArgumentException();
         }
         // 日時の保管
-        var dtf = DateTimeFormatter.ofPattern("uuuuMMddHHmm");
-        dtf = dtf.withResolverStyle(ResolverStyle.STRICT);
         // throw DateTimeParseException when parse error occur.
-        this.dateTime = LocalDateTime.parse(dateTime, dtf);
+        this.dateTime = DateTimeParser.parse(dateTime);
 
         // 用件の保管
         var contentlength = content.codePointCount(0, content.length());
-        if (contentlength > contentMaxLength) {
+        if (contentlength > MAX_CONTENT_LENGTH) {
             throw new IllegalArgumentException("content length over");
         }
+        if (duration < 0 || duration > MAX_DURATION) {
+            throw new IllegalArgumentException("duration is out of range");
+        }
         this.content = content;
+        this.contentChunk = null;
+        this.contentOffset = 0;
+        this.duration = duration;
+    }
+
+    /**
+     * 正当性を確認済みの日時、用件から予定を作成する。
+     * 予定表の格納方式が、格納している日時と用件から予定を復元する時に使用する。
+     *
+     * @param dateTime 日時
+     * @param content 用件
+     */
+    Plan(LocalDateTime dateTime, String content)
+    {
+        this(dateTime, content, 0);
+    }
+
+    /**
+     * 正当性を確認済みの日時、用件、所要時間から予定を作成する。
+     * 予定表とファイルの形式が、所要時間を含めて予定を復元する時に使用する。
+     *
+     * @param dateTime 日時
+     * @param content 用件
+     * @param duration 所要時間(分)
+     */
+    Plan(LocalDateTime dateTime, String content, int duration)
+    {
+        this.dateTime = dateTime;
+        this.content = content;
+        this.contentChunk = null;
+        this.contentOffset = 0;
+        this.duration = duration;
+    }
+
+    /**
+     * 正当性を確認済みの日時と、ヒープ外に格納した用件から予定を作成する。
+     * 用件は、getContentで最初に取得する時に復元する。
+     *
+     * @param dateTime 日時
+     * @param contentChunk 用件を格納しているチャンク
+     * @param contentOffset 用件の、チャンクでの位置
+     * @see ContentArena
+     */
+    Plan(LocalDateTime dateTime, ByteBuffer contentChunk, int contentOffset)
+    {
+        this.dateTime = dateTime;
+        this.contentChunk = contentChunk;
+        this.contentOffset = contentOffset;
+        this.duration = 0;
     }
 
     /**
@@ -95,7 +170,30 @@ public class Plan implements Comparable<Plan> {
      */
     public String getContent()
     {
-        return content;
+        var value = content;
+        if (value == null) {
+            value = ContentArena.decode(contentChunk, contentOffset);
+            content = value;
+        }
+        return value;
+    }
+
+    /**
+     * 予定から所要時間を取得する
+     * @return 所要時間(分)。所要時間のない予定は0。
+     */
+    public int getDuration()
+    {
+        return duration;
+    }
+
+    /**
+     * 予定から終了日時を取得する
+     * @return 日時に所要時間を加えた日時(これを含まない)。所要時間のない予定は、日時と等しい。
+     */
+    public LocalDateTime getEndDateTime()
+    {
+        return dateTime.plusMinutes(duration);
     }
 
     /**
@@ -105,8 +203,13 @@ public class Plan implements Comparable<Plan> {
     public int compareTo(Plan plan)
     {
         int result = dateTime.compareTo(plan.dateTime);
+        // 共有した用件は、参照が等しければ文字を比較しない。
         if (result == 0) {
-            result = content.compareTo(plan.content);
+            var content = getContent();
+            var other = plan.getContent();
+            if (content != other) {
+                result = content.compareTo(other);
+            }
         }
 
         return result;
@@ -129,7 +232,7 @@ public class Plan implements Comparable<Plan> {
         var plan = (Plan)obj;
         boolean isEqual = dateTime.equals(plan.dateTime);
         if (isEqual) {
-            isEqual = content.equals(plan.content);
+            isEqual = getContent().equals(plan.getContent());
         }
         return isEqual;
     }
@@ -140,7 +243,7 @@ public class Plan implements Comparable<Plan> {
     @Override
     public int hashCode()
     {
-        int result = dateTime.hashCode() + content.hashCode();
+        int result = dateTime.hashCode() + getContent().hashCode();
         return result;
     }
 }
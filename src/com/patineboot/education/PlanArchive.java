@@ -0,0 +1,729 @@
+/*
+ * Copyright (c) 2020, 2021, Patineboot
+ * All rights reserved.
+ */
+
+package com.patineboot.education;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * 予定を、小さなバイナリ形式で読み書きするクラスです。予定表の間で、予定を一括して移す時に使用します。
+ *
+ * ファイルは、マジックナンバー("SCHB")、バージョン、ブロックの並び、終端で構成します。
+ * ブロックは、ペイロードの長さ、予定の件数、ペイロード、ペイロードのCRC32で構成します。
+ * 終端は、長さ0のブロックの見出しと、全ての予定の件数です。
+ *
+ * ペイロードの予定は、日時の昇順に、日時(分オフセット)の前の予定との差と、用件の参照を、可変長整数(LEB128)で並べます。
+ * ブロックの最初の予定の差は、0からの差です。
+ * 用件は、ファイル全体で共有する辞書の番号+1で参照し、0の場合は、UTF-8の長さと用件が続きます。
+ * 辞書が上限に達するまでは、参照0の用件を、次の番号で辞書に加えます。
+ * バージョン2では、用件の参照を1ビット左にずらし、最下位ビットが1の場合は、用件の後に所要時間(分)が続きます。
+ * バージョン1のファイルは、所要時間のない予定として読み込みます。
+ *
+ * 読み書きは、ブロックの大きさのバッファのみを使用し、ファイル全体をメモリに読み込みません。
+ * ファイルへの書き出しは、一時ファイルに書き込み、終端を書き出してfsyncしてから、アトミックに置き換えます。
+ * 書き出しに失敗した場合は、終端を書き出さずに一時ファイルを削除し、ファイルは元のまま残ります。
+ * @implSpec このクラスはスレッドセーフではありません。
+ */
+final class PlanArchive {
+
+    /**
+     * マジックナンバー("SCHB")
+     */
+    private static final int MAGIC = 0x53434842;
+
+    /**
+     * フォーマットのバージョン
+     */
+    private static final int VERSION = 2;
+
+    /**
+     * ブロックの見出しの大きさ。ペイロードの長さと予定の件数。
+     */
+    private static final int BLOCK_HEADER = 4 + 4;
+
+    /**
+     * ブロックのペイロードの大きさの目安。予定を加えて超えた時に、ブロックを書き出す。
+     */
+    static final int BLOCK_SIZE = 64 * 1024;
+
+    /**
+     * 読み込みで許す、ペイロードの最大の大きさ。用件1件の最大の長さを含む。
+     */
+    private static final int MAX_PAYLOAD = BLOCK_SIZE + Plan.MAX_CONTENT_LENGTH * 4 + 16;
+
+    /**
+     * 用件の辞書の最大の件数
+     */
+    static final int DICTIONARY_SIZE = 1 << 16;
+
+    /**
+     * 読み込み時に一括して受け渡す予定の件数
+     */
+    static final int CHUNK_SIZE = 64 * 1024;
+
+    /**
+     * 日時(分オフセット)の上限。西暦10000年1月1日0時0分。これを含まない。
+     */
+    private static final long MINUTES_MAX = DateTimeParser.toMinutes(Schedule.PLAN_MAX.getDateTime());
+
+    /**
+     * 予定の書き出し先です。予定は、日時、用件の昇順に書き出す。
+     */
+    static final class Writer implements Closeable {
+
+        /**
+         * 書き出し先
+         */
+        private final WritableByteChannel channel;
+
+        /**
+         * 書き出すブロックのペイロード
+         */
+        private ByteBuffer payload = ByteBuffer.allocate(BLOCK_SIZE + 64);
+
+        /**
+         * ブロックの見出しと、CRC32
+         */
+        private final ByteBuffer header = ByteBuffer.allocate(BLOCK_HEADER + 8);
+
+        /**
+         * 用件から、辞書の番号への対応
+         */
+        private final HashMap<String, Integer> dictionary = new HashMap<>();
+
+        /**
+         * ブロックの予定の件数
+         */
+        private int blockCount;
+
+        /**
+         * 前の予定の日時(分オフセット)。ブロックの最初の予定では0。
+         */
+        private long previous;
+
+        /**
+         * 前の予定。昇順を確認する。
+         */
+        private Plan last;
+
+        /**
+         * 書き出した予定の件数
+         */
+        private long count;
+
+        /**
+         * 閉じた場合はtrue
+         */
+        private boolean isClosed;
+
+        /**
+         * 書き出しに失敗した場合はtrue。閉じる時に終端を書き出さない。
+         */
+        private boolean isFailed;
+
+        /**
+         * 書き込む一時ファイル。ファイル以外に書き出す場合はnull。
+         */
+        private final Path temporary;
+
+        /**
+         * 閉じる時に一時ファイルで置き換えるファイル。ファイル以外に書き出す場合はnull。
+         */
+        private final Path target;
+
+        /**
+         * 予定の書き出し先を作成し、マジックナンバーとバージョンを書き出す。
+         * @param channel 書き出し先
+         * @exception IOException 書き出しに失敗した。
+         * @exception IllegalArgumentException channelがnull。
+         */
+        Writer(WritableByteChannel channel) throws IOException
+        {
+            this(channel, null, null);
+        }
+
+        /**
+         * 予定の書き出し先を作成し、マジックナンバーとバージョンを書き出す。
+         * @param channel 書き出し先
+         * @param temporary 書き込む一時ファイル。ファイル以外に書き出す場合はnull。
+         * @param target 一時ファイルで置き換えるファイル。ファイル以外に書き出す場合はnull。
+         * @exception IOException 書き出しに失敗した。
+         * @exception IllegalArgumentException channelがnull。
+         */
+        private Writer(WritableByteChannel channel, Path temporary, Path target) throws IOException
+        {
+            if (channel == null) {
+                throw new IllegalArgumentException("channel is null.");
+            }
+            this.channel = channel;
+            this.temporary = temporary;
+            this.target = target;
+            header.putInt(MAGIC).putInt(VERSION).flip();
+            writeFully(header);
+        }
+
+        /**
+         * ファイルに書き出す、予定の書き出し先を作成する。ファイルは新しく作成するか、置き換える。
+         * 予定は同じディレクトリの一時ファイルに書き込み、閉じる時にファイルを置き換える。
+         * @param file ファイル
+         * @return 予定の書き出し先
+         * @exception IOException ファイルを開けなかった。
+         */
+        static Writer open(Path file) throws IOException
+        {
+            var temporary = file.resolveSibling(file.getFileName() + ".tmp");
+            var channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            try {
+                return new Writer(channel, temporary, file);
+            }
+            catch (IOException | RuntimeException e) {
+                channel.close();
+                Files.deleteIfExists(temporary);
+                throw e;
+            }
+        }
+
+        /**
+         * 予定を全て書き出す。失敗した場合は、閉じる時に終端を書き出さない。
+         * @param plans 昇順の予定
+         * @return 書き出した予定の件数
+         * @exception IOException 書き出しに失敗した。
+         * @exception IllegalArgumentException 予定が昇順でない。
+         */
+        long write(Iterator<Plan> plans) throws IOException
+        {
+            long written = 0;
+            try {
+                while (plans.hasNext()) {
+                    append(plans.next());
+                    written++;
+                }
+            }
+            catch (IOException | RuntimeException e) {
+                isFailed = true;
+                throw e;
+            }
+            return written;
+        }
+
+        /**
+         * 予定を1件書き出す。失敗した場合は、閉じる時に終端を書き出さない。
+         * @param plan 予定
+         * @exception IOException 書き出しに失敗した。
+         * @exception IllegalArgumentException 予定が前の予定より大きくない。planがnull。
+         */
+        void write(Plan plan) throws IOException
+        {
+            try {
+                append(plan);
+            }
+            catch (IOException | RuntimeException e) {
+                isFailed = true;
+                throw e;
+            }
+        }
+
+        /**
+         * 予定を1件書き出す。ペイロードがブロックの大きさを超えた場合は、ブロックを書き出す。
+         * @param plan 予定
+         * @exception IOException 書き出しに失敗した。
+         * @exception IllegalArgumentException 予定が前の予定より大きくない。planがnull。
+         */
+        private void append(Plan plan) throws IOException
+        {
+            if (plan == null) {
+                throw new IllegalArgumentException("plan is null.");
+            }
+            if (last != null && last.compareTo(plan) >= 0) {
+                throw new IllegalArgumentException("plans are not sorted.");
+            }
+            long minutes = DateTimeParser.toMinutes(plan.getDateTime());
+            var content = plan.getContent();
+            var id = dictionary.get(content);
+            byte[] bytes = null;
+            if (id == null) {
+                bytes = content.getBytes(StandardCharsets.UTF_8);
+                if (dictionary.size() < DICTIONARY_SIZE) {
+                    dictionary.put(content, dictionary.size());
+                }
+            }
+            int duration = plan.getDuration();
+            int hasDuration = duration != 0 ? 1 : 0;
+            ensureRemaining(10 + 5 + (bytes != null ? 5 + bytes.length : 0) + 5);
+            putVarLong(payload, minutes - previous);
+            if (bytes != null) {
+                putVarLong(payload, hasDuration);
+                putVarLong(payload, bytes.length);
+                payload.put(bytes);
+            }
+            else {
+                putVarLong(payload, (id + 1L) << 1 | hasDuration);
+            }
+            if (duration != 0) {
+                putVarLong(payload, duration);
+            }
+            previous = minutes;
+            last = plan;
+            blockCount++;
+            count++;
+            if (payload.position() >= BLOCK_SIZE) {
+                writeBlock();
+            }
+        }
+
+        /**
+         * 書き出した予定の件数を取得する。
+         * @return 予定の件数
+         */
+        long count()
+        {
+            return count;
+        }
+
+        /**
+         * 残りのブロックと終端を書き出し、書き出し先を閉じる。
+         * ファイルに書き出す場合は、一時ファイルをfsyncしてから、ファイルをアトミックに置き換える。
+         * 書き出しに失敗していた場合は、abortと同じく、終端を書き出さずに閉じる。
+         * @exception IOException 書き出しに失敗した。
+         */
+        @Override
+        public void close() throws IOException
+        {
+            if (isClosed) {
+                return;
+            }
+            isClosed = true;
+            if (isFailed) {
+                discard();
+                return;
+            }
+            try {
+                writeBlock();
+                header.clear();
+                header.putInt(0).putLong(count).flip();
+                writeFully(header);
+                if (temporary != null) {
+                    ((FileChannel)channel).force(true);
+                }
+                channel.close();
+            }
+            catch (IOException | RuntimeException e) {
+                try {
+                    discard();
+                }
+                catch (IOException suppressed) {
+                    e.addSuppressed(suppressed);
+                }
+                throw e;
+            }
+            if (temporary != null) {
+                Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+        }
+
+        /**
+         * 書き出しを中止する。終端を書き出さずに書き出し先を閉じ、ファイルに書き出す場合は一時ファイルを削除する。
+         * 閉じた後は、何もしない。
+         * @exception IOException 閉じる、または一時ファイルの削除に失敗した。
+         */
+        void abort() throws IOException
+        {
+            if (isClosed) {
+                return;
+            }
+            isClosed = true;
+            discard();
+        }
+
+        /**
+         * 終端を書き出さずに書き出し先を閉じ、一時ファイルを削除する。
+         * @exception IOException 閉じる、または一時ファイルの削除に失敗した。
+         */
+        private void discard() throws IOException
+        {
+            try {
+                channel.close();
+            }
+            finally {
+                if (temporary != null) {
+                    Files.deleteIfExists(temporary);
+                }
+            }
+        }
+
+        /**
+         * ペイロードの残りが足りない場合は、ブロックを書き出し、それでも足りない場合はペイロードを大きくする。
+         * @param length 必要な大きさ
+         * @exception IOException 書き出しに失敗した。
+         */
+        private void ensureRemaining(int length) throws IOException
+        {
+            if (payload.remaining() >= length) {
+                return;
+            }
+            writeBlock();
+            if (payload.remaining() < length) {
+                payload = ByteBuffer.allocate(length);
+            }
+        }
+
+        /**
+         * ブロックを書き出し、次のブロックを始める。予定がない場合は書き出さない。
+         * @exception IOException 書き出しに失敗した。
+         */
+        private void writeBlock() throws IOException
+        {
+            if (blockCount == 0) {
+                return;
+            }
+            payload.flip();
+            var crc = new CRC32();
+            crc.update(payload.duplicate());
+            header.clear();
+            header.putInt(payload.remaining()).putInt(blockCount).flip();
+            writeFully(header);
+            writeFully(payload);
+            header.clear();
+            header.putInt((int)crc.getValue()).flip();
+            writeFully(header);
+            if (payload.capacity() > BLOCK_SIZE + 64) {
+                payload = ByteBuffer.allocate(BLOCK_SIZE + 64);
+            }
+            payload.clear();
+            blockCount = 0;
+            previous = 0;
+        }
+
+        /**
+         * バッファの残りを全て書き出す。
+         * @param buffer バッファ
+         * @exception IOException 書き出しに失敗した。
+         */
+        private void writeFully(ByteBuffer buffer) throws IOException
+        {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+    }
+
+    /**
+     * 予定の読み込み元です。ブロック毎に予定を読み込む。
+     */
+    static final class Reader implements Closeable {
+
+        /**
+         * 読み込み元
+         */
+        private final ReadableByteChannel channel;
+
+        /**
+         * ブロックの見出しと、CRC32
+         */
+        private final ByteBuffer header = ByteBuffer.allocate(BLOCK_HEADER + 8);
+
+        /**
+         * 読み込んだブロックのペイロード
+         */
+        private ByteBuffer payload = ByteBuffer.allocate(BLOCK_SIZE + 64);
+
+        /**
+         * 辞書の番号順の用件
+         */
+        private final ArrayList<String> dictionary = new ArrayList<>();
+
+        /**
+         * 読み込んだ予定の件数
+         */
+        private long count;
+
+        /**
+         * 終端を読み込んだ場合はtrue
+         */
+        private boolean isEnd;
+
+        /**
+         * ファイルのバージョン
+         */
+        private final int version;
+
+        /**
+         * 予定の読み込み元を作成し、マジックナンバーとバージョンを確認する。
+         * @param channel 読み込み元
+         * @exception IOException 読み込みに失敗した。形式が異なる。
+         * @exception IllegalArgumentException channelがnull。
+         */
+        Reader(ReadableByteChannel channel) throws IOException
+        {
+            if (channel == null) {
+                throw new IllegalArgumentException("channel is null.");
+            }
+            this.channel = channel;
+            readFully(header, 8);
+            if (header.getInt() != MAGIC) {
+                throw new IOException("not a plan archive");
+            }
+            version = header.getInt();
+            if (version < 1 || version > VERSION) {
+                throw new IOException("not a plan archive");
+            }
+        }
+
+        /**
+         * ファイルから、予定の読み込み元を作成する。
+         * @param file ファイル
+         * @return 予定の読み込み元
+         * @exception IOException ファイルを開けなかった。形式が異なる。
+         */
+        static Reader open(Path file) throws IOException
+        {
+            var channel = FileChannel.open(file, StandardOpenOption.READ);
+            try {
+                return new Reader(channel);
+            }
+            catch (IOException | RuntimeException e) {
+                channel.close();
+                throw e;
+            }
+        }
+
+        /**
+         * 次のブロックの予定を読み込む。
+         * @return 昇順の予定の一覧。終端の場合はnull。
+         * @exception IOException 読み込みに失敗した。ファイルが壊れている。
+         */
+        List<Plan> readBlock() throws IOException
+        {
+            if (isEnd) {
+                return null;
+            }
+            readFully(header, BLOCK_HEADER);
+            int length = header.getInt();
+            if (length == 0) {
+                // 終端の件数は、見出しの件数の位置から8バイト。
+                long total = (long)header.getInt() << 32;
+                readFully(header, 4);
+                total |= header.getInt() & 0xFFFFFFFFL;
+                if (total != count) {
+                    throw new IOException("broken plan archive: plan count");
+                }
+                isEnd = true;
+                return null;
+            }
+            int blockCount = header.getInt();
+            if (length < 0 || length > MAX_PAYLOAD || blockCount <= 0 || blockCount > length) {
+                throw new IOException("broken plan archive: block header");
+            }
+            if (payload.capacity() < length + 4) {
+                payload = ByteBuffer.allocate(length + 4);
+            }
+            readFully(payload, length + 4);
+            int expected = payload.getInt(length);
+            payload.limit(length);
+            var crc = new CRC32();
+            crc.update(payload.duplicate());
+            if ((int)crc.getValue() != expected) {
+                throw new IOException("broken plan archive: checksum");
+            }
+
+            var plans = new ArrayList<Plan>(blockCount);
+            long minutes = 0;
+            try {
+                for (int i = 0; i < blockCount; i++) {
+                    long delta = getVarLong(payload);
+                    if (delta < 0 || delta >= MINUTES_MAX - minutes) {
+                        throw new IOException("broken plan archive: date time");
+                    }
+                    minutes += delta;
+                    long reference = getVarLong(payload);
+                    boolean hasDuration = false;
+                    if (version >= 2) {
+                        hasDuration = (reference & 1) != 0;
+                        reference >>>= 1;
+                    }
+                    String content;
+                    if (reference == 0) {
+                        int size = (int)getVarLong(payload);
+                        if (size < 0 || size > payload.remaining()) {
+                            throw new IOException("broken plan archive: content length");
+                        }
+                        content = new String(payload.array(), payload.position(), size, StandardCharsets.UTF_8);
+                        payload.position(payload.position() + size);
+                        if (dictionary.size() < DICTIONARY_SIZE) {
+                            dictionary.add(content);
+                        }
+                    }
+                    else if (reference <= dictionary.size()) {
+                        content = dictionary.get((int)reference - 1);
+                    }
+                    else {
+                        throw new IOException("broken plan archive: content reference");
+                    }
+                    // 用件の長さは、予定クラスの上限で確認する。予定表毎の最大サイズは、登録時に確認する。
+                    if (content.length() > Plan.MAX_CONTENT_LENGTH && content.codePointCount(0, content.length()) > Plan.MAX_CONTENT_LENGTH) {
+                        throw new IOException("broken plan archive: content length over");
+                    }
+                    long duration = hasDuration ? getVarLong(payload) : 0;
+                    if (duration < 0 || duration > Plan.MAX_DURATION) {
+                        throw new IOException("broken plan archive: duration");
+                    }
+                    plans.add(new Plan(DateTimeParser.toLocalDateTime(minutes), content, (int)duration));
+                }
+            }
+            catch (RuntimeException e) {
+                throw new IOException("broken plan archive: " + e.getMessage(), e);
+            }
+            if (payload.hasRemaining()) {
+                throw new IOException("broken plan archive: block length");
+            }
+            count += blockCount;
+            return plans;
+        }
+
+        /**
+         * 全ての予定を読み込み、一定の件数毎に受け渡す。
+         * @param chunk 昇順の予定の一覧を受け取る処理。予定表のaddAllなど。
+         * @return 読み込んだ予定の件数
+         * @exception IOException 読み込みに失敗した。ファイルが壊れている。
+         */
+        long read(Consumer<List<Plan>> chunk) throws IOException
+        {
+            var plans = new ArrayList<Plan>();
+            List<Plan> block;
+            while ((block = readBlock()) != null) {
+                plans.addAll(block);
+                if (plans.size() >= CHUNK_SIZE) {
+                    chunk.accept(plans);
+                    plans = new ArrayList<>();
+                }
+            }
+            if (!plans.isEmpty()) {
+                chunk.accept(plans);
+            }
+            return count;
+        }
+
+        /**
+         * 読み込み元を閉じる。
+         * @exception IOException 閉じるのに失敗した。
+         */
+        @Override
+        public void close() throws IOException
+        {
+            channel.close();
+        }
+
+        /**
+         * バッファに、指定した大きさを読み込み、読み出せるようにする。
+         * @param buffer バッファ
+         * @param length 大きさ
+         * @exception IOException 読み込みに失敗した。途中で終わった。
+         */
+        private void readFully(ByteBuffer buffer, int length) throws IOException
+        {
+            buffer.clear().limit(length);
+            readRemaining(buffer);
+            buffer.flip();
+        }
+
+        /**
+         * バッファの残りを全て読み込む。
+         * @param buffer バッファ
+         * @exception IOException 読み込みに失敗した。途中で終わった。
+         */
+        private void readRemaining(ByteBuffer buffer) throws IOException
+        {
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) {
+                    throw new EOFException("truncated plan archive");
+                }
+            }
+        }
+    }
+
+    private PlanArchive()
+    {
+    }
+
+    /**
+     * 予定をファイルに書き出す。ファイルは新しく作成するか、置き換える。
+     * 書き出しに失敗した場合は、ファイルは元のまま残る。
+     * @param file ファイル
+     * @param plans 昇順の予定
+     * @return 書き出した予定の件数
+     * @exception IOException 書き出しに失敗した。
+     */
+    static long write(Path file, Iterator<Plan> plans) throws IOException
+    {
+        try (var writer = Writer.open(file)) {
+            return writer.write(plans);
+        }
+    }
+
+    /**
+     * ファイルの予定を、一定の件数毎に予定表に一括して登録する。
+     * 登録に失敗した場合は、それまでに登録した予定は残る。
+     * @param file ファイル
+     * @param schedule 予定表
+     * @return 登録した予定の件数
+     * @exception IOException 読み込みに失敗した。ファイルが壊れている。
+     */
+    static long load(Path file, Schedule schedule) throws IOException
+    {
+        try (var reader = Reader.open(file)) {
+            return reader.read(schedule::addAll);
+        }
+    }
+
+    /**
+     * 可変長整数(LEB128)を書き込む。
+     * @param buffer バッファ
+     * @param value 0以上の値
+     */
+    static void putVarLong(ByteBuffer buffer, long value)
+    {
+        while ((value & ~0x7FL) != 0) {
+            buffer.put((byte)((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte)value);
+    }
+
+    /**
+     * 可変長整数(LEB128)を読み込む。
+     * @param buffer バッファ
+     * @return 値
+     * @exception IOException 10バイトを超えた。
+     */
+    static long getVarLong(ByteBuffer buffer) throws IOException
+    {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buffer.get();
+            value |= (long)(b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IOException("broken plan archive: varint");
+    }
+}
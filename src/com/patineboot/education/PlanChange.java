@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2020, 2021, Patineboot
+ * All rights reserved.
+ */
+
+package com.patineboot.education;
+
+/**
+ * 購読した範囲の予定の変更を表すクラスです。
+ * @implSpec このクラスは不変でスレッドセーフです。
+ * @see Schedule#subscribe
+ */
+public final class PlanChange {
+
+    /**
+     * 変更の種類
+     */
+    public enum Type {
+        /**
+         * 予定を登録した。
+         */
+        ADDED,
+        /**
+         * 予定を削除した。追い出した予定も含む。
+         */
+        REMOVED,
+        /**
+         * 購読のバッファが溢れ、変更を捨てた。予定を含まない。
+         * 購読した範囲を検索し直し、この後の変更を適用すること。
+         */
+        OVERFLOW,
+    }
+
+    /**
+     * バッファが溢れたことを表す変更
+     */
+    static final PlanChange OVERFLOW = new PlanChange(Type.OVERFLOW, null);
+
+    /**
+     * 変更の種類
+     */
+    private final Type type;
+
+    /**
+     * 変更した予定。OVERFLOWの場合はnull。
+     */
+    private final Plan plan;
+
+    /**
+     * 予定の変更を作成する。
+     * @param type 変更の種類
+     * @param plan 変更した予定
+     */
+    PlanChange(Type type, Plan plan)
+    {
+        this.type = type;
+        this.plan = plan;
+    }
+
+    /**
+     * 変更の種類を取得する。
+     * @return 変更の種類
+     */
+    public Type getType()
+    {
+        return type;
+    }
+
+    /**
+     * 変更した予定を取得する。
+     * @return 予定。OVERFLOWの場合はnull。
+     */
+    public Plan getPlan()
+    {
+        return plan;
+    }
+
+    @Override
+    public String toString()
+    {
+        return plan == null ? type.toString() : type + " " + plan.getDateTime() + " " + plan.getContent();
+    }
+}
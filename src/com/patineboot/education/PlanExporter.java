@@ -0,0 +1,334 @@
+/*
+ * Copyright (c) 2020, 2021, Patineboot
+ * All rights reserved.
+ */
+
+package com.patineboot.education;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+
+/**
+ * 予定を、指定した形式で書き出すクラスです。
+ * 予定は、大きなバッファを持つ一つのWriterに書き出し、文字の符号化は書き出し先のWriterで一括して行います。
+ * 日時は予定毎に文字列を作らず、再利用する文字の配列に書き込みます。
+ *
+ * 形式は次の通りです。日時は、ISO-8601形式(例: 2020-11-22T01:23)です。
+ * - PLAIN: コンソールアプリケーションの表示と同じ、"DateTime: 日時 Content: 用件"
+ * - CSV: 見出し行"dateTime,content"と、RFC 4180の引用符で囲む行。行はCRLFで区切る。
+ * - JSON_LINES: 1行に1つのJSONオブジェクト{"dateTime":"日時","content":"用件"}
+ * @implSpec このクラスはスレッドセーフではありません。
+ */
+final class PlanExporter implements Closeable {
+
+    /**
+     * 書き出しの形式です。
+     */
+    enum Format {
+        /**
+         * コンソールアプリケーションの表示と同じ形式
+         */
+        PLAIN,
+        /**
+         * CSV形式
+         */
+        CSV,
+        /**
+         * JSON Lines形式
+         */
+        JSON_LINES;
+
+        /**
+         * 名前から形式を取得する。大文字、小文字は区別しない。
+         * @param name 名前。plain、csv、json、jsonl。
+         * @return 形式
+         * @exception IllegalArgumentException 名前が不正。nameがnull。
+         */
+        static Format of(String name)
+        {
+            if (name == null) {
+                throw new IllegalArgumentException("format is null.");
+            }
+            switch (name.toLowerCase()) {
+            case "plain":
+                return PLAIN;
+            case "csv":
+                return CSV;
+            case "json":
+            case "jsonl":
+                return JSON_LINES;
+            default:
+                throw new IllegalArgumentException("invalid format: " + name);
+            }
+        }
+    }
+
+    /**
+     * 書き出しのバッファの大きさ(文字)
+     */
+    static final int BUFFER_SIZE = 1 << 16;
+
+    /**
+     * 16進数の文字
+     */
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /**
+     * 書き出し先
+     */
+    private final Writer writer;
+
+    /**
+     * 書き出しの形式
+     */
+    private final Format format;
+
+    /**
+     * 行の区切り。CSVはCRLF、それ以外はLF。
+     */
+    private final String lineSeparator;
+
+    /**
+     * 日時を書き込む文字の配列。YYYY-MM-DDThh:mm。
+     */
+    private final char[] dateTime = "0000-00-00T00:00".toCharArray();
+
+    /**
+     * CSVの見出し行を書き出した場合はtrue
+     */
+    private boolean hasHeader;
+
+    /**
+     * 予定の書き出し先を作成する。
+     * 書き出し先は、BufferedWriterの場合はそのまま使用し、それ以外は大きなバッファを持つWriterで包む。
+     * @param writer 書き出し先
+     * @param format 書き出しの形式
+     * @exception IllegalArgumentException writerまたはformatがnull。
+     */
+    PlanExporter(Writer writer, Format format)
+    {
+        if (writer == null || format == null) {
+            throw new IllegalArgumentException("writer or format is null.");
+        }
+        this.writer = writer instanceof BufferedWriter ? writer : new BufferedWriter(writer, BUFFER_SIZE);
+        this.format = format;
+        this.lineSeparator = format == Format.CSV ? "\r\n" : "\n";
+    }
+
+    /**
+     * 予定を全て、ファイルに書き出す。ファイルは新しく作成するか、置き換える。
+     * 一時ファイルに書き込み、fsyncしてから、アトミックに置き換える。
+     * 書き出しに失敗した場合は、一時ファイルを削除し、ファイルは元のまま残る。
+     * @param file ファイル
+     * @param format 書き出しの形式
+     * @param charset 文字の符号化方式
+     * @param plans 予定の一覧
+     * @return 書き出した予定の件数
+     * @exception IOException 書き出しに失敗した。
+     */
+    static long export(Path file, Format format, Charset charset, Iterator<Plan> plans) throws IOException
+    {
+        var temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        long count;
+        try (var channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            var exporter = new PlanExporter(new OutputStreamWriter(Channels.newOutputStream(channel), charset), format);
+            count = exporter.export(plans);
+            exporter.flush();
+            channel.force(true);
+        }
+        catch (IOException | RuntimeException e) {
+            try {
+                Files.deleteIfExists(temporary);
+            }
+            catch (IOException suppressed) {
+                e.addSuppressed(suppressed);
+            }
+            throw e;
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return count;
+    }
+
+    /**
+     * 予定を全て書き出す。書き出し先はフラッシュしない。
+     * @param plans 予定の一覧
+     * @return 書き出した予定の件数
+     * @exception IOException 書き出しに失敗した。
+     */
+    long export(Iterator<Plan> plans) throws IOException
+    {
+        if (format == Format.CSV && !hasHeader) {
+            writer.write("dateTime,content");
+            writer.write(lineSeparator);
+            hasHeader = true;
+        }
+        long count = 0;
+        while (plans.hasNext()) {
+            write(plans.next());
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * 予定を1件書き出す。
+     * @param plan 予定
+     * @exception IOException 書き出しに失敗した。
+     */
+    private void write(Plan plan) throws IOException
+    {
+        formatDateTime(plan);
+        var content = plan.getContent();
+        switch (format) {
+        case CSV:
+            writer.write(dateTime);
+            writer.write(',');
+            writeCsv(content);
+            break;
+        case JSON_LINES:
+            writer.write("{\"dateTime\":\"");
+            writer.write(dateTime);
+            writer.write("\",\"content\":\"");
+            writeJson(content);
+            writer.write("\"}");
+            break;
+        case PLAIN:
+        default:
+            writer.write("DateTime: ");
+            writer.write(dateTime);
+            writer.write(" Content: ");
+            writer.write(content);
+            break;
+        }
+        writer.write(lineSeparator);
+    }
+
+    /**
+     * 予定の日時を、文字の配列に書き込む。
+     * @param plan 予定
+     */
+    private void formatDateTime(Plan plan)
+    {
+        var value = plan.getDateTime();
+        putDigits(0, 4, value.getYear());
+        putDigits(5, 2, value.getMonthValue());
+        putDigits(8, 2, value.getDayOfMonth());
+        putDigits(11, 2, value.getHour());
+        putDigits(14, 2, value.getMinute());
+    }
+
+    /**
+     * 数値を、文字の配列に十進数で書き込む。
+     * @param index 書き込む位置
+     * @param count 桁数
+     * @param value 数値
+     */
+    private void putDigits(int index, int count, int value)
+    {
+        for (int i = index + count - 1; i >= index; i--) {
+            dateTime[i] = (char)('0' + value % 10);
+            value /= 10;
+        }
+    }
+
+    /**
+     * 用件を、CSVのフィールドとして書き出す。カンマ、引用符、改行を含む場合は引用符で囲む。
+     * @param content 用件
+     * @exception IOException 書き出しに失敗した。
+     */
+    private void writeCsv(String content) throws IOException
+    {
+        boolean needsQuote = false;
+        for (int i = 0; i < content.length() && !needsQuote; i++) {
+            char c = content.charAt(i);
+            needsQuote = c == ',' || c == '"' || c == '\n' || c == '\r';
+        }
+        if (!needsQuote) {
+            writer.write(content);
+            return;
+        }
+        writer.write('"');
+        int start = 0;
+        for (int i = 0; i < content.length(); i++) {
+            if (content.charAt(i) == '"') {
+                // 引用符は二つ重ねる。
+                writer.write(content, start, i + 1 - start);
+                start = i;
+            }
+        }
+        writer.write(content, start, content.length() - start);
+        writer.write('"');
+    }
+
+    /**
+     * 用件を、JSONの文字列の中身として書き出す。引用符、バックスラッシュ、制御文字はエスケープする。
+     * @param content 用件
+     * @exception IOException 書き出しに失敗した。
+     */
+    private void writeJson(String content) throws IOException
+    {
+        int start = 0;
+        for (int i = 0; i < content.length(); i++) {
+            char c = content.charAt(i);
+            if (c >= 0x20 && c != '"' && c != '\\') {
+                continue;
+            }
+            writer.write(content, start, i - start);
+            start = i + 1;
+            switch (c) {
+            case '"':
+                writer.write("\\\"");
+                break;
+            case '\\':
+                writer.write("\\\\");
+                break;
+            case '\n':
+                writer.write("\\n");
+                break;
+            case '\r':
+                writer.write("\\r");
+                break;
+            case '\t':
+                writer.write("\\t");
+                break;
+            default:
+                writer.write("\\u00");
+                writer.write(HEX[c >> 4]);
+                writer.write(HEX[c & 0xF]);
+                break;
+            }
+        }
+        writer.write(content, start, content.length() - start);
+    }
+
+    /**
+     * バッファの内容を、書き出し先に書き出す。
+     * @exception IOException 書き出しに失敗した。
+     */
+    void flush() throws IOException
+    {
+        writer.flush();
+    }
+
+    /**
+     * バッファの内容を書き出し、書き出し先を閉じる。
+     * @exception IOException 書き出しに失敗した。
+     */
+    @Override
+    public void close() throws IOException
+    {
+        writer.close();
+    }
+}
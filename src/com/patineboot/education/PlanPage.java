@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) 2020, 2021, Patineboot
+ * All rights reserved.
+ */
+
+package com.patineboot.education;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 予定の検索結果の1ページ分を表すクラスです。
+ * 続きのページは、継続位置の予定を指定して検索します。
+ * @implSpec このクラスは不変でスレッドセーフです。
+ * @see Schedule#findPage
+ */
+public final class PlanPage {
+
+    /**
+     * ページの予定の一覧
+     */
+    private final List<Plan> plans;
+
+    /**
+     * 継続位置の予定。続きがない場合はnull。
+     */
+    private final Plan continuation;
+
+    /**
+     * 予定の一覧と継続位置から、ページを作成する。
+     * @param plans ページの予定の一覧
+     * @param continuation 継続位置の予定。続きがない場合はnull。
+     */
+    PlanPage(List<Plan> plans, Plan continuation)
+    {
+        this.plans = Collections.unmodifiableList(plans);
+        this.continuation = continuation;
+    }
+
+    /**
+     * ページの予定の一覧を取得する。
+     * @return 予定の一覧。検索の順序で並んでいる。変更できない。
+     */
+    public List<Plan> getPlans()
+    {
+        return plans;
+    }
+
+    /**
+     * 続きのページを検索するための継続位置を取得する。
+     * 継続位置は、ページの最後の予定です。
+     * @return 継続位置の予定。続きがない場合はnull。
+     */
+    public Plan getContinuation()
+    {
+        return continuation;
+    }
+
+    /**
+     * 続きのページがあるかを取得する。
+     * @return 続きのページがある場合はtrue
+     */
+    public boolean hasNext()
+    {
+        return continuation != null;
+    }
+}
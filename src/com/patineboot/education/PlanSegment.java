@@ -0,0 +1,275 @@
+/*
+ * Copyright (c) 2020, 2021, Patineboot
+ * All rights reserved.
+ */
+
+package com.patineboot.education;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/**
+ * 予定を昇順に保存した、変更できないセグメントファイルです。
+ * ファイルはメモリにマップし、日時と用件をコピーせずに二分探索します。
+ * 予定は、読み出す時にのみ作成します。
+ *
+ * ファイルは、次の順に構成します。
+ * - ヘッダ: マジックナンバー、バージョン、予定の件数、用件の文字数
+ * - 日時: 分オフセットのlongの配列
+ * - 用件の位置: 各予定の用件の開始位置(文字単位)のintの配列。最後に終了位置を持つ。
+ * - 用件: UTF-16の文字の配列
+ * @implSpec このクラスは不変でスレッドセーフです。
+ */
+final class PlanSegment {
+
+    /**
+     * マジックナンバー("SCHG")
+     */
+    private static final int MAGIC = 0x53434847;
+
+    /**
+     * フォーマットのバージョン
+     */
+    private static final int VERSION = 1;
+
+    /**
+     * ヘッダのサイズ
+     */
+    private static final int HEADER = 4 + 4 + 8 + 8;
+
+    /**
+     * セグメントに保存する予定の最大件数
+     */
+    static final int MAX_PLANS = 1 << 20;
+
+    /**
+     * セグメントのファイル
+     */
+    private final Path file;
+
+    /**
+     * 予定の件数
+     */
+    private final int size;
+
+    /**
+     * 日時
+     */
+    private final LongBuffer keys;
+
+    /**
+     * 用件の位置
+     */
+    private final IntBuffer offsets;
+
+    /**
+     * 用件
+     */
+    private final CharBuffer contents;
+
+    /**
+     * セグメントのファイルを開き、メモリにマップする。
+     * @param file セグメントのファイル
+     * @exception IOException 読み込みに失敗した。ファイルが壊れている。
+     */
+    PlanSegment(Path file) throws IOException
+    {
+        this.file = file;
+        ByteBuffer buffer;
+        try (var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            // マップしたバッファは、チャネルを閉じた後も有効。
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (buffer.limit() < HEADER || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            throw new IOException("not a plan segment: " + file);
+        }
+        long count = buffer.getLong(8);
+        long chars = buffer.getLong(16);
+        long keysEnd = HEADER + count * 8;
+        long offsetsEnd = keysEnd + (count + 1) * 4;
+        if (count > MAX_PLANS || offsetsEnd + chars * 2 != buffer.limit()) {
+            throw new IOException("broken plan segment: " + file);
+        }
+
+        this.size = (int)count;
+        this.keys = buffer.slice(HEADER, (int)(keysEnd - HEADER)).asLongBuffer();
+        this.offsets = buffer.slice((int)keysEnd, (int)(offsetsEnd - keysEnd)).asIntBuffer();
+        this.contents = buffer.slice((int)offsetsEnd, (int)(chars * 2)).asCharBuffer();
+    }
+
+    /**
+     * 昇順の予定から、セグメントのファイルを作成する。
+     * @param file セグメントのファイル
+     * @param sorted 昇順にソート済みで、重複のない予定。MAX_PLANS件以内。
+     * @exception IOException 書き込みに失敗した。
+     */
+    static void write(Path file, List<Plan> sorted) throws IOException
+    {
+        if (sorted.size() > MAX_PLANS) {
+            throw new IllegalArgumentException("too many plans for a segment");
+        }
+        long chars = 0;
+        for (var plan : sorted) {
+            chars += plan.getContent().length();
+        }
+        if (chars > Integer.MAX_VALUE / 2) {
+            throw new IllegalArgumentException("too long contents for a segment");
+        }
+
+        try (var channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            var output = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 64 * 1024));
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeLong(sorted.size());
+            output.writeLong(chars);
+            for (var plan : sorted) {
+                output.writeLong(DateTimeParser.toMinutes(plan.getDateTime()));
+            }
+            int offset = 0;
+            for (var plan : sorted) {
+                output.writeInt(offset);
+                offset += plan.getContent().length();
+            }
+            output.writeInt(offset);
+            for (var plan : sorted) {
+                output.writeChars(plan.getContent());
+            }
+            output.flush();
+            channel.force(true);
+        }
+    }
+
+    /**
+     * セグメントのファイルを取得する。
+     * @return セグメントのファイル
+     */
+    Path file()
+    {
+        return file;
+    }
+
+    /**
+     * 予定の件数を取得する。
+     * @return 予定の件数
+     */
+    int size()
+    {
+        return size;
+    }
+
+    /**
+     * 日時を取得する。
+     * @param index 位置
+     * @return 日時(分オフセット)
+     */
+    long key(int index)
+    {
+        return keys.get(index);
+    }
+
+    /**
+     * 予定を作成する。
+     * @param index 位置
+     * @return 予定
+     */
+    Plan get(int index)
+    {
+        int start = offsets.get(index);
+        int end = offsets.get(index + 1);
+        var content = contents.subSequence(start, end).toString();
+        return new Plan(DateTimeParser.toLocalDateTime(keys.get(index)), content);
+    }
+
+    /**
+     * 指定した予定以上となる、最初の位置を検索する。
+     * @param plan 予定
+     * @return 位置。全ての予定より後ろの場合は、size()。
+     */
+    int lowerBound(Plan plan)
+    {
+        return search(plan, true);
+    }
+
+    /**
+     * 指定した予定より大きい、最初の位置を検索する。
+     * @param plan 予定
+     * @return 位置。全ての予定より後ろの場合は、size()。
+     */
+    int upperBound(Plan plan)
+    {
+        return search(plan, false);
+    }
+
+    /**
+     * 指定した予定以上、または予定より大きい、最初の位置を二分探索する。
+     * @param plan 予定
+     * @param inclusive 予定と等しい位置を含む場合はtrue
+     * @return 位置。全ての予定より後ろの場合は、size()。
+     */
+    private int search(Plan plan, boolean inclusive)
+    {
+        long key = DateTimeParser.toMinutes(plan.getDateTime());
+        var content = plan.getContent();
+        int bound = inclusive ? 0 : 1;
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (compare(middle, key, content) < bound) {
+                low = middle + 1;
+            }
+            else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * 予定を保存しているかを確認する。
+     * @param plan 予定
+     * @return 保存している場合はtrue
+     */
+    boolean contains(Plan plan)
+    {
+        int index = lowerBound(plan);
+        return index < size
+                && compare(index, DateTimeParser.toMinutes(plan.getDateTime()), plan.getContent()) == 0;
+    }
+
+    /**
+     * 保存している予定と、日時、用件の順序を比較する。用件はコピーせずに比較する。
+     * @param index 位置
+     * @param key 日時
+     * @param content 用件
+     * @return 保存している予定が前の場合は負、等しい場合は0、後の場合は正
+     */
+    private int compare(int index, long key, String content)
+    {
+        int result = Long.compare(keys.get(index), key);
+        if (result != 0) {
+            return result;
+        }
+        int start = offsets.get(index);
+        int length = offsets.get(index + 1) - start;
+        int common = Math.min(length, content.length());
+        for (int i = 0; i < common; i++) {
+            int diff = contents.get(start + i) - content.charAt(i);
+            if (diff != 0) {
+                return diff;
+            }
+        }
+        return length - content.length();
+    }
+}
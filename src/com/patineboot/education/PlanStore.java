@@ -0,0 +1,259 @@
+/*
+ * Copyright (c) 2020, 2021, Patineboot
+ * All rights reserved.
+ */
+
+package com.patineboot.education;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.function.LongConsumer;
+
+/**
+ * 予定表が予定を格納する方式のインターフェースです。
+ * 予定は、日時と用件の自然順序で並べて格納します。
+ * 入力の正当性の確認は、予定表と予定クラスで行い、このインターフェースでは行いません。
+ */
+interface PlanStore {
+
+    /**
+     * 格納している予定の件数を取得する。
+     * @return 予定の件数
+     */
+    long size();
+
+    /**
+     * 予定を格納する。
+     * @param plan 予定
+     * @return 格納した場合はtrue。同じ予定が格納済みの場合はfalse。
+     */
+    boolean add(Plan plan);
+
+    /**
+     * 予定を削除する。
+     * @param plan 予定
+     * @return 削除した場合はtrue。予定が見つからなかった場合はfalse。
+     */
+    boolean remove(Plan plan);
+
+    /**
+     * 予定を一括して格納する。
+     * 格納済みの予定と重複する場合は、いずれの予定も格納しない。
+     * @param sorted 予定の配列。昇順にソート済みで、重複がないこと。
+     * @return 全て格納した場合はnull。格納済みの予定と重複した場合は、その予定。
+     */
+    Plan addAll(Plan[] sorted);
+
+    /**
+     * 範囲内の予定を取得する。
+     * @param from 始点(これを含む)
+     * @param to 終点(これを含まない)。始点以上であること。
+     * @return 予定の一覧
+     */
+    SortedSet<Plan> subSet(Plan from, Plan to);
+
+    /**
+     * 範囲内の予定を、指定した件数まで順に取得する。
+     * @param from 始点
+     * @param fromInclusive 始点を含む場合はtrue
+     * @param to 終点(これを含まない)
+     * @param limit 取得する最大件数
+     * @param descending 降順に取得する場合はtrue
+     * @return 予定の一覧
+     */
+    List<Plan> page(Plan from, boolean fromInclusive, Plan to, int limit, boolean descending);
+
+    /**
+     * 範囲内の予定の日時を、昇順に受け渡す。予定は作成しない。
+     * @param from 始点(これを含む)
+     * @param to 終点(これを含まない)
+     * @param action 日時(分オフセット)を受け取る処理
+     */
+    void forEachKey(Plan from, Plan to, LongConsumer action);
+
+    /**
+     * 範囲内の予定の件数を取得する。予定は作成しない。
+     * @param from 始点(これを含む)
+     * @param to 終点(これを含まない)
+     * @return 予定の件数
+     */
+    default long count(Plan from, Plan to)
+    {
+        var count = new long[1];
+        forEachKey(from, to, key -> count[0]++);
+        return count[0];
+    }
+
+    /**
+     * 範囲内の予定を一括して削除する。
+     * 他のスレッドが先に削除した予定は、削除した予定に含めない。
+     * @param from 始点(これを含む)
+     * @param to 終点(これを含まない)。始点以上であること。
+     * @return 削除した予定の配列。昇順。
+     */
+    default Plan[] removeRange(Plan from, Plan to)
+    {
+        var found = subSet(from, to).toArray(new Plan[0]);
+        int removed = 0;
+        for (var plan : found) {
+            if (remove(plan)) {
+                found[removed++] = plan;
+            }
+        }
+        return removed == found.length ? found : Arrays.copyOf(found, removed);
+    }
+
+    /**
+     * 複数のスレッドから同時に操作できるかを取得する。
+     * @return スレッドセーフな場合はtrue
+     */
+    default boolean isThreadSafe()
+    {
+        return false;
+    }
+
+    /**
+     * 予定の所要時間を格納できるかを取得する。
+     * 格納できない方式は、日時と用件のみを格納し、所要時間が0の予定を返す。
+     * @return 予定を、所要時間を含めて格納する場合はtrue
+     */
+    default boolean retainsDuration()
+    {
+        return false;
+    }
+
+    /**
+     * NavigableSetから、範囲内の予定を一括して削除する。
+     * @param plans 予定のセット
+     * @param from 始点(これを含む)
+     * @param to 終点(これを含まない)
+     * @return 削除した予定の配列。昇順。
+     */
+    static Plan[] removeRange(NavigableSet<Plan> plans, Plan from, Plan to)
+    {
+        if (from.compareTo(to) >= 0) {
+            return new Plan[0];
+        }
+        var range = plans.subSet(from, to);
+        var removed = range.toArray(new Plan[range.size()]);
+        range.clear();
+        return removed;
+    }
+
+    /**
+     * NavigableSetに、予定を一括して格納する。
+     * TreeSetには、予定が格納済みの予定の件数に比べて多い場合は、格納済みの予定とマージして線形時間で格納する。
+     * 並行して変更するセットには、格納済みの予定との重複を、格納する前に確認する。
+     * 確認の後に他のスレッドが同じ予定を格納した場合は、この呼び出しで格納した予定を削除する。
+     * 並行する検索は、格納の途中の予定の一部を参照することがある。
+     * @param plans 予定のセット
+     * @param sorted 予定の配列。昇順にソート済みで、重複がないこと。
+     * @return 全て格納した場合はnull。格納済みの予定と重複した場合は、その予定。
+     */
+    static Plan addAll(NavigableSet<Plan> plans, Plan[] sorted)
+    {
+        if (plans instanceof TreeSet) {
+            var tree = (TreeSet<Plan>)plans;
+            // 1件ずつの格納(k log n)が、マージ(n + k)より遅くなる場合は、マージする。
+            long size = tree.size();
+            if ((long)sorted.length * (64 - Long.numberOfLeadingZeros(size)) >= size) {
+                return mergeAll(tree, sorted);
+            }
+        }
+        else {
+            for (var plan : sorted) {
+                if (plans.contains(plan)) {
+                    return plan;
+                }
+            }
+        }
+
+        for (int i = 0; i < sorted.length; i++) {
+            if (!plans.add(sorted[i])) {
+                for (int j = 0; j < i; j++) {
+                    plans.remove(sorted[j]);
+                }
+                return sorted[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * TreeSetの予定とソート済みの予定をマージし、木を線形時間で構築し直す。
+     * 格納済みの予定と重複する場合は、TreeSetを変更しない。
+     * @param plans 予定のセット
+     * @param sorted 予定の配列。昇順にソート済みで、重複がないこと。
+     * @return 全て格納した場合はnull。格納済みの予定と重複した場合は、その予定。
+     */
+    private static Plan mergeAll(TreeSet<Plan> plans, Plan[] sorted)
+    {
+        var merged = new Plan[plans.size() + sorted.length];
+        var stored = plans.iterator();
+        var current = stored.hasNext() ? stored.next() : null;
+        int next = 0;
+        int count = 0;
+        while (current != null || next < sorted.length) {
+            int result = current == null ? 1 : next == sorted.length ? -1 : current.compareTo(sorted[next]);
+            if (result == 0) {
+                return sorted[next];
+            }
+            if (result < 0) {
+                merged[count++] = current;
+                current = stored.hasNext() ? stored.next() : null;
+            }
+            else {
+                merged[count++] = sorted[next++];
+            }
+        }
+        // TreeSet.addAllは、空の場合にソート済みのセットから木を線形時間で構築する。ビューは同じ木を参照し続ける。
+        plans.clear();
+        plans.addAll(new SortedPlanSet(merged));
+        return null;
+    }
+
+    /**
+     * NavigableSetから、範囲内の予定の日時を、昇順に受け渡す。
+     * @param plans 予定のセット
+     * @param from 始点(これを含む)
+     * @param to 終点(これを含まない)
+     * @param action 日時(分オフセット)を受け取る処理
+     */
+    static void forEachKey(NavigableSet<Plan> plans, Plan from, Plan to, LongConsumer action)
+    {
+        if (from.compareTo(to) >= 0) {
+            return;
+        }
+        for (var plan : plans.subSet(from, to)) {
+            action.accept(DateTimeParser.toMinutes(plan.getDateTime()));
+        }
+    }
+
+    /**
+     * NavigableSetから、範囲内の予定を、指定した件数まで順に取得する。
+     * @param plans 予定のセット
+     * @param from 始点
+     * @param fromInclusive 始点を含む場合はtrue
+     * @param to 終点(これを含まない)
+     * @param limit 取得する最大件数
+     * @param descending 降順に取得する場合はtrue
+     * @return 予定の一覧
+     */
+    static List<Plan> page(NavigableSet<Plan> plans, Plan from, boolean fromInclusive, Plan to, int limit, boolean descending)
+    {
+        var page = new ArrayList<Plan>(Math.min(limit, 1024));
+        if (from.compareTo(to) >= 0) {
+            return page;
+        }
+        var subset = plans.subSet(from, fromInclusive, to, false);
+        var iterator = descending ? subset.descendingIterator() : subset.iterator();
+        while (page.size() < limit && iterator.hasNext()) {
+            page.add(iterator.next());
+        }
+        return page;
+    }
+}
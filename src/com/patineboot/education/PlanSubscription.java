@@ -0,0 +1,263 @@
+/*
+ * Copyright (c) 2020, 2021, Patineboot
+ * All rights reserved.
+ */
+
+package com.patineboot.education;
+
+import java.time.LocalDateTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Consumer;
+
+/**
+ * 予定表の日時の範囲の変更を購読するクラスです。
+ * 範囲内の予定の登録、削除を、予定表を変更したスレッドとは別のスレッドで、まとめて購読者に渡します。
+ *
+ * 変更は、購読毎の上限のあるバッファに溜め、配信のスレッドが溜まった変更を1回の呼び出しで渡します。
+ * 購読者の処理が遅れてバッファが溢れた場合は、溜まった変更を捨ててOVERFLOWの変更に置き換えます。
+ * 予定表の変更は、購読者の処理を待ちません。
+ * 同じ購読者は、同時に複数のスレッドから呼び出しません。
+ * @implSpec このクラスはスレッドセーフです。
+ * @see Schedule#subscribe
+ */
+public final class PlanSubscription implements AutoCloseable {
+
+    /**
+     * バッファの大きさの既定値
+     */
+    static final int DEFAULT_BUFFER_SIZE = 1024;
+
+    /**
+     * 変更を配信する、既定のスレッド
+     */
+    static final ExecutorService DEFAULT_EXECUTOR = Executors.newFixedThreadPool(
+            Math.max(2, Runtime.getRuntime().availableProcessors()), runnable -> {
+        var thread = new Thread(runnable, "PlanSubscription");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * 購読の範囲の始点(分オフセット、これを含む)
+     */
+    private final long from;
+
+    /**
+     * 購読の範囲の終点(分オフセット、これを含まない)
+     */
+    private final long to;
+
+    /**
+     * 購読者
+     */
+    private final Consumer<List<PlanChange>> listener;
+
+    /**
+     * バッファの大きさ
+     */
+    private final int bufferSize;
+
+    /**
+     * 変更を配信するスレッド
+     */
+    private final Executor executor;
+
+    /**
+     * 購読を登録した索引
+     */
+    private final SubscriptionIndex index;
+
+    /**
+     * 配信を待つ変更。購読のロックを取得して操作する。
+     */
+    private final ArrayDeque<PlanChange> buffer = new ArrayDeque<>();
+
+    /**
+     * 配信を依頼済み、または配信中の場合はtrue。購読のロックを取得して操作する。
+     */
+    private boolean isScheduled;
+
+    /**
+     * 解除した場合はtrue
+     */
+    private volatile boolean isClosed;
+
+    /**
+     * バッファが溢れた回数。購読のロックを取得して操作する。
+     */
+    private long overflowCount;
+
+    /**
+     * 配信の処理
+     */
+    private final Runnable delivery = this::deliver;
+
+    /**
+     * 購読を作成する。
+     * @param from 始点(分オフセット、これを含む)
+     * @param to 終点(分オフセット、これを含まない)
+     * @param listener 購読者
+     * @param bufferSize バッファの大きさ
+     * @param executor 変更を配信するスレッド
+     * @param index 購読を登録する索引
+     */
+    PlanSubscription(long from, long to, Consumer<List<PlanChange>> listener, int bufferSize, Executor executor, SubscriptionIndex index)
+    {
+        this.from = from;
+        this.to = to;
+        this.listener = listener;
+        this.bufferSize = bufferSize;
+        this.executor = executor;
+        this.index = index;
+    }
+
+    /**
+     * 購読の範囲の始点日時を取得する。
+     * @return 始点日時(これを含む)
+     */
+    public LocalDateTime getFromDateTime()
+    {
+        return DateTimeParser.toLocalDateTime(from);
+    }
+
+    /**
+     * 購読の範囲の終点日時を取得する。
+     * @return 終点日時(これを含まない)
+     */
+    public LocalDateTime getToDateTime()
+    {
+        return DateTimeParser.toLocalDateTime(to);
+    }
+
+    /**
+     * バッファが溢れた回数を取得する。
+     * @return 溢れた回数
+     */
+    public synchronized long getOverflowCount()
+    {
+        return overflowCount;
+    }
+
+    /**
+     * 購読を解除したかを取得する。
+     * @return 解除した場合はtrue
+     */
+    public boolean isClosed()
+    {
+        return isClosed;
+    }
+
+    /**
+     * 購読を解除する。配信を待つ変更は捨てる。配信中の購読者の呼び出しは待たない。
+     */
+    @Override
+    public void close()
+    {
+        if (isClosed) {
+            return;
+        }
+        isClosed = true;
+        index.remove(this);
+        synchronized (this) {
+            buffer.clear();
+        }
+    }
+
+    /**
+     * 購読の範囲の始点を取得する。
+     * @return 始点(分オフセット、これを含む)
+     */
+    long from()
+    {
+        return from;
+    }
+
+    /**
+     * 購読の範囲の終点を取得する。
+     * @return 終点(分オフセット、これを含まない)
+     */
+    long to()
+    {
+        return to;
+    }
+
+    /**
+     * 変更をバッファに溜め、配信を依頼する。購読者の処理は待たない。
+     * バッファが溢れた場合は、溜まった変更を捨ててOVERFLOWの変更に置き換える。
+     * @param change 変更
+     */
+    void offer(PlanChange change)
+    {
+        synchronized (this) {
+            if (isClosed) {
+                return;
+            }
+            if (buffer.size() < bufferSize) {
+                buffer.add(change);
+            }
+            else {
+                buffer.clear();
+                buffer.add(PlanChange.OVERFLOW);
+                overflowCount++;
+            }
+            if (isScheduled) {
+                return;
+            }
+            isScheduled = true;
+        }
+        schedule();
+    }
+
+    /**
+     * 配信を、配信のスレッドに依頼する。
+     */
+    private void schedule()
+    {
+        try {
+            executor.execute(delivery);
+        }
+        catch (RejectedExecutionException ree) {
+            // 配信のスレッドが停止した。次の変更で、再び依頼する。
+            synchronized (this) {
+                isScheduled = false;
+            }
+        }
+    }
+
+    /**
+     * 溜まった変更を、まとめて購読者に渡す。
+     * 変更が残っている場合は、他の購読の配信を妨げないように、配信を依頼し直す。
+     */
+    private void deliver()
+    {
+        List<PlanChange> batch;
+        synchronized (this) {
+            if (buffer.isEmpty() || isClosed) {
+                isScheduled = false;
+                return;
+            }
+            batch = new ArrayList<>(buffer);
+            buffer.clear();
+        }
+        try {
+            listener.accept(Collections.unmodifiableList(batch));
+        }
+        catch (RuntimeException e) {
+            // 購読者の例外で、次の配信を止めない。
+        }
+        synchronized (this) {
+            if (buffer.isEmpty() || isClosed) {
+                isScheduled = false;
+                return;
+            }
+        }
+        schedule();
+    }
+}
@@ -0,0 +1,491 @@
+/*
+ * Copyright (c) 2020, 2021, Patineboot
+ * All rights reserved.
+ */
+
+package com.patineboot.education;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 予定の検索(find)と件数(count)の結果を、日時の範囲毎に保持するキャッシュクラスです。
+ * 検索結果は、変更できないスナップショットとして保持し、同じ範囲の検索で共有します。
+ *
+ * キャッシュの大きさは、結果の予定の件数の合計(重み)で制限します。件数の結果の重みは1とします。
+ * 重みの上限を超えた場合は、最も長く使用していない結果から追い出します。上限より重い結果は、保持しません。
+ *
+ * 予定の登録、削除では、その日時を範囲に含む結果のみを無効にします。
+ * 無効にする結果は、結果のキーを始点の日時で引く索引から、保持した結果の範囲の最大の長さだけ前から探します。
+ * 結果の数をn、範囲と重なり得る結果の数をkとして、O(log n + k)で探します。
+ * 結果の計算中に予定表が変更された場合は、古い結果を保持しないように、計算した結果を捨てます。
+ * @implSpec このクラスはスレッドセーフです。
+ * @see Schedule.Option#QUERY_CACHE
+ */
+public final class QueryCache {
+
+    /**
+     * 重みの上限の既定値。予定の件数。
+     */
+    static final long DEFAULT_MAXIMUM_WEIGHT = 1 << 20;
+
+    /**
+     * 結果のキーです。操作の種類と、日時の範囲で構成します。
+     */
+    private static final class Key {
+
+        /**
+         * 件数の結果の場合はtrue、検索結果の場合はfalse
+         */
+        final boolean isCount;
+
+        /**
+         * 始点の日時(分オフセット、これを含む)
+         */
+        final long from;
+
+        /**
+         * 終点の日時(分オフセット、これを含まない)
+         */
+        final long to;
+
+        /**
+         * 結果のキーを作成する。
+         * @param isCount 件数の結果の場合はtrue
+         * @param from 始点の日時(分オフセット)
+         * @param to 終点の日時(分オフセット)
+         */
+        Key(boolean isCount, long from, long to)
+        {
+            this.isCount = isCount;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            var key = (Key)obj;
+            return isCount == key.isCount && from == key.from && to == key.to;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return Long.hashCode(from * 31 + to) * 2 + (isCount ? 1 : 0);
+        }
+    }
+
+    /**
+     * 保持した結果です。
+     */
+    private static final class Entry {
+
+        /**
+         * 結果。検索結果のスナップショット、または件数。
+         */
+        final Object value;
+
+        /**
+         * 重み
+         */
+        final long weight;
+
+        /**
+         * 保持した結果を作成する。
+         * @param value 結果
+         * @param weight 重み
+         */
+        Entry(Object value, long weight)
+        {
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+
+    /**
+     * 重みの上限
+     */
+    private final long maximumWeight;
+
+    /**
+     * 保持した結果。使用した順に並べる。キャッシュのロックを取得して操作する。
+     */
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * 保持した結果のキーを、始点の日時で引く索引。キャッシュのロックを取得して操作する。
+     */
+    private final TreeMap<Long, Set<Key>> keysByFrom = new TreeMap<>();
+
+    /**
+     * 保持した結果の範囲の長さ毎の、結果の数。最大の長さから、範囲と重なる結果の始点の下限を求める。
+     * キャッシュのロックを取得して操作する。
+     */
+    private final TreeMap<Long, Integer> spans = new TreeMap<>();
+
+    /**
+     * 保持した結果の重みの合計。キャッシュのロックを取得して操作する。
+     */
+    private long weight;
+
+    /**
+     * 予定表の変更の世代。変更毎に増やし、計算中に変更された結果を見分ける。
+     */
+    private final AtomicLong generation = new AtomicLong();
+
+    /**
+     * 結果が見つかった回数
+     */
+    private final LongAdder hits = new LongAdder();
+
+    /**
+     * 結果が見つからなかった回数
+     */
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * 重みの上限を超えて、追い出した結果の数。キャッシュのロックを取得して操作する。
+     */
+    private long evictions;
+
+    /**
+     * 予定表の変更で、無効にした結果の数。キャッシュのロックを取得して操作する。
+     */
+    private long invalidations;
+
+    /**
+     * キャッシュを作成する。
+     * @param maximumWeight 重みの上限。予定の件数。
+     */
+    QueryCache(long maximumWeight)
+    {
+        this.maximumWeight = maximumWeight;
+    }
+
+    /**
+     * 検索結果を取得する。
+     * @param from 始点の日時(分オフセット)
+     * @param to 終点の日時(分オフセット)
+     * @return 検索結果。見つからなかった場合はnull。
+     */
+    @SuppressWarnings("unchecked")
+    SortedSet<Plan> getFind(long from, long to)
+    {
+        return (SortedSet<Plan>)get(new Key(false, from, to));
+    }
+
+    /**
+     * 件数の結果を取得する。
+     * @param from 始点の日時(分オフセット)
+     * @param to 終点の日時(分オフセット)
+     * @return 件数。見つからなかった場合はnull。
+     */
+    Long getCount(long from, long to)
+    {
+        return (Long)get(new Key(true, from, to));
+    }
+
+    /**
+     * 結果を取得し、見つかった回数、見つからなかった回数を数える。
+     * @param key キー
+     * @return 結果。見つからなかった場合はnull。
+     */
+    private Object get(Key key)
+    {
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(key);
+        }
+        if (entry == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return entry.value;
+    }
+
+    /**
+     * 予定表の変更の世代を取得する。結果を計算する前に取得し、保持する時に渡す。
+     * @return 世代
+     */
+    long generation()
+    {
+        return generation.get();
+    }
+
+    /**
+     * 検索結果を保持する。
+     * @param from 始点の日時(分オフセット)
+     * @param to 終点の日時(分オフセット)
+     * @param found 検索結果。変更できないスナップショット。
+     * @param generation 結果を計算する前の世代
+     */
+    void putFind(long from, long to, SortedSet<Plan> found, long generation)
+    {
+        put(new Key(false, from, to), new Entry(found, found.size() + 1L), generation);
+    }
+
+    /**
+     * 件数の結果を保持する。
+     * @param from 始点の日時(分オフセット)
+     * @param to 終点の日時(分オフセット)
+     * @param count 件数
+     * @param generation 結果を計算する前の世代
+     */
+    void putCount(long from, long to, long count, long generation)
+    {
+        put(new Key(true, from, to), new Entry(count, 1), generation);
+    }
+
+    /**
+     * 結果を保持し、重みの上限を超えた場合は、最も長く使用していない結果から追い出す。
+     * 計算中に予定表が変更された場合と、上限より重い結果は、保持しない。
+     * @param key キー
+     * @param entry 結果
+     * @param generation 結果を計算する前の世代
+     */
+    private synchronized void put(Key key, Entry entry, long generation)
+    {
+        if (generation != this.generation.get() || entry.weight > maximumWeight) {
+            return;
+        }
+        var previous = entries.put(key, entry);
+        if (previous == null) {
+            index(key);
+        }
+        weight += entry.weight - (previous != null ? previous.weight : 0);
+        var iterator = entries.entrySet().iterator();
+        while (weight > maximumWeight) {
+            var eldest = iterator.next();
+            weight -= eldest.getValue().weight;
+            iterator.remove();
+            unindex(eldest.getKey());
+            evictions++;
+        }
+    }
+
+    /**
+     * 結果のキーを索引に追加する。キャッシュのロックを取得して呼び出す。
+     * @param key キー
+     */
+    private void index(Key key)
+    {
+        keysByFrom.computeIfAbsent(key.from, from -> new HashSet<>()).add(key);
+        spans.merge(key.to - key.from, 1, Integer::sum);
+    }
+
+    /**
+     * 結果のキーを索引から削除する。キャッシュのロックを取得して呼び出す。
+     * @param key キー
+     */
+    private void unindex(Key key)
+    {
+        var keys = keysByFrom.get(key.from);
+        keys.remove(key);
+        if (keys.isEmpty()) {
+            keysByFrom.remove(key.from);
+        }
+        long span = key.to - key.from;
+        int number = spans.get(span);
+        if (number == 1) {
+            spans.remove(span);
+        }
+        else {
+            spans.put(span, number - 1);
+        }
+    }
+
+    /**
+     * 範囲と重なる結果のキーを、索引から探す。キャッシュのロックを取得して呼び出す。
+     * 結果の始点は、範囲の始点から結果の範囲の最大の長さを引いた日時より後、範囲の終点より前にある。
+     * @param from 始点の日時(分オフセット、これを含む)
+     * @param to 終点の日時(分オフセット、これを含まない)
+     * @return キーの一覧
+     */
+    private List<Key> overlapping(long from, long to)
+    {
+        var keys = new ArrayList<Key>();
+        if (spans.isEmpty()) {
+            return keys;
+        }
+        for (var group : keysByFrom.subMap(from - spans.lastKey(), false, to, false).values()) {
+            for (var key : group) {
+                if (from < key.to) {
+                    keys.add(key);
+                }
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * 日時を範囲に含む結果を無効にする。予定の登録、削除の後に呼び出す。
+     * @param minutes 日時(分オフセット)
+     */
+    void invalidate(long minutes)
+    {
+        invalidate(minutes, minutes + 1);
+    }
+
+    /**
+     * 範囲と重なる結果を無効にする。予定表を変更した後に呼び出す。
+     * @param from 始点の日時(分オフセット、これを含む)
+     * @param to 終点の日時(分オフセット、これを含まない)
+     */
+    void invalidate(long from, long to)
+    {
+        generation.incrementAndGet();
+        synchronized (this) {
+            for (var key : overlapping(from, to)) {
+                remove(key);
+            }
+        }
+    }
+
+    /**
+     * 予定のいずれかの日時を範囲に含む結果を無効にする。一括した変更の後に呼び出す。
+     * @param sorted 予定の配列。昇順。
+     */
+    void invalidate(Plan[] sorted)
+    {
+        if (sorted.length == 0) {
+            return;
+        }
+        var minutes = new long[sorted.length];
+        for (int i = 0; i < sorted.length; i++) {
+            minutes[i] = DateTimeParser.toMinutes(sorted[i].getDateTime());
+        }
+        generation.incrementAndGet();
+        synchronized (this) {
+            // 最初と最後の日時の範囲と重なる結果のうち、いずれかの日時を含むものを無効にする。
+            for (var key : overlapping(minutes[0], minutes[minutes.length - 1] + 1)) {
+                // 始点以上の最初の日時が、終点より前にあるか。
+                int index = Arrays.binarySearch(minutes, key.from);
+                if (index < 0) {
+                    index = -index - 1;
+                }
+                if (index < minutes.length && minutes[index] < key.to) {
+                    remove(key);
+                }
+            }
+        }
+    }
+
+    /**
+     * 結果を無効にする。キャッシュのロックを取得して呼び出す。
+     * @param key 結果のキー
+     */
+    private void remove(Key key)
+    {
+        weight -= entries.remove(key).weight;
+        unindex(key);
+        invalidations++;
+    }
+
+    /**
+     * 保持した全ての結果を捨てる。統計は変更しない。
+     */
+    public void clear()
+    {
+        generation.incrementAndGet();
+        synchronized (this) {
+            entries.clear();
+            keysByFrom.clear();
+            spans.clear();
+            weight = 0;
+        }
+    }
+
+    /**
+     * 結果が見つかった回数を取得する。
+     * @return 回数
+     */
+    public long getHitCount()
+    {
+        return hits.sum();
+    }
+
+    /**
+     * 結果が見つからなかった回数を取得する。
+     * @return 回数
+     */
+    public long getMissCount()
+    {
+        return misses.sum();
+    }
+
+    /**
+     * 結果が見つかった割合を取得する。
+     * @return 割合。検索していない場合は0。
+     */
+    public double getHitRate()
+    {
+        long hitCount = hits.sum();
+        long total = hitCount + misses.sum();
+        return total == 0 ? 0 : (double)hitCount / total;
+    }
+
+    /**
+     * 重みの上限を超えて、追い出した結果の数を取得する。
+     * @return 数
+     */
+    public synchronized long getEvictionCount()
+    {
+        return evictions;
+    }
+
+    /**
+     * 予定表の変更で、無効にした結果の数を取得する。
+     * @return 数
+     */
+    public synchronized long getInvalidationCount()
+    {
+        return invalidations;
+    }
+
+    /**
+     * 保持した結果の数を取得する。
+     * @return 数
+     */
+    public synchronized int size()
+    {
+        return entries.size();
+    }
+
+    /**
+     * 保持した結果の重みの合計を取得する。
+     * @return 重み
+     */
+    public synchronized long getWeight()
+    {
+        return weight;
+    }
+
+    /**
+     * 重みの上限を取得する。
+     * @return 重み
+     */
+    public long getMaximumWeight()
+    {
+        return maximumWeight;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "QueryCache[size=" + size() + ", weight=" + getWeight() + ", hits=" + getHitCount() + ", misses=" + getMissCount()
+                + ", evictions=" + getEvictionCount() + ", invalidations=" + getInvalidationCount() + "]";
+    }
+}
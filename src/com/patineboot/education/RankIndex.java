@@ -0,0 +1,290 @@
+/*
+ * Copyright (c) 2020, 2021, Patineboot
+ * All rights reserved.
+ */
+
+package com.patineboot.education;
+
+import java.util.Arrays;
+
+/**
+ * 予定の日時(分オフセット)の順位を求める索引クラスです。
+ * 同じ日時は、予定の件数だけ重複して保持します。
+ * 日時は、ソート済みの固定長のブロックに分けて格納し、ブロックの件数をFenwick木で累積します。
+ * 日時より前の件数(順位)は、ブロックの二分探索、Fenwick木の累積、ブロック内の二分探索で、O(log n)で求めます。
+ *
+ * Fenwick木は、ブロックの件数の変更では部分的に更新し、ブロックの分割、削除では次の検索時に作り直します。
+ * @implSpec このクラスはスレッドセーフではありません。呼び出し元で排他してください。
+ */
+final class RankIndex {
+
+    /**
+     * ブロックに格納できる日時の件数
+     */
+    static final int BLOCK_CAPACITY = 512;
+
+    /**
+     * ソート済みの日時のブロック
+     */
+    private long[][] blocks = new long[16][];
+
+    /**
+     * ブロック毎の日時の件数
+     */
+    private int[] sizes = new int[16];
+
+    /**
+     * ブロックの数
+     */
+    private int blockCount;
+
+    /**
+     * ブロックの件数のFenwick木。1から始まる。作り直しが必要な場合はnull。
+     */
+    private long[] tree;
+
+    /**
+     * 日時の件数
+     */
+    private long size;
+
+    /**
+     * 日時を追加する。
+     * @param key 日時(分オフセット)
+     */
+    void add(long key)
+    {
+        if (blockCount == 0) {
+            insertBlock(0, new long[BLOCK_CAPACITY]);
+        }
+        // 空のブロックは、最初に作成したブロックのみ。
+        int b = sizes[0] == 0 ? 0 : findBlock(key);
+        if (b == blockCount) {
+            b--;
+        }
+        if (sizes[b] == BLOCK_CAPACITY) {
+            // 半分ずつに分割し、日時を含む方に追加する。
+            var upper = new long[BLOCK_CAPACITY];
+            int half = BLOCK_CAPACITY / 2;
+            System.arraycopy(blocks[b], half, upper, 0, BLOCK_CAPACITY - half);
+            sizes[b] = half;
+            insertBlock(b + 1, upper);
+            sizes[b + 1] = BLOCK_CAPACITY - half;
+            if (key > blocks[b][half - 1]) {
+                b++;
+            }
+        }
+
+        var block = blocks[b];
+        int index = upperBound(block, sizes[b], key);
+        System.arraycopy(block, index, block, index + 1, sizes[b] - index);
+        block[index] = key;
+        sizes[b]++;
+        size++;
+        update(b, 1);
+    }
+
+    /**
+     * 日時を1件削除する。
+     * @param key 日時(分オフセット)
+     * @return 削除した場合はtrue。日時が見つからなかった場合はfalse。
+     */
+    boolean remove(long key)
+    {
+        int b = findBlock(key);
+        if (b == blockCount) {
+            return false;
+        }
+        var block = blocks[b];
+        int index = lowerBound(block, sizes[b], key);
+        if (index == sizes[b] || block[index] != key) {
+            return false;
+        }
+        System.arraycopy(block, index + 1, block, index, sizes[b] - index - 1);
+        sizes[b]--;
+        size--;
+        if (sizes[b] == 0) {
+            removeBlock(b);
+        }
+        else {
+            update(b, -1);
+        }
+        return true;
+    }
+
+    /**
+     * 指定した日時より前の、日時の件数を取得する。
+     * @param key 日時(分オフセット)
+     * @return 日時の件数
+     */
+    long rank(long key)
+    {
+        int b = findBlock(key);
+        if (b == blockCount) {
+            return size;
+        }
+        return prefix(b) + lowerBound(blocks[b], sizes[b], key);
+    }
+
+    /**
+     * 指定した日時以上の、最小の日時を取得する。
+     * @param key 日時(分オフセット)
+     * @return 日時。ない場合は-1。
+     */
+    long ceiling(long key)
+    {
+        int b = findBlock(key);
+        if (b == blockCount) {
+            return -1;
+        }
+        return blocks[b][lowerBound(blocks[b], sizes[b], key)];
+    }
+
+    /**
+     * 日時の件数を取得する。
+     * @return 日時の件数
+     */
+    long size()
+    {
+        return size;
+    }
+
+    /**
+     * 最後の日時が、指定した日時以上となる最初のブロックを検索する。
+     * @param key 日時
+     * @return ブロックの位置。全ての日時より後ろの場合は、blockCount。
+     */
+    private int findBlock(long key)
+    {
+        int low = 0;
+        int high = blockCount;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (blocks[middle][sizes[middle] - 1] < key) {
+                low = middle + 1;
+            }
+            else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * ブロックの中で、日時以上となる最初の位置を検索する。
+     * @param block ブロック
+     * @param size ブロックの件数
+     * @param key 日時
+     * @return 位置
+     */
+    private static int lowerBound(long[] block, int size, long key)
+    {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (block[middle] < key) {
+                low = middle + 1;
+            }
+            else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * ブロックの中で、日時より大きい最初の位置を検索する。
+     * @param block ブロック
+     * @param size ブロックの件数
+     * @param key 日時
+     * @return 位置
+     */
+    private static int upperBound(long[] block, int size, long key)
+    {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (block[middle] <= key) {
+                low = middle + 1;
+            }
+            else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * 指定したブロックより前の、日時の件数を取得する。
+     * @param b ブロックの位置
+     * @return 日時の件数
+     */
+    private long prefix(int b)
+    {
+        if (tree == null) {
+            // 線形時間で、Fenwick木を作り直す。
+            tree = new long[blockCount + 1];
+            for (int i = 1; i <= blockCount; i++) {
+                tree[i] += sizes[i - 1];
+                int parent = i + (i & -i);
+                if (parent <= blockCount) {
+                    tree[parent] += tree[i];
+                }
+            }
+        }
+        long sum = 0;
+        for (int i = b; i > 0; i -= i & -i) {
+            sum += tree[i];
+        }
+        return sum;
+    }
+
+    /**
+     * ブロックの件数の変更を、Fenwick木に反映する。
+     * @param b ブロックの位置
+     * @param delta 件数の増減
+     */
+    private void update(int b, int delta)
+    {
+        if (tree == null) {
+            return;
+        }
+        for (int i = b + 1; i <= blockCount; i += i & -i) {
+            tree[i] += delta;
+        }
+    }
+
+    /**
+     * ブロックを挿入する。Fenwick木は作り直す。
+     * @param b ブロックの位置
+     * @param block ブロック
+     */
+    private void insertBlock(int b, long[] block)
+    {
+        if (blockCount == blocks.length) {
+            blocks = Arrays.copyOf(blocks, blockCount * 2);
+            sizes = Arrays.copyOf(sizes, blockCount * 2);
+        }
+        System.arraycopy(blocks, b, blocks, b + 1, blockCount - b);
+        System.arraycopy(sizes, b, sizes, b + 1, blockCount - b);
+        blocks[b] = block;
+        sizes[b] = 0;
+        blockCount++;
+        tree = null;
+    }
+
+    /**
+     * ブロックを削除する。Fenwick木は作り直す。
+     * @param b ブロックの位置
+     */
+    private void removeBlock(int b)
+    {
+        System.arraycopy(blocks, b + 1, blocks, b, blockCount - b - 1);
+        System.arraycopy(sizes, b + 1, sizes, b, blockCount - b - 1);
+        blockCount--;
+        blocks[blockCount] = null;
+        tree = null;
+    }
+}
@@ -0,0 +1,421 @@
+/*
+ * Copyright (c) 2020, 2021, Patineboot
+ * All rights reserved.
+ */
+
+package com.patineboot.education;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * 繰り返しの予定クラスです。
+ * 最初の日時から、毎日、毎週、毎月の同じ時刻に、終点日時の前まで繰り返す予定を、1件で表します。
+ * 除外日時に指定した回は、予定に含めません。
+ * 毎月の予定は、最初の日時と同じ日に繰り返し、その日がない月(例えば31日に対する4月)は飛ばします。
+ *
+ * 予定表は、繰り返しの予定を展開せずに格納し、検索した範囲の回のみを予定として作成します。
+ * @implSpec このクラスは不変でスレッドセーフです。
+ */
+public final class RecurringPlan {
+
+    /**
+     * 繰り返しの頻度です。
+     */
+    public enum Frequency {
+        /**
+         * 毎日
+         */
+        DAILY,
+        /**
+         * 毎週
+         */
+        WEEKLY,
+        /**
+         * 毎月
+         */
+        MONTHLY,
+    }
+
+    /**
+     * 1週間の分数
+     */
+    private static final long MINUTES_PER_WEEK = 7L * DateTimeParser.MINUTES_PER_DAY;
+
+    /**
+     * 最初の日時(分オフセット)
+     */
+    private final long first;
+
+    /**
+     * 終点日時(分オフセット、これを含まない)
+     */
+    private final long until;
+
+    /**
+     * 繰り返しの頻度
+     */
+    private final Frequency frequency;
+
+    /**
+     * 用件
+     */
+    private final String content;
+
+    /**
+     * 昇順にソートした、重複のない除外日時(分オフセット)
+     */
+    private final long[] exceptions;
+
+    /**
+     * 繰り返しの予定を作成する。
+     * @param firstDateTime 最初の日時。YYYYMMDDhhmm形式で指定する。
+     * @param frequency 繰り返しの頻度
+     * @param untilDateTime 終点日時(これを含まない)。YYYYMMDDhhmm形式で指定する。
+     * @param content 用件。予定クラスと同じく、MAX_CONTENT_LENGTH文字以内で指定する。予定表毎の最大サイズは、登録時に確認する。
+     * @exception DateTimeParseException 日時形式が不正。
+     * @exception IllegalArgumentException contentの長さが長すぎる。firstDateTimeがuntilDateTime以降。引数がnull。
+     */
+    public RecurringPlan(String firstDateTime, Frequency frequency, String untilDateTime, String content)
+    {
+        if (untilDateTime == null || frequency == null) {
+            throw new IllegalArgumentException("untilDateTime or frequency is null.");
+        }
+        // 日時と用件の正当性は、予定クラスで確認する。
+        var plan = new Plan(firstDateTime, content);
+        this.first = DateTimeParser.toMinutes(plan.getDateTime());
+        this.until = DateTimeParser.parseMinutes(untilDateTime);
+        if (first >= until) {
+            throw new IllegalArgumentException("firstDateTime is not before untilDateTime.");
+        }
+        this.frequency = frequency;
+        this.content = plan.getContent();
+        this.exceptions = new long[0];
+    }
+
+    /**
+     * 除外日時を変更した、繰り返しの予定を作成する。
+     * @param base 元の繰り返しの予定
+     * @param exceptions 昇順にソートした、重複のない除外日時
+     */
+    private RecurringPlan(RecurringPlan base, long[] exceptions)
+    {
+        this.first = base.first;
+        this.until = base.until;
+        this.frequency = base.frequency;
+        this.content = base.content;
+        this.exceptions = exceptions;
+    }
+
+    /**
+     * 指定した回を除外した、繰り返しの予定を作成する。この予定は変更しない。
+     * @param dateTime 除外する日時。YYYYMMDDhhmm形式で指定する。
+     * @return 除外日時を加えた、繰り返しの予定
+     * @exception DateTimeParseException 日時形式が不正。
+     * @exception IllegalArgumentException dateTimeがnull。
+     */
+    public RecurringPlan except(String dateTime)
+    {
+        if (dateTime == null) {
+            throw new IllegalArgumentException("dateTime is null.");
+        }
+        long minutes = DateTimeParser.parseMinutes(dateTime);
+        int index = Arrays.binarySearch(exceptions, minutes);
+        if (index >= 0) {
+            return this;
+        }
+        int insertion = -index - 1;
+        var added = new long[exceptions.length + 1];
+        System.arraycopy(exceptions, 0, added, 0, insertion);
+        added[insertion] = minutes;
+        System.arraycopy(exceptions, insertion, added, insertion + 1, exceptions.length - insertion);
+        return new RecurringPlan(this, added);
+    }
+
+    /**
+     * 最初の日時を取得する。
+     * @return 最初の日時
+     */
+    public LocalDateTime getFirstDateTime()
+    {
+        return DateTimeParser.toLocalDateTime(first);
+    }
+
+    /**
+     * 終点日時を取得する。
+     * @return 終点日時(これを含まない)
+     */
+    public LocalDateTime getUntilDateTime()
+    {
+        return DateTimeParser.toLocalDateTime(until);
+    }
+
+    /**
+     * 繰り返しの頻度を取得する。
+     * @return 繰り返しの頻度
+     */
+    public Frequency getFrequency()
+    {
+        return frequency;
+    }
+
+    /**
+     * 用件を取得する。
+     * @return 用件
+     */
+    public String getContent()
+    {
+        return content;
+    }
+
+    /**
+     * 除外日時を取得する。
+     * @return 昇順の除外日時。変更できない。
+     */
+    public List<LocalDateTime> getExceptions()
+    {
+        var list = new ArrayList<LocalDateTime>(exceptions.length);
+        for (long exception : exceptions) {
+            list.add(DateTimeParser.toLocalDateTime(exception));
+        }
+        return Collections.unmodifiableList(list);
+    }
+
+    /**
+     * 範囲の始点以降に繰り返す、最初の回の番号を求める。
+     * @param from 始点(分オフセット)
+     * @return 回の番号。0が最初の日時。
+     */
+    private long firstIndex(long from)
+    {
+        if (from <= first) {
+            return 0;
+        }
+        if (frequency == Frequency.MONTHLY) {
+            var dateTime = DateTimeParser.toLocalDateTime(from);
+            var start = DateTimeParser.toLocalDateTime(first);
+            long index = (dateTime.getYear() - start.getYear()) * 12L + dateTime.getMonthValue() - start.getMonthValue();
+            // 始点の月の回が、始点より前の場合は次の月から。
+            long minutes = occurrence(index);
+            return minutes >= 0 && minutes < from ? index + 1 : index;
+        }
+        long step = frequency == Frequency.DAILY ? DateTimeParser.MINUTES_PER_DAY : MINUTES_PER_WEEK;
+        return Math.floorDiv(from - first + step - 1, step);
+    }
+
+    /**
+     * 範囲の終点より前に繰り返す、最後の回の番号を求める。
+     * @param to 終点(分オフセット、これを含まない)
+     * @return 回の番号。回がない場合は負の値。
+     */
+    private long lastIndex(long to)
+    {
+        long last = Math.min(to, until) - 1;
+        if (last < first) {
+            return -1;
+        }
+        if (frequency == Frequency.MONTHLY) {
+            var dateTime = DateTimeParser.toLocalDateTime(last);
+            var start = DateTimeParser.toLocalDateTime(first);
+            long index = (dateTime.getYear() - start.getYear()) * 12L + dateTime.getMonthValue() - start.getMonthValue();
+            // 終点の月の回が、終点以降の場合は前の月まで。
+            long minutes = occurrence(index);
+            return minutes > last ? index - 1 : index;
+        }
+        long step = frequency == Frequency.DAILY ? DateTimeParser.MINUTES_PER_DAY : MINUTES_PER_WEEK;
+        return Math.floorDiv(last - first, step);
+    }
+
+    /**
+     * 回の番号から、日時を求める。
+     * @param index 回の番号
+     * @return 日時(分オフセット)。毎月の予定で、その月に同じ日がない場合は負の値。
+     */
+    private long occurrence(long index)
+    {
+        switch (frequency) {
+        case DAILY:
+            return first + index * DateTimeParser.MINUTES_PER_DAY;
+        case WEEKLY:
+            return first + index * MINUTES_PER_WEEK;
+        case MONTHLY:
+        default:
+            var start = DateTimeParser.toLocalDateTime(first);
+            long month = start.getYear() * 12L + start.getMonthValue() - 1 + index;
+            int year = (int)(month / 12);
+            int monthValue = (int)(month % 12) + 1;
+            if (year > 9999 || start.getDayOfMonth() > DateTimeParser.lengthOfMonth(year, monthValue)) {
+                return -1;
+            }
+            return DateTimeParser.daysFromYear0(year, monthValue, start.getDayOfMonth()) * DateTimeParser.MINUTES_PER_DAY
+                    + start.getHour() * 60 + start.getMinute();
+        }
+    }
+
+    /**
+     * 日時が、繰り返しの回であるかを判定する。
+     * @param minutes 日時(分オフセット)
+     * @return 除外していない回の場合はtrue
+     */
+    boolean occursAt(long minutes)
+    {
+        if (minutes < first || minutes >= until || Arrays.binarySearch(exceptions, minutes) >= 0) {
+            return false;
+        }
+        long index = firstIndex(minutes);
+        return occurrence(index) == minutes;
+    }
+
+    /**
+     * 範囲内の回を、予定として1件ずつ作成するイテレータを取得する。範囲外の回は作成しない。
+     * @param from 始点(分オフセット、これを含む)
+     * @param to 終点(分オフセット、これを含まない)
+     * @param descending 降順に取り出す場合はtrue
+     * @return 予定のイテレータ。日時の順に並ぶ。
+     */
+    Iterator<Plan> occurrences(long from, long to, boolean descending)
+    {
+        long low = firstIndex(from);
+        long high = lastIndex(to);
+        return new Iterator<Plan>() {
+            private long index = descending ? high : low;
+            private long next = advance();
+
+            /**
+             * 範囲内で、除外していない次の回を求める。
+             * @return 日時(分オフセット)。回がない場合は負の値。
+             */
+            private long advance()
+            {
+                while (index >= low && index <= high) {
+                    long minutes = occurrence(index);
+                    index += descending ? -1 : 1;
+                    if (minutes >= from && minutes < to && Arrays.binarySearch(exceptions, minutes) < 0) {
+                        return minutes;
+                    }
+                }
+                return -1;
+            }
+
+            @Override
+            public boolean hasNext()
+            {
+                return next >= 0;
+            }
+
+            @Override
+            public Plan next()
+            {
+                if (next < 0) {
+                    throw new NoSuchElementException();
+                }
+                var plan = new Plan(DateTimeParser.toLocalDateTime(next), content);
+                next = advance();
+                return plan;
+            }
+        };
+    }
+
+    /**
+     * 複数の繰り返しの予定の範囲内の回を、日時と用件の順に併合して取り出すイテレータを取得する。
+     * 同じ予定となる回は、1件とする。
+     * @param rules 繰り返しの予定
+     * @param from 始点(分オフセット、これを含む)
+     * @param to 終点(分オフセット、これを含まない)
+     * @param descending 降順に取り出す場合はtrue
+     * @return 予定のイテレータ
+     */
+    static Iterator<Plan> merge(RecurringPlan[] rules, long from, long to, boolean descending)
+    {
+        if (rules.length == 1) {
+            return rules[0].occurrences(from, to, descending);
+        }
+        // 繰り返しの予定毎の、次の回とイテレータの組
+        class Head {
+            Plan plan;
+            final Iterator<Plan> iterator;
+
+            Head(Iterator<Plan> iterator)
+            {
+                this.iterator = iterator;
+                this.plan = iterator.next();
+            }
+        }
+        var heads = new PriorityQueue<Head>(Math.max(rules.length, 1),
+                (a, b) -> descending ? b.plan.compareTo(a.plan) : a.plan.compareTo(b.plan));
+        for (var rule : rules) {
+            var iterator = rule.occurrences(from, to, descending);
+            if (iterator.hasNext()) {
+                heads.add(new Head(iterator));
+            }
+        }
+        return new Iterator<Plan>() {
+            private Plan last;
+
+            @Override
+            public boolean hasNext()
+            {
+                // 直前と同じ予定は読み飛ばす。
+                while (!heads.isEmpty() && heads.peek().plan.equals(last)) {
+                    pop();
+                }
+                return !heads.isEmpty();
+            }
+
+            @Override
+            public Plan next()
+            {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                last = pop();
+                return last;
+            }
+
+            /**
+             * 先頭の回を取り出し、その繰り返しの予定の次の回を加える。
+             * @return 先頭の回
+             */
+            private Plan pop()
+            {
+                var head = heads.poll();
+                var plan = head.plan;
+                if (head.iterator.hasNext()) {
+                    head.plan = head.iterator.next();
+                    heads.add(head);
+                }
+                return plan;
+            }
+        };
+    }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+        if (!(obj instanceof RecurringPlan)) {
+            return false;
+        }
+        var other = (RecurringPlan)obj;
+        return first == other.first && until == other.until && frequency == other.frequency
+                && content.equals(other.content) && Arrays.equals(exceptions, other.exceptions);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return Long.hashCode(first) * 31 + content.hashCode() + frequency.hashCode();
+    }
+
+    @Override
+    public String toString()
+    {
+        return "RecurringPlan[" + frequency + " from " + getFirstDateTime() + " until " + getUntilDateTime()
+                + " content " + content + " exceptions " + getExceptions() + "]";
+    }
+}
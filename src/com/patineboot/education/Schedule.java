@@ -5,9 +5,26 @@
 
 package com.patineboot.education;
 
+import java.time.LocalDateTime;
 import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.SortedMap;
 import java.util.SortedSet;
-import java.util.TreeSet;
+import java.util.TreeMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 
 /**
  * 予定表クラスです。
@@ -15,122 +32,2261 @@ import java.util.TreeSet;
  * 予定は、日付と用件で構成されています。
  * - 日付: YYYYMMDDhhmm形式を指定し、例えば、例えば2000年9月2日16時5分は200009021605となる。
  * - 用件: Unicodeでの基本多言語面(BMP)コード・ポイント(U+0000 - U+FFFF)の文字セットで、256文字までとする。
+ *   予定表毎に、最大サイズを設定できる。
  * .
  * 検索は、範囲、日時の始まりと終わり、を指定し、終わりより前の日時を検索結果に含める。
  * 予定表には、最大登録可能件数を設定できます。
+ * 予定表には、予定の格納方式を設定できます。
+ * 予定表には、用件の共有や暦の索引などの追加機能を設定できます。
+ * 予定表には、毎日、毎週、毎月の繰り返しの予定を登録できます。繰り返しの予定は展開せずに格納し、検索した範囲の回のみを作成します。
+ * 予定表には、最大登録件数に達した時に予定を追い出す方針を設定できます。方針を設定しない場合は、登録は例外となります。
+ * 予定表の日時の範囲を購読すると、範囲内の予定の登録、削除を非同期に受け取れます。
+ * 予定には所要時間を設定でき、時間の範囲と重なる予定と、予定のない空き時間を検索できます。
+ * 予定表は、格納方式がCONCURRENT、SYNCHRONIZEDまたはSHARDEDの場合に、スレッドセーフです。
  */
 public class Schedule {
 
     /**
-     * 予定の用件の最大サイズ
+     * 予定の格納方式です。
+     */
+    public enum Storage {
+        /**
+         * TreeSetで格納する。検索結果は、予定表の変更を反映するビューとなる。
+         */
+        TREE,
+        /**
+         * 日時を分オフセットのlongとして、ソート済みの配列で格納する。TREEより少ないメモリで格納できる。
+         * 検索結果は、検索時のスナップショットとなり、予定表の変更を反映しない。
+         */
+        PACKED,
+        /**
+         * ConcurrentSkipListSetで格納する。複数のスレッドから、ロックなしで検索できる。
+         * 検索結果は、予定表の変更を反映するビューとなり、反復中の変更で例外は発生しない。
+         */
+        CONCURRENT,
+        /**
+         * TreeSetで格納し、全ての操作を一つのロックで排他する。
+         * 検索結果は、ロックの中で範囲の予定をコピーした検索時のスナップショットとなり、予定表の変更を反映しない。
+         * Collections.synchronizedSortedSetのビューと異なり、ロックを取得せずに反復できる。
+         */
+        SYNCHRONIZED,
+        /**
+         * 年毎のシャードに分け、シャード毎のTreeSetとロックで格納する。異なる年の登録、削除は互いに待たない。
+         * 複数の年にまたがる検索と件数は、ForkJoinPoolで並列に実行する。
+         * 検索結果は、検索時のスナップショットとなり、予定表の変更を反映しない。
+         */
+        SHARDED,
+        /**
+         * PACKEDと同じブロックで格納し、用件はヒープ外のバイトバッファに、長さの接頭辞と1文字1バイトまたは2バイトで格納する。
+         * 予定の件数が増えても、GCで辿るオブジェクトが増えない。検索結果の予定は、用件を取得する時に文字列に復元する。
+         * 検索結果は、検索時のスナップショットとなり、予定表の変更を反映しない。
+         */
+        OFF_HEAP,
+    }
+
+    /**
+     * 予定表の追加機能です。
+     */
+    public enum Option {
+        /**
+         * 同じ用件の予定は、一つの文字列を共有する。用件の比較は、参照の比較で済む。
+         * 同じ用件を繰り返し登録する予定表で、メモリを節約できる。
+         * OFF_HEAPは用件をヒープ外に格納するため、検索結果の予定は、共有する文字列ではなく復元した文字列を持つ。
+         */
+        SHARE_CONTENT,
+        /**
+         * 年、月、日の区画に分けた暦の索引を作成する。索引は予定の日時のみを持ち、用件は持たない。
+         * findDay、findMonthは、索引で予定のない区画を飛ばし、予定のある日時の範囲のみを予定のセットから読み出す。
+         */
+        CALENDAR_INDEX,
+        /**
+         * 日時の順位の索引を作成する。countはO(log n)、histogramは予定のある区間毎にO(log n)で集計する。
+         */
+        COUNT_INDEX,
+        /**
+         * 用件の文字の2-gramの転置索引を作成する。searchは、範囲の予定を辿らずに、検索語を含む予定を索引で探す。
+         */
+        CONTENT_INDEX,
+        /**
+         * 予定が占める時間の区間木を作成する。overlaps、freeSlots、nextFreeSlotは、範囲と重なる予定を索引で探す。
+         */
+        INTERVAL_INDEX,
+        /**
+         * 範囲毎に、findとcountの結果をキャッシュする。findの結果は、TREEとCONCURRENTでも検索時のスナップショットとなる。
+         * 予定の登録、削除では、その日時を範囲に含む結果のみを無効にする。キャッシュの統計は、queryCacheで取得する。
+         */
+        QUERY_CACHE,
+        /**
+         * 操作の回数、時間、検索結果の件数を計測し、JDK Flight Recorderのイベントを記録する。
+         * 計測値は、metricsで取得する。設定しない場合は、計測しない。
+         */
+        METRICS,
+    }
+
+    /**
+     * 予定の集計の区間です。
+     */
+    public enum Granularity {
+        /**
+         * 1時間毎
+         */
+        HOUR,
+        /**
+         * 1日毎
+         */
+        DAY,
+        /**
+         * 1か月毎
+         */
+        MONTH,
+    }
+
+    /**
+     * 予定の検索の順序です。
+     */
+    public enum Order {
+        /**
+         * 日時、用件の昇順
+         */
+        ASCENDING,
+        /**
+         * 日時、用件の降順
+         */
+        DESCENDING,
+    }
+
+    /**
+     * 予定の用件の最大サイズの既定値
+     */
+    static final int DEFAULT_CONTENT_LENGTH = 256;
+
+    /**
+     * 最大登録件数を超えた場合の例外のメッセージ
+     */
+    static final String NO_CAPACITY = "no capacity more";
+
+    /**
+     * 登録済みの予定と重複した場合の例外のメッセージ
+     */
+    static final String DUPLICATE_PLAN = "duptilcate plan";
+
+    /**
+     * 予定が見つからなかった場合の例外のメッセージ
      */
-    private static final int CONTENT_LENGTH = 256;
+    static final String NOT_FOUND = "Not found";
 
     /**
      * 予定の最大登録件数
      */
     private final long capacity;
 
+    /**
+     * 予定の用件の最大サイズ
+     */
+    private final int contentLength;
+
+    /**
+     * 予定表を変更した回数。保存が必要かを判定する。
+     */
+    private final LongAdder modifications = new LongAdder();
+
+    /**
+     * 登録済み、または登録中の予定の件数
+     * 最大登録件数を超えないように、予定の登録前に件数を予約する。
+     */
+    private final AtomicLong count = new AtomicLong();
+
     /**
      * 予定のセット
      */
-    private final TreeSet<Plan> plans;
+    private final PlanStore plans;
+
+    /**
+     * 用件の辞書。用件を共有しない場合はnull。
+     */
+    private final ContentDictionary contents;
+
+    /**
+     * 暦の索引。索引を作成しない場合はnull。
+     */
+    private final CalendarIndex calendar;
+
+    /**
+     * 日時の順位の索引。索引を作成しない場合はnull。
+     */
+    private final RankIndex ranks;
+
+    /**
+     * 用件の転置索引。索引を作成しない場合はnull。
+     */
+    private final ContentIndex contentIndex;
+
+    /**
+     * 予定が占める時間の索引。索引を作成しない場合はnull。
+     */
+    private final IntervalIndex intervals;
+
+    /**
+     * 検索結果のキャッシュ。キャッシュしない場合はnull。
+     */
+    private final QueryCache queryCache;
+
+    /**
+     * 索引を作成する場合はtrue。予定のセットと索引の変更は、変更のロックで順序付ける。
+     * 索引は、それぞれのロック(暦の索引は年で分けたロック)で排他する。
+     */
+    private final boolean isIndexed;
+
+    /**
+     * 操作の計測。計測しない場合はnull。
+     */
+    private final ScheduleMetrics metrics;
+
+    /**
+     * 繰り返しの予定。変更する時は配列を作り直し、検索はロックを取得せずに参照する。
+     */
+    private volatile RecurringPlan[] recurringPlans = new RecurringPlan[0];
+
+    /**
+     * 繰り返しの予定の変更を排他するロック
+     */
+    private final Object recurringLock = new Object();
+
+    /**
+     * 予定を追い出す方針。追い出さない場合はnull。
+     */
+    private volatile EvictionPolicy evictionPolicy;
+
+    /**
+     * 期限切れの予定の掃除。掃除しない場合はnull。
+     */
+    private Future<?> sweeper;
+
+    /**
+     * 追い出す方針の変更を排他するロック
+     */
+    private final Object evictionLock = new Object();
+
+    /**
+     * 予定の変更と通知を順序付けるロックの数。2の累乗。
+     */
+    private static final int CHANGE_LOCKS = 64;
+
+    /**
+     * 購読の索引
+     */
+    private final SubscriptionIndex subscriptions = new SubscriptionIndex();
+
+    /**
+     * 購読または索引がある場合に、予定の変更と通知を順序付けるロック。日時で分ける。
+     * 同じ予定の登録と削除の通知と索引の更新が、変更と逆の順にならないようにする。
+     */
+    private final ReentrantLock[] changeLocks = new ReentrantLock[CHANGE_LOCKS];
 
     /**
      * 予定表クラスを、最大登録可能な件数を指定し、作成する。
+     * 予定は、TreeSetで格納する。
      * 
      * @param capacity 最大登録可能件数。最大登録可能件数のチェックが不要な場合は、Long.MAX_VALUEを指定してください。
      * @exception IllegalArgumentException capacityが0以下の場合
      */
     public Schedule(long capacity)
     {
-        // 用件を256文字以内に設定する。
-        Plan.configureContentLength(CONTENT_LENGTH);
+        this(capacity, Storage.TREE);
+    }
+
+    /**
+     * 予定表クラスを、最大登録可能な件数と予定の格納方式を指定し、作成する。
+     * 
+     * @param capacity 最大登録可能件数。最大登録可能件数のチェックが不要な場合は、Long.MAX_VALUEを指定してください。
+     * @param storage 予定の格納方式
+     * @exception IllegalArgumentException capacityが0以下の場合。storageがnullの場合。
+     */
+    public Schedule(long capacity, Storage storage)
+    {
+        this(capacity, createStore(storage), EnumSet.noneOf(Option.class));
+    }
+
+    /**
+     * 予定表クラスを、最大登録可能な件数、予定の格納方式、追加機能を指定し、作成する。
+     *
+     * @param capacity 最大登録可能件数。最大登録可能件数のチェックが不要な場合は、Long.MAX_VALUEを指定してください。
+     * @param storage 予定の格納方式
+     * @param options 追加機能
+     * @exception IllegalArgumentException capacityが0以下の場合。storage、optionsまたは追加機能がnullの場合。
+     */
+    public Schedule(long capacity, Storage storage, Option... options)
+    {
+        this(capacity, DEFAULT_CONTENT_LENGTH, createStore(storage), toSet(options));
+    }
+
+    /**
+     * 予定表クラスを、最大登録可能な件数、用件の最大サイズ、予定の格納方式、追加機能を指定し、作成する。
+     * 用件の最大サイズは予定表毎に保持し、他の予定表と共有しない。
+     *
+     * @param capacity 最大登録可能件数。最大登録可能件数のチェックが不要な場合は、Long.MAX_VALUEを指定してください。
+     * @param contentLength 用件の最大サイズ。0以上、Plan.MAX_CONTENT_LENGTH以下。
+     * @param storage 予定の格納方式
+     * @param options 追加機能
+     * @exception IllegalArgumentException capacityが0以下の場合。contentLengthが範囲外の場合。storage、optionsまたは追加機能がnullの場合。
+     */
+    public Schedule(long capacity, int contentLength, Storage storage, Option... options)
+    {
+        this(capacity, contentLength, createStore(storage), toSet(options));
+    }
+
+    /**
+     * 予定表クラスを、最大登録可能な件数と予定の格納先を指定し、作成する。
+     * 格納先に予定がある場合は、登録済みの件数とする。
+     *
+     * @param capacity 最大登録可能件数
+     * @param plans 予定の格納先
+     * @param options 追加機能
+     * @exception IllegalArgumentException capacityが0以下の場合
+     * @exception IllegalStateException 格納先の予定が、最大登録件数を超える。
+     */
+    Schedule(long capacity, PlanStore plans, Set<Option> options)
+    {
+        this(capacity, DEFAULT_CONTENT_LENGTH, plans, options);
+    }
 
+    /**
+     * 予定表クラスを、最大登録可能な件数、用件の最大サイズと予定の格納先を指定し、作成する。
+     * 格納先に予定がある場合は、登録済みの件数とする。
+     *
+     * @param capacity 最大登録可能件数
+     * @param contentLength 用件の最大サイズ
+     * @param plans 予定の格納先
+     * @param options 追加機能
+     * @exception IllegalArgumentException capacityが0以下の場合。contentLengthが範囲外の場合。
+     * @exception IllegalStateException 格納先の予定が、最大登録件数を超える。
+     */
+    Schedule(long capacity, int contentLength, PlanStore plans, Set<Option> options)
+    {
         if (capacity <= 0) {
             throw new IllegalArgumentException("capacity is zero or negative value");
         }
+        if (contentLength < 0 || contentLength > Plan.MAX_CONTENT_LENGTH) {
+            throw new IllegalArgumentException("contentLength is out of range");
+        }
         this.capacity = capacity;
+        this.contentLength = contentLength;
+        this.plans = plans;
+        this.contents = options.contains(Option.SHARE_CONTENT) ? new ContentDictionary() : null;
+        this.calendar = options.contains(Option.CALENDAR_INDEX) ? new CalendarIndex() : null;
+        this.ranks = options.contains(Option.COUNT_INDEX) ? new RankIndex() : null;
+        this.contentIndex = options.contains(Option.CONTENT_INDEX) ? new ContentIndex() : null;
+        this.intervals = options.contains(Option.INTERVAL_INDEX) ? new IntervalIndex() : null;
+        this.isIndexed = calendar != null || ranks != null || contentIndex != null || intervals != null;
+        this.metrics = options.contains(Option.METRICS) ? new ScheduleMetrics() : null;
+        this.queryCache = options.contains(Option.QUERY_CACHE) ? new QueryCache(QueryCache.DEFAULT_MAXIMUM_WEIGHT) : null;
+        for (int i = 0; i < CHANGE_LOCKS; i++) {
+            changeLocks[i] = new ReentrantLock();
+        }
+        this.count.set(plans.size());
+        if (count.get() > capacity) {
+            throw new IllegalStateException(NO_CAPACITY);
+        }
+        if (isIndexed) {
+            for (var plan : plans.subSet(PLAN_MIN, PLAN_MAX)) {
+                index(plan);
+            }
+        }
+    }
+
+    /**
+     * 追加機能の配列を、セットにする。
+     * @param options 追加機能
+     * @return 追加機能のセット
+     * @exception IllegalArgumentException optionsまたは追加機能がnullの場合
+     */
+    private static Set<Option> toSet(Option[] options)
+    {
+        if (options == null) {
+            throw new IllegalArgumentException("options is null");
+        }
+        var set = EnumSet.noneOf(Option.class);
+        for (var option : options) {
+            if (option == null) {
+                throw new IllegalArgumentException("option is null");
+            }
+            set.add(option);
+        }
+        return set;
+    }
+
+    /**
+     * 予定の格納方式から、予定の格納先を作成する。
+     * @param storage 予定の格納方式
+     * @return 予定の格納先
+     * @exception IllegalArgumentException storageがnullの場合
+     */
+    static PlanStore createStore(Storage storage)
+    {
+        if (storage == null) {
+            throw new IllegalArgumentException("storage is null");
+        }
 
-        // TODO: JCFのマルチスレッド対応はできる。要望を確認してから実装する。
-        // memo: SortedSet s = Collections.synchronizedSortedSet(new TreeSet(...));
-        plans = new TreeSet<>();
+        switch (storage) {
+        case PACKED:
+            return new PackedPlanStore();
+        case CONCURRENT:
+            return new ConcurrentPlanStore();
+        case SYNCHRONIZED:
+            return new SnapshotTreePlanStore();
+        case SHARDED:
+            return new ShardedPlanStore();
+        case OFF_HEAP:
+            return new PackedPlanStore(true);
+        case TREE:
+        default:
+            return new TreePlanStore();
+        }
     }
 
     /**
      * 予定を予定表に登録する。
      * @param dateTime 日時。YYYYMMDDhhmm形式で指定する。
-     * @param content 用件。全角文字列、256文字以内。
+     * @param content 用件。全角文字列、用件の最大サイズ(既定は256文字)以内。
      * @exception DateTimeParseException 日時形式が不正。
      * @exception IllegalArgumentException contentの長さが長すぎる。dateTimeまたはcontentが、null。
      * @exception IllegalStateException 最大登録した後に、さらに呼び出した。登録済みの予定で呼び出した。
      * 
      * 登録済みの予定と、同じ日時と異なる用件で、登録することが可能です。
      * しかし、同じ日時と同じ用件の予定は登録できません。その場合、IllegalStateExceptionが発生します。
+     *
+     * 複数のスレッドから登録した場合も、最大登録件数を超えて登録されることはありません。
+     * 他のスレッドが登録中の予定も、件数に含めます。
      */
     public void add(String dateTime, String content)
     {
-        if (dateTime == null || content == null) {
-            throw new IllegalArgumentException("dateTime or content is null.");
+        if (metrics == null) {
+            addPlan(dateTime, content);
+            return;
         }
-        // 最大登録可能件数を超えて、登録した時
-        if (plans.size() >= capacity) {
-            throw new IllegalStateException("no capacity more");
+        var event = metrics.begin(ScheduleMetrics.Operation.ADD);
+        try {
+            addPlan(dateTime, content);
         }
-
-        // may throw DateTimeParseException or IllegalArgumentException
-        var plan = new Plan(dateTime, content);
-        if (!plans.add(plan)) {
-            throw new IllegalStateException("duptilcate plan");
+        catch (RuntimeException e) {
+            metrics.failed(event, e);
+            throw e;
         }
+        metrics.succeeded(event, 1);
     }
 
     /**
-     * 予定を予定表から削除する。
+     * 所要時間のある予定を予定表に登録する。
+     * 予定は、日時から所要時間が経過するまでの時間を占める。所要時間は予定の同一性に含まないため、
+     * 同じ日時と同じ用件の予定は、所要時間が異なっても登録できません。
+     * 所要時間は、格納方式がTREE、CONCURRENT、SYNCHRONIZED、SHARDEDの場合に格納できます。
      * @param dateTime 日時。YYYYMMDDhhmm形式で指定する。
-     * @param content 用件。全角文字列、256文字以内。
+     * @param content 用件。全角文字列、用件の最大サイズ(既定は256文字)以内。
+     * @param duration 所要時間(分)。0以上、Plan.MAX_DURATION以下。
      * @exception DateTimeParseException 日時形式が不正。
-     * @exception IllegalArgumentException contentの長さが長すぎる。dateTimeまたはcontentが、null。
-     * @exception IllegalStateException 予定が見つからなかった。
+     * @exception IllegalArgumentException contentの長さが長すぎる。durationが範囲外。所要時間を格納できない格納方式。dateTimeまたはcontentが、null。
+     * @exception IllegalStateException 最大登録した後に、さらに呼び出した。登録済みの予定で呼び出した。
      */
-    public void remove(String dateTime, String content)
+    public void add(String dateTime, String content, int duration)
+    {
+        if (metrics == null) {
+            addPlan(dateTime, content, duration);
+            return;
+        }
+        var event = metrics.begin(ScheduleMetrics.Operation.ADD);
+        try {
+            addPlan(dateTime, content, duration);
+        }
+        catch (RuntimeException e) {
+            metrics.failed(event, e);
+            throw e;
+        }
+        metrics.succeeded(event, 1);
+    }
+
+    /**
+     * 予定を予定表に登録する。
+     * @param dateTime 日時
+     * @param content 用件
+     */
+    private void addPlan(String dateTime, String content)
+    {
+        addPlan(dateTime, content, 0);
+    }
+
+    /**
+     * 予定を予定表に登録する。
+     * @param dateTime 日時
+     * @param content 用件
+     * @param duration 所要時間(分)
+     */
+    private void addPlan(String dateTime, String content, int duration)
     {
         if (dateTime == null || content == null) {
             throw new IllegalArgumentException("dateTime or content is null.");
         }
 
-        // may throw DateTimeParseException or IllegalArgumentException
-        var plan = new Plan(dateTime, content);
-        if(!plans.remove(plan)){
-            throw new IllegalStateException("Not found");
+        boolean isReserved = false;
+        boolean isAdded = false;
+        var shared = contents == null ? content : contents.intern(content);
+        try {
+            // may throw DateTimeParseException or IllegalArgumentException
+            var plan = new Plan(dateTime, shared, duration);
+            checkContent(shared);
+            checkDuration(plan);
+
+            // 最大登録可能件数を超えて、登録した時。不正な予定、登録済みの予定では追い出さない。
+            while (count.incrementAndGet() > capacity) {
+                count.decrementAndGet();
+                if (isStored(plan)) {
+                    throw new IllegalStateException(DUPLICATE_PLAN);
+                }
+                if (!makeRoom(1)) {
+                    throw new IllegalStateException(NO_CAPACITY);
+                }
+            }
+            isReserved = true;
+            if (!store(plan)) {
+                throw new IllegalStateException(DUPLICATE_PLAN);
+            }
+            isAdded = true;
+        }
+        finally {
+            // 登録できなかった場合は、予約した件数と用件の参照を戻す。
+            if (!isAdded) {
+                if (isReserved) {
+                    count.decrementAndGet();
+                }
+                if (contents != null) {
+                    contents.release(shared);
+                }
+            }
         }
     }
 
     /**
-     * 予定を検索時に使用するダミー用件
+     * 予定を予定表に一括して登録する。
+     * 全ての予定を登録するか、例外が発生した場合は、いずれの予定も登録しない。
+     * 最大登録件数と重複は、予定表を変更する前に確認する。
+     * 昇順にソート済みの予定は、ソートせずに登録する。一覧の予定が登録済みの予定に比べて多い場合は、線形時間で登録する。
+     * CONCURRENTでは、並行する検索は、登録の途中の一部の予定を参照することがあります。
+     * Streamから登録する場合は、stream::iteratorを指定する。
+     *
+     * @param plans 予定の一覧
+     * @exception IllegalArgumentException plansまたは予定が、null。用件の長さが長すぎる。所要時間のある予定を、所要時間を格納できない格納方式に登録する。
+     * @exception IllegalStateException 最大登録件数を超える。登録済みの予定、または一覧の中で重複する予定がある。
      */
-    private static final String CONTENT_DUMMY = "";
+    public void addAll(Iterable<Plan> plans)
+    {
+        if (metrics == null) {
+            addPlans(plans);
+            return;
+        }
+        var event = metrics.begin(ScheduleMetrics.Operation.ADD_ALL);
+        int added;
+        try {
+            added = addPlans(plans);
+        }
+        catch (RuntimeException e) {
+            metrics.failed(event, e);
+            throw e;
+        }
+        metrics.succeeded(event, added);
+    }
 
     /**
-     * 予定を予定表から検索する。
-     * @param fromDateTime 始点日時(これを含む)
-     * @param toDateTime 終点日時(これを含まない)
-     * @return 予定の一覧
-     * @exception DateTimeParseException 日時形式が不正。
-     * @exception IllegalArgumentException contentの長さが長すぎる。fromElementがtoElementより前。fromDateTimeまたはtoDateTimeがnull。
-     * fromDateTimeとtoDateTimeが等しい場合は、空のセットが返されます。
+     * 予定を予定表に一括して登録する。
+     * @param plans 予定の一覧
+     * @return 登録した予定の件数
      */
-    public SortedSet<Plan> find(String fromDateTime, String toDateTime)
+    private int addPlans(Iterable<Plan> plans)
     {
-        if (fromDateTime == null || toDateTime == null) {
-            throw new IllegalArgumentException("fromDateTime or toDateTime is null.");
+        if (plans == null) {
+            throw new IllegalArgumentException("plans is null.");
         }
 
-        var from = new Plan(fromDateTime, CONTENT_DUMMY);
-        var to = new Plan(toDateTime, CONTENT_DUMMY);
+        var list = new ArrayList<Plan>();
+        boolean isSorted = true;
+        for (var plan : plans) {
+            if (plan == null) {
+                throw new IllegalArgumentException("plan is null.");
+            }
+            checkContent(plan.getContent());
+            checkDuration(plan);
+            if (isSorted && !list.isEmpty() && list.get(list.size() - 1).compareTo(plan) >= 0) {
+                isSorted = false;
+            }
+            list.add(plan);
+        }
+        var sorted = list.toArray(new Plan[list.size()]);
+        if (!isSorted) {
+            Arrays.sort(sorted);
+            for (int i = 1; i < sorted.length; i++) {
+                if (sorted[i - 1].equals(sorted[i])) {
+                    throw new IllegalStateException(DUPLICATE_PLAN);
+                }
+            }
+        }
 
-        // may throw NullPointerException or IllegalArgumentException.
-        var subset = plans.subSet(from, to);
-        return subset;
+        // 最大登録可能件数を超えて、登録した時。登録済みの予定を含む一覧では追い出さない。
+        long reserved;
+        boolean isChecked = false;
+        while ((reserved = count.addAndGet(sorted.length)) > capacity) {
+            count.addAndGet(-sorted.length);
+            if (sorted.length > capacity) {
+                throw new IllegalStateException(NO_CAPACITY);
+            }
+            if (!isChecked && evictionPolicy != null) {
+                for (var plan : sorted) {
+                    if (isStored(plan)) {
+                        throw new IllegalStateException(DUPLICATE_PLAN);
+                    }
+                }
+                isChecked = true;
+            }
+            if (!makeRoom(reserved - capacity)) {
+                throw new IllegalStateException(NO_CAPACITY);
+            }
+        }
+        if (contents != null) {
+            for (int i = 0; i < sorted.length; i++) {
+                sorted[i] = new Plan(sorted[i].getDateTime(), contents.intern(sorted[i].getContent()), sorted[i].getDuration());
+            }
+        }
+        if (storeAll(sorted) != null) {
+            count.addAndGet(-sorted.length);
+            if (contents != null) {
+                for (var plan : sorted) {
+                    contents.release(plan.getContent());
+                }
+            }
+            throw new IllegalStateException(DUPLICATE_PLAN);
+        }
+        return sorted.length;
+    }
+
+    /**
+     * 登録済みの予定の件数を取得する。
+     * @return 予定の件数
+     */
+    long size()
+    {
+        return plans.size();
+    }
+
+    /**
+     * 予定表を変更した回数を取得する。予定と繰り返しの予定の登録、削除、追い出しを数える。
+     * @return 変更した回数
+     */
+    long modificationCount()
+    {
+        return modifications.sum();
+    }
+
+    /**
+     * 用件が、予定表の用件の最大サイズ以内であることを確認する。
+     * @param content 用件
+     * @exception IllegalArgumentException 用件の長さが長すぎる。
+     */
+    private void checkContent(String content)
+    {
+        if (content.length() > contentLength && content.codePointCount(0, content.length()) > contentLength) {
+            throw new IllegalArgumentException("content length over");
+        }
+    }
+
+    /**
+     * 予定の所要時間を、予定表の格納方式が格納できることを確認する。
+     * @param plan 予定
+     * @exception IllegalArgumentException 所要時間のある予定を、所要時間を格納できない格納方式に登録する。
+     */
+    private void checkDuration(Plan plan)
+    {
+        if (plan.getDuration() != 0 && !plans.retainsDuration()) {
+            throw new IllegalArgumentException("duration is not supported by the storage");
+        }
+    }
+
+    /**
+     * 予定を予定のセットと索引に格納し、購読に通知する。
+     * @param plan 予定
+     * @return 格納した場合はtrue。同じ予定が格納済みの場合はfalse。
+     */
+    private boolean store(Plan plan)
+    {
+        if (subscriptions.isEmpty()) {
+            return storePlan(plan);
+        }
+        var lock = changeLock(plan);
+        lock.lock();
+        try {
+            if (!storePlan(plan)) {
+                return false;
+            }
+            publish(PlanChange.Type.ADDED, plan);
+            return true;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 予定を予定のセットと索引に格納する。
+     * @param plan 予定
+     * @return 格納した場合はtrue。同じ予定が格納済みの場合はfalse。
+     */
+    private boolean storePlan(Plan plan)
+    {
+        boolean isStored;
+        if (!isIndexed) {
+            isStored = plans.add(plan);
+        }
+        else {
+            var lock = changeLock(plan);
+            lock.lock();
+            try {
+                isStored = plans.add(plan);
+                if (isStored) {
+                    index(plan);
+                }
+            }
+            finally {
+                lock.unlock();
+            }
+        }
+        if (isStored) {
+            modifications.increment();
+            if (queryCache != null) {
+                queryCache.invalidate(DateTimeParser.toMinutes(plan.getDateTime()));
+            }
+        }
+        return isStored;
+    }
+
+    /**
+     * 予定を予定のセットと索引に一括して格納し、購読に通知する。
+     * @param sorted 予定の配列。昇順にソート済みで、重複がないこと。
+     * @return 全て格納した場合はnull。格納済みの予定と重複した場合は、その予定。
+     */
+    private Plan storeAll(Plan[] sorted)
+    {
+        if (subscriptions.isEmpty()) {
+            return storePlans(sorted);
+        }
+        lockAllChanges();
+        try {
+            var duplicate = storePlans(sorted);
+            if (duplicate == null) {
+                for (var plan : sorted) {
+                    publish(PlanChange.Type.ADDED, plan);
+                }
+            }
+            return duplicate;
+        }
+        finally {
+            unlockAllChanges();
+        }
+    }
+
+    /**
+     * 予定を予定のセットと索引に一括して格納する。
+     * @param sorted 予定の配列。昇順にソート済みで、重複がないこと。
+     * @return 全て格納した場合はnull。格納済みの予定と重複した場合は、その予定。
+     */
+    private Plan storePlans(Plan[] sorted)
+    {
+        Plan duplicate;
+        if (!isIndexed) {
+            duplicate = plans.addAll(sorted);
+        }
+        else {
+            lockAllChanges();
+            try {
+                duplicate = plans.addAll(sorted);
+                if (duplicate == null) {
+                    for (var plan : sorted) {
+                        index(plan);
+                    }
+                }
+            }
+            finally {
+                unlockAllChanges();
+            }
+        }
+        if (duplicate == null) {
+            modifications.increment();
+            if (queryCache != null) {
+                queryCache.invalidate(sorted);
+            }
+        }
+        return duplicate;
+    }
+
+    /**
+     * 予定を予定のセットと索引から削除し、購読に通知する。
+     * @param plan 予定
+     * @return 削除した場合はtrue。予定が見つからなかった場合はfalse。
+     */
+    private boolean unstore(Plan plan)
+    {
+        if (subscriptions.isEmpty()) {
+            return unstorePlan(plan);
+        }
+        var lock = changeLock(plan);
+        lock.lock();
+        try {
+            if (!unstorePlan(plan)) {
+                return false;
+            }
+            publish(PlanChange.Type.REMOVED, plan);
+            return true;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 予定を予定のセットと索引から削除する。
+     * @param plan 予定
+     * @return 削除した場合はtrue。予定が見つからなかった場合はfalse。
+     */
+    private boolean unstorePlan(Plan plan)
+    {
+        boolean isRemoved;
+        if (!isIndexed) {
+            isRemoved = plans.remove(plan);
+        }
+        else {
+            var lock = changeLock(plan);
+            lock.lock();
+            try {
+                isRemoved = plans.remove(plan);
+                if (isRemoved) {
+                    unindex(plan);
+                }
+            }
+            finally {
+                lock.unlock();
+            }
+        }
+        if (isRemoved) {
+            modifications.increment();
+            if (queryCache != null) {
+                queryCache.invalidate(DateTimeParser.toMinutes(plan.getDateTime()));
+            }
+        }
+        return isRemoved;
+    }
+
+    /**
+     * 範囲内の予定を、予定のセットと索引から一括して削除し、購読に通知する。
+     * @param from 始点(これを含む)
+     * @param to 終点(これを含まない)
+     * @return 削除した予定の配列。昇順。
+     */
+    private Plan[] unstoreRange(Plan from, Plan to)
+    {
+        if (subscriptions.isEmpty()) {
+            return unstorePlans(from, to);
+        }
+        lockAllChanges();
+        try {
+            var removed = unstorePlans(from, to);
+            for (var plan : removed) {
+                publish(PlanChange.Type.REMOVED, plan);
+            }
+            return removed;
+        }
+        finally {
+            unlockAllChanges();
+        }
+    }
+
+    /**
+     * 範囲内の予定を、予定のセットと索引から一括して削除する。
+     * @param from 始点(これを含む)
+     * @param to 終点(これを含まない)
+     * @return 削除した予定の配列。昇順。
+     */
+    private Plan[] unstorePlans(Plan from, Plan to)
+    {
+        Plan[] removed;
+        if (!isIndexed) {
+            removed = plans.removeRange(from, to);
+        }
+        else {
+            lockAllChanges();
+            try {
+                removed = plans.removeRange(from, to);
+                for (var plan : removed) {
+                    unindex(plan);
+                }
+            }
+            finally {
+                unlockAllChanges();
+            }
+        }
+        if (removed.length > 0) {
+            modifications.increment();
+        }
+        if (queryCache != null) {
+            queryCache.invalidate(removed);
+        }
+        return removed;
+    }
+
+    /**
+     * 予定を索引に追加する。予定の変更のロックを取得して呼び出す。索引は、それぞれのロックで排他する。
+     * @param plan 予定
+     */
+    private void index(Plan plan)
+    {
+        if (calendar != null) {
+            calendar.add(plan);
+        }
+        if (ranks != null) {
+            synchronized (ranks) {
+                ranks.add(DateTimeParser.toMinutes(plan.getDateTime()));
+            }
+        }
+        if (contentIndex != null) {
+            contentIndex.add(plan);
+        }
+        if (intervals != null) {
+            synchronized (intervals) {
+                intervals.add(plan);
+            }
+        }
+    }
+
+    /**
+     * 予定を索引から削除する。予定の変更のロックを取得して呼び出す。索引は、それぞれのロックで排他する。
+     * @param plan 予定
+     */
+    private void unindex(Plan plan)
+    {
+        if (calendar != null) {
+            calendar.remove(plan);
+        }
+        if (ranks != null) {
+            synchronized (ranks) {
+                ranks.remove(DateTimeParser.toMinutes(plan.getDateTime()));
+            }
+        }
+        if (contentIndex != null) {
+            contentIndex.remove(plan);
+        }
+        if (intervals != null) {
+            synchronized (intervals) {
+                intervals.remove(plan);
+            }
+        }
+    }
+
+    /**
+     * 予定の変更と通知を順序付けるロックを取得する。
+     * @param plan 予定
+     * @return ロック
+     */
+    private ReentrantLock changeLock(Plan plan)
+    {
+        return changeLocks[(int)DateTimeParser.toMinutes(plan.getDateTime()) & (CHANGE_LOCKS - 1)];
+    }
+
+    /**
+     * 予定の変更と通知を順序付ける、全てのロックを取得する。一括した変更で使用する。
+     */
+    private void lockAllChanges()
+    {
+        for (var lock : changeLocks) {
+            lock.lock();
+        }
+    }
+
+    /**
+     * 予定の変更と通知を順序付ける、全てのロックを解放する。
+     */
+    private void unlockAllChanges()
+    {
+        for (int i = CHANGE_LOCKS - 1; i >= 0; i--) {
+            changeLocks[i].unlock();
+        }
+    }
+
+    /**
+     * 予定の変更を、日時を範囲に含む購読に通知する。購読者の処理は待たない。
+     * @param type 変更の種類
+     * @param plan 予定
+     */
+    private void publish(PlanChange.Type type, Plan plan)
+    {
+        var change = new PlanChange(type, plan);
+        subscriptions.forEachContaining(DateTimeParser.toMinutes(plan.getDateTime()), subscription -> subscription.offer(change));
+    }
+
+    /**
+     * 繰り返しの予定の期間と重なる、検索結果のキャッシュを無効にする。
+     * @param recurringPlan 繰り返しの予定
+     */
+    private void invalidate(RecurringPlan recurringPlan)
+    {
+        if (queryCache != null) {
+            queryCache.invalidate(DateTimeParser.toMinutes(recurringPlan.getFirstDateTime()),
+                    DateTimeParser.toMinutes(recurringPlan.getUntilDateTime()));
+        }
+    }
+
+    /**
+     * 繰り返しの予定の回の変更を、範囲が重なる購読に通知する。
+     * 登録済みの予定と同じ回は、検索結果が変わらないため通知しない。
+     * @param type 変更の種類
+     * @param recurringPlan 繰り返しの予定
+     */
+    private void publishOccurrences(PlanChange.Type type, RecurringPlan recurringPlan)
+    {
+        if (subscriptions.isEmpty()) {
+            return;
+        }
+        var recurring = new RecurringPlan[] { recurringPlan };
+        long first = DateTimeParser.toMinutes(recurringPlan.getFirstDateTime());
+        long until = DateTimeParser.toMinutes(recurringPlan.getUntilDateTime());
+        for (var subscription : subscriptions.overlapping(first, until)) {
+            var from = new Plan(DateTimeParser.toLocalDateTime(Math.max(subscription.from(), first)), CONTENT_DUMMY);
+            var to = new Plan(DateTimeParser.toLocalDateTime(Math.min(subscription.to(), until)), CONTENT_DUMMY);
+            forEachOccurrence(recurring, from, to, plan -> subscription.offer(new PlanChange(type, plan)));
+        }
+    }
+
+    /**
+     * 予定表の日時の範囲の変更を購読する。
+     * 範囲内の予定の登録、削除、追い出し、繰り返しの予定の回の登録、削除を、別のスレッドでまとめて購読者に渡す。
+     * 購読者の処理が遅れ、溜まった変更がバッファの大きさを超えた場合は、溜まった変更をOVERFLOWに置き換える。
+     * 購読の前の予定は通知しないため、購読した後に範囲を検索し、その後の変更を適用すること。
+     * 検索と通知の間の変更は、検索結果と変更の両方に含まれる場合がある。
+     * 変更は、既定の配信のスレッドで、1024件のバッファで配信する。
+     * @param fromDateTime 始点日時(これを含む)
+     * @param toDateTime 終点日時(これを含まない)
+     * @param listener 購読者。変更の一覧を、変更の順に受け取る。
+     * @return 購読。closeで解除する。
+     * @exception DateTimeParseException 日時形式が不正。
+     * @exception IllegalArgumentException fromDateTimeがtoDateTimeより後。引数がnull。
+     */
+    public PlanSubscription subscribe(String fromDateTime, String toDateTime, Consumer<List<PlanChange>> listener)
+    {
+        return subscribe(fromDateTime, toDateTime, listener, PlanSubscription.DEFAULT_BUFFER_SIZE, PlanSubscription.DEFAULT_EXECUTOR);
+    }
+
+    /**
+     * 予定表の日時の範囲の変更を、バッファの大きさと配信のスレッドを指定して購読する。
+     * @param fromDateTime 始点日時(これを含む)
+     * @param toDateTime 終点日時(これを含まない)
+     * @param listener 購読者。変更の一覧を、変更の順に受け取る。
+     * @param bufferSize バッファの大きさ。配信を待つ変更の最大件数。
+     * @param executor 変更を配信するスレッド
+     * @return 購読。closeで解除する。
+     * @exception DateTimeParseException 日時形式が不正。
+     * @exception IllegalArgumentException fromDateTimeがtoDateTimeより後。bufferSizeが0以下。引数がnull。
+     * @see #subscribe(String, String, Consumer)
+     */
+    public PlanSubscription subscribe(String fromDateTime, String toDateTime, Consumer<List<PlanChange>> listener, int bufferSize, Executor executor)
+    {
+        if (fromDateTime == null || toDateTime == null || listener == null || executor == null) {
+            throw new IllegalArgumentException("argument is null.");
+        }
+        if (bufferSize <= 0) {
+            throw new IllegalArgumentException("bufferSize is zero or negative value");
+        }
+        // may throw DateTimeParseException
+        long from = DateTimeParser.toMinutes(new Plan(fromDateTime, CONTENT_DUMMY).getDateTime());
+        long to = DateTimeParser.toMinutes(new Plan(toDateTime, CONTENT_DUMMY).getDateTime());
+        if (from > to) {
+            throw new IllegalArgumentException("fromDateTime is after toDateTime.");
+        }
+        var subscription = new PlanSubscription(from, to, listener, bufferSize, executor, subscriptions);
+        subscriptions.add(subscription);
+        return subscription;
+    }
+
+    /**
+     * 繰り返しの予定を予定表に登録する。
+     * 繰り返しの予定は、回の数によらず1件として最大登録件数に数える。
+     * 回が登録済みの予定と同じ場合は、検索結果では1件とする。
+     * 繰り返しの予定は、メモリにのみ保持する。
+     * @param recurringPlan 繰り返しの予定
+     * @exception IllegalArgumentException recurringPlanがnull。用件の長さが長すぎる。
+     * @exception IllegalStateException 最大登録した後に、さらに呼び出した。登録済みの繰り返しの予定で呼び出した。
+     */
+    public void addRecurring(RecurringPlan recurringPlan)
+    {
+        if (recurringPlan == null) {
+            throw new IllegalArgumentException("recurringPlan is null.");
+        }
+        checkContent(recurringPlan.getContent());
+        if (count.incrementAndGet() > capacity) {
+            count.decrementAndGet();
+            throw new IllegalStateException(NO_CAPACITY);
+        }
+        synchronized (recurringLock) {
+            var current = recurringPlans;
+            for (var registered : current) {
+                if (registered.equals(recurringPlan)) {
+                    count.decrementAndGet();
+                    throw new IllegalStateException(DUPLICATE_PLAN);
+                }
+            }
+            var added = Arrays.copyOf(current, current.length + 1);
+            added[current.length] = recurringPlan;
+            recurringPlans = added;
+        }
+        modifications.increment();
+        invalidate(recurringPlan);
+        publishOccurrences(PlanChange.Type.ADDED, recurringPlan);
+    }
+
+    /**
+     * 繰り返しの予定を予定表から削除する。
+     * @param recurringPlan 繰り返しの予定。除外日時も等しいこと。
+     * @exception IllegalArgumentException recurringPlanがnull。
+     * @exception IllegalStateException 繰り返しの予定が見つからなかった。
+     */
+    public void removeRecurring(RecurringPlan recurringPlan)
+    {
+        if (recurringPlan == null) {
+            throw new IllegalArgumentException("recurringPlan is null.");
+        }
+        synchronized (recurringLock) {
+            var current = recurringPlans;
+            for (int i = 0; i < current.length; i++) {
+                if (current[i].equals(recurringPlan)) {
+                    var removed = new RecurringPlan[current.length - 1];
+                    System.arraycopy(current, 0, removed, 0, i);
+                    System.arraycopy(current, i + 1, removed, i, current.length - i - 1);
+                    recurringPlans = removed;
+                    count.decrementAndGet();
+                    modifications.increment();
+                    invalidate(recurringPlan);
+                    publishOccurrences(PlanChange.Type.REMOVED, recurringPlan);
+                    return;
+                }
+            }
+        }
+        throw new IllegalStateException(NOT_FOUND);
+    }
+
+    /**
+     * 登録済みの繰り返しの予定を取得する。
+     * @return 繰り返しの予定の一覧。登録の順に並ぶ。変更できない。
+     */
+    public List<RecurringPlan> recurringPlans()
+    {
+        return List.of(recurringPlans);
+    }
+
+    /**
+     * 範囲内の繰り返しの予定の回を、順に取り出すイテレータを取得する。
+     * @param recurring 繰り返しの予定
+     * @param from 始点
+     * @param fromInclusive 始点を含む場合はtrue
+     * @param to 終点(これを含まない)
+     * @param descending 降順に取り出す場合はtrue
+     * @return 予定のイテレータ
+     */
+    private static Iterator<Plan> occurrences(RecurringPlan[] recurring, Plan from, boolean fromInclusive, Plan to, boolean descending)
+    {
+        // 始点、終点と同じ分の回は、用件で範囲内かを判定する。
+        var minutes = RecurringPlan.merge(recurring, DateTimeParser.toMinutes(from.getDateTime()),
+                DateTimeParser.toMinutes(to.getDateTime()) + 1, descending);
+        return new Iterator<Plan>() {
+            private Plan next = advance();
+
+            private Plan advance()
+            {
+                while (minutes.hasNext()) {
+                    var plan = minutes.next();
+                    int low = plan.compareTo(from);
+                    boolean isAfterFrom = fromInclusive ? low >= 0 : low > 0;
+                    boolean isBeforeTo = plan.compareTo(to) < 0;
+                    if (isAfterFrom && isBeforeTo) {
+                        return plan;
+                    }
+                    // 降順では終点側、昇順では始点側の範囲外を読み飛ばし、反対側の範囲外で終わる。
+                    if (descending ? !isAfterFrom : !isBeforeTo) {
+                        return null;
+                    }
+                }
+                return null;
+            }
+
+            @Override
+            public boolean hasNext()
+            {
+                return next != null;
+            }
+
+            @Override
+            public Plan next()
+            {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                var plan = next;
+                next = advance();
+                return plan;
+            }
+        };
+    }
+
+    /**
+     * 2つの順に並んだ予定を、指定した件数まで併合する。同じ予定は1件とする。
+     * @param plans 予定のイテレータ
+     * @param others 予定のイテレータ
+     * @param limit 最大件数
+     * @param descending 降順に並んでいる場合はtrue
+     * @return 予定の一覧
+     */
+    private static List<Plan> merge(Iterator<Plan> plans, Iterator<Plan> others, int limit, boolean descending)
+    {
+        var merged = new ArrayList<Plan>();
+        Plan a = plans.hasNext() ? plans.next() : null;
+        Plan b = others.hasNext() ? others.next() : null;
+        while ((a != null || b != null) && merged.size() < limit) {
+            int order = a == null ? 1 : b == null ? -1 : descending ? b.compareTo(a) : a.compareTo(b);
+            if (order <= 0) {
+                merged.add(a);
+                a = plans.hasNext() ? plans.next() : null;
+                if (order == 0) {
+                    b = others.hasNext() ? others.next() : null;
+                }
+            }
+            else {
+                merged.add(b);
+                b = others.hasNext() ? others.next() : null;
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * 範囲内の繰り返しの予定の回のうち、予定のセットにない回を順に受け渡す。
+     * @param recurring 繰り返しの予定
+     * @param from 始点(これを含む)
+     * @param to 終点(これを含まない)
+     * @param action 予定を受け取る処理
+     */
+    private void forEachOccurrence(RecurringPlan[] recurring, Plan from, Plan to, Consumer<Plan> action)
+    {
+        var occurrences = occurrences(recurring, from, true, to, false);
+        while (occurrences.hasNext()) {
+            var plan = occurrences.next();
+            if (!isStored(plan)) {
+                action.accept(plan);
+            }
+        }
+    }
+
+    /**
+     * 同じ日時、用件の予定が、予定のセットに登録済みであるかを確認する。所要時間は比較しない。
+     * @param plan 予定
+     * @return 登録済みの場合はtrue
+     */
+    private boolean isStored(Plan plan)
+    {
+        // 同じ日時、用件の直後の予定(用件の末尾にU+0000を加える)までに、登録済みの予定があるかを確認する。
+        return plans.count(plan, new Plan(plan.getDateTime(), plan.getContent() + '\u0000')) != 0;
+    }
+
+    /**
+     * 操作の計測を取得する。
+     * @return 操作の計測
+     * @exception IllegalStateException 追加機能METRICSを設定していない。
+     */
+    public ScheduleMetrics metrics()
+    {
+        if (metrics == null) {
+            throw new IllegalStateException("metrics is disabled");
+        }
+        return metrics;
+    }
+
+    /**
+     * 検索結果のキャッシュを取得する。
+     * @return 検索結果のキャッシュ
+     * @exception IllegalStateException 追加機能QUERY_CACHEを設定していない。
+     */
+    public QueryCache queryCache()
+    {
+        if (queryCache == null) {
+            throw new IllegalStateException("query cache is disabled");
+        }
+        return queryCache;
+    }
+
+    /**
+     * 用件の辞書に登録している用件の数を取得する。
+     * @return 用件の数。用件を共有しない場合は-1。
+     */
+    int sharedContentCount()
+    {
+        return contents == null ? -1 : contents.size();
+    }
+
+    /**
+     * 予定を予定表から削除する。
+     * @param dateTime 日時。YYYYMMDDhhmm形式で指定する。
+     * @param content 用件。全角文字列、用件の最大サイズ以内。
+     * @exception DateTimeParseException 日時形式が不正。
+     * @exception IllegalArgumentException contentの長さが長すぎる。dateTimeまたはcontentが、null。
+     * @exception IllegalStateException 予定が見つからなかった。
+     */
+    public void remove(String dateTime, String content)
+    {
+        if (metrics == null) {
+            removePlan(dateTime, content);
+            return;
+        }
+        var event = metrics.begin(ScheduleMetrics.Operation.REMOVE);
+        try {
+            removePlan(dateTime, content);
+        }
+        catch (RuntimeException e) {
+            metrics.failed(event, e);
+            throw e;
+        }
+        metrics.succeeded(event, 1);
+    }
+
+    /**
+     * 予定を予定表から削除する。
+     * @param dateTime 日時
+     * @param content 用件
+     */
+    private void removePlan(String dateTime, String content)
+    {
+        if (dateTime == null || content == null) {
+            throw new IllegalArgumentException("dateTime or content is null.");
+        }
+
+        // may throw DateTimeParseException or IllegalArgumentException
+        var plan = new Plan(dateTime, content);
+        checkContent(content);
+        if(!unstore(plan)){
+            throw new IllegalStateException(NOT_FOUND);
+        }
+        count.decrementAndGet();
+        if (contents != null) {
+            contents.release(content);
+        }
+    }
+
+    /**
+     * 予定を追い出す方針を設定する。設定済みの方針と、その掃除は取り消す。
+     * 方針を設定すると、最大登録件数に達した予定表への登録は、方針に従って予定を追い出してから登録する。
+     * 追い出せる予定がない場合は、最大登録件数の例外となる。
+     * @param policy 追い出す方針。nullの場合は追い出さず、最大登録件数に達した登録は例外となる。
+     * @exception IllegalArgumentException 掃除の間隔を指定した方針を、スレッドセーフでない格納方式の予定表に設定した。
+     */
+    public void setEvictionPolicy(EvictionPolicy policy)
+    {
+        if (policy != null && policy.sweepInterval() != null && !plans.isThreadSafe()) {
+            throw new IllegalArgumentException("sweeping requires a thread-safe storage.");
+        }
+        synchronized (evictionLock) {
+            if (sweeper != null) {
+                sweeper.cancel(false);
+                sweeper = null;
+            }
+            evictionPolicy = policy;
+            if (policy != null && policy.sweepInterval() != null) {
+                sweeper = ScheduleSweeper.start(this, policy.sweepInterval());
+            }
+        }
+    }
+
+    /**
+     * 期限切れの予定を、日時の範囲で一括して追い出す。
+     * 掃除の間隔を指定した方針では、バックグラウンドのスレッドが定期的に呼び出す。
+     * @return 追い出した予定の件数。方針を設定していない、または有効期間を指定していない場合は0。
+     */
+    public long expire()
+    {
+        var policy = evictionPolicy;
+        return policy == null ? 0 : expire(policy);
+    }
+
+    /**
+     * 掃除のスレッドから、期限切れの予定を追い出す。発生した例外は、方針の通知先に渡す。
+     */
+    void sweep()
+    {
+        var policy = evictionPolicy;
+        if (policy == null) {
+            return;
+        }
+        try {
+            expire(policy);
+        }
+        catch (RuntimeException e) {
+            policy.sweepFailed(e);
+        }
+    }
+
+    /**
+     * 期限切れの予定を追い出す。
+     * @param policy 追い出す方針
+     * @return 追い出した予定の件数
+     */
+    private long expire(EvictionPolicy policy)
+    {
+        var limit = policy.expiryLimit();
+        if (limit == null || !limit.isAfter(PLAN_MIN.getDateTime())) {
+            return 0;
+        }
+        var to = limit.isBefore(PLAN_MAX.getDateTime()) ? new Plan(limit, CONTENT_DUMMY) : PLAN_MAX;
+        return evict(PLAN_MIN, to, policy);
+    }
+
+    /**
+     * 最大登録件数に達した時に、方針に従って予定を追い出す。
+     * 期限切れの予定を追い出し、追い出せなかった場合は、最も古い予定から必要な件数を追い出す。
+     * @param needed 登録に必要な件数
+     * @return 1件以上追い出した場合はtrue。方針を設定していない、または追い出せる予定がない場合はfalse。
+     */
+    private boolean makeRoom(long needed)
+    {
+        var policy = evictionPolicy;
+        if (policy == null) {
+            return false;
+        }
+        long evicted = expire(policy);
+        if (evicted == 0 && policy.evictsOldest()) {
+            var oldest = plans.page(PLAN_MIN, true, PLAN_MAX, (int)Math.min(needed, Integer.MAX_VALUE), false);
+            if (!oldest.isEmpty()) {
+                // 最後の予定の直後(用件の末尾にU+0000を加える)までを追い出す。
+                var last = oldest.get(oldest.size() - 1);
+                evicted = evict(PLAN_MIN, new Plan(last.getDateTime(), last.getContent() + '\u0000'), policy);
+            }
+        }
+        return evicted > 0;
+    }
+
+    /**
+     * 範囲内の予定を一括して追い出し、保管先に渡す。
+     * 件数と用件の参照は、保管先が予定を受け取った後に戻す。保管先が例外を投げた場合は、予定を予定表に戻す。
+     * @param from 始点(これを含む)
+     * @param to 終点(これを含まない)
+     * @param policy 追い出す方針
+     * @return 追い出した予定の件数
+     */
+    private long evict(Plan from, Plan to, EvictionPolicy policy)
+    {
+        var removed = unstoreRange(from, to);
+        if (removed.length == 0) {
+            return 0;
+        }
+        try {
+            policy.archive(Collections.unmodifiableList(Arrays.asList(removed)));
+        }
+        catch (RuntimeException e) {
+            restore(removed);
+            throw e;
+        }
+        count.addAndGet(-removed.length);
+        if (contents != null) {
+            for (var plan : removed) {
+                contents.release(plan.getContent());
+            }
+        }
+        return removed.length;
+    }
+
+    /**
+     * 保管できなかった予定を、予定表に戻す。
+     * 追い出した後に同じ予定が登録された場合は、その予定の件数と用件の参照を戻す。
+     * @param removed 追い出した予定
+     */
+    private void restore(Plan[] removed)
+    {
+        for (var plan : removed) {
+            if (!store(plan)) {
+                count.decrementAndGet();
+                if (contents != null) {
+                    contents.release(plan.getContent());
+                }
+            }
+        }
+    }
+
+    /**
+     * 予定を検索時に使用するダミー用件
+     */
+    private static final String CONTENT_DUMMY = "";
+
+    /**
+     * 予定を予定表から検索する。
+     * @param fromDateTime 始点日時(これを含む)
+     * @param toDateTime 終点日時(これを含まない)
+     * @return 予定の一覧
+     * @exception DateTimeParseException 日時形式が不正。
+     * @exception IllegalArgumentException contentの長さが長すぎる。fromElementがtoElementより前。fromDateTimeまたはtoDateTimeがnull。
+     * fromDateTimeとtoDateTimeが等しい場合は、空のセットが返されます。
+     * 予定の一覧は、TREEとCONCURRENTでは予定表の変更を反映するビュー、PACKED、SYNCHRONIZED、SHARDED、OFF_HEAPでは検索時のスナップショットです。
+     * 検索結果をキャッシュする場合(QUERY_CACHE)は、全ての格納方式で、変更できないスナップショットです。
+     * 計測する場合は、スナップショットの検索結果の件数を記録します。ビューは、件数を数えると範囲内の予定を辿るため、件数を記録しません。
+     */
+    public SortedSet<Plan> find(String fromDateTime, String toDateTime)
+    {
+        if (metrics == null) {
+            return findPlans(fromDateTime, toDateTime);
+        }
+        var event = metrics.begin(ScheduleMetrics.Operation.FIND);
+        SortedSet<Plan> found;
+        try {
+            found = findPlans(fromDateTime, toDateTime);
+        }
+        catch (RuntimeException e) {
+            metrics.failed(event, e);
+            throw e;
+        }
+        // ビューのsizeは範囲内の予定を辿るため、O(1)で件数が分かるスナップショットのみ記録する。
+        metrics.succeeded(event, found instanceof SortedPlanSet ? found.size() : ScheduleMetrics.UNKNOWN_SIZE);
+        return found;
+    }
+
+    /**
+     * 予定を予定表から検索する。
+     * @param fromDateTime 始点日時(これを含む)
+     * @param toDateTime 終点日時(これを含まない)
+     * @return 予定の一覧
+     */
+    private SortedSet<Plan> findPlans(String fromDateTime, String toDateTime)
+    {
+        if (fromDateTime == null || toDateTime == null) {
+            throw new IllegalArgumentException("fromDateTime or toDateTime is null.");
+        }
+
+        var from = new Plan(fromDateTime, CONTENT_DUMMY);
+        var to = new Plan(toDateTime, CONTENT_DUMMY);
+
+        if (from.compareTo(to) > 0) {
+            throw new IllegalArgumentException("fromDateTime is after toDateTime.");
+        }
+
+        if (queryCache == null) {
+            return findPlans(from, to);
+        }
+        long fromMinutes = DateTimeParser.toMinutes(from.getDateTime());
+        long toMinutes = DateTimeParser.toMinutes(to.getDateTime());
+        var cached = queryCache.getFind(fromMinutes, toMinutes);
+        if (cached != null) {
+            return cached;
+        }
+        // 検索中に予定表が変更された場合、結果は保持しない。
+        long generation = queryCache.generation();
+        var found = findPlans(from, to);
+        if (!(found instanceof SortedPlanSet)) {
+            found = new SortedPlanSet(found.toArray(new Plan[found.size()]));
+        }
+        queryCache.putFind(fromMinutes, toMinutes, found, generation);
+        return found;
+    }
+
+    /**
+     * 範囲内の予定を、予定のセットと繰り返しの予定から検索する。
+     * @param from 始点(これを含む)
+     * @param to 終点(これを含まない)
+     * @return 予定の一覧
+     */
+    private SortedSet<Plan> findPlans(Plan from, Plan to)
+    {
+        var subset = plans.subSet(from, to);
+        var recurring = recurringPlans;
+        if (recurring.length == 0) {
+            return subset;
+        }
+        var merged = merge(subset.iterator(), occurrences(recurring, from, true, to, false), Integer.MAX_VALUE, false);
+        return new SortedPlanSet(merged.toArray(new Plan[merged.size()]));
+    }
+
+    /**
+     * 範囲内の予定の件数を取得する。予定は作成しない。
+     * 順位の索引を作成した場合は、O(log n)で求める。作成しない場合は、PACKEDとOFF_HEAPはブロックの件数を合計し、それ以外は範囲内の予定を数える。
+     * @param fromDateTime 始点日時(これを含む)
+     * @param toDateTime 終点日時(これを含まない)
+     * @return 予定の件数
+     * @exception DateTimeParseException 日時形式が不正。
+     * @exception IllegalArgumentException fromDateTimeがtoDateTimeより後。fromDateTimeまたはtoDateTimeがnull。
+     */
+    public long count(String fromDateTime, String toDateTime)
+    {
+        if (metrics == null) {
+            return countPlans(fromDateTime, toDateTime);
+        }
+        var event = metrics.begin(ScheduleMetrics.Operation.COUNT);
+        long counted;
+        try {
+            counted = countPlans(fromDateTime, toDateTime);
+        }
+        catch (RuntimeException e) {
+            metrics.failed(event, e);
+            throw e;
+        }
+        metrics.succeeded(event, counted);
+        return counted;
+    }
+
+    /**
+     * 範囲内の予定の件数を取得する。
+     * @param fromDateTime 始点日時(これを含む)
+     * @param toDateTime 終点日時(これを含まない)
+     * @return 予定の件数
+     */
+    private long countPlans(String fromDateTime, String toDateTime)
+    {
+        if (fromDateTime == null || toDateTime == null) {
+            throw new IllegalArgumentException("fromDateTime or toDateTime is null.");
+        }
+        long from = DateTimeParser.parseMinutes(fromDateTime);
+        long to = DateTimeParser.parseMinutes(toDateTime);
+        if (from > to) {
+            throw new IllegalArgumentException("fromDateTime is after toDateTime.");
+        }
+        if (queryCache == null) {
+            return countPlans(from, to);
+        }
+        var cached = queryCache.getCount(from, to);
+        if (cached != null) {
+            return cached;
+        }
+        long generation = queryCache.generation();
+        long counted = countPlans(from, to);
+        queryCache.putCount(from, to, counted, generation);
+        return counted;
+    }
+
+    /**
+     * 範囲内の予定の件数を、索引または予定のセットと、繰り返しの予定から求める。
+     * @param from 始点の日時(分オフセット、これを含む)
+     * @param to 終点の日時(分オフセット、これを含まない)
+     * @return 予定の件数
+     */
+    private long countPlans(long from, long to)
+    {
+        var fromPlan = new Plan(DateTimeParser.toLocalDateTime(from), CONTENT_DUMMY);
+        var toPlan = new Plan(DateTimeParser.toLocalDateTime(to), CONTENT_DUMMY);
+        long counted;
+        if (ranks != null) {
+            synchronized (ranks) {
+                counted = ranks.rank(to) - ranks.rank(from);
+            }
+        }
+        else {
+            counted = plans.count(fromPlan, toPlan);
+        }
+        var recurring = recurringPlans;
+        if (recurring.length > 0) {
+            var occurrences = new long[1];
+            forEachOccurrence(recurring, fromPlan, toPlan, plan -> occurrences[0]++);
+            counted += occurrences[0];
+        }
+        return counted;
+    }
+
+    /**
+     * 範囲内の予定の件数を、区間毎に集計する。予定は作成しない。
+     * 予定のない区間は、結果に含めない。区間が範囲の始点、終点をまたぐ場合は、範囲内の予定のみを数える。
+     * 順位の索引を作成した場合は、予定のある区間毎にO(log n)で求める。作成しない場合は、範囲内の予定の日時を順に数える。
+     * @param fromDateTime 始点日時(これを含む)
+     * @param toDateTime 終点日時(これを含まない)
+     * @param granularity 集計の区間
+     * @return 区間の始まりの日時から、予定の件数への対応。日時の昇順。
+     * @exception DateTimeParseException 日時形式が不正。
+     * @exception IllegalArgumentException fromDateTimeがtoDateTimeより後。fromDateTime、toDateTime、granularityがnull。
+     */
+    public SortedMap<LocalDateTime, Long> histogram(String fromDateTime, String toDateTime, Granularity granularity)
+    {
+        if (fromDateTime == null || toDateTime == null) {
+            throw new IllegalArgumentException("fromDateTime or toDateTime is null.");
+        }
+        if (granularity == null) {
+            throw new IllegalArgumentException("granularity is null.");
+        }
+        long from = DateTimeParser.parseMinutes(fromDateTime);
+        long to = DateTimeParser.parseMinutes(toDateTime);
+        if (from > to) {
+            throw new IllegalArgumentException("fromDateTime is after toDateTime.");
+        }
+
+        var histogram = new TreeMap<LocalDateTime, Long>();
+        if (ranks != null) {
+            synchronized (ranks) {
+                // 予定のある次の日時へ飛び、その区間の件数を順位の差で求める。
+                long key = ranks.ceiling(from);
+                while (key >= 0 && key < to) {
+                    long start = bucketStart(key, granularity);
+                    long end = Math.min(bucketEnd(start, granularity), to);
+                    histogram.put(DateTimeParser.toLocalDateTime(start), ranks.rank(end) - ranks.rank(key));
+                    key = ranks.ceiling(end);
+                }
+            }
+            addOccurrences(histogram, from, to, granularity);
+            return histogram;
+        }
+
+        // 日時の昇順に、区間の終わりを超えるまで数える。
+        var bucket = new long[] { -1, -1, 0 };
+        plans.forEachKey(new Plan(DateTimeParser.toLocalDateTime(from), CONTENT_DUMMY),
+                new Plan(DateTimeParser.toLocalDateTime(to), CONTENT_DUMMY), key -> {
+            if (key >= bucket[1]) {
+                if (bucket[2] > 0) {
+                    histogram.put(DateTimeParser.toLocalDateTime(bucket[0]), bucket[2]);
+                }
+                bucket[0] = bucketStart(key, granularity);
+                bucket[1] = bucketEnd(bucket[0], granularity);
+                bucket[2] = 0;
+            }
+            bucket[2]++;
+        });
+        if (bucket[2] > 0) {
+            histogram.put(DateTimeParser.toLocalDateTime(bucket[0]), bucket[2]);
+        }
+        addOccurrences(histogram, from, to, granularity);
+        return histogram;
+    }
+
+    /**
+     * 範囲内の繰り返しの予定の回を、区間毎の集計に加える。予定のセットにある回は加えない。
+     * @param histogram 区間の始まりの日時から、予定の件数への対応
+     * @param from 始点の日時(分オフセット、これを含む)
+     * @param to 終点の日時(分オフセット、これを含まない)
+     * @param granularity 集計の区間
+     */
+    private void addOccurrences(SortedMap<LocalDateTime, Long> histogram, long from, long to, Granularity granularity)
+    {
+        var recurring = recurringPlans;
+        if (recurring.length == 0) {
+            return;
+        }
+        forEachOccurrence(recurring, new Plan(DateTimeParser.toLocalDateTime(from), CONTENT_DUMMY),
+                new Plan(DateTimeParser.toLocalDateTime(to), CONTENT_DUMMY), plan -> {
+            long start = bucketStart(DateTimeParser.toMinutes(plan.getDateTime()), granularity);
+            histogram.merge(DateTimeParser.toLocalDateTime(start), 1L, Long::sum);
+        });
+    }
+
+    /**
+     * 日時を含む区間の始まりを取得する。
+     * @param minutes 日時(分オフセット)
+     * @param granularity 集計の区間
+     * @return 区間の始まりの日時(分オフセット)
+     */
+    private static long bucketStart(long minutes, Granularity granularity)
+    {
+        switch (granularity) {
+        case HOUR:
+            return minutes - minutes % 60;
+        case DAY:
+            return minutes - minutes % DateTimeParser.MINUTES_PER_DAY;
+        case MONTH:
+        default:
+            var dateTime = DateTimeParser.toLocalDateTime(minutes);
+            return DateTimeParser.daysFromYear0(dateTime.getYear(), dateTime.getMonthValue(), 1) * DateTimeParser.MINUTES_PER_DAY;
+        }
+    }
+
+    /**
+     * 区間の終わりを取得する。
+     * @param start 区間の始まりの日時(分オフセット)
+     * @param granularity 集計の区間
+     * @return 区間の終わりの日時(分オフセット、これを含まない)
+     */
+    private static long bucketEnd(long start, Granularity granularity)
+    {
+        switch (granularity) {
+        case HOUR:
+            return start + 60;
+        case DAY:
+            return start + DateTimeParser.MINUTES_PER_DAY;
+        case MONTH:
+        default:
+            var dateTime = DateTimeParser.toLocalDateTime(start);
+            return start + (long)DateTimeParser.lengthOfMonth(dateTime.getYear(), dateTime.getMonthValue()) * DateTimeParser.MINUTES_PER_DAY;
+        }
+    }
+
+    /**
+     * 用件が検索語を含む予定を、予定表から検索する。
+     * 用件の索引(CONTENT_INDEX)を作成した場合は、検索語の2文字の組の索引で探し、費用は範囲の予定の件数によらず、一致する予定の件数で決まる。
+     * 索引を作成しない場合は、範囲の予定を辿って用件を確認する。
+     * 繰り返しの予定は、用件が検索語を含む場合に、範囲内の回を含める。
+     * @param fromDateTime 始点日時(これを含む)
+     * @param toDateTime 終点日時(これを含まない)
+     * @param keyword 検索語。空文字列の場合は、範囲の全ての予定。
+     * @return 予定の一覧。検索時のスナップショット。
+     * @exception DateTimeParseException 日時形式が不正。
+     * @exception IllegalArgumentException fromDateTimeがtoDateTimeより後。keywordの長さが長すぎる。引数がnull。
+     */
+    public SortedSet<Plan> search(String fromDateTime, String toDateTime, String keyword)
+    {
+        if (metrics == null) {
+            return searchPlans(fromDateTime, toDateTime, keyword);
+        }
+        var event = metrics.begin(ScheduleMetrics.Operation.SEARCH);
+        SortedSet<Plan> found;
+        try {
+            found = searchPlans(fromDateTime, toDateTime, keyword);
+        }
+        catch (RuntimeException e) {
+            metrics.failed(event, e);
+            throw e;
+        }
+        metrics.succeeded(event, found.size());
+        return found;
+    }
+
+    /**
+     * 用件が検索語を含む予定を、予定表から検索する。
+     * @param fromDateTime 始点日時(これを含む)
+     * @param toDateTime 終点日時(これを含まない)
+     * @param keyword 検索語
+     * @return 予定の一覧
+     */
+    private SortedSet<Plan> searchPlans(String fromDateTime, String toDateTime, String keyword)
+    {
+        if (fromDateTime == null || toDateTime == null || keyword == null) {
+            throw new IllegalArgumentException("fromDateTime, toDateTime or keyword is null.");
+        }
+        // 検索語の長さは、用件と同じく確認する。
+        var from = new Plan(fromDateTime, keyword);
+        checkContent(keyword);
+        var to = new Plan(toDateTime, CONTENT_DUMMY);
+        if (from.getDateTime().isAfter(to.getDateTime())) {
+            throw new IllegalArgumentException("fromDateTime is after toDateTime.");
+        }
+        from = new Plan(from.getDateTime(), CONTENT_DUMMY);
+
+        List<Plan> found;
+        if (contentIndex != null && !keyword.isEmpty()) {
+            found = contentIndex.search(DateTimeParser.toMinutes(from.getDateTime()), DateTimeParser.toMinutes(to.getDateTime()), keyword);
+        }
+        else {
+            found = new ArrayList<>();
+            for (var plan : plans.subSet(from, to)) {
+                if (plan.getContent().contains(keyword)) {
+                    found.add(plan);
+                }
+            }
+        }
+
+        var matched = new ArrayList<RecurringPlan>();
+        for (var recurringPlan : recurringPlans) {
+            if (recurringPlan.getContent().contains(keyword)) {
+                matched.add(recurringPlan);
+            }
+        }
+        if (!matched.isEmpty()) {
+            var recurring = matched.toArray(new RecurringPlan[matched.size()]);
+            found = merge(found.iterator(), occurrences(recurring, from, true, to, false), Integer.MAX_VALUE, false);
+        }
+        return new SortedPlanSet(found.toArray(new Plan[found.size()]));
+    }
+
+    /**
+     * 範囲と重なる予定を、予定表から検索する。
+     * 予定は、日時から所要時間が経過するまでの時間を占めるため、範囲の始点より前に始まり、始点より後に終わる予定を含む。
+     * 所要時間が0の予定は、日時が範囲内の場合に含む。繰り返しの予定は、範囲内の回を、所要時間が0の予定として含める。
+     * 所要時間の索引(INTERVAL_INDEX)を作成した場合は、予定の件数をn、重なる予定の件数をkとして、O(log n + k)で探す。
+     * 索引を作成しない場合は、範囲の始点から所要時間の上限(Plan.MAX_DURATION)だけ前に始まる予定から辿る。
+     * @param fromDateTime 始点日時(これを含む)
+     * @param toDateTime 終点日時(これを含まない)
+     * @return 予定の一覧。日時と用件の昇順。検索時のスナップショット。
+     * @exception DateTimeParseException 日時形式が不正。
+     * @exception IllegalArgumentException fromDateTimeがtoDateTimeより後。fromDateTimeまたはtoDateTimeがnull。
+     * fromDateTimeとtoDateTimeが等しい場合は、空のセットが返されます。
+     */
+    public SortedSet<Plan> overlaps(String fromDateTime, String toDateTime)
+    {
+        if (fromDateTime == null || toDateTime == null) {
+            throw new IllegalArgumentException("fromDateTime or toDateTime is null.");
+        }
+        long from = DateTimeParser.parseMinutes(fromDateTime);
+        long to = DateTimeParser.parseMinutes(toDateTime);
+        if (from > to) {
+            throw new IllegalArgumentException("fromDateTime is after toDateTime.");
+        }
+
+        if (from == to) {
+            return new SortedPlanSet(new Plan[0]);
+        }
+        List<Plan> found = new ArrayList<>();
+        forEachOverlapping(from, to, found::add);
+        var recurring = recurringPlans;
+        if (recurring.length > 0) {
+            var fromPlan = new Plan(DateTimeParser.toLocalDateTime(from), CONTENT_DUMMY);
+            var toPlan = new Plan(DateTimeParser.toLocalDateTime(to), CONTENT_DUMMY);
+            found = merge(found.iterator(), occurrences(recurring, fromPlan, true, toPlan, false), Integer.MAX_VALUE, false);
+        }
+        return new SortedPlanSet(found.toArray(new Plan[found.size()]));
+    }
+
+    /**
+     * 範囲内の空き時間を、予定表から検索する。
+     * 空き時間は、所要時間のある予定が占めていない、指定した長さ以上の連続した時間で、範囲の始点、終点で区切る。
+     * 所要時間が0の予定と、繰り返しの予定は、時間を占めない。
+     * 範囲と重なる予定は、overlapsと同じく、所要時間の索引を作成した場合はO(log n + k)で探し、日時の順に一度だけ辿る。
+     * @param fromDateTime 始点日時(これを含む)
+     * @param toDateTime 終点日時(これを含まない)
+     * @param minutes 空き時間の最小の長さ(分)。1以上。
+     * @return 空き時間の始まりの日時から、終わりの日時(これを含まない)への対応。日時の昇順。
+     * @exception DateTimeParseException 日時形式が不正。
+     * @exception IllegalArgumentException fromDateTimeがtoDateTimeより後。minutesが0以下。fromDateTimeまたはtoDateTimeがnull。
+     */
+    public SortedMap<LocalDateTime, LocalDateTime> freeSlots(String fromDateTime, String toDateTime, int minutes)
+    {
+        return findFreeSlots(fromDateTime, toDateTime, minutes, Integer.MAX_VALUE);
+    }
+
+    /**
+     * 範囲内の、指定した長さ以上の最初の空き時間を、予定表から検索する。
+     * 空き時間の条件はfreeSlotsと同じ。最初の空き時間が見つかった時点で、予定を辿るのをやめる。
+     * @param fromDateTime 始点日時(これを含む)
+     * @param toDateTime 終点日時(これを含まない)
+     * @param minutes 空き時間の最小の長さ(分)。1以上。
+     * @return 空き時間の始まりの日時。空き時間がない場合はnull。
+     * @exception DateTimeParseException 日時形式が不正。
+     * @exception IllegalArgumentException fromDateTimeがtoDateTimeより後。minutesが0以下。fromDateTimeまたはtoDateTimeがnull。
+     */
+    public LocalDateTime nextFreeSlot(String fromDateTime, String toDateTime, int minutes)
+    {
+        var slots = findFreeSlots(fromDateTime, toDateTime, minutes, 1);
+        return slots.isEmpty() ? null : slots.firstKey();
+    }
+
+    /**
+     * 範囲内の空き時間を、指定した数まで検索する。
+     * @param fromDateTime 始点日時(これを含む)
+     * @param toDateTime 終点日時(これを含まない)
+     * @param minutes 空き時間の最小の長さ(分)
+     * @param limit 検索する空き時間の最大の数
+     * @return 空き時間の始まりの日時から、終わりの日時への対応
+     */
+    private SortedMap<LocalDateTime, LocalDateTime> findFreeSlots(String fromDateTime, String toDateTime, int minutes, int limit)
+    {
+        if (fromDateTime == null || toDateTime == null) {
+            throw new IllegalArgumentException("fromDateTime or toDateTime is null.");
+        }
+        if (minutes <= 0) {
+            throw new IllegalArgumentException("minutes is zero or negative value");
+        }
+        long from = DateTimeParser.parseMinutes(fromDateTime);
+        long to = DateTimeParser.parseMinutes(toDateTime);
+        if (from > to) {
+            throw new IllegalArgumentException("fromDateTime is after toDateTime.");
+        }
+
+        var slots = new TreeMap<LocalDateTime, LocalDateTime>();
+        // 空き時間の始まり。辿った予定の終了日時の最大値。
+        var free = new long[] { from };
+        forEachOverlapping(from, to, plan -> {
+            if (plan.getDuration() == 0) {
+                return true;
+            }
+            long start = DateTimeParser.toMinutes(plan.getDateTime());
+            if (start - free[0] >= minutes) {
+                slots.put(DateTimeParser.toLocalDateTime(free[0]), DateTimeParser.toLocalDateTime(start));
+                if (slots.size() == limit) {
+                    return false;
+                }
+            }
+            free[0] = Math.max(free[0], start + plan.getDuration());
+            return true;
+        });
+        if (slots.size() < limit && to - free[0] >= minutes) {
+            slots.put(DateTimeParser.toLocalDateTime(free[0]), DateTimeParser.toLocalDateTime(to));
+        }
+        return slots;
+    }
+
+    /**
+     * 範囲と重なる予定を、日時と用件の昇順に受け渡す。繰り返しの予定は含めない。
+     * @param from 始点の日時(分オフセット、これを含む)
+     * @param to 終点の日時(分オフセット、これを含まない)
+     * @param action 予定を受け取る処理。falseを返した場合は、以降の予定を受け渡さない。
+     */
+    private void forEachOverlapping(long from, long to, Predicate<Plan> action)
+    {
+        if (intervals != null) {
+            synchronized (intervals) {
+                intervals.forEachOverlapping(from, to, action);
+            }
+            return;
+        }
+        // 所要時間を格納する格納方式では、所要時間の上限だけ前に始まる予定から辿る。
+        long start = plans.retainsDuration() ? Math.max(from - Plan.MAX_DURATION, 0) : from;
+        var fromPlan = new Plan(DateTimeParser.toLocalDateTime(start), CONTENT_DUMMY);
+        var toPlan = new Plan(DateTimeParser.toLocalDateTime(to), CONTENT_DUMMY);
+        for (var plan : plans.subSet(fromPlan, toPlan)) {
+            long end = DateTimeParser.toMinutes(plan.getDateTime()) + Math.max(plan.getDuration(), 1);
+            if (end > from && !action.test(plan)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * 指定した日の予定を、予定表から検索する。
+     * 暦の索引を作成した場合は、索引で日の予定のある日時の範囲を求める。
+     * @param year 年。0から9999。
+     * @param month 月。1から12。
+     * @param day 日
+     * @return 予定の一覧。検索時のスナップショット。
+     * @exception IllegalArgumentException 日付が存在しない。
+     */
+    public SortedSet<Plan> findDay(int year, int month, int day)
+    {
+        validateDate(year, month, day);
+        long from = DateTimeParser.daysFromYear0(year, month, day) * DateTimeParser.MINUTES_PER_DAY;
+        return findRange(from, from + DateTimeParser.MINUTES_PER_DAY);
+    }
+
+    /**
+     * 指定した月の予定を、予定表から検索する。
+     * 暦の索引を作成した場合は、索引で予定のない日を飛ばし、月の予定のある日時の範囲を求める。
+     * @param year 年。0から9999。
+     * @param month 月。1から12。
+     * @return 予定の一覧。検索時のスナップショット。
+     * @exception IllegalArgumentException 年月が範囲外。
+     */
+    public SortedSet<Plan> findMonth(int year, int month)
+    {
+        validateDate(year, month, 1);
+        long from = DateTimeParser.daysFromYear0(year, month, 1) * DateTimeParser.MINUTES_PER_DAY;
+        long to = from + (long)DateTimeParser.lengthOfMonth(year, month) * DateTimeParser.MINUTES_PER_DAY;
+        return findRange(from, to);
+    }
+
+    /**
+     * 範囲内の予定を、暦の索引で求めた範囲、または予定のセットから検索する。
+     * @param from 始点の日時(分オフセット、これを含む)
+     * @param to 終点の日時(分オフセット、これを含まない)
+     * @return 予定の一覧。検索時のスナップショット。
+     */
+    private SortedSet<Plan> findRange(long from, long to)
+    {
+        var fromPlan = new Plan(DateTimeParser.toLocalDateTime(from), CONTENT_DUMMY);
+        var toPlan = new Plan(DateTimeParser.toLocalDateTime(to), CONTENT_DUMMY);
+        var found = calendar != null ? calendar.range(from, to, plans) : plans.subSet(fromPlan, toPlan);
+        var recurring = recurringPlans;
+        if (recurring.length > 0) {
+            var merged = merge(found.iterator(), occurrences(recurring, fromPlan, true, toPlan, false), Integer.MAX_VALUE, false);
+            return new SortedPlanSet(merged.toArray(new Plan[merged.size()]));
+        }
+        return new SortedPlanSet(found.toArray(new Plan[found.size()]));
+    }
+
+    /**
+     * 日付が存在することを確認する。
+     * @param year 年
+     * @param month 月
+     * @param day 日
+     * @exception IllegalArgumentException 日付が存在しない。
+     */
+    private static void validateDate(int year, int month, int day)
+    {
+        if (year < 0 || year > 9999 || month < 1 || month > 12
+                || day < 1 || day > DateTimeParser.lengthOfMonth(year, month)) {
+            throw new IllegalArgumentException("invalid date: " + year + "/" + month + "/" + day);
+        }
+    }
+
+    /**
+     * 予定を予定表から検索し、指定した件数までを1ページとして取得する。
+     * 続きのページは、前のページの継続位置をafterに指定して検索する。
+     * 検索結果は、検索時の予定のコピーであり、予定表の変更を反映しない。
+     * ページの間に予定表が変更された場合も、継続位置の後ろから検索を続けられる。
+     *
+     * @param fromDateTime 始点日時(これを含む)
+     * @param toDateTime 終点日時(これを含まない)
+     * @param after 継続位置。この予定の後ろ(降順の場合は前)から検索する。最初のページはnull。
+     * @param limit ページの最大件数。1以上。
+     * @param order 検索の順序
+     * @return 予定のページ
+     * @exception DateTimeParseException 日時形式が不正。
+     * @exception IllegalArgumentException fromDateTimeがtoDateTimeより後。fromDateTime、toDateTime、orderがnull。limitが0以下。
+     */
+    public PlanPage findPage(String fromDateTime, String toDateTime, Plan after, int limit, Order order)
+    {
+        if (fromDateTime == null || toDateTime == null) {
+            throw new IllegalArgumentException("fromDateTime or toDateTime is null.");
+        }
+        if (order == null) {
+            throw new IllegalArgumentException("order is null.");
+        }
+        if (limit <= 0) {
+            throw new IllegalArgumentException("limit is zero or negative value");
+        }
+
+        var from = new Plan(fromDateTime, CONTENT_DUMMY);
+        var to = new Plan(toDateTime, CONTENT_DUMMY);
+
+        if (from.compareTo(to) > 0) {
+            throw new IllegalArgumentException("fromDateTime is after toDateTime.");
+        }
+
+        return findPage(from, to, after, limit, order);
+    }
+
+    /**
+     * 予定を予定表から検索し、指定した件数までを1ページとして取得する。
+     * @param from 始点(これを含む)
+     * @param to 終点(これを含まない)
+     * @param after 継続位置。最初のページはnull。
+     * @param limit ページの最大件数
+     * @param order 検索の順序
+     * @return 予定のページ
+     */
+    private PlanPage findPage(Plan from, Plan to, Plan after, int limit, Order order)
+    {
+        boolean fromInclusive = true;
+        if (after != null) {
+            // 継続位置で、検索の範囲を狭める。
+            if (order == Order.ASCENDING && after.compareTo(from) >= 0) {
+                from = after;
+                fromInclusive = false;
+            }
+            else if (order == Order.DESCENDING && after.compareTo(to) < 0) {
+                to = after;
+            }
+        }
+
+        // 続きがあるかを確認するため、1件多く取得する。
+        boolean descending = order == Order.DESCENDING;
+        var plans = this.plans.page(from, fromInclusive, to, limit + 1, descending);
+        var recurring = recurringPlans;
+        if (recurring.length > 0) {
+            // それぞれの先頭から1件多く併合すれば、併合した結果の先頭も正しい。
+            plans = merge(plans.iterator(), occurrences(recurring, from, fromInclusive, to, descending), limit + 1, descending);
+        }
+        Plan continuation = null;
+        if (plans.size() > limit) {
+            plans = plans.subList(0, limit);
+            continuation = plans.get(limit - 1);
+        }
+        return new PlanPage(plans, continuation);
+    }
+
+    /**
+     * カーソルで1度に取得する予定の件数
+     */
+    private static final int CURSOR_PAGE_SIZE = 1024;
+
+    /**
+     * 予定を予定表から検索し、1件ずつ取り出すカーソルを取得する。
+     * カーソルは、予定をページ単位で取得するため、範囲が広い場合も使用するメモリは一定です。
+     * 反復中に予定表が変更されても、例外は発生しません。
+     *
+     * @param fromDateTime 始点日時(これを含む)
+     * @param toDateTime 終点日時(これを含まない)
+     * @param order 検索の順序
+     * @return 予定のカーソル。removeはサポートしない。
+     * @exception DateTimeParseException 日時形式が不正。
+     * @exception IllegalArgumentException fromDateTimeがtoDateTimeより後。fromDateTime、toDateTime、orderがnull。
+     */
+    public Iterator<Plan> cursor(String fromDateTime, String toDateTime, Order order)
+    {
+        // 最初のページで、引数の正当性を確認する。
+        var first = findPage(fromDateTime, toDateTime, null, CURSOR_PAGE_SIZE, order);
+        var from = new Plan(fromDateTime, CONTENT_DUMMY);
+        var to = new Plan(toDateTime, CONTENT_DUMMY);
+
+        return cursor(first, from, to, order);
+    }
+
+    /**
+     * 全ての予定の始点。西暦0年1月1日0時0分。
+     */
+    static final Plan PLAN_MIN = new Plan(LocalDateTime.of(0, 1, 1, 0, 0), CONTENT_DUMMY);
+
+    /**
+     * 全ての予定の終点。西暦10000年1月1日0時0分。
+     */
+    static final Plan PLAN_MAX = new Plan(LocalDateTime.of(10000, 1, 1, 0, 0), CONTENT_DUMMY);
+
+    /**
+     * 全ての予定を、1件ずつ取り出すカーソルを取得する。
+     * @param order 検索の順序
+     * @return 予定のカーソル
+     */
+    Iterator<Plan> cursor(Order order)
+    {
+        var first = findPage(PLAN_MIN, PLAN_MAX, null, CURSOR_PAGE_SIZE, order);
+        return cursor(first, PLAN_MIN, PLAN_MAX, order);
+    }
+
+    /**
+     * 格納している予定を、昇順に1件ずつ取り出すイテレータを取得する。繰り返しの予定の回は含まない。
+     * @return 予定のイテレータ
+     */
+    Iterator<Plan> storedPlans()
+    {
+        return new Iterator<Plan>() {
+            private List<Plan> page = plans.page(PLAN_MIN, true, PLAN_MAX, CURSOR_PAGE_SIZE, false);
+            private int index;
+
+            @Override
+            public boolean hasNext()
+            {
+                if (index == CURSOR_PAGE_SIZE) {
+                    page = plans.page(page.get(index - 1), false, PLAN_MAX, CURSOR_PAGE_SIZE, false);
+                    index = 0;
+                }
+                return index < page.size();
+            }
+
+            @Override
+            public Plan next()
+            {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return page.get(index++);
+            }
+        };
+    }
+
+    /**
+     * 最初のページから、続きのページを順に検索するカーソルを作成する。
+     * @param first 最初のページ
+     * @param from 始点(これを含む)
+     * @param to 終点(これを含まない)
+     * @param order 検索の順序
+     * @return 予定のカーソル
+     */
+    private Iterator<Plan> cursor(PlanPage first, Plan from, Plan to, Order order)
+    {
+        return new Iterator<Plan>() {
+            private PlanPage page = first;
+            private Iterator<Plan> iterator = first.getPlans().iterator();
+
+            @Override
+            public boolean hasNext()
+            {
+                if (!iterator.hasNext() && page.hasNext()) {
+                    page = findPage(from, to, page.getContinuation(), CURSOR_PAGE_SIZE, order);
+                    iterator = page.getPlans().iterator();
+                }
+                return iterator.hasNext();
+            }
+
+            @Override
+            public Plan next()
+            {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return iterator.next();
+            }
+        };
     }
-}
\ No newline at end of file
+}
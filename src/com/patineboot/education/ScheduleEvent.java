@@ -0,0 +1,54 @@
+/*
+ * Copyright (c) 2020, 2021, Patineboot
+ * All rights reserved.
+ */
+
+package com.patineboot.education;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * 予定表の操作を記録する、JDK Flight Recorderのイベントクラスです。
+ * 予定表の計測(Option.METRICS)を設定した場合に、操作毎に作成します。
+ * イベントは、記録が有効で、しきい値を超えた場合のみ書き込みます。
+ */
+@Name("com.patineboot.education.ScheduleOperation")
+@Label("Schedule Operation")
+@Category("Schedule")
+@Description("Operation on a schedule")
+@StackTrace(false)
+final class ScheduleEvent extends Event {
+
+    /**
+     * 操作の種類
+     */
+    @Label("Operation")
+    String operation;
+
+    /**
+     * 操作の結果
+     */
+    @Label("Outcome")
+    String outcome;
+
+    /**
+     * 操作した、または検索した予定の件数。ビューを返した検索では、件数を数えないため-1。
+     */
+    @Label("Plans")
+    long plans;
+
+    /**
+     * 操作の種類。イベントには書き込まない。
+     */
+    transient ScheduleMetrics.Operation kind;
+
+    /**
+     * 操作の開始時刻(ナノ秒)。イベントには書き込まない。
+     */
+    transient long startNanos;
+}
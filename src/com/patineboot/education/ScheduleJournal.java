@@ -0,0 +1,590 @@
+/*
+ * Copyright (c) 2020, 2021, Patineboot
+ * All rights reserved.
+ */
+
+package com.patineboot.education;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * 予定表の登録、削除を追記するジャーナルです。
+ * レコードは、長さ、CRC32、操作、日時(分オフセット)、用件(UTF-8)で構成します。
+ * 所要時間のある予定の登録は、操作をADD_DURATIONとし、日時と用件の間に所要時間(分)を加えます。
+ * 所要時間が0の登録は、所要時間を加える前と同じADDのレコードとするため、以前のジャーナルもそのまま再生できます。
+ * 一括登録は、操作をADD_ALLとし、件数と、予定毎の日時、所要時間、用件を一つのレコードに収めます。
+ * レコードのCRC32で、一括登録の全ての予定を再生するか、いずれも再生しないかが決まります。
+ * 書き込み途中で中断した末尾のレコードは、再生時に切り捨てます。
+ *
+ * 同期方式により、書き込みとfsyncをまとめる単位が異なります。
+ * - EACH: 操作毎に書き込み、fsyncする。
+ * - GROUP: 同期を待つスレッドのうち1つが、それまでに追記された全てのレコードをまとめてfsyncする。
+ * - PERIODIC: 一定の間隔で、追記されたレコードをまとめてfsyncする。操作は同期を待たない。
+ *
+ * EACHで書き込みまたはfsyncに失敗した場合は、レコードを取り消し、ファイルを書き込み前の長さに切り詰めてから例外を投げます。
+ * 切り詰めにも失敗した場合は、ファイルの末尾が不明となるため、以降の追記を全て失敗とします。
+ * GROUP、PERIODICでは、追記したレコードは取り消しません。書き込めなかったレコードは、次の同期で続きから書き込みます。
+ * @implSpec このクラスはスレッドセーフです。
+ */
+final class ScheduleJournal implements Closeable {
+
+    /**
+     * 操作: 予定の登録
+     */
+    static final byte ADD = 1;
+
+    /**
+     * 操作: 予定の削除
+     */
+    static final byte REMOVE = 2;
+
+    /**
+     * 操作: 所要時間のある予定の登録。ADDのレコードに所要時間を加えた版。
+     */
+    static final byte ADD_DURATION = 3;
+
+    /**
+     * 操作: 予定の一括登録。件数と、予定毎の日時、所要時間、用件を持つ。
+     */
+    static final byte ADD_ALL = 4;
+
+    /**
+     * PERIODICでfsyncする間隔(ミリ秒)
+     */
+    static final long SYNC_INTERVAL_MILLIS = 10;
+
+    /**
+     * レコードの長さとCRC32のサイズ
+     */
+    private static final int RECORD_HEADER = 4 + 4;
+
+    /**
+     * ジャーナルのファイル
+     */
+    private final FileChannel channel;
+
+    /**
+     * 同期方式
+     */
+    private final DurableSchedule.SyncMode syncMode;
+
+    /**
+     * 追記済みで、書き込み前のレコード
+     */
+    private ByteBuffer pending = ByteBuffer.allocate(64 * 1024);
+
+    /**
+     * 追記したレコードの数
+     */
+    private long appended;
+
+    /**
+     * fsync済みのレコードの数
+     */
+    private long durable;
+
+    /**
+     * 書き込みの失敗を取り消せなかった場合の例外。以降の追記は失敗とする。
+     */
+    private IOException failure;
+
+    /**
+     * fsync中のスレッドがある場合はtrue
+     */
+    private boolean isSyncing;
+
+    /**
+     * fsyncの完了を待つためのロック
+     */
+    private final Object syncLock = new Object();
+
+    /**
+     * PERIODICでfsyncするスレッド
+     */
+    private final ScheduledExecutorService flusher;
+
+    /**
+     * CRC32の計算
+     */
+    private final CRC32 crc = new CRC32();
+
+    /**
+     * ジャーナルを開く。ファイルがない場合は作成し、ある場合は末尾に追記する。
+     * @param file ジャーナルのファイル
+     * @param syncMode 同期方式
+     * @exception IOException ファイルを開けなかった。
+     */
+    ScheduleJournal(Path file, DurableSchedule.SyncMode syncMode) throws IOException
+    {
+        this(FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE), syncMode);
+    }
+
+    /**
+     * ジャーナルを、開いたファイルの末尾から追記する。
+     * @param channel ジャーナルのファイル。書き込みできること。
+     * @param syncMode 同期方式
+     * @exception IOException ファイルの大きさを取得できなかった。
+     */
+    ScheduleJournal(FileChannel channel, DurableSchedule.SyncMode syncMode) throws IOException
+    {
+        this.channel = channel;
+        this.channel.position(channel.size());
+        this.syncMode = syncMode;
+
+        if (syncMode == DurableSchedule.SyncMode.PERIODIC) {
+            flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                var thread = new Thread(runnable, "ScheduleJournal-flusher");
+                thread.setDaemon(true);
+                return thread;
+            });
+            flusher.scheduleWithFixedDelay(() -> {
+                try {
+                    sync();
+                }
+                catch (IOException | UncheckedIOException e) {
+                    // 次のsyncまたはcloseで、呼び出し元に通知する。
+                }
+            }, SYNC_INTERVAL_MILLIS, SYNC_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        }
+        else {
+            flusher = null;
+        }
+    }
+
+    /**
+     * レコードを追記する。所要時間のある登録は、ADD_DURATIONのレコードとする。
+     * EACHの場合は、書き込んでfsyncする。失敗した場合は、レコードを取り消す。それ以外の場合は、awaitで同期する。
+     * @param op 操作。ADDまたはREMOVE。
+     * @param minutes 日時(分オフセット)
+     * @param content 用件
+     * @param duration 所要時間(分)。削除の場合は0。
+     * @return レコードの番号。awaitに指定する。
+     * @exception UncheckedIOException 書き込みに失敗した。以前の書き込みの失敗を取り消せなかった。
+     */
+    synchronized long append(byte op, long minutes, String content, int duration)
+    {
+        if (failure != null) {
+            throw new UncheckedIOException("journal is unusable after a failed write", failure);
+        }
+        if (op == ADD && duration != 0) {
+            op = ADD_DURATION;
+        }
+        var bytes = content.getBytes(StandardCharsets.UTF_8);
+        int length = 1 + 8 + (op == ADD_DURATION ? 4 : 0) + 4 + bytes.length;
+        int start = begin(length);
+        pending.put(op);
+        pending.putLong(minutes);
+        if (op == ADD_DURATION) {
+            pending.putInt(duration);
+        }
+        pending.putInt(bytes.length);
+        pending.put(bytes);
+        end(start, length);
+        appended++;
+
+        if (syncMode == DurableSchedule.SyncMode.EACH) {
+            writeEach(1);
+        }
+        return appended;
+    }
+
+    /**
+     * 予定の一括登録を、一つのADD_ALLのレコードとして追記する。レコードの番号は、予定の件数だけ進む。
+     * EACHの場合は、一度だけ書き込んでfsyncする。失敗した場合は、レコードを取り消す。それ以外の場合は、awaitで同期する。
+     * @param plans 予定の一覧。空の場合は追記しない。
+     * @return 最後の予定のレコードの番号。awaitに指定する。
+     * @exception IllegalArgumentException 予定が多く、一つのレコードに収まらない。
+     * @exception UncheckedIOException 書き込みに失敗した。以前の書き込みの失敗を取り消せなかった。
+     */
+    synchronized long appendAll(List<Plan> plans)
+    {
+        if (failure != null) {
+            throw new UncheckedIOException("journal is unusable after a failed write", failure);
+        }
+        if (plans.isEmpty()) {
+            return appended;
+        }
+        var contents = new byte[plans.size()][];
+        long length = 1 + 4;
+        for (int i = 0; i < contents.length; i++) {
+            contents[i] = plans.get(i).getContent().getBytes(StandardCharsets.UTF_8);
+            length += 8 + 4 + 4 + contents[i].length;
+        }
+        if (length > Integer.MAX_VALUE - RECORD_HEADER - pending.capacity()) {
+            throw new IllegalArgumentException("too many plans for a journal record: " + plans.size());
+        }
+
+        int start = begin((int)length);
+        pending.put(ADD_ALL);
+        pending.putInt(contents.length);
+        for (int i = 0; i < contents.length; i++) {
+            var plan = plans.get(i);
+            pending.putLong(DateTimeParser.toMinutes(plan.getDateTime()));
+            pending.putInt(plan.getDuration());
+            pending.putInt(contents[i].length);
+            pending.put(contents[i]);
+        }
+        end(start, (int)length);
+        appended += contents.length;
+
+        if (syncMode == DurableSchedule.SyncMode.EACH) {
+            writeEach(contents.length);
+        }
+        return appended;
+    }
+
+    /**
+     * レコードを書き込む領域を確保し、長さとCRC32の場所を書き込む。
+     * @param length レコードの長さ。長さとCRC32を含まない。
+     * @return レコードの開始位置
+     */
+    private int begin(int length)
+    {
+        if (pending.remaining() < RECORD_HEADER + length) {
+            var grown = ByteBuffer.allocate(Math.max(pending.capacity() * 2, pending.position() + RECORD_HEADER + length));
+            pending.flip();
+            grown.put(pending);
+            pending = grown;
+        }
+        int start = pending.position();
+        pending.putInt(length);
+        pending.putInt(0);
+        return start;
+    }
+
+    /**
+     * 書き込んだレコードのCRC32を求め、レコードの先頭に書き込む。
+     * @param start レコードの開始位置
+     * @param length レコードの長さ。長さとCRC32を含まない。
+     */
+    private void end(int start, int length)
+    {
+        crc.reset();
+        crc.update(pending.array(), start + RECORD_HEADER, length);
+        pending.putInt(start + 4, (int)crc.getValue());
+    }
+
+    /**
+     * EACHの場合に、追記したレコードを書き込み、fsyncする。
+     * 失敗した場合は、呼び出し元が予定表の変更を取り消すため、レコードをジャーナルからも取り除く。
+     * @param records 追記したレコードの数
+     * @exception UncheckedIOException 書き込みに失敗した。
+     */
+    private void writeEach(long records)
+    {
+        long position = -1;
+        try {
+            position = channel.position();
+            writePending();
+            channel.force(false);
+        }
+        catch (IOException ioe) {
+            pending.clear();
+            appended -= records;
+            truncate(position, ioe);
+            throw new UncheckedIOException(ioe);
+        }
+        synchronized (syncLock) {
+            durable = appended;
+        }
+    }
+
+    /**
+     * 書き込みに失敗したファイルを、書き込み前の長さに切り詰める。
+     * 切り詰めに失敗した場合は、以降の追記を失敗とする。
+     * @param position 書き込み前のファイルの長さ。不明な場合は負。
+     * @param cause 書き込みの失敗
+     */
+    private void truncate(long position, IOException cause)
+    {
+        if (position < 0) {
+            failure = cause;
+            return;
+        }
+        try {
+            channel.truncate(position);
+            channel.position(position);
+            channel.force(false);
+        }
+        catch (IOException ioe) {
+            cause.addSuppressed(ioe);
+            failure = cause;
+        }
+    }
+
+    /**
+     * レコードがfsyncされるまで待つ。PERIODICの場合は待たない。
+     * 他のスレッドがfsync中の場合は、その完了を待ち、必要なら続けてfsyncする。
+     * @param record レコードの番号
+     * @exception UncheckedIOException 書き込みに失敗した。
+     */
+    void await(long record)
+    {
+        if (syncMode == DurableSchedule.SyncMode.PERIODIC) {
+            return;
+        }
+        try {
+            syncUpTo(record);
+        }
+        catch (IOException ioe) {
+            throw new UncheckedIOException(ioe);
+        }
+    }
+
+    /**
+     * 追記済みの全てのレコードを、fsyncする。
+     * @exception IOException 書き込みに失敗した。
+     */
+    void sync() throws IOException
+    {
+        long record;
+        synchronized (this) {
+            record = appended;
+        }
+        syncUpTo(record);
+    }
+
+    /**
+     * 追記したレコードの数を取得する。一括登録のレコードは、予定の件数を数える。
+     * @return レコードの数
+     */
+    synchronized long size()
+    {
+        return appended;
+    }
+
+    /**
+     * レコードがfsyncされるまで待つ。
+     * @param record レコードの番号
+     * @exception IOException 書き込みに失敗した。
+     */
+    private void syncUpTo(long record) throws IOException
+    {
+        synchronized (syncLock) {
+            for (;;) {
+                if (durable >= record) {
+                    return;
+                }
+                if (!isSyncing) {
+                    isSyncing = true;
+                    break;
+                }
+                try {
+                    syncLock.wait();
+                }
+                catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException(ie);
+                }
+            }
+        }
+
+        // fsyncするスレッドとして、それまでに追記された全てのレコードを書き込む。
+        try {
+            long upTo;
+            synchronized (this) {
+                writePending();
+                upTo = appended;
+            }
+            channel.force(false);
+            synchronized (syncLock) {
+                durable = Math.max(durable, upTo);
+            }
+        }
+        finally {
+            synchronized (syncLock) {
+                isSyncing = false;
+                syncLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * 追記済みのレコードを、ファイルに書き込む。
+     * 失敗した場合は、書き込めなかったレコードを、次の書き込みのために残す。
+     * @exception IOException 書き込みに失敗した。
+     */
+    private void writePending() throws IOException
+    {
+        pending.flip();
+        try {
+            while (pending.hasRemaining()) {
+                channel.write(pending);
+            }
+        }
+        finally {
+            pending.compact();
+        }
+    }
+
+    /**
+     * 全てのレコードをfsyncし、ジャーナルを閉じる。
+     * @exception IOException 書き込みに失敗した。
+     */
+    @Override
+    public void close() throws IOException
+    {
+        if (flusher != null) {
+            flusher.shutdownNow();
+        }
+        try {
+            sync();
+        }
+        finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * ジャーナルのレコードを受け取るインターフェースです。
+     */
+    interface Replayer {
+
+        /**
+         * レコードを受け取る。
+         * @param op 操作。ADDまたはREMOVE。ADD_DURATIONのレコードは、ADDとして受け取る。
+         * @param minutes 日時(分オフセット)
+         * @param content 用件
+         * @param duration 所要時間(分)。ADD_DURATION以外のレコードは0。
+         */
+        void replay(byte op, long minutes, String content, int duration);
+    }
+
+    /**
+     * ジャーナルのレコードを、先頭から順に再生する。
+     * 書き込み途中で中断した末尾のレコードは、ファイルから切り捨てる。
+     * 一括登録のレコードは、予定毎にADDのレコードとして受け渡す。
+     * @param file ジャーナルのファイル。ない場合は何もしない。
+     * @param replayer レコードを受け取る処理
+     * @return 再生したレコードの数。一括登録のレコードは、予定の件数を数える。
+     * @exception IOException 読み込みに失敗した。
+     */
+    static long replay(Path file, Replayer replayer) throws IOException
+    {
+        if (!Files.exists(file)) {
+            return 0;
+        }
+
+        long count = 0;
+        long position = 0;
+        var crc = new CRC32();
+        try (var channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            var input = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel), 64 * 1024));
+            for (;;) {
+                byte[] record;
+                int checksum;
+                try {
+                    int length = input.readInt();
+                    checksum = input.readInt();
+                    if (length < 1 + 8 + 4 || length > channel.size()) {
+                        break;
+                    }
+                    record = new byte[length];
+                    input.readFully(record);
+                }
+                catch (EOFException eofe) {
+                    break;
+                }
+                crc.reset();
+                crc.update(record);
+                if ((int)crc.getValue() != checksum) {
+                    break;
+                }
+
+                var buffer = ByteBuffer.wrap(record);
+                byte op = buffer.get();
+                if (op == ADD_ALL) {
+                    int replayed = replayAll(buffer, replayer);
+                    if (replayed < 0) {
+                        break;
+                    }
+                    position += RECORD_HEADER + record.length;
+                    count += replayed;
+                    continue;
+                }
+                long minutes = buffer.getLong();
+                int duration = 0;
+                if (op == ADD_DURATION) {
+                    if (record.length < 1 + 8 + 4 + 4) {
+                        break;
+                    }
+                    op = ADD;
+                    duration = buffer.getInt();
+                }
+                int contentLength = buffer.getInt();
+                if (contentLength != buffer.remaining()) {
+                    break;
+                }
+                var content = new String(record, buffer.position(), contentLength, StandardCharsets.UTF_8);
+                replayer.replay(op, minutes, content, duration);
+
+                position += RECORD_HEADER + record.length;
+                count++;
+            }
+
+            if (position < channel.size()) {
+                // 書き込み途中のレコードを切り捨てる。
+                channel.truncate(position);
+                channel.force(false);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * 一括登録のレコードを読み込み、全ての予定を読み込めた場合のみ、予定毎にADDのレコードとして受け渡す。
+     * @param buffer 操作の後ろのレコード
+     * @param replayer レコードを受け取る処理
+     * @return 受け渡した予定の件数。レコードが壊れている場合は負。
+     */
+    private static int replayAll(ByteBuffer buffer, Replayer replayer)
+    {
+        if (buffer.remaining() < 4) {
+            return -1;
+        }
+        int size = buffer.getInt();
+        if (size < 1 || size > buffer.remaining() / (8 + 4 + 4)) {
+            return -1;
+        }
+        var minutes = new long[size];
+        var durations = new int[size];
+        var contents = new String[size];
+        for (int i = 0; i < size; i++) {
+            if (buffer.remaining() < 8 + 4 + 4) {
+                return -1;
+            }
+            minutes[i] = buffer.getLong();
+            durations[i] = buffer.getInt();
+            int contentLength = buffer.getInt();
+            if (contentLength < 0 || contentLength > buffer.remaining()) {
+                return -1;
+            }
+            contents[i] = new String(buffer.array(), buffer.position(), contentLength, StandardCharsets.UTF_8);
+            buffer.position(buffer.position() + contentLength);
+        }
+        if (buffer.hasRemaining()) {
+            return -1;
+        }
+        for (int i = 0; i < size; i++) {
+            replayer.replay(ADD, minutes[i], contents[i], durations[i]);
+        }
+        return size;
+    }
+}
@@ -0,0 +1,331 @@
+/*
+ * Copyright (c) 2020, 2021, Patineboot
+ * All rights reserved.
+ */
+
+package com.patineboot.education;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * 予定表のサーバに要求を送信し、スループットと応答時間を計測するクライアントクラスです。
+ * 接続毎に1つのスレッドで、応答を待たずに最大depth件の要求を送信(パイプライン)します。
+ *
+ * 要求は、10件の周期で次の割合とします。
+ * - ADD: 5件。接続毎に重ならない日時に、"load-[接続番号]"の用件を登録する。
+ * - FIND: 3件。直前に登録した日時から1日の範囲を検索する。
+ * - COUNT: 1件。FINDと同じ範囲の件数を求める。
+ * - REMOVE: 1件。周期の最初に登録した予定を削除する。
+ * .
+ * 応答時間は、要求をバッファに書き込んだ時刻から、応答を全て読み込んだ時刻までです。
+ * @implSpec このクラスはスレッドセーフではありません。
+ */
+final class ScheduleLoadGenerator {
+
+    /**
+     * 計測の結果です。
+     */
+    static final class Result {
+
+        /**
+         * 要求の件数
+         */
+        private final long requests;
+
+        /**
+         * 失敗した要求の件数
+         */
+        private final long errors;
+
+        /**
+         * 計測にかかった時間(ナノ秒)
+         */
+        private final long elapsedNanos;
+
+        /**
+         * 昇順に並べた応答時間(ナノ秒)
+         */
+        private final long[] latencies;
+
+        /**
+         * 計測の結果を作成する。
+         * @param errors 失敗した要求の件数
+         * @param elapsedNanos 計測にかかった時間(ナノ秒)
+         * @param latencies 昇順に並べた応答時間(ナノ秒)
+         */
+        private Result(long errors, long elapsedNanos, long[] latencies)
+        {
+            this.requests = latencies.length;
+            this.errors = errors;
+            this.elapsedNanos = elapsedNanos;
+            this.latencies = latencies;
+        }
+
+        /**
+         * 要求の件数を取得する。
+         * @return 要求の件数
+         */
+        long requests()
+        {
+            return requests;
+        }
+
+        /**
+         * 失敗した要求の件数を取得する。
+         * @return 失敗した要求の件数
+         */
+        long errors()
+        {
+            return errors;
+        }
+
+        /**
+         * 1秒あたりの要求の件数を取得する。
+         * @return スループット(requests/s)
+         */
+        double throughput()
+        {
+            return elapsedNanos > 0 ? requests * 1e9 / elapsedNanos : 0.0;
+        }
+
+        /**
+         * 応答時間の百分位数を取得する。
+         * @param percentile 百分位数。0から100。
+         * @return 応答時間(ナノ秒)。要求がない場合は0。
+         * @exception IllegalArgumentException percentileが範囲外。
+         */
+        long latency(double percentile)
+        {
+            if (percentile < 0 || percentile > 100) {
+                throw new IllegalArgumentException("percentile is out of range.");
+            }
+            if (latencies.length == 0) {
+                return 0;
+            }
+            int index = (int)Math.ceil(percentile / 100 * latencies.length) - 1;
+            return latencies[Math.max(0, index)];
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format("Requests(num): %d errors: %d elapse time(ms): %d throughput(requests/s): %.0f"
+                    + " latency(us) p50: %d p90: %d p99: %d p99.9: %d max: %d",
+                    requests, errors, elapsedNanos / 1_000_000, throughput(),
+                    latency(50) / 1000, latency(90) / 1000, latency(99) / 1000, latency(99.9) / 1000, latency(100) / 1000);
+        }
+    }
+
+    /**
+     * 要求の周期
+     */
+    private static final int CYCLE = 10;
+
+    /**
+     * 登録する日時の始点。分オフセット。
+     */
+    private static final long BASE = DateTimeParser.parseMinutes("200001010000");
+
+    /**
+     * サーバのアドレス
+     */
+    private final InetSocketAddress address;
+
+    /**
+     * 接続の数
+     */
+    private final int connections;
+
+    /**
+     * 接続毎の要求の件数
+     */
+    private final int requests;
+
+    /**
+     * 応答を待たずに送信する要求の最大件数
+     */
+    private final int depth;
+
+    /**
+     * 負荷を生成するクライアントを作成する。
+     * @param address サーバのアドレス
+     * @param connections 接続の数
+     * @param requests 接続毎の要求の件数
+     * @param depth 応答を待たずに送信する要求の最大件数。1の場合は、応答を待ってから次の要求を送信する。
+     * @exception IllegalArgumentException addressがnull。connections、requests、depthが0以下。
+     */
+    ScheduleLoadGenerator(InetSocketAddress address, int connections, int requests, int depth)
+    {
+        if (address == null) {
+            throw new IllegalArgumentException("address is null.");
+        }
+        if (connections <= 0 || requests <= 0 || depth <= 0) {
+            throw new IllegalArgumentException("connections, requests or depth is zero or negative value");
+        }
+        this.address = address;
+        this.connections = connections;
+        this.requests = requests;
+        this.depth = depth;
+    }
+
+    /**
+     * 全ての接続で要求を送信し、応答を全て受信するまで待つ。
+     * 登録する日時は、同じサーバに対して繰り返し実行すると重複するため、実行毎に新しい予定表を使用してください。
+     * @return 計測の結果
+     * @exception IOException 接続に失敗した。
+     * @exception InterruptedException 待機中に割り込まれた。
+     */
+    Result run() throws IOException, InterruptedException
+    {
+        var latencies = new long[connections][];
+        var errors = new long[connections];
+        var failures = new IOException[connections];
+        var threads = new ArrayList<Thread>(connections);
+        long start = System.nanoTime();
+        for (int c = 0; c < connections; c++) {
+            int id = c;
+            var thread = new Thread(() -> {
+                latencies[id] = new long[requests];
+                try {
+                    errors[id] = drive(id, latencies[id]);
+                }
+                catch (IOException e) {
+                    failures[id] = e;
+                }
+            }, "ScheduleLoadGenerator-" + id);
+            threads.add(thread);
+            thread.start();
+        }
+        for (var thread : threads) {
+            thread.join();
+        }
+        long elapsed = System.nanoTime() - start;
+        for (var failure : failures) {
+            if (failure != null) {
+                throw failure;
+            }
+        }
+
+        long errorCount = 0;
+        var all = new long[connections * requests];
+        for (int c = 0; c < connections; c++) {
+            errorCount += errors[c];
+            System.arraycopy(latencies[c], 0, all, c * requests, requests);
+        }
+        Arrays.sort(all);
+        return new Result(errorCount, elapsed, all);
+    }
+
+    /**
+     * 1つの接続で要求を送信し、応答時間を記録する。
+     * @param id 接続番号
+     * @param latencies 応答時間の記録先
+     * @return 失敗した要求の件数
+     * @exception IOException 送受信に失敗した。
+     */
+    private long drive(int id, long[] latencies) throws IOException
+    {
+        try (var socket = new Socket(address.getAddress(), address.getPort());
+                var reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8), 1 << 16);
+                var writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), 1 << 16)) {
+            socket.setTcpNoDelay(true);
+            var content = "load-" + id;
+            // 送信した時刻は、受信する順に応答時間へ置き換える。
+            long errors = 0;
+            int sent = 0;
+            int received = 0;
+            while (received < requests) {
+                while (sent < requests && sent - received < depth) {
+                    writer.write(request(id, sent, content));
+                    latencies[sent++] = System.nanoTime();
+                }
+                writer.flush();
+                if (!readResponse(reader)) {
+                    errors++;
+                }
+                latencies[received] = System.nanoTime() - latencies[received];
+                received++;
+            }
+            writer.write("QUIT\n");
+            writer.flush();
+            if (!"BYE".equals(reader.readLine())) {
+                throw new IOException("unexpected response to QUIT");
+            }
+            return errors;
+        }
+    }
+
+    /**
+     * 要求の行を作成する。
+     * @param id 接続番号
+     * @param index 接続での要求の番号
+     * @param content 用件
+     * @return 要求の行
+     */
+    private String request(int id, int index, String content)
+    {
+        int cycleStart = index - index % CYCLE;
+        switch (index % CYCLE) {
+        case 0:
+        case 1:
+        case 2:
+        case 3:
+        case 4:
+            return "ADD " + DateTimeParser.format(minutes(id, index)) + " " + content + "\n";
+        case 5:
+        case 6:
+        case 7:
+            long from = minutes(id, index - 1);
+            return "FIND " + DateTimeParser.format(from) + " " + DateTimeParser.format(from + 1440) + "\n";
+        case 8:
+            from = minutes(id, cycleStart + 4);
+            return "COUNT " + DateTimeParser.format(from) + " " + DateTimeParser.format(from + 1440) + "\n";
+        case 9:
+        default:
+            return "REMOVE " + DateTimeParser.format(minutes(id, cycleStart)) + " " + content + "\n";
+        }
+    }
+
+    /**
+     * 接続と要求の番号から、登録する日時を求める。接続毎に重ならない。
+     * @param id 接続番号
+     * @param index 接続での要求の番号
+     * @return 分オフセット
+     */
+    private long minutes(int id, int index)
+    {
+        return BASE + (long)id * requests + index;
+    }
+
+    /**
+     * 1件の要求の応答を読み込む。FINDの応答は、"END"の行まで読み込む。
+     * @param reader 応答の読み込み先
+     * @return 成功した場合はtrue。失敗した場合はfalse。
+     * @exception IOException 受信に失敗した。接続が切断された。
+     */
+    private static boolean readResponse(BufferedReader reader) throws IOException
+    {
+        for (;;) {
+            var line = reader.readLine();
+            if (line == null) {
+                throw new IOException("connection closed");
+            }
+            if (line.startsWith("OK") || line.startsWith("END")) {
+                return true;
+            }
+            if (line.startsWith("ERROR")) {
+                return false;
+            }
+            // FINDの予定の行は読み飛ばす。
+        }
+    }
+}
@@ -0,0 +1,664 @@
+/*
+ * Copyright (c) 2020, 2021, Patineboot
+ * All rights reserved.
+ */
+
+package com.patineboot.education;
+
+import java.lang.management.ManagementFactory;
+import java.time.format.DateTimeParseException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * 予定表の操作の計測クラスです。
+ * 予定表に追加機能METRICSを設定した場合に作成し、操作の種類毎に次を計測します。
+ * - 結果毎の回数。失敗は、例外の種類と原因で分ける。
+ * - 時間のヒストグラム
+ * - 検索結果の件数のヒストグラム(findのみ)。件数を数えないビューの検索結果は含めない。
+ * .
+ * 操作毎に、JDK Flight Recorderのイベント(ScheduleEvent)も記録します。
+ *
+ * ヒストグラムは、2の累乗の区間を8等分した区間で数え、百分位数の誤差は12.5%以内です。
+ * 計測値の取得(snapshot)は、計測を止めずに行うため、操作の途中の値を含むことがあります。
+ * @implSpec このクラスはスレッドセーフです。
+ */
+public final class ScheduleMetrics implements ScheduleMetricsMXBean {
+
+    /**
+     * 計測する操作の種類です。
+     */
+    public enum Operation {
+        /**
+         * 予定の登録(add)
+         */
+        ADD,
+        /**
+         * 予定の一括登録(addAll)
+         */
+        ADD_ALL,
+        /**
+         * 予定の削除(remove)
+         */
+        REMOVE,
+        /**
+         * 予定の検索(find)
+         */
+        FIND,
+        /**
+         * 予定の件数(count)
+         */
+        COUNT,
+        /**
+         * 用件の検索(search)
+         */
+        SEARCH,
+    }
+
+    /**
+     * 操作の結果です。
+     */
+    public enum Outcome {
+        /**
+         * 成功
+         */
+        SUCCEEDED,
+        /**
+         * 日時形式が不正(DateTimeParseException)
+         */
+        INVALID_DATE_TIME,
+        /**
+         * 引数が不正(IllegalArgumentException)
+         */
+        INVALID_ARGUMENT,
+        /**
+         * 最大登録件数を超える(IllegalStateException)
+         */
+        NO_CAPACITY,
+        /**
+         * 登録済みの予定と重複する(IllegalStateException)
+         */
+        DUPLICATE,
+        /**
+         * 予定が見つからない(IllegalStateException)
+         */
+        NOT_FOUND,
+        /**
+         * その他の例外
+         */
+        FAILED,
+    }
+
+    /**
+     * 操作の結果の数
+     */
+    private static final int OUTCOMES = Outcome.values().length;
+
+    /**
+     * 百分位数として公開する割合
+     */
+    private static final double[] PERCENTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+    /**
+     * 百分位数として公開する名前
+     */
+    private static final String[] PERCENTILE_NAMES = { "p50", "p90", "p99", "p999" };
+
+    /**
+     * 件数を数えない検索結果の件数
+     */
+    static final long UNKNOWN_SIZE = -1;
+
+    /**
+     * 操作の種類と結果毎の回数。操作の種類 * 結果の数 + 結果の位置。
+     */
+    private final LongAdder[] counts = new LongAdder[Operation.values().length * OUTCOMES];
+
+    /**
+     * 操作の種類毎の時間(ナノ秒)のヒストグラム
+     */
+    private final Histogram[] latencies = new Histogram[Operation.values().length];
+
+    /**
+     * 検索結果の件数のヒストグラム
+     */
+    private final Histogram resultSizes = new Histogram();
+
+    /**
+     * JMXに登録した名前。登録していない場合はnull。
+     */
+    private ObjectName objectName;
+
+    /**
+     * 計測クラスを作成する。
+     */
+    ScheduleMetrics()
+    {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = new LongAdder();
+        }
+        for (int i = 0; i < latencies.length; i++) {
+            latencies[i] = new Histogram();
+        }
+    }
+
+    /**
+     * 操作の計測を開始する。
+     * @param operation 操作の種類
+     * @return 操作のイベント
+     */
+    ScheduleEvent begin(Operation operation)
+    {
+        var event = new ScheduleEvent();
+        event.begin();
+        event.kind = operation;
+        event.startNanos = System.nanoTime();
+        return event;
+    }
+
+    /**
+     * 成功した操作の計測を終了する。
+     * @param event 操作のイベント
+     * @param plans 操作した、または検索した予定の件数。数えない場合はUNKNOWN_SIZE。
+     */
+    void succeeded(ScheduleEvent event, long plans)
+    {
+        end(event, Outcome.SUCCEEDED, plans);
+    }
+
+    /**
+     * 失敗した操作の計測を終了する。
+     * @param event 操作のイベント
+     * @param exception 操作で発生した例外
+     */
+    void failed(ScheduleEvent event, RuntimeException exception)
+    {
+        end(event, outcomeOf(exception), 0);
+    }
+
+    /**
+     * 操作の計測を終了し、回数、時間、検索結果の件数を記録する。
+     * @param event 操作のイベント
+     * @param outcome 操作の結果
+     * @param plans 操作した、または検索した予定の件数
+     */
+    private void end(ScheduleEvent event, Outcome outcome, long plans)
+    {
+        long elapsed = System.nanoTime() - event.startNanos;
+        var operation = event.kind;
+        counts[operation.ordinal() * OUTCOMES + outcome.ordinal()].increment();
+        latencies[operation.ordinal()].record(elapsed);
+        if (operation == Operation.FIND && outcome == Outcome.SUCCEEDED && plans != UNKNOWN_SIZE) {
+            resultSizes.record(plans);
+        }
+
+        event.end();
+        if (event.shouldCommit()) {
+            event.operation = operation.name();
+            event.outcome = outcome.name();
+            event.plans = plans;
+            event.commit();
+        }
+    }
+
+    /**
+     * 例外から、操作の結果を求める。
+     * @param exception 例外
+     * @return 操作の結果
+     */
+    private static Outcome outcomeOf(RuntimeException exception)
+    {
+        if (exception instanceof DateTimeParseException) {
+            return Outcome.INVALID_DATE_TIME;
+        }
+        if (exception instanceof IllegalArgumentException) {
+            return Outcome.INVALID_ARGUMENT;
+        }
+        if (exception instanceof IllegalStateException) {
+            var message = exception.getMessage();
+            if (Schedule.NO_CAPACITY.equals(message)) {
+                return Outcome.NO_CAPACITY;
+            }
+            if (Schedule.DUPLICATE_PLAN.equals(message)) {
+                return Outcome.DUPLICATE;
+            }
+            if (Schedule.NOT_FOUND.equals(message)) {
+                return Outcome.NOT_FOUND;
+            }
+        }
+        return Outcome.FAILED;
+    }
+
+    /**
+     * 現在の計測値を取得する。
+     * @return 計測値
+     */
+    public Snapshot snapshot()
+    {
+        var countValues = new long[counts.length];
+        for (int i = 0; i < counts.length; i++) {
+            countValues[i] = counts[i].sum();
+        }
+        var latencyValues = new Histogram.Values[latencies.length];
+        for (int i = 0; i < latencies.length; i++) {
+            latencyValues[i] = latencies[i].values();
+        }
+        return new Snapshot(countValues, latencyValues, resultSizes.values());
+    }
+
+    @Override
+    public void reset()
+    {
+        for (var count : counts) {
+            count.reset();
+        }
+        for (var latency : latencies) {
+            latency.reset();
+        }
+        resultSizes.reset();
+    }
+
+    @Override
+    public Map<String, Long> getCounts()
+    {
+        var snapshot = snapshot();
+        var map = new LinkedHashMap<String, Long>();
+        for (var operation : Operation.values()) {
+            for (var outcome : Outcome.values()) {
+                map.put(operation + "." + outcome, snapshot.count(operation, outcome));
+            }
+        }
+        return map;
+    }
+
+    @Override
+    public Map<String, Long> getLatencies()
+    {
+        var snapshot = snapshot();
+        var map = new LinkedHashMap<String, Long>();
+        for (var operation : Operation.values()) {
+            var values = snapshot.latencies[operation.ordinal()];
+            for (int i = 0; i < PERCENTILES.length; i++) {
+                map.put(operation + "." + PERCENTILE_NAMES[i], values.percentile(PERCENTILES[i]));
+            }
+            map.put(operation + ".max", values.max);
+        }
+        return map;
+    }
+
+    @Override
+    public Map<String, Long> getFindResultSizes()
+    {
+        var values = resultSizes.values();
+        var map = new LinkedHashMap<String, Long>();
+        for (int i = 0; i < PERCENTILES.length; i++) {
+            map.put(PERCENTILE_NAMES[i], values.percentile(PERCENTILES[i]));
+        }
+        map.put("max", values.max);
+        return map;
+    }
+
+    /**
+     * 計測値を、JMXのプラットフォームMBeanサーバに登録する。
+     * 名前は"com.patineboot.education:type=ScheduleMetrics,name=<name>"となる。
+     * @param name 予定表の名前
+     * @return 登録した名前
+     * @exception JMException 同じ名前が登録済み。名前が不正。
+     * @exception IllegalStateException 登録済みの場合
+     */
+    public synchronized ObjectName register(String name) throws JMException
+    {
+        if (objectName != null) {
+            throw new IllegalStateException("already registered: " + objectName);
+        }
+        var newName = new ObjectName("com.patineboot.education:type=ScheduleMetrics,name=" + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, newName);
+        objectName = newName;
+        return newName;
+    }
+
+    /**
+     * 計測値を、JMXのプラットフォームMBeanサーバから削除する。登録していない場合は何もしない。
+     * @exception JMException 削除に失敗した。
+     */
+    public synchronized void unregister() throws JMException
+    {
+        if (objectName != null) {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            objectName = null;
+        }
+    }
+
+    /**
+     * 計測値のスナップショットです。
+     */
+    public static final class Snapshot {
+
+        /**
+         * 操作の種類と結果毎の回数
+         */
+        private final long[] counts;
+
+        /**
+         * 操作の種類毎の時間のヒストグラム
+         */
+        private final Histogram.Values[] latencies;
+
+        /**
+         * 検索結果の件数のヒストグラム
+         */
+        private final Histogram.Values resultSizes;
+
+        private Snapshot(long[] counts, Histogram.Values[] latencies, Histogram.Values resultSizes)
+        {
+            this.counts = counts;
+            this.latencies = latencies;
+            this.resultSizes = resultSizes;
+        }
+
+        /**
+         * 操作の回数を取得する。
+         * @param operation 操作の種類
+         * @param outcome 操作の結果
+         * @return 回数
+         */
+        public long count(Operation operation, Outcome outcome)
+        {
+            return counts[operation.ordinal() * OUTCOMES + outcome.ordinal()];
+        }
+
+        /**
+         * 操作の、全ての結果の回数を取得する。
+         * @param operation 操作の種類
+         * @return 回数
+         */
+        public long count(Operation operation)
+        {
+            long sum = 0;
+            for (var outcome : Outcome.values()) {
+                sum += count(operation, outcome);
+            }
+            return sum;
+        }
+
+        /**
+         * 操作の時間の百分位数を取得する。
+         * @param operation 操作の種類
+         * @param percentile 割合。0より大きく、1以下。
+         * @return 時間(ナノ秒)。区間の上限であり、最大値を超えない。回数がゼロの場合は0。
+         * @exception IllegalArgumentException 割合が範囲外。
+         */
+        public long latency(Operation operation, double percentile)
+        {
+            return latencies[operation.ordinal()].percentile(percentile);
+        }
+
+        /**
+         * 操作の時間の最大値を取得する。
+         * @param operation 操作の種類
+         * @return 時間(ナノ秒)
+         */
+        public long maxLatency(Operation operation)
+        {
+            return latencies[operation.ordinal()].max;
+        }
+
+        /**
+         * 操作の時間の平均値を取得する。
+         * @param operation 操作の種類
+         * @return 時間(ナノ秒)。回数がゼロの場合は0。
+         */
+        public double meanLatency(Operation operation)
+        {
+            return latencies[operation.ordinal()].mean();
+        }
+
+        /**
+         * 検索結果の件数の百分位数を取得する。
+         * @param percentile 割合。0より大きく、1以下。
+         * @return 件数。区間の上限であり、最大値を超えない。
+         * @exception IllegalArgumentException 割合が範囲外。
+         */
+        public long findResultSize(double percentile)
+        {
+            return resultSizes.percentile(percentile);
+        }
+
+        /**
+         * 検索結果の件数の分布を取得する。
+         * @return 区間の下限の件数から、検索の回数への対応。回数がゼロの区間は含めない。
+         */
+        public SortedMap<Long, Long> findResultSizes()
+        {
+            return resultSizes.distribution();
+        }
+
+        @Override
+        public String toString()
+        {
+            var builder = new StringBuilder();
+            for (var operation : Operation.values()) {
+                long total = count(operation);
+                if (total == 0) {
+                    continue;
+                }
+                builder.append(String.format("%-8s count=%d succeeded=%d p50=%dns p99=%dns max=%dns%n",
+                        operation, total, count(operation, Outcome.SUCCEEDED),
+                        latency(operation, 0.5), latency(operation, 0.99), maxLatency(operation)));
+            }
+            if (resultSizes.total > 0) {
+                builder.append(String.format("find plans p50=%d p99=%d max=%d%n",
+                        findResultSize(0.5), findResultSize(0.99), resultSizes.max));
+            }
+            return builder.toString();
+        }
+    }
+
+    /**
+     * 0以上の値を数えるヒストグラムです。
+     * 8未満の値は値毎に、8以上の値は2の累乗の区間を8等分した区間で数えます。
+     */
+    private static final class Histogram {
+
+        /**
+         * 2の累乗の区間を分割するビット数
+         */
+        private static final int SUB_BITS = 3;
+
+        /**
+         * 2の累乗の区間の分割数
+         */
+        private static final int SUB_COUNT = 1 << SUB_BITS;
+
+        /**
+         * 区間の数。longの最大値までを数える。
+         */
+        private static final int BUCKETS = (Long.SIZE - SUB_BITS) * SUB_COUNT;
+
+        /**
+         * 区間毎の回数
+         */
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+        /**
+         * 値の最大値
+         */
+        private final AtomicLong max = new AtomicLong();
+
+        /**
+         * 値の合計
+         */
+        private final LongAdder sum = new LongAdder();
+
+        /**
+         * 値を記録する。
+         * @param value 値。負の値は0とする。
+         */
+        void record(long value)
+        {
+            value = Math.max(value, 0);
+            buckets.incrementAndGet(bucket(value));
+            sum.add(value);
+            if (value > max.get()) {
+                max.accumulateAndGet(value, Math::max);
+            }
+        }
+
+        /**
+         * 記録をゼロに戻す。
+         */
+        void reset()
+        {
+            for (int i = 0; i < BUCKETS; i++) {
+                buckets.set(i, 0);
+            }
+            max.set(0);
+            sum.reset();
+        }
+
+        /**
+         * 記録の複製を取得する。
+         * @return 記録の複製
+         */
+        Values values()
+        {
+            var counts = new long[BUCKETS];
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] = buckets.get(i);
+                total += counts[i];
+            }
+            return new Values(counts, total, max.get(), sum.sum());
+        }
+
+        /**
+         * 値を含む区間を求める。
+         * @param value 0以上の値
+         * @return 区間の位置
+         */
+        static int bucket(long value)
+        {
+            if (value < SUB_COUNT) {
+                return (int)value;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            return (exponent - SUB_BITS + 1) * SUB_COUNT + (int)((value >>> (exponent - SUB_BITS)) & (SUB_COUNT - 1));
+        }
+
+        /**
+         * 区間の下限を求める。
+         * @param bucket 区間の位置
+         * @return 区間の下限の値(これを含む)
+         */
+        static long lowerBound(int bucket)
+        {
+            if (bucket < SUB_COUNT) {
+                return bucket;
+            }
+            int exponent = bucket / SUB_COUNT + SUB_BITS - 1;
+            return (long)(SUB_COUNT + bucket % SUB_COUNT) << (exponent - SUB_BITS);
+        }
+
+        /**
+         * 区間の上限を求める。
+         * @param bucket 区間の位置
+         * @return 区間の上限の値(これを含む)
+         */
+        static long upperBound(int bucket)
+        {
+            if (bucket < SUB_COUNT) {
+                return bucket;
+            }
+            int exponent = bucket / SUB_COUNT + SUB_BITS - 1;
+            return lowerBound(bucket) + (1L << (exponent - SUB_BITS)) - 1;
+        }
+
+        /**
+         * ヒストグラムの記録の複製です。
+         */
+        static final class Values {
+
+            /**
+             * 区間毎の回数
+             */
+            private final long[] counts;
+
+            /**
+             * 回数の合計
+             */
+            final long total;
+
+            /**
+             * 値の最大値
+             */
+            final long max;
+
+            /**
+             * 値の合計
+             */
+            private final long sum;
+
+            Values(long[] counts, long total, long max, long sum)
+            {
+                this.counts = counts;
+                this.total = total;
+                this.max = max;
+                this.sum = sum;
+            }
+
+            /**
+             * 百分位数を求める。
+             * @param percentile 割合。0より大きく、1以下。
+             * @return 百分位数を含む区間の上限。最大値を超えない。回数がゼロの場合は0。
+             * @exception IllegalArgumentException 割合が範囲外。
+             */
+            long percentile(double percentile)
+            {
+                if (!(percentile > 0 && percentile <= 1)) {
+                    throw new IllegalArgumentException("percentile is out of range: " + percentile);
+                }
+                long rank = (long)Math.ceil(percentile * total);
+                long seen = 0;
+                for (int i = 0; i < counts.length; i++) {
+                    seen += counts[i];
+                    if (seen >= rank && seen > 0) {
+                        return Math.min(upperBound(i), max);
+                    }
+                }
+                return 0;
+            }
+
+            /**
+             * 平均値を求める。
+             * @return 平均値。回数がゼロの場合は0。
+             */
+            double mean()
+            {
+                return total == 0 ? 0 : (double)sum / total;
+            }
+
+            /**
+             * 区間毎の回数を取得する。
+             * @return 区間の下限から、回数への対応。回数がゼロの区間は含めない。
+             */
+            SortedMap<Long, Long> distribution()
+            {
+                var map = new TreeMap<Long, Long>();
+                for (int i = 0; i < counts.length; i++) {
+                    if (counts[i] > 0) {
+                        map.put(lowerBound(i), counts[i]);
+                    }
+                }
+                return map;
+            }
+        }
+    }
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright (c) 2020, 2021, Patineboot
+ * All rights reserved.
+ */
+
+package com.patineboot.education;
+
+import java.util.Map;
+
+/**
+ * 予定表の計測値を、JMXで公開するインタフェースです。
+ * キーは、操作の種類と結果、または百分位数を"."で連結した文字列です。
+ */
+public interface ScheduleMetricsMXBean {
+
+    /**
+     * 操作の種類と結果毎の回数を取得する。
+     * @return "ADD.SUCCEEDED"などのキーから、回数への対応
+     */
+    Map<String, Long> getCounts();
+
+    /**
+     * 操作の種類毎の時間の百分位数と最大値を、ナノ秒で取得する。
+     * @return "FIND.p99"、"FIND.max"などのキーから、時間への対応
+     */
+    Map<String, Long> getLatencies();
+
+    /**
+     * 検索結果の件数の百分位数と最大値を取得する。
+     * @return "p50"、"max"などのキーから、件数への対応
+     */
+    Map<String, Long> getFindResultSizes();
+
+    /**
+     * 計測値を全てゼロに戻す。
+     */
+    void reset();
+}
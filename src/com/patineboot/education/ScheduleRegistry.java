@@ -0,0 +1,590 @@
+/*
+ * Copyright (c) 2020, 2021, Patineboot
+ * All rights reserved.
+ */
+
+package com.patineboot.education;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.regex.Pattern;
+
+/**
+ * 多数の予定表を、識別子毎に管理するクラスです。一つのJVMで、多数の利用者の予定表を扱います。
+ *
+ * 予定表は、最初に使用する時に、ファクトリで作成し、保存したファイルから予定を読み込みます(遅延読み込み)。
+ * 最大登録件数や用件の最大サイズなどの制限は、ファクトリが予定表毎に設定し、予定表の間で共有しません。
+ *
+ * メモリに読み込んだ予定表の大きさは、予定の件数の合計(重み、予定表毎に1を加える)で制限します。
+ * 重みの上限を超えた場合は、最も長く使用していない予定表から、変更があればファイルに保存し、メモリから取り除きます(アンロード)。
+ * 使用中の予定表と、繰り返しの予定を持つ予定表は、アンロードしません。繰り返しの予定は、メモリにのみ保持します。
+ *
+ * ディレクトリには、予定表毎にスナップショット([識別子].dat)を作成します。
+ *
+ * 予定表は、applyとacceptに渡した処理の中でのみ使用し、処理の外に持ち出さないこと。
+ * アンロードした予定表の変更は、保存されません。
+ * 購読と追い出す方針の掃除は、アンロードで終わります。
+ * @implSpec このクラスはスレッドセーフです。
+ */
+public final class ScheduleRegistry implements Closeable {
+
+    /**
+     * 予定表の識別子の形式。ファイル名に使用する。
+     */
+    private static final Pattern ID = Pattern.compile("[0-9A-Za-z_-]{1,64}");
+
+    /**
+     * スナップショットのファイルの拡張子
+     */
+    private static final String SUFFIX = ".dat";
+
+    /**
+     * 管理している予定表です。予定表の読み込み、保存、アンロードは、このオブジェクトのロックを取得して行う。
+     */
+    private static final class Entry {
+
+        /**
+         * 識別子
+         */
+        final String id;
+
+        /**
+         * 予定表。読み込んでいない場合はnull。予定表のロックを取得して変更する。
+         */
+        volatile Schedule schedule;
+
+        /**
+         * 使用中の処理の数。レジストリのロックを取得して操作する。
+         */
+        int pins;
+
+        /**
+         * 重み。読み込んでいない場合は0。レジストリのロックを取得して操作する。
+         */
+        long weight;
+
+        /**
+         * アンロードの対象に選んだ場合はtrue。レジストリのロックを取得して操作する。
+         */
+        boolean isUnloading;
+
+        /**
+         * 保存した時、または読み込んだ時の、予定表を変更した回数
+         */
+        long savedModifications;
+
+        /**
+         * 管理している予定表を作成する。
+         * @param id 識別子
+         */
+        Entry(String id)
+        {
+            this.id = id;
+        }
+    }
+
+    /**
+     * 予定表のディレクトリ
+     */
+    private final Path directory;
+
+    /**
+     * 重みの上限。予定の件数。
+     */
+    private final long maximumWeight;
+
+    /**
+     * 空の予定表を作成するファクトリ
+     */
+    private final Function<String, Schedule> factory;
+
+    /**
+     * 識別子から、管理している予定表への対応。使用した順に並べる。レジストリのロックを取得して操作する。
+     */
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * 読み込んだ予定表の重みの合計。レジストリのロックを取得して操作する。
+     */
+    private long weight;
+
+    /**
+     * 読み込んでいる予定表の数。レジストリのロックを取得して操作する。
+     */
+    private int residentCount;
+
+    /**
+     * 予定表を読み込んだ回数。レジストリのロックを取得して操作する。
+     */
+    private long loadCount;
+
+    /**
+     * 予定表をアンロードした回数。レジストリのロックを取得して操作する。
+     */
+    private long unloadCount;
+
+    /**
+     * 予定表をファイルに保存した回数。レジストリのロックを取得して操作する。
+     */
+    private long saveCount;
+
+    /**
+     * 閉じた場合はtrue。レジストリのロックを取得して操作する。
+     */
+    private boolean isClosed;
+
+    /**
+     * レジストリを作成する。ディレクトリがない場合は作成する。予定表は、最初に使用する時に読み込む。
+     * @param directory 予定表のディレクトリ
+     * @param maximumWeight 重みの上限。メモリに読み込む予定の件数の合計。
+     * @param factory 識別子から、空の予定表を作成するファクトリ。最大登録件数、用件の最大サイズ、格納方式、追加機能を、予定表毎に指定する。
+     * @exception IOException ディレクトリの作成に失敗した。
+     * @exception IllegalArgumentException maximumWeightが0以下の場合。directoryまたはfactoryがnullの場合。
+     */
+    public ScheduleRegistry(Path directory, long maximumWeight, Function<String, Schedule> factory) throws IOException
+    {
+        if (directory == null || factory == null) {
+            throw new IllegalArgumentException("directory or factory is null.");
+        }
+        if (maximumWeight <= 0) {
+            throw new IllegalArgumentException("maximumWeight is zero or negative value");
+        }
+        this.directory = directory;
+        this.maximumWeight = maximumWeight;
+        this.factory = factory;
+        Files.createDirectories(directory);
+    }
+
+    /**
+     * 予定表を使用し、処理の結果を返す。予定表を読み込んでいない場合は、読み込む。
+     * 処理の後に重みの上限を超えた場合は、使用していない予定表をアンロードする。
+     * @param <T> 処理の結果の型
+     * @param id 予定表の識別子。英数字、'_'、'-'の64文字以内。
+     * @param action 予定表を使用する処理
+     * @return 処理の結果
+     * @exception IllegalArgumentException idの形式が不正。actionがnull。
+     * @exception IllegalStateException レジストリを閉じた後に呼び出した。ファクトリが空の予定表クラスを作成しなかった。保存した予定が最大登録件数を超える。
+     * @exception UncheckedIOException 予定表の読み込み、保存に失敗した。
+     */
+    public <T> T apply(String id, Function<? super Schedule, ? extends T> action)
+    {
+        if (action == null) {
+            throw new IllegalArgumentException("action is null.");
+        }
+        var entry = pin(id);
+        T result;
+        try {
+            result = action.apply(load(entry));
+        }
+        finally {
+            unpin(entry);
+        }
+        unloadIfNeeded();
+        return result;
+    }
+
+    /**
+     * 予定表を使用する。予定表を読み込んでいない場合は、読み込む。
+     * @param id 予定表の識別子。英数字、'_'、'-'の64文字以内。
+     * @param action 予定表を使用する処理
+     * @exception IllegalArgumentException idの形式が不正。actionがnull。
+     * @exception IllegalStateException レジストリを閉じた後に呼び出した。ファクトリが空の予定表クラスを作成しなかった。保存した予定が最大登録件数を超える。
+     * @exception UncheckedIOException 予定表の読み込み、保存に失敗した。
+     * @see apply
+     */
+    public void accept(String id, Consumer<? super Schedule> action)
+    {
+        if (action == null) {
+            throw new IllegalArgumentException("action is null.");
+        }
+        apply(id, schedule -> {
+            action.accept(schedule);
+            return null;
+        });
+    }
+
+    /**
+     * 予定表があるかを判定する。読み込んでいない予定表は、ファイルの有無で判定する。
+     * @param id 予定表の識別子
+     * @return 予定表がある場合はtrue
+     * @exception IllegalArgumentException idの形式が不正。
+     */
+    public boolean exists(String id)
+    {
+        checkId(id);
+        synchronized (this) {
+            var entry = entries.get(id);
+            if (entry != null && entry.schedule != null) {
+                return true;
+            }
+        }
+        return Files.exists(file(id));
+    }
+
+    /**
+     * 予定表を削除する。メモリから取り除き、ファイルを削除する。
+     * @param id 予定表の識別子
+     * @exception IllegalArgumentException idの形式が不正。
+     * @exception IllegalStateException レジストリを閉じた後に呼び出した。予定表を使用中。
+     * @exception UncheckedIOException ファイルの削除に失敗した。
+     */
+    public void delete(String id)
+    {
+        var entry = pin(id);
+        try {
+            synchronized (entry) {
+                synchronized (this) {
+                    if (entry.pins > 1) {
+                        throw new IllegalStateException("schedule is in use");
+                    }
+                }
+                try {
+                    Files.deleteIfExists(file(id));
+                }
+                catch (IOException ioe) {
+                    throw new UncheckedIOException(ioe);
+                }
+                drop(entry);
+            }
+        }
+        finally {
+            unpin(entry);
+        }
+    }
+
+    /**
+     * 使用していない予定表のうち、変更があった予定表をファイルに保存する。使用中の予定表は、保存しない。
+     * @exception UncheckedIOException 保存に失敗した。
+     */
+    public void flush()
+    {
+        for (var entry : residents()) {
+            synchronized (entry) {
+                synchronized (this) {
+                    if (entry.pins > 0) {
+                        continue;
+                    }
+                }
+                save(entry);
+            }
+        }
+    }
+
+    /**
+     * 全ての予定表を保存してアンロードし、レジストリを閉じる。使用中の予定表は、使用を終えるまで待つ。
+     * 閉じた後は、予定表を使用できない。
+     * @exception IOException 保存に失敗した。
+     */
+    @Override
+    public void close() throws IOException
+    {
+        synchronized (this) {
+            isClosed = true;
+            while (entries.values().stream().anyMatch(entry -> entry.pins > 0)) {
+                try {
+                    wait();
+                }
+                catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException(ie);
+                }
+            }
+        }
+        try {
+            for (var entry : residents()) {
+                synchronized (entry) {
+                    save(entry);
+                    drop(entry);
+                }
+            }
+        }
+        catch (UncheckedIOException uioe) {
+            throw uioe.getCause();
+        }
+    }
+
+    /**
+     * 予定表を使用中にする。管理していない識別子の場合は、管理に加える。
+     * @param id 予定表の識別子
+     * @return 管理している予定表
+     */
+    private synchronized Entry pin(String id)
+    {
+        checkId(id);
+        if (isClosed) {
+            throw new IllegalStateException("registry is closed");
+        }
+        var entry = entries.computeIfAbsent(id, Entry::new);
+        entry.pins++;
+        return entry;
+    }
+
+    /**
+     * 予定表の使用を終え、重みを更新する。読み込んでいない予定表は、管理から外す。
+     * @param entry 管理している予定表
+     */
+    private void unpin(Entry entry)
+    {
+        // 予定表の件数は、レジストリのロックの外で取得する。
+        var schedule = entry.schedule;
+        long current = schedule != null ? schedule.size() + 1 : 0;
+        synchronized (this) {
+            entry.pins--;
+            if (entry.schedule == schedule && schedule != null) {
+                weight += current - entry.weight;
+                entry.weight = current;
+            }
+            if (entry.pins == 0 && entry.schedule == null) {
+                entries.remove(entry.id, entry);
+            }
+            if (isClosed) {
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * 予定表を読み込む。読み込み済みの場合は、その予定表を返す。
+     * @param entry 使用中の、管理している予定表
+     * @return 予定表
+     */
+    private Schedule load(Entry entry)
+    {
+        synchronized (entry) {
+            if (entry.schedule != null) {
+                return entry.schedule;
+            }
+            var schedule = factory.apply(entry.id);
+            if (schedule == null || schedule.getClass() != Schedule.class || schedule.size() != 0) {
+                throw new IllegalStateException("factory must create an empty Schedule");
+            }
+            var file = file(entry.id);
+            if (Files.exists(file)) {
+                try {
+                    ScheduleSnapshot.read(file, schedule::addAll);
+                }
+                catch (IOException ioe) {
+                    throw new UncheckedIOException(ioe);
+                }
+            }
+            entry.savedModifications = schedule.modificationCount();
+            entry.schedule = schedule;
+            synchronized (this) {
+                entry.weight = schedule.size() + 1;
+                weight += entry.weight;
+                residentCount++;
+                loadCount++;
+            }
+            return schedule;
+        }
+    }
+
+    /**
+     * 重みの上限を超えている間、最も長く使用していない予定表からアンロードする。
+     * アンロードできる予定表がない場合は、上限を超えたままとする。
+     */
+    private void unloadIfNeeded()
+    {
+        while (true) {
+            Entry victim = null;
+            synchronized (this) {
+                if (weight <= maximumWeight) {
+                    return;
+                }
+                for (var entry : entries.values()) {
+                    if (entry.pins == 0 && entry.schedule != null && !entry.isUnloading && entry.schedule.recurringPlans().isEmpty()) {
+                        victim = entry;
+                        victim.isUnloading = true;
+                        break;
+                    }
+                }
+            }
+            if (victim == null) {
+                return;
+            }
+            try {
+                unload(victim);
+            }
+            finally {
+                synchronized (this) {
+                    victim.isUnloading = false;
+                }
+            }
+        }
+    }
+
+    /**
+     * 予定表を保存し、アンロードする。選んだ後に使用を始めた予定表は、アンロードしない。
+     * @param entry 管理している予定表
+     */
+    private void unload(Entry entry)
+    {
+        synchronized (entry) {
+            synchronized (this) {
+                // 選んだ後に使用を始めた処理は、このロックを待つため、予定表を変更しない。
+                if (entry.pins > 0 || entry.schedule == null) {
+                    return;
+                }
+            }
+            save(entry);
+            drop(entry);
+            synchronized (this) {
+                unloadCount++;
+            }
+        }
+    }
+
+    /**
+     * 予定表に変更があった場合は、ファイルに保存する。予定表のロックを取得し、予定表を使用していない時に呼び出す。
+     * @param entry 管理している予定表
+     */
+    private void save(Entry entry)
+    {
+        var schedule = entry.schedule;
+        if (schedule == null) {
+            return;
+        }
+        long modifications = schedule.modificationCount();
+        if (modifications == entry.savedModifications) {
+            return;
+        }
+        try {
+            ScheduleSnapshot.write(file(entry.id), 0, schedule.size(), schedule.storedPlans());
+        }
+        catch (IOException ioe) {
+            throw new UncheckedIOException(ioe);
+        }
+        entry.savedModifications = modifications;
+        synchronized (this) {
+            saveCount++;
+        }
+    }
+
+    /**
+     * 予定表をメモリから取り除く。予定表のロックを取得して呼び出す。
+     * @param entry 管理している予定表
+     */
+    private void drop(Entry entry)
+    {
+        var schedule = entry.schedule;
+        if (schedule == null) {
+            return;
+        }
+        // 追い出す方針の掃除のスレッドが、予定表を参照し続けないようにする。
+        schedule.setEvictionPolicy(null);
+        entry.schedule = null;
+        synchronized (this) {
+            weight -= entry.weight;
+            entry.weight = 0;
+            residentCount--;
+            if (entry.pins == 0) {
+                entries.remove(entry.id, entry);
+            }
+        }
+    }
+
+    /**
+     * 読み込んでいる予定表の一覧を取得する。
+     * @return 管理している予定表の一覧
+     */
+    private synchronized ArrayList<Entry> residents()
+    {
+        var residents = new ArrayList<Entry>();
+        for (var entry : entries.values()) {
+            if (entry.schedule != null) {
+                residents.add(entry);
+            }
+        }
+        return residents;
+    }
+
+    /**
+     * 予定表の識別子の形式を確認する。
+     * @param id 予定表の識別子
+     * @exception IllegalArgumentException idの形式が不正。
+     */
+    private static void checkId(String id)
+    {
+        if (id == null || !ID.matcher(id).matches()) {
+            throw new IllegalArgumentException("invalid schedule id");
+        }
+    }
+
+    /**
+     * 予定表のファイルを取得する。
+     * @param id 予定表の識別子
+     * @return スナップショットのファイル
+     */
+    private Path file(String id)
+    {
+        return directory.resolve(id + SUFFIX);
+    }
+
+    /**
+     * 読み込んでいる予定表の数を取得する。
+     * @return 予定表の数
+     */
+    public synchronized int getResidentCount()
+    {
+        return residentCount;
+    }
+
+    /**
+     * 予定表を読み込んだ回数を取得する。
+     * @return 回数
+     */
+    public synchronized long getLoadCount()
+    {
+        return loadCount;
+    }
+
+    /**
+     * 予定表をアンロードした回数を取得する。
+     * @return 回数
+     */
+    public synchronized long getUnloadCount()
+    {
+        return unloadCount;
+    }
+
+    /**
+     * 予定表をファイルに保存した回数を取得する。
+     * @return 回数
+     */
+    public synchronized long getSaveCount()
+    {
+        return saveCount;
+    }
+
+    /**
+     * 読み込んだ予定表の重みの合計を取得する。
+     * @return 重み
+     */
+    public synchronized long getWeight()
+    {
+        return weight;
+    }
+
+    /**
+     * 重みの上限を取得する。
+     * @return 重み
+     */
+    public long getMaximumWeight()
+    {
+        return maximumWeight;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "ScheduleRegistry[resident=" + getResidentCount() + ", weight=" + getWeight() + ", loads=" + getLoadCount()
+                + ", unloads=" + getUnloadCount() + ", saves=" + getSaveCount() + "]";
+    }
+}
@@ -0,0 +1,273 @@
+/*
+ * Copyright (c) 2020, 2021, Patineboot
+ * All rights reserved.
+ */
+
+package com.patineboot.education;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 一つの予定表を、ローカルホストのTCPで共有するサーバクラスです。
+ * 接続毎に、仮想スレッドで要求を処理します。仮想スレッドを使用できないJDKでは、接続毎のスレッドで処理します。
+ *
+ * 要求と応答は、UTF-8の1行のテキストです。引数は空白で区切り、用件は行の残り全てとします。
+ * - ADD [日時] [用件]: 予定を登録する。応答は"OK"。
+ * - REMOVE [日時] [用件]: 予定を削除する。応答は"OK"。
+ * - COUNT [始点日時] [終点日時]: 予定の件数を求める。応答は"OK [件数]"。
+ * - FIND [始点日時] [終点日時]: 予定を検索する。応答は、1行に1件のJSON Linesの予定と、最後の"END [件数]"。
+ * - QUIT: 接続を閉じる。応答は"BYE"。
+ * .
+ * 失敗した要求の応答は"ERROR [例外のクラス名] [理由]"です。
+ *
+ * 要求は、応答を待たずに続けて送信(パイプライン)できます。応答は要求の順に返し、
+ * 受信済みの要求がなくなった時にまとめて送信します。
+ * 検索結果は、カーソルでページ毎に読み出しながら送信するため、範囲が広い場合もメモリは一定です。
+ * @implSpec 予定表は、複数の接続から同時に操作するため、スレッドセーフな格納方式(CONCURRENT、SYNCHRONIZED、SHARDED)としてください。
+ */
+final class ScheduleServer implements Closeable {
+
+    /**
+     * 接続の読み書きのバッファの大きさ
+     */
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    /**
+     * 予定表
+     */
+    private final Schedule schedule;
+
+    /**
+     * 接続を待つソケット
+     */
+    private final ServerSocket serverSocket;
+
+    /**
+     * 接続を処理するスレッド
+     */
+    private final ExecutorService executor;
+
+    /**
+     * 仮想スレッドで処理する場合はtrue
+     */
+    private final boolean isVirtual;
+
+    /**
+     * 処理中の接続
+     */
+    private final Set<Socket> connections = ConcurrentHashMap.newKeySet();
+
+    /**
+     * 接続を待つスレッド
+     */
+    private final Thread acceptor;
+
+    /**
+     * 予定表のサーバを作成し、ローカルホストのポートで接続を待つ。
+     * @param schedule 予定表。スレッドセーフであること。
+     * @param port ポート番号。0の場合は、空いているポート。
+     * @exception IOException ポートを使用できない。
+     * @exception IllegalArgumentException scheduleがnull。
+     */
+    ScheduleServer(Schedule schedule, int port) throws IOException
+    {
+        if (schedule == null) {
+            throw new IllegalArgumentException("schedule is null.");
+        }
+        this.schedule = schedule;
+        this.serverSocket = new ServerSocket();
+        this.serverSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+
+        var virtual = newVirtualThreadExecutor();
+        this.isVirtual = virtual != null;
+        this.executor = virtual != null ? virtual : Executors.newCachedThreadPool(runnable -> {
+            var thread = new Thread(runnable, "ScheduleServer-connection");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.acceptor = new Thread(this::accept, "ScheduleServer-acceptor");
+        this.acceptor.setDaemon(true);
+        this.acceptor.start();
+    }
+
+    /**
+     * 接続毎に仮想スレッドを作成するExecutorServiceを、リフレクションで作成する。
+     * @return ExecutorService。仮想スレッドを使用できない場合はnull。
+     */
+    private static ExecutorService newVirtualThreadExecutor()
+    {
+        try {
+            var method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService)method.invoke(null);
+        }
+        catch (ReflectiveOperationException | RuntimeException e) {
+            // JDK 21より前、またはプレビュー機能が無効。
+            return null;
+        }
+    }
+
+    /**
+     * 接続を待つ、ソケットのアドレスを取得する。
+     * @return ソケットのアドレス
+     */
+    InetSocketAddress address()
+    {
+        return (InetSocketAddress)serverSocket.getLocalSocketAddress();
+    }
+
+    /**
+     * 接続を仮想スレッドで処理するかを取得する。
+     * @return 仮想スレッドの場合はtrue。接続毎のスレッドの場合はfalse。
+     */
+    boolean isVirtual()
+    {
+        return isVirtual;
+    }
+
+    /**
+     * サーバを閉じるまで、接続を待ち、処理するスレッドに渡す。
+     */
+    private void accept()
+    {
+        while (!serverSocket.isClosed()) {
+            try {
+                var socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                connections.add(socket);
+                try {
+                    executor.execute(() -> serve(socket));
+                }
+                catch (RejectedExecutionException ree) {
+                    // 接続の直後に、サーバを閉じた。
+                    connections.remove(socket);
+                    socket.close();
+                }
+            }
+            catch (IOException e) {
+                // サーバを閉じた。
+            }
+        }
+    }
+
+    /**
+     * 接続の要求を、切断またはQUITまで処理する。
+     * @param socket 接続
+     */
+    private void serve(Socket socket)
+    {
+        try (socket;
+                var reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8), BUFFER_SIZE);
+                var writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), BUFFER_SIZE)) {
+            var exporter = new PlanExporter(writer, PlanExporter.Format.JSON_LINES);
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!handle(line, writer, exporter)) {
+                    break;
+                }
+                // 続けて送信された要求がある間は、応答をバッファに溜める。
+                if (!reader.ready()) {
+                    writer.flush();
+                }
+            }
+            writer.flush();
+        }
+        catch (IOException e) {
+            // 接続が切断された。
+        }
+        finally {
+            connections.remove(socket);
+        }
+    }
+
+    /**
+     * 1行の要求を処理し、応答を書き込む。
+     * @param line 要求
+     * @param writer 応答の書き込み先
+     * @param exporter 検索結果の書き込み先
+     * @return 接続を続ける場合はtrue。QUITの場合はfalse。
+     * @exception IOException 書き込みに失敗した。
+     */
+    private boolean handle(String line, BufferedWriter writer, PlanExporter exporter) throws IOException
+    {
+        int space = line.indexOf(' ');
+        var command = space < 0 ? line : line.substring(0, space);
+        String first = null;
+        String second = null;
+        if (space >= 0) {
+            int next = line.indexOf(' ', space + 1);
+            first = next < 0 ? line.substring(space + 1) : line.substring(space + 1, next);
+            second = next < 0 ? null : line.substring(next + 1);
+        }
+
+        try {
+            switch (command) {
+            case "ADD":
+                schedule.add(first, second);
+                writer.write("OK\n");
+                break;
+            case "REMOVE":
+                schedule.remove(first, second);
+                writer.write("OK\n");
+                break;
+            case "COUNT":
+                long count = schedule.count(first, second);
+                writer.write("OK " + count + "\n");
+                break;
+            case "FIND":
+                // 不正な引数は、カーソルの作成時に例外となり、予定は書き込まない。
+                var cursor = schedule.cursor(first, second, Schedule.Order.ASCENDING);
+                long found = exporter.export(cursor);
+                writer.write("END " + found + "\n");
+                break;
+            case "QUIT":
+                writer.write("BYE\n");
+                return false;
+            default:
+                throw new IllegalArgumentException("invalid command: " + command);
+            }
+        }
+        catch (RuntimeException e) {
+            var message = String.valueOf(e.getMessage()).replace('\n', ' ').replace('\r', ' ');
+            writer.write("ERROR " + e.getClass().getSimpleName() + " " + message + "\n");
+        }
+        return true;
+    }
+
+    /**
+     * 接続を待つのをやめ、処理中の接続を全て閉じる。
+     * @exception IOException ソケットを閉じられなかった。
+     */
+    @Override
+    public void close() throws IOException
+    {
+        serverSocket.close();
+        for (var socket : connections) {
+            socket.close();
+        }
+        executor.shutdown();
+        try {
+            acceptor.join();
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        }
+        catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new IOException(ie);
+        }
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2020, 2021, Patineboot
+ * All rights reserved.
+ */
+
+package com.patineboot.education;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * 予定表の全ての予定を、昇順に保存したスナップショットです。
+ * ファイルは、マジックナンバー、バージョン、世代、件数、予定、CRC32で構成します。
+ * 予定は、日時(分オフセット)、用件(UTF-8)の長さ、用件、所要時間(分)で構成します。
+ * 所要時間のないバージョン1のファイルは、所要時間のない予定として読み込みます。
+ * 世代は、スナップショットの後に続くジャーナルの世代です。
+ */
+final class ScheduleSnapshot {
+
+    /**
+     * マジックナンバー("SCHS")
+     */
+    private static final int MAGIC = 0x53434853;
+
+    /**
+     * フォーマットのバージョン
+     */
+    private static final int VERSION = 2;
+
+    /**
+     * 読み込み時に一括して登録する予定の件数
+     */
+    static final int CHUNK_SIZE = 64 * 1024;
+
+    private ScheduleSnapshot()
+    {
+    }
+
+    /**
+     * スナップショットを書き込む。
+     * 一時ファイルに書き込み、fsyncしてから、アトミックに置き換える。
+     * @param file スナップショットのファイル
+     * @param generation 後に続くジャーナルの世代
+     * @param count 予定の件数
+     * @param plans 昇順の予定
+     * @exception IOException 書き込みに失敗した。
+     */
+    static void write(Path file, long generation, long count, Iterator<Plan> plans) throws IOException
+    {
+        var temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        try (var channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            var checked = new CheckedOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 64 * 1024), new CRC32());
+            var output = new DataOutputStream(checked);
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeLong(generation);
+            output.writeLong(count);
+
+            long written = 0;
+            while (plans.hasNext()) {
+                var plan = plans.next();
+                var bytes = plan.getContent().getBytes(StandardCharsets.UTF_8);
+                output.writeLong(DateTimeParser.toMinutes(plan.getDateTime()));
+                output.writeInt(bytes.length);
+                output.write(bytes);
+                output.writeInt(plan.getDuration());
+                written++;
+            }
+            if (written != count) {
+                throw new IOException("plans changed while writing snapshot");
+            }
+            output.flush();
+            output.writeLong(checked.getChecksum().getValue());
+            output.flush();
+            channel.force(true);
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * スナップショットを読み込み、一定の件数毎に予定を受け渡す。
+     * @param file スナップショットのファイル
+     * @param chunk 昇順の予定の一覧を受け取る処理
+     * @return 後に続くジャーナルの世代
+     * @exception IOException 読み込みに失敗した。ファイルが壊れている。
+     */
+    static long read(Path file, Consumer<List<Plan>> chunk) throws IOException
+    {
+        try (var stream = Files.newInputStream(file)) {
+            var checked = new CheckedInputStream(new BufferedInputStream(stream, 64 * 1024), new CRC32());
+            var input = new DataInputStream(checked);
+            if (input.readInt() != MAGIC) {
+                throw new IOException("not a schedule snapshot: " + file);
+            }
+            int version = input.readInt();
+            if (version < 1 || version > VERSION) {
+                throw new IOException("not a schedule snapshot: " + file);
+            }
+            long generation = input.readLong();
+            long count = input.readLong();
+
+            var plans = new ArrayList<Plan>(CHUNK_SIZE);
+            for (long i = 0; i < count; i++) {
+                long minutes = input.readLong();
+                var bytes = new byte[input.readInt()];
+                input.readFully(bytes);
+                int duration = version >= 2 ? input.readInt() : 0;
+                if (duration < 0 || duration > Plan.MAX_DURATION) {
+                    throw new IOException("broken schedule snapshot: " + file);
+                }
+                plans.add(new Plan(DateTimeParser.toLocalDateTime(minutes), new String(bytes, StandardCharsets.UTF_8), duration));
+                if (plans.size() == CHUNK_SIZE) {
+                    chunk.accept(plans);
+                    plans = new ArrayList<>(CHUNK_SIZE);
+                }
+            }
+            long expected = checked.getChecksum().getValue();
+            if (input.readLong() != expected) {
+                throw new IOException("broken schedule snapshot: " + file);
+            }
+            if (!plans.isEmpty()) {
+                chunk.accept(plans);
+            }
+            return generation;
+        }
+    }
+}
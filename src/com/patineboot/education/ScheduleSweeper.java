@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2020, 2021, Patineboot
+ * All rights reserved.
+ */
+
+package com.patineboot.education;
+
+import java.lang.ref.WeakReference;
+import java.time.Duration;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 予定表の期限切れの予定を、バックグラウンドのスレッドで定期的に追い出すクラスです。
+ * 全ての予定表の掃除を、一つのデーモンスレッドで実行します。
+ * 掃除は予定表を弱参照で保持するため、予定表が回収されると、掃除は自動的に止まります。
+ * 掃除で発生した例外は、予定表の追い出す方針の通知先に渡します。
+ * @implSpec このクラスはスレッドセーフです。
+ */
+final class ScheduleSweeper implements Runnable {
+
+    /**
+     * 掃除を実行するスレッド
+     */
+    private static final ScheduledExecutorService EXECUTOR = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        var thread = new Thread(runnable, "ScheduleSweeper");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * 掃除する予定表
+     */
+    private final WeakReference<Schedule> schedule;
+
+    /**
+     * 定期実行の結果。予定表が回収された時に取り消す。
+     */
+    private volatile Future<?> future;
+
+    /**
+     * 掃除を作成する。
+     * @param schedule 掃除する予定表
+     */
+    private ScheduleSweeper(Schedule schedule)
+    {
+        this.schedule = new WeakReference<>(schedule);
+    }
+
+    /**
+     * 予定表の掃除を開始する。
+     * @param schedule 掃除する予定表。スレッドセーフな格納方式であること。
+     * @param interval 掃除の間隔
+     * @return 定期実行の結果。cancelで掃除を止める。
+     */
+    static Future<?> start(Schedule schedule, Duration interval)
+    {
+        var sweeper = new ScheduleSweeper(schedule);
+        long nanos = interval.toNanos();
+        sweeper.future = EXECUTOR.scheduleWithFixedDelay(sweeper, nanos, nanos, TimeUnit.NANOSECONDS);
+        return sweeper.future;
+    }
+
+    @Override
+    public void run()
+    {
+        var target = schedule.get();
+        if (target == null) {
+            var current = future;
+            if (current != null) {
+                current.cancel(false);
+            }
+            return;
+        }
+        // 保管先の例外は方針の通知先に渡し、次の掃除を止めない。
+        target.sweep();
+    }
+}
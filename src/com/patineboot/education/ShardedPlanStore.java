@@ -0,0 +1,509 @@
+/*
+ * Copyright (c) 2020, 2021, Patineboot
+ * All rights reserved.
+ */
+
+package com.patineboot.education;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongConsumer;
+
+/**
+ * 予定を年毎のシャードに分けて格納するクラスです。
+ * シャードは、TreeSetとロックを持ち、予定を登録する時に作成します。
+ * 異なる年の予定の登録、削除は、別のロックを取得するため、互いに待ちません。
+ *
+ * 複数のシャードにまたがる検索と件数は、ForkJoinPoolでシャード毎に並列に実行し、年の順に連結します。
+ * シャードは年の順に並ぶため、連結するだけで昇順となります。
+ * 検索結果は、シャード毎に検索時のスナップショットとなり、予定表の変更を反映しません。
+ * 一括登録は、対象のシャードのロックを年の昇順に全て取得するため、重複した場合はいずれのシャードも変更しません。
+ * @implSpec このクラスはスレッドセーフです。
+ */
+final class ShardedPlanStore implements PlanStore {
+
+    /**
+     * 年毎のシャードです。
+     */
+    private static final class Shard {
+
+        /**
+         * 予定のセット
+         */
+        private final TreeSet<Plan> plans = new TreeSet<>();
+
+        /**
+         * 予定のセットを保護するロック
+         */
+        private final ReentrantLock lock = new ReentrantLock();
+    }
+
+    /**
+     * シャードの数。西暦0年から西暦9999年。
+     */
+    private static final int SHARD_COUNT = 10000;
+
+    /**
+     * 1つのタスクで、並列に分割せずに処理するシャードの数
+     */
+    private static final int SHARDS_PER_TASK = 16;
+
+    /**
+     * 年毎のシャード。予定を登録していない年はnull。
+     */
+    private final AtomicReferenceArray<Shard> shards = new AtomicReferenceArray<>(SHARD_COUNT);
+
+    /**
+     * 予定の件数
+     */
+    private final LongAdder size = new LongAdder();
+
+    /**
+     * 予定を格納するシャードの番号を求める。
+     * @param plan 予定
+     * @return シャードの番号。西暦10000年の終点は、最後のシャード。
+     */
+    private static int shardOf(Plan plan)
+    {
+        return Math.min(plan.getDateTime().getYear(), SHARD_COUNT - 1);
+    }
+
+    /**
+     * シャードを取得する。ない場合は作成する。
+     * @param index シャードの番号
+     * @return シャード
+     */
+    private Shard shard(int index)
+    {
+        var shard = shards.get(index);
+        if (shard == null) {
+            var created = new Shard();
+            shard = shards.compareAndSet(index, null, created) ? created : shards.get(index);
+        }
+        return shard;
+    }
+
+    @Override
+    public long size()
+    {
+        return size.sum();
+    }
+
+    @Override
+    public boolean add(Plan plan)
+    {
+        var shard = shard(shardOf(plan));
+        shard.lock.lock();
+        try {
+            if (!shard.plans.add(plan)) {
+                return false;
+            }
+        }
+        finally {
+            shard.lock.unlock();
+        }
+        size.increment();
+        return true;
+    }
+
+    @Override
+    public boolean remove(Plan plan)
+    {
+        var shard = shards.get(shardOf(plan));
+        if (shard == null) {
+            return false;
+        }
+        shard.lock.lock();
+        try {
+            if (!shard.plans.remove(plan)) {
+                return false;
+            }
+        }
+        finally {
+            shard.lock.unlock();
+        }
+        size.decrement();
+        return true;
+    }
+
+    @Override
+    public Plan addAll(Plan[] sorted)
+    {
+        if (sorted.length == 0) {
+            return null;
+        }
+        // 予定は昇順のため、同じ年の予定は連続する。年毎の区間に分ける。
+        var locked = new ArrayList<Shard>();
+        var starts = new ArrayList<Integer>();
+        for (int i = 0; i < sorted.length; i++) {
+            if (i == 0 || shardOf(sorted[i]) != shardOf(sorted[i - 1])) {
+                locked.add(shard(shardOf(sorted[i])));
+                starts.add(i);
+            }
+        }
+        starts.add(sorted.length);
+
+        // 年の昇順にロックを取得するため、他の一括登録とデッドロックしない。
+        int held = 0;
+        try {
+            for (var shard : locked) {
+                shard.lock.lock();
+                held++;
+            }
+            for (int s = 0; s < locked.size(); s++) {
+                var segment = new Plan[starts.get(s + 1) - starts.get(s)];
+                System.arraycopy(sorted, starts.get(s), segment, 0, segment.length);
+                var duplicate = PlanStore.addAll(locked.get(s).plans, segment);
+                if (duplicate != null) {
+                    // 格納済みの区間を削除する。
+                    for (int r = 0; r < s; r++) {
+                        for (int i = starts.get(r); i < starts.get(r + 1); i++) {
+                            locked.get(r).plans.remove(sorted[i]);
+                        }
+                    }
+                    return duplicate;
+                }
+            }
+        }
+        finally {
+            for (int s = held - 1; s >= 0; s--) {
+                locked.get(s).lock.unlock();
+            }
+        }
+        size.add(sorted.length);
+        return null;
+    }
+
+    /**
+     * 範囲内の予定を取得する。複数のシャードにまたがる場合は、並列に検索する。
+     * @param from 始点(これを含む)
+     * @param to 終点(これを含まない)
+     * @return 予定の一覧。シャード毎の検索時のスナップショット。
+     */
+    @Override
+    public SortedSet<Plan> subSet(Plan from, Plan to)
+    {
+        if (from.compareTo(to) >= 0) {
+            return SortedPlanSet.EMPTY;
+        }
+        int first = shardOf(from);
+        int last = shardOf(to);
+        var parts = new Plan[last - first + 1][];
+        var task = new SnapshotTask(from, to, first, last + 1, parts, first);
+        if (last - first < SHARDS_PER_TASK) {
+            task.compute();
+        }
+        else {
+            ForkJoinPool.commonPool().invoke(task);
+        }
+
+        int length = 0;
+        for (var part : parts) {
+            length += part == null ? 0 : part.length;
+        }
+        var found = new Plan[length];
+        int position = 0;
+        for (var part : parts) {
+            if (part != null) {
+                System.arraycopy(part, 0, found, position, part.length);
+                position += part.length;
+            }
+        }
+        return new SortedPlanSet(found);
+    }
+
+    /**
+     * シャードの範囲を分割しながら、シャード毎の予定を配列に取り出すタスクです。
+     */
+    private final class SnapshotTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * 始点(これを含む)
+         */
+        private final Plan from;
+
+        /**
+         * 終点(これを含まない)
+         */
+        private final Plan to;
+
+        /**
+         * 最初のシャードの番号(これを含む)
+         */
+        private final int low;
+
+        /**
+         * 最後のシャードの番号(これを含まない)
+         */
+        private final int high;
+
+        /**
+         * シャード毎の予定の配列の書き込み先
+         */
+        private final Plan[][] parts;
+
+        /**
+         * 書き込み先の0番目に対応する、シャードの番号
+         */
+        private final int offset;
+
+        /**
+         * タスクを作成する。
+         * @param from 始点(これを含む)
+         * @param to 終点(これを含まない)
+         * @param low 最初のシャードの番号(これを含む)
+         * @param high 最後のシャードの番号(これを含まない)
+         * @param parts シャード毎の予定の配列の書き込み先
+         * @param offset 書き込み先の0番目に対応する、シャードの番号
+         */
+        SnapshotTask(Plan from, Plan to, int low, int high, Plan[][] parts, int offset)
+        {
+            this.from = from;
+            this.to = to;
+            this.low = low;
+            this.high = high;
+            this.parts = parts;
+            this.offset = offset;
+        }
+
+        @Override
+        protected void compute()
+        {
+            if (high - low > SHARDS_PER_TASK) {
+                int middle = (low + high) >>> 1;
+                invokeAll(new SnapshotTask(from, to, low, middle, parts, offset),
+                        new SnapshotTask(from, to, middle, high, parts, offset));
+                return;
+            }
+            for (int i = low; i < high; i++) {
+                var shard = shards.get(i);
+                if (shard == null) {
+                    continue;
+                }
+                shard.lock.lock();
+                try {
+                    var subset = shard.plans.subSet(from, to);
+                    if (!subset.isEmpty()) {
+                        parts[i - offset] = subset.toArray(new Plan[subset.size()]);
+                    }
+                }
+                finally {
+                    shard.lock.unlock();
+                }
+            }
+        }
+    }
+
+    /**
+     * 範囲内の予定の件数を取得する。複数のシャードにまたがる場合は、並列に数える。
+     * @param from 始点(これを含む)
+     * @param to 終点(これを含まない)
+     * @return 予定の件数
+     */
+    @Override
+    public long count(Plan from, Plan to)
+    {
+        if (from.compareTo(to) >= 0) {
+            return 0;
+        }
+        int first = shardOf(from);
+        int last = shardOf(to);
+        var task = new CountTask(from, to, first, last + 1);
+        return last - first < SHARDS_PER_TASK ? task.compute() : ForkJoinPool.commonPool().invoke(task);
+    }
+
+    /**
+     * シャードの範囲を分割しながら、範囲内の予定を数えるタスクです。
+     */
+    private final class CountTask extends RecursiveTask<Long> {
+
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * 始点(これを含む)
+         */
+        private final Plan from;
+
+        /**
+         * 終点(これを含まない)
+         */
+        private final Plan to;
+
+        /**
+         * 最初のシャードの番号(これを含む)
+         */
+        private final int low;
+
+        /**
+         * 最後のシャードの番号(これを含まない)
+         */
+        private final int high;
+
+        /**
+         * タスクを作成する。
+         * @param from 始点(これを含む)
+         * @param to 終点(これを含まない)
+         * @param low 最初のシャードの番号(これを含む)
+         * @param high 最後のシャードの番号(これを含まない)
+         */
+        CountTask(Plan from, Plan to, int low, int high)
+        {
+            this.from = from;
+            this.to = to;
+            this.low = low;
+            this.high = high;
+        }
+
+        @Override
+        protected Long compute()
+        {
+            if (high - low > SHARDS_PER_TASK) {
+                int middle = (low + high) >>> 1;
+                var left = new CountTask(from, to, low, middle);
+                left.fork();
+                long right = new CountTask(from, to, middle, high).compute();
+                return left.join() + right;
+            }
+            long count = 0;
+            for (int i = low; i < high; i++) {
+                var shard = shards.get(i);
+                if (shard == null) {
+                    continue;
+                }
+                shard.lock.lock();
+                try {
+                    // 範囲がシャード全体を含む場合は、セットの件数で済む。
+                    var plans = shard.plans;
+                    if (!plans.isEmpty() && from.compareTo(plans.first()) <= 0 && to.compareTo(plans.last()) > 0) {
+                        count += plans.size();
+                    }
+                    else {
+                        count += plans.subSet(from, to).size();
+                    }
+                }
+                finally {
+                    shard.lock.unlock();
+                }
+            }
+            return count;
+        }
+    }
+
+    /**
+     * 範囲内の予定を、シャード毎に一括して削除する。範囲がシャード全体を含む場合は、セットを空にする。
+     * @param from 始点(これを含む)
+     * @param to 終点(これを含まない)
+     * @return 削除した予定の配列。昇順。
+     */
+    @Override
+    public Plan[] removeRange(Plan from, Plan to)
+    {
+        if (from.compareTo(to) >= 0) {
+            return new Plan[0];
+        }
+        var parts = new ArrayList<Plan[]>();
+        int length = 0;
+        for (int i = shardOf(from); i <= shardOf(to); i++) {
+            var shard = shards.get(i);
+            if (shard == null) {
+                continue;
+            }
+            Plan[] removed;
+            shard.lock.lock();
+            try {
+                var plans = shard.plans;
+                if (!plans.isEmpty() && from.compareTo(plans.first()) <= 0 && to.compareTo(plans.last()) > 0) {
+                    removed = plans.toArray(new Plan[plans.size()]);
+                    plans.clear();
+                }
+                else {
+                    removed = PlanStore.removeRange(plans, from, to);
+                }
+            }
+            finally {
+                shard.lock.unlock();
+            }
+            if (removed.length > 0) {
+                size.add(-removed.length);
+                parts.add(removed);
+                length += removed.length;
+            }
+        }
+        var removed = new Plan[length];
+        int position = 0;
+        for (var part : parts) {
+            System.arraycopy(part, 0, removed, position, part.length);
+            position += part.length;
+        }
+        return removed;
+    }
+
+    @Override
+    public boolean isThreadSafe()
+    {
+        return true;
+    }
+
+    @Override
+    public boolean retainsDuration()
+    {
+        return true;
+    }
+
+    @Override
+    public List<Plan> page(Plan from, boolean fromInclusive, Plan to, int limit, boolean descending)
+    {
+        var page = new ArrayList<Plan>(Math.min(limit, 1024));
+        if (from.compareTo(to) >= 0) {
+            return page;
+        }
+        int first = shardOf(from);
+        int last = shardOf(to);
+        // シャードを順に辿り、件数に達するまで取得する。
+        for (int n = 0; n <= last - first && page.size() < limit; n++) {
+            var shard = shards.get(descending ? last - n : first + n);
+            if (shard == null) {
+                continue;
+            }
+            shard.lock.lock();
+            try {
+                page.addAll(PlanStore.page(shard.plans, from, fromInclusive, to, limit - page.size(), descending));
+            }
+            finally {
+                shard.lock.unlock();
+            }
+        }
+        return page;
+    }
+
+    @Override
+    public void forEachKey(Plan from, Plan to, LongConsumer action)
+    {
+        if (from.compareTo(to) >= 0) {
+            return;
+        }
+        for (int i = shardOf(from); i <= shardOf(to); i++) {
+            var shard = shards.get(i);
+            if (shard == null) {
+                continue;
+            }
+            shard.lock.lock();
+            try {
+                PlanStore.forEachKey(shard.plans, from, to, action);
+            }
+            finally {
+                shard.lock.unlock();
+            }
+        }
+    }
+}
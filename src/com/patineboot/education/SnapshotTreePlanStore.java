@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2020, 2021, Patineboot
+ * All rights reserved.
+ */
+
+package com.patineboot.education;
+
+import java.util.List;
+import java.util.SortedSet;
+import java.util.function.LongConsumer;
+
+/**
+ * TreeSetで格納した予定を、一つのロックで保護し、検索結果をスナップショットで返すクラスです。
+ * Collections.synchronizedSortedSetと同じく、全ての操作を排他的に実行しますが、検索結果の扱いが異なります。
+ * - Collections.synchronizedSortedSetのsubSetは、同じロックを共有するビューを返し、反復する間は呼び出し元がロックを保持する必要がある。
+ *   予定表の検索結果の利用者はロックを取得できないため、他のスレッドの変更と同時に反復すると、ConcurrentModificationExceptionとなる。
+ * - このクラスのsubSetは、ロックを保持したまま範囲の予定を配列にコピーし、ロックの外で安全に反復できるスナップショットを返す。
+ *   コピーは範囲の予定の件数に比例するため、広い範囲を頻繁に検索する場合は、ロックを取得しないビューを返すCONCURRENTが適する。
+ * .
+ * ページ(page)と日時の受け渡し(forEachKey)は、件数が限られるか予定を作成しないため、コピーせずにロックの中で処理する。
+ * @implSpec このクラスはスレッドセーフです。
+ */
+final class SnapshotTreePlanStore implements PlanStore {
+
+    /**
+     * 予定のセット
+     */
+    private final TreePlanStore plans = new TreePlanStore();
+
+    @Override
+    public synchronized long size()
+    {
+        return plans.size();
+    }
+
+    @Override
+    public synchronized boolean add(Plan plan)
+    {
+        return plans.add(plan);
+    }
+
+    @Override
+    public synchronized boolean remove(Plan plan)
+    {
+        return plans.remove(plan);
+    }
+
+    @Override
+    public synchronized Plan addAll(Plan[] sorted)
+    {
+        return plans.addAll(sorted);
+    }
+
+    /**
+     * @inheritDoc
+     * 予定の一覧は、検索時のスナップショットです。範囲の予定の件数に比例して、コピーします。
+     */
+    @Override
+    public synchronized SortedSet<Plan> subSet(Plan from, Plan to)
+    {
+        var subset = plans.subSet(from, to);
+        return new SortedPlanSet(subset.toArray(new Plan[subset.size()]));
+    }
+
+    @Override
+    public synchronized Plan[] removeRange(Plan from, Plan to)
+    {
+        return plans.removeRange(from, to);
+    }
+
+    @Override
+    public boolean isThreadSafe()
+    {
+        return true;
+    }
+
+    @Override
+    public boolean retainsDuration()
+    {
+        return true;
+    }
+
+    @Override
+    public synchronized List<Plan> page(Plan from, boolean fromInclusive, Plan to, int limit, boolean descending)
+    {
+        return plans.page(from, fromInclusive, to, limit, descending);
+    }
+
+    @Override
+    public synchronized void forEachKey(Plan from, Plan to, LongConsumer action)
+    {
+        plans.forEachKey(from, to, action);
+    }
+}
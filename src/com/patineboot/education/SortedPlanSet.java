@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) 2020, 2021, Patineboot
+ * All rights reserved.
+ */
+
+package com.patineboot.education;
+
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.SortedSet;
+
+/**
+ * ソート済みの予定の配列を、変更できないSortedSetとして扱うクラスです。
+ * 予定の検索結果のスナップショットとして使用します。
+ * @implSpec このクラスは不変でスレッドセーフです。配列は、構築後に変更しないでください。
+ */
+final class SortedPlanSet extends AbstractSet<Plan> implements SortedSet<Plan> {
+
+    /**
+     * 空の予定のセット
+     */
+    static final SortedPlanSet EMPTY = new SortedPlanSet(new Plan[0], 0, 0);
+
+    /**
+     * ソート済みで重複のない予定の配列
+     */
+    private final Plan[] plans;
+
+    /**
+     * 配列の開始位置(これを含む)
+     */
+    private final int fromIndex;
+
+    /**
+     * 配列の終了位置(これを含まない)
+     */
+    private final int toIndex;
+
+    /**
+     * 予定の配列の範囲から、予定のセットを作成する。
+     * @param plans ソート済みで重複のない予定の配列
+     * @param fromIndex 開始位置(これを含む)
+     * @param toIndex 終了位置(これを含まない)
+     */
+    SortedPlanSet(Plan[] plans, int fromIndex, int toIndex)
+    {
+        this.plans = plans;
+        this.fromIndex = fromIndex;
+        this.toIndex = toIndex;
+    }
+
+    /**
+     * 予定の配列から、予定のセットを作成する。
+     * @param plans ソート済みで重複のない予定の配列
+     */
+    SortedPlanSet(Plan[] plans)
+    {
+        this(plans, 0, plans.length);
+    }
+
+    @Override
+    public Iterator<Plan> iterator()
+    {
+        // Arrays.asListの反復子は、removeをサポートしない。
+        return Arrays.asList(plans).subList(fromIndex, toIndex).iterator();
+    }
+
+    @Override
+    public int size()
+    {
+        return toIndex - fromIndex;
+    }
+
+    @Override
+    public boolean contains(Object obj)
+    {
+        if (!(obj instanceof Plan)) {
+            return false;
+        }
+        var plan = (Plan)obj;
+        int index = lowerBound(plan);
+        return index < toIndex && plans[index].equals(plan);
+    }
+
+    @Override
+    public Comparator<? super Plan> comparator()
+    {
+        // 自然順序を使用する。
+        return null;
+    }
+
+    @Override
+    public SortedSet<Plan> subSet(Plan fromElement, Plan toElement)
+    {
+        if (fromElement.compareTo(toElement) > 0) {
+            throw new IllegalArgumentException("fromKey > toKey");
+        }
+        return new SortedPlanSet(plans, lowerBound(fromElement), lowerBound(toElement));
+    }
+
+    @Override
+    public SortedSet<Plan> headSet(Plan toElement)
+    {
+        return new SortedPlanSet(plans, fromIndex, lowerBound(toElement));
+    }
+
+    @Override
+    public SortedSet<Plan> tailSet(Plan fromElement)
+    {
+        return new SortedPlanSet(plans, lowerBound(fromElement), toIndex);
+    }
+
+    @Override
+    public Plan first()
+    {
+        if (isEmpty()) {
+            throw new NoSuchElementException();
+        }
+        return plans[fromIndex];
+    }
+
+    @Override
+    public Plan last()
+    {
+        if (isEmpty()) {
+            throw new NoSuchElementException();
+        }
+        return plans[toIndex - 1];
+    }
+
+    /**
+     * 指定した予定以上となる、最初の位置を検索する。
+     * @param plan 予定
+     * @return 位置。範囲内に見つからない場合は、toIndex。
+     */
+    private int lowerBound(Plan plan)
+    {
+        int low = fromIndex;
+        int high = toIndex;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (plans[middle].compareTo(plan) < 0) {
+                low = middle + 1;
+            }
+            else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright (c) 2020, 2021, Patineboot
+ * All rights reserved.
+ */
+
+package com.patineboot.education;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * 購読を、日時の範囲で引く索引クラスです。
+ * 購読を範囲の始点の順に並べた配列を、暗黙の平衡二分木とし、節毎に部分木の終点の最大値を持たせた区間木です。
+ * 日時を含む購読の検索は、購読の数をn、見つかった購読の数をkとして、O(log n + k)で行います。
+ *
+ * 購読の登録と解除は、木を作り直して差し替えます(O(n log n))。
+ * 予定の変更毎の検索は、ロックを取得せずに差し替え済みの木を参照します。
+ * @implSpec このクラスはスレッドセーフです。
+ */
+final class SubscriptionIndex {
+
+    /**
+     * 購読の区間木。作成した後は変更しない。
+     */
+    private static final class Tree {
+
+        /**
+         * 始点の順に並べた購読
+         */
+        final PlanSubscription[] subscriptions;
+
+        /**
+         * 購読の始点
+         */
+        final long[] froms;
+
+        /**
+         * 購読の終点
+         */
+        final long[] tos;
+
+        /**
+         * 節を根とする部分木の、終点の最大値。節は範囲の中央の位置。
+         */
+        final long[] maxTos;
+
+        /**
+         * 購読の区間木を作成する。
+         * @param subscriptions 始点の順に並べた購読
+         */
+        Tree(PlanSubscription[] subscriptions)
+        {
+            int length = subscriptions.length;
+            this.subscriptions = subscriptions;
+            this.froms = new long[length];
+            this.tos = new long[length];
+            this.maxTos = new long[length];
+            for (int i = 0; i < length; i++) {
+                froms[i] = subscriptions[i].from();
+                tos[i] = subscriptions[i].to();
+            }
+            build(0, length);
+        }
+
+        /**
+         * 範囲の部分木の、終点の最大値を求める。
+         * @param low 範囲の始め(これを含む)
+         * @param high 範囲の終わり(これを含まない)
+         * @return 終点の最大値。空の範囲ではLong.MIN_VALUE。
+         */
+        private long build(int low, int high)
+        {
+            if (low >= high) {
+                return Long.MIN_VALUE;
+            }
+            int middle = (low + high) >>> 1;
+            long max = Math.max(tos[middle], Math.max(build(low, middle), build(middle + 1, high)));
+            maxTos[middle] = max;
+            return max;
+        }
+
+        /**
+         * 範囲の部分木から、日時を含む購読を探す。
+         * @param low 範囲の始め(これを含む)
+         * @param high 範囲の終わり(これを含まない)
+         * @param minutes 日時(分オフセット)
+         * @param action 購読を受け取る処理
+         */
+        void stab(int low, int high, long minutes, Consumer<PlanSubscription> action)
+        {
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                // 部分木の全ての購読が、日時より前に終わる。
+                if (maxTos[middle] <= minutes) {
+                    return;
+                }
+                stab(low, middle, minutes, action);
+                // 節と右の部分木の購読は、日時より後に始まる。
+                if (froms[middle] > minutes) {
+                    return;
+                }
+                if (minutes < tos[middle]) {
+                    action.accept(subscriptions[middle]);
+                }
+                low = middle + 1;
+            }
+        }
+    }
+
+    /**
+     * 始点、終点の順の比較
+     */
+    private static final Comparator<PlanSubscription> ORDER =
+            Comparator.comparingLong(PlanSubscription::from).thenComparingLong(PlanSubscription::to);
+
+    /**
+     * 購読の区間木。変更する時は作り直す。
+     */
+    private volatile Tree tree = new Tree(new PlanSubscription[0]);
+
+    /**
+     * 購読を登録する。
+     * @param subscription 購読
+     */
+    synchronized void add(PlanSubscription subscription)
+    {
+        var current = tree.subscriptions;
+        var added = Arrays.copyOf(current, current.length + 1);
+        added[current.length] = subscription;
+        Arrays.sort(added, ORDER);
+        tree = new Tree(added);
+    }
+
+    /**
+     * 購読を解除する。
+     * @param subscription 購読
+     */
+    synchronized void remove(PlanSubscription subscription)
+    {
+        var current = tree.subscriptions;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i] == subscription) {
+                var removed = new PlanSubscription[current.length - 1];
+                System.arraycopy(current, 0, removed, 0, i);
+                System.arraycopy(current, i + 1, removed, i, current.length - i - 1);
+                tree = new Tree(removed);
+                return;
+            }
+        }
+    }
+
+    /**
+     * 購読がないかを判定する。
+     * @return 購読がない場合はtrue
+     */
+    boolean isEmpty()
+    {
+        return tree.subscriptions.length == 0;
+    }
+
+    /**
+     * 購読の数を取得する。
+     * @return 購読の数
+     */
+    int size()
+    {
+        return tree.subscriptions.length;
+    }
+
+    /**
+     * 日時を範囲に含む購読を、全て処理する。
+     * @param minutes 日時(分オフセット)
+     * @param action 購読を受け取る処理
+     */
+    void forEachContaining(long minutes, Consumer<PlanSubscription> action)
+    {
+        var current = tree;
+        current.stab(0, current.subscriptions.length, minutes, action);
+    }
+
+    /**
+     * 範囲と重なる購読を取得する。繰り返しの予定の登録など、まれな変更で使用する。
+     * @param from 始点(分オフセット、これを含む)
+     * @param to 終点(分オフセット、これを含まない)
+     * @return 購読の一覧
+     */
+    List<PlanSubscription> overlapping(long from, long to)
+    {
+        var current = tree;
+        var found = new ArrayList<PlanSubscription>();
+        for (int i = 0; i < current.subscriptions.length && current.froms[i] < to; i++) {
+            if (current.tos[i] > from) {
+                found.add(current.subscriptions[i]);
+            }
+        }
+        return found;
+    }
+}
@@ -0,0 +1,1007 @@
+/*
+ * Copyright (c) 2020, 2021, Patineboot
+ * All rights reserved.
+ */
+
+package com.patineboot.education;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.function.LongConsumer;
+
+/**
+ * 新しい予定をメモリに、古い予定をセグメントファイルに格納するクラスです。
+ * メモリの予定が上限を超えると、日時の古い予定から順にセグメントファイルに書き出します。
+ * セグメントファイルは変更せず、削除した予定は墓標としてメモリに記録します。
+ * 小さいセグメントファイルが同じ階層に一定数たまると、墓標を除いて一つにマージします。
+ * 墓標が上限を超えた場合は、墓標の多いセグメントファイルのみを、墓標を除いて書き直します。
+ *
+ * 一つの予定は、メモリかいずれか一つのセグメントファイルのどちらかにのみ格納します。
+ * 墓標を付けた予定を再び登録した場合は、墓標を外します。
+ *
+ * ディレクトリには、次のファイルを作成します。
+ * - segments.lst: 有効なセグメントファイルの一覧
+ * - segment-[番号].seg: セグメントファイル
+ * - quarantine/segment-[番号].seg: 開く時に一覧になかったセグメントファイル
+ * 一覧は、一時ファイルに書き込んでfsyncし、ディレクトリをfsyncしてからアトミックに置き換え、もう一度ディレクトリをfsyncします。
+ * 一覧にないセグメントファイルは、書き込み途中またはマージ済みのファイルですが、一覧が壊れた場合に予定を失わないように、
+ * 開く時に削除せずquarantineディレクトリに移します。番号は、移したファイルとも重ならないように振ります。
+ * @implSpec このクラスは、全ての操作を一つのロックで排他するため、スレッドセーフです。
+ */
+final class TieredPlanStore implements PlanStore, Closeable {
+
+    /**
+     * セグメントファイルの一覧のファイル名
+     */
+    private static final String MANIFEST = "segments.lst";
+
+    /**
+     * 一覧にないセグメントファイルを移すディレクトリ名
+     */
+    private static final String QUARANTINE = "quarantine";
+
+    /**
+     * マージするセグメントファイルの数
+     */
+    static final int FANOUT = 4;
+
+    /**
+     * 予定表のディレクトリ
+     */
+    private final Path directory;
+
+    /**
+     * メモリに格納する予定
+     */
+    private final PlanStore memory;
+
+    /**
+     * メモリに格納する予定の上限
+     */
+    private final long memoryLimit;
+
+    /**
+     * セグメントファイル。作成した順に並べる。
+     */
+    private final List<PlanSegment> segments = new ArrayList<>();
+
+    /**
+     * セグメントファイルに格納した予定の件数
+     */
+    private long segmentSize;
+
+    /**
+     * 削除したセグメントファイルの予定
+     */
+    private final TreeSet<Plan> tombstones = new TreeSet<>();
+
+    /**
+     * 次に作成するセグメントファイルの番号
+     */
+    private long nextSequence;
+
+    /**
+     * 閉じた場合はtrue
+     */
+    private boolean isClosed;
+
+    /**
+     * ディレクトリのセグメントファイルを開く。ディレクトリがない場合は作成する。
+     * @param directory 予定表のディレクトリ
+     * @param memory メモリに格納する予定。空であること。
+     * @param memoryLimit メモリに格納する予定の上限
+     * @exception IOException ファイルの読み込みに失敗した。
+     */
+    TieredPlanStore(Path directory, PlanStore memory, long memoryLimit) throws IOException
+    {
+        this.directory = directory;
+        this.memory = memory;
+        this.memoryLimit = memoryLimit;
+
+        Files.createDirectories(directory);
+        var manifest = directory.resolve(MANIFEST);
+        var names = new HashSet<String>();
+        if (Files.exists(manifest)) {
+            for (var name : Files.readAllLines(manifest, StandardCharsets.UTF_8)) {
+                if (!name.isEmpty()) {
+                    var segment = new PlanSegment(directory.resolve(name));
+                    segments.add(segment);
+                    segmentSize += segment.size();
+                    names.add(name);
+                    nextSequence = Math.max(nextSequence, sequenceOf(name) + 1);
+                }
+            }
+        }
+
+        // 一覧にないファイルは、書き込み途中で中断した、またはマージ済みのセグメントファイル。
+        // 一覧が壊れていた場合に備えて、削除せずに移す。
+        var quarantine = directory.resolve(QUARANTINE);
+        if (Files.isDirectory(quarantine)) {
+            try (var files = Files.newDirectoryStream(quarantine, "segment-*.seg")) {
+                for (var file : files) {
+                    nextSequence = Math.max(nextSequence, sequenceOrZero(file.getFileName().toString()) + 1);
+                }
+            }
+        }
+        try (var files = Files.newDirectoryStream(directory, "segment-*.seg")) {
+            for (var file : files) {
+                var name = file.getFileName().toString();
+                nextSequence = Math.max(nextSequence, sequenceOrZero(name) + 1);
+                if (!names.contains(name)) {
+                    Files.createDirectories(quarantine);
+                    Files.move(file, quarantine.resolve(name), StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+        }
+    }
+
+    @Override
+    public synchronized long size()
+    {
+        return memory.size() + segmentSize - tombstones.size();
+    }
+
+    @Override
+    public synchronized boolean add(Plan plan)
+    {
+        ensureOpen();
+        if (inSegments(plan)) {
+            // 削除済みの予定は、墓標を外して再び有効にする。
+            return tombstones.remove(plan);
+        }
+        if (!memory.add(plan)) {
+            return false;
+        }
+        flushIfNeeded();
+        return true;
+    }
+
+    @Override
+    public synchronized boolean remove(Plan plan)
+    {
+        ensureOpen();
+        if (memory.remove(plan)) {
+            return true;
+        }
+        if (!inSegments(plan) || !tombstones.add(plan)) {
+            return false;
+        }
+        // 墓標は、メモリに格納する予定と同じ上限までに保つ。全てのセグメントファイルは書き直さない。
+        if (tombstones.size() > memoryLimit) {
+            purge(memoryLimit / 2);
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized Plan addAll(Plan[] sorted)
+    {
+        ensureOpen();
+        var fresh = new ArrayList<Plan>(sorted.length);
+        var revived = new ArrayList<Plan>();
+        for (var plan : sorted) {
+            if (!inSegments(plan)) {
+                fresh.add(plan);
+            }
+            else if (tombstones.contains(plan)) {
+                revived.add(plan);
+            }
+            else {
+                return plan;
+            }
+        }
+
+        var duplicate = memory.addAll(fresh.toArray(new Plan[fresh.size()]));
+        if (duplicate != null) {
+            return duplicate;
+        }
+        tombstones.removeAll(revived);
+        flushIfNeeded();
+        return null;
+    }
+
+    /**
+     * @inheritDoc
+     * 予定の一覧は、検索時のスナップショットです。
+     * メモリの予定と墓標(いずれも上限までの件数)のみをコピーし、セグメントファイルの予定は、反復する時に各ファイルの範囲をマージして読み出します。
+     */
+    @Override
+    public synchronized SortedSet<Plan> subSet(Plan from, Plan to)
+    {
+        if (from.compareTo(to) >= 0) {
+            return SortedPlanSet.EMPTY;
+        }
+        var memoryPlans = new SortedPlanSet(memory.subSet(from, to).toArray(new Plan[0]));
+        var removed = new SortedPlanSet(tombstones.subSet(from, to).toArray(new Plan[0]));
+        // セグメントファイルは変更せず、マージで削除した後もマップしたバッファは有効。
+        return new MergedSet(memoryPlans, removed, new ArrayList<>(segments), from, to);
+    }
+
+    @Override
+    public synchronized List<Plan> page(Plan from, boolean fromInclusive, Plan to, int limit, boolean descending)
+    {
+        var page = new ArrayList<Plan>();
+        if (from.compareTo(to) >= 0) {
+            return page;
+        }
+        // メモリの予定はページの順に並んでいるため、位置の順に読み出す。
+        var memoryPlans = memory.page(from, fromInclusive, to, limit, descending).toArray(new Plan[0]);
+        var cursors = new ArrayList<Cursor>();
+        cursors.add(new Cursor(null, memoryPlans, 0, memoryPlans.length, false));
+        for (var segment : segments) {
+            int start = fromInclusive ? segment.lowerBound(from) : segment.upperBound(from);
+            cursors.add(new Cursor(segment, null, start, segment.lowerBound(to), descending));
+        }
+        var merged = new MergeIterator(cursors, tombstones, descending);
+        while (page.size() < limit && merged.hasNext()) {
+            page.add(merged.next());
+        }
+        return page;
+    }
+
+    /**
+     * 予定の並びを、位置の昇順または降順に読み出すカーソルです。
+     */
+    private static final class Cursor {
+
+        /**
+         * 読み出すセグメントファイル。配列から読み出す場合はnull。
+         */
+        private final PlanSegment segment;
+
+        /**
+         * 読み出す予定の配列。セグメントファイルから読み出す場合はnull。
+         */
+        private final Plan[] plans;
+
+        /**
+         * 範囲の始め(これを含む)
+         */
+        private final int start;
+
+        /**
+         * 範囲の終わり(これを含まない)
+         */
+        private final int end;
+
+        /**
+         * 位置の降順に読み出す場合はtrue
+         */
+        private final boolean descending;
+
+        /**
+         * 読み出した予定の件数
+         */
+        private int taken;
+
+        /**
+         * 次の予定。範囲の終わりに達した場合はnull。
+         */
+        Plan head;
+
+        /**
+         * カーソルを作成し、最初の予定を読み出す。
+         * @param segment 読み出すセグメントファイル。配列から読み出す場合はnull。
+         * @param plans 読み出す予定の配列。セグメントファイルから読み出す場合はnull。
+         * @param start 範囲の始め(これを含む)
+         * @param end 範囲の終わり(これを含まない)
+         * @param descending 位置の降順に読み出す場合はtrue
+         */
+        Cursor(PlanSegment segment, Plan[] plans, int start, int end, boolean descending)
+        {
+            this.segment = segment;
+            this.plans = plans;
+            this.start = start;
+            this.end = end;
+            this.descending = descending;
+            advance();
+        }
+
+        /**
+         * 次の予定を読み出す。
+         */
+        void advance()
+        {
+            if (taken >= end - start) {
+                head = null;
+                return;
+            }
+            int index = descending ? end - 1 - taken : start + taken;
+            taken++;
+            head = segment != null ? segment.get(index) : plans[index];
+        }
+    }
+
+    /**
+     * カーソルの予定を、昇順または降順にマージして読み出す反復子です。墓標の予定は読み飛ばします。
+     */
+    private static final class MergeIterator implements Iterator<Plan> {
+
+        /**
+         * 次の予定の順に並べたカーソル
+         */
+        private final PriorityQueue<Cursor> queue;
+
+        /**
+         * 墓標の予定
+         */
+        private final Set<Plan> removed;
+
+        /**
+         * 次の予定。終わりに達した場合はnull。
+         */
+        private Plan next;
+
+        /**
+         * 反復子を作成する。
+         * @param cursors カーソル。予定は、それぞれの中で読み出す順に並ぶこと。
+         * @param removed 墓標の予定
+         * @param descending 降順に読み出す場合はtrue
+         */
+        MergeIterator(List<Cursor> cursors, Set<Plan> removed, boolean descending)
+        {
+            Comparator<Cursor> order = (a, b) -> a.head.compareTo(b.head);
+            this.queue = new PriorityQueue<>(Math.max(cursors.size(), 1), descending ? order.reversed() : order);
+            for (var cursor : cursors) {
+                if (cursor.head != null) {
+                    queue.add(cursor);
+                }
+            }
+            this.removed = removed;
+            this.next = fetch();
+        }
+
+        /**
+         * 墓標でない、次の予定を読み出す。
+         * @return 予定。終わりに達した場合はnull。
+         */
+        private Plan fetch()
+        {
+            while (!queue.isEmpty()) {
+                var cursor = queue.poll();
+                var plan = cursor.head;
+                cursor.advance();
+                if (cursor.head != null) {
+                    queue.add(cursor);
+                }
+                if (removed.isEmpty() || !removed.contains(plan)) {
+                    return plan;
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public boolean hasNext()
+        {
+            return next != null;
+        }
+
+        @Override
+        public Plan next()
+        {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            var plan = next;
+            next = fetch();
+            return plan;
+        }
+    }
+
+    /**
+     * メモリの予定のコピーと、セグメントファイルの範囲を、反復する時にマージする予定のセットです。
+     * セグメントファイルの予定は、反復、検索する時に読み出し、ヒープにコピーしません。
+     * @implSpec このクラスは不変でスレッドセーフです。
+     */
+    private static final class MergedSet extends AbstractSet<Plan> implements SortedSet<Plan> {
+
+        /**
+         * 範囲内のメモリの予定
+         */
+        private final SortedPlanSet memoryPlans;
+
+        /**
+         * 範囲内の墓標の予定
+         */
+        private final SortedPlanSet removed;
+
+        /**
+         * 範囲に予定があるセグメントファイル
+         */
+        private final List<PlanSegment> segments = new ArrayList<>();
+
+        /**
+         * セグメントファイル毎の、範囲の始め(これを含む)
+         */
+        private final int[] starts;
+
+        /**
+         * セグメントファイル毎の、範囲の終わり(これを含まない)
+         */
+        private final int[] ends;
+
+        /**
+         * 始点(これを含む)
+         */
+        private final Plan from;
+
+        /**
+         * 終点(これを含まない)
+         */
+        private final Plan to;
+
+        /**
+         * 予定の件数
+         */
+        private final int size;
+
+        /**
+         * 範囲の予定のセットを作成する。セグメントファイルの範囲は、二分探索で求める。
+         * @param memoryPlans 範囲内のメモリの予定
+         * @param removed 範囲内の墓標の予定
+         * @param segments セグメントファイル
+         * @param from 始点(これを含む)
+         * @param to 終点(これを含まない)。始点より大きいこと。
+         */
+        MergedSet(SortedPlanSet memoryPlans, SortedPlanSet removed, List<PlanSegment> segments, Plan from, Plan to)
+        {
+            this.memoryPlans = memoryPlans;
+            this.removed = removed;
+            this.from = from;
+            this.to = to;
+            var starts = new int[segments.size()];
+            var ends = new int[segments.size()];
+            long size = memoryPlans.size() - removed.size();
+            for (var segment : segments) {
+                int start = segment.lowerBound(from);
+                int end = segment.lowerBound(to);
+                if (start < end) {
+                    starts[this.segments.size()] = start;
+                    ends[this.segments.size()] = end;
+                    this.segments.add(segment);
+                    size += end - start;
+                }
+            }
+            this.starts = Arrays.copyOf(starts, this.segments.size());
+            this.ends = Arrays.copyOf(ends, this.segments.size());
+            this.size = (int)Math.min(size, Integer.MAX_VALUE);
+        }
+
+        /**
+         * 予定を、昇順または降順にマージして読み出す反復子を作成する。
+         * @param descending 降順に読み出す場合はtrue
+         * @return 反復子
+         */
+        private Iterator<Plan> iterator(boolean descending)
+        {
+            var cursors = new ArrayList<Cursor>(segments.size() + 1);
+            var plans = memoryPlans.toArray(new Plan[memoryPlans.size()]);
+            cursors.add(new Cursor(null, plans, 0, plans.length, descending));
+            for (int i = 0; i < segments.size(); i++) {
+                cursors.add(new Cursor(segments.get(i), null, starts[i], ends[i], descending));
+            }
+            return new MergeIterator(cursors, removed, descending);
+        }
+
+        @Override
+        public Iterator<Plan> iterator()
+        {
+            return iterator(false);
+        }
+
+        @Override
+        public int size()
+        {
+            return size;
+        }
+
+        @Override
+        public boolean contains(Object obj)
+        {
+            if (!(obj instanceof Plan)) {
+                return false;
+            }
+            var plan = (Plan)obj;
+            if (plan.compareTo(from) < 0 || plan.compareTo(to) >= 0) {
+                return false;
+            }
+            if (memoryPlans.contains(plan)) {
+                return true;
+            }
+            if (removed.contains(plan)) {
+                return false;
+            }
+            for (var segment : segments) {
+                if (segment.contains(plan)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public Comparator<? super Plan> comparator()
+        {
+            // 自然順序を使用する。
+            return null;
+        }
+
+        @Override
+        public SortedSet<Plan> subSet(Plan fromElement, Plan toElement)
+        {
+            if (fromElement.compareTo(toElement) > 0) {
+                throw new IllegalArgumentException("fromKey > toKey");
+            }
+            var lower = fromElement.compareTo(from) > 0 ? fromElement : from;
+            var upper = toElement.compareTo(to) < 0 ? toElement : to;
+            if (lower.compareTo(upper) >= 0) {
+                return SortedPlanSet.EMPTY;
+            }
+            return new MergedSet((SortedPlanSet)memoryPlans.subSet(lower, upper), (SortedPlanSet)removed.subSet(lower, upper), segments, lower, upper);
+        }
+
+        @Override
+        public SortedSet<Plan> headSet(Plan toElement)
+        {
+            return subSet(from.compareTo(toElement) < 0 ? from : toElement, toElement);
+        }
+
+        @Override
+        public SortedSet<Plan> tailSet(Plan fromElement)
+        {
+            return subSet(fromElement, to.compareTo(fromElement) > 0 ? to : fromElement);
+        }
+
+        @Override
+        public Plan first()
+        {
+            return iterator(false).next();
+        }
+
+        @Override
+        public Plan last()
+        {
+            return iterator(true).next();
+        }
+    }
+
+    @Override
+    public boolean isThreadSafe()
+    {
+        return true;
+    }
+
+    @Override
+    public synchronized void forEachKey(Plan from, Plan to, LongConsumer action)
+    {
+        if (from.compareTo(to) >= 0) {
+            return;
+        }
+        var collected = new KeyBuffer();
+        memory.forEachKey(from, to, collected::add);
+        // 墓標がある範囲のみ、予定を作成して確認する。
+        boolean hasTombstones = !tombstones.subSet(from, to).isEmpty();
+        for (var segment : segments) {
+            int end = segment.lowerBound(to);
+            for (int i = segment.lowerBound(from); i < end; i++) {
+                if (!hasTombstones || !tombstones.contains(segment.get(i))) {
+                    collected.add(segment.key(i));
+                }
+            }
+        }
+        collected.sortAndForEach(action);
+    }
+
+    @Override
+    public synchronized long count(Plan from, Plan to)
+    {
+        if (from.compareTo(to) >= 0) {
+            return 0;
+        }
+        long count = memory.count(from, to) - tombstones.subSet(from, to).size();
+        for (var segment : segments) {
+            count += segment.lowerBound(to) - segment.lowerBound(from);
+        }
+        return count;
+    }
+
+    /**
+     * 日時(分オフセット)を溜めるバッファです。
+     */
+    private static final class KeyBuffer {
+
+        /**
+         * 日時
+         */
+        private long[] keys = new long[64];
+
+        /**
+         * 日時の件数
+         */
+        private int size;
+
+        /**
+         * 日時を追加する。
+         * @param key 日時
+         */
+        void add(long key)
+        {
+            if (size == keys.length) {
+                keys = Arrays.copyOf(keys, size * 2);
+            }
+            keys[size++] = key;
+        }
+
+        /**
+         * 日時を昇順に並べ替え、受け渡す。
+         * @param action 日時を受け取る処理
+         */
+        void sortAndForEach(LongConsumer action)
+        {
+            Arrays.sort(keys, 0, size);
+            for (int i = 0; i < size; i++) {
+                action.accept(keys[i]);
+            }
+        }
+    }
+
+    /**
+     * 指定した予定より前の、メモリの全ての予定をセグメントファイルに書き出す。
+     * @param before 予定(これを含まない)
+     * @exception IOException 書き込みに失敗した。
+     */
+    synchronized void flush(Plan before) throws IOException
+    {
+        ensureOpen();
+        for (;;) {
+            var plans = memory.page(Schedule.PLAN_MIN, true, before, PlanSegment.MAX_PLANS, false);
+            if (plans.isEmpty()) {
+                break;
+            }
+            flush(plans);
+        }
+    }
+
+    /**
+     * 全てのセグメントファイルを、墓標を除いてマージする。
+     * @exception UncheckedIOException 書き込みに失敗した。
+     */
+    synchronized void compact()
+    {
+        ensureOpen();
+        merge(new ArrayList<>(segments));
+    }
+
+    /**
+     * セグメントファイルの数を取得する。
+     * @return セグメントファイルの数
+     */
+    synchronized int segmentCount()
+    {
+        return segments.size();
+    }
+
+    /**
+     * メモリの全ての予定をセグメントファイルに書き出し、墓標を反映して閉じる。
+     * 閉じた後は、予定の登録、削除はできない。
+     * @exception IOException 書き込みに失敗した。
+     */
+    @Override
+    public synchronized void close() throws IOException
+    {
+        if (isClosed) {
+            return;
+        }
+        flush(Schedule.PLAN_MAX);
+        try {
+            purge(0);
+        }
+        catch (UncheckedIOException uioe) {
+            throw uioe.getCause();
+        }
+        isClosed = true;
+    }
+
+    /**
+     * メモリの予定が上限を超えた場合に、古い予定から上限の半分まで、セグメントファイルに書き出す。
+     * @exception UncheckedIOException 書き込みに失敗した。
+     */
+    private void flushIfNeeded()
+    {
+        try {
+            while (memory.size() > memoryLimit) {
+                long excess = memory.size() - memoryLimit / 2;
+                int limit = (int)Math.min(excess, PlanSegment.MAX_PLANS);
+                flush(memory.page(Schedule.PLAN_MIN, true, Schedule.PLAN_MAX, limit, false));
+            }
+        }
+        catch (IOException ioe) {
+            throw new UncheckedIOException(ioe);
+        }
+    }
+
+    /**
+     * メモリの予定をセグメントファイルに書き出し、メモリから削除する。
+     * @param plans 昇順の予定
+     * @exception IOException 書き込みに失敗した。
+     */
+    private void flush(List<Plan> plans) throws IOException
+    {
+        var segment = writeSegment(plans);
+        segments.add(segment);
+        writeManifest();
+        segmentSize += segment.size();
+        for (var plan : plans) {
+            memory.remove(plan);
+        }
+        mergeTiers();
+    }
+
+    /**
+     * 墓標が指定した件数以下になるまで、墓標の多いセグメントファイルから順に、墓標を除いて書き直す。
+     * 墓標のないセグメントファイルは書き直さない。
+     * セグメントファイルの墓標の件数は、最初と最後の予定の範囲にある墓標の件数で見積もる。
+     * @param target 残す墓標の件数
+     * @exception UncheckedIOException 書き込みに失敗した。
+     */
+    private void purge(long target)
+    {
+        if (tombstones.size() <= target) {
+            return;
+        }
+        var counts = new HashMap<PlanSegment, Integer>();
+        for (var segment : segments) {
+            int size = segment.size();
+            if (size > 0) {
+                int count = tombstones.subSet(segment.get(0), true, segment.get(size - 1), true).size();
+                if (count > 0) {
+                    counts.put(segment, count);
+                }
+            }
+        }
+        var candidates = new ArrayList<>(counts.keySet());
+        candidates.sort(Comparator.comparing(counts::get, Comparator.reverseOrder()));
+        for (var segment : candidates) {
+            if (tombstones.size() <= target) {
+                break;
+            }
+            merge(List.of(segment));
+        }
+    }
+
+    /**
+     * 同じ階層のセグメントファイルがFANOUT個以上ある場合に、それらをマージする。
+     * 階層は、予定の件数を4を底とした対数で分ける。最大件数の半分以上のセグメントファイルはマージしない。
+     */
+    private void mergeTiers()
+    {
+        for (;;) {
+            var tiers = new ArrayList<List<PlanSegment>>();
+            for (var segment : segments) {
+                if (segment.size() >= PlanSegment.MAX_PLANS / 2) {
+                    continue;
+                }
+                int tier = (63 - Long.numberOfLeadingZeros(Math.max(segment.size(), 1))) / 2;
+                while (tiers.size() <= tier) {
+                    tiers.add(new ArrayList<>());
+                }
+                tiers.get(tier).add(segment);
+            }
+
+            var full = tiers.stream().filter(tier -> tier.size() >= FANOUT).findFirst();
+            if (full.isEmpty()) {
+                return;
+            }
+            merge(full.get());
+        }
+    }
+
+    /**
+     * セグメントファイルを、墓標を除いて新しいセグメントファイルにマージし、元のファイルを削除する。
+     * マージ中に必要なメモリは、新しいセグメントファイル一つ分です。
+     * @param targets マージするセグメントファイル
+     * @exception UncheckedIOException 書き込みに失敗した。
+     */
+    private void merge(List<PlanSegment> targets)
+    {
+        try {
+            var merged = new ArrayList<PlanSegment>();
+            var consumed = new ArrayList<Plan>();
+            var chunk = new ArrayList<Plan>();
+            // 各セグメントファイルの読み出し位置と、その位置の予定
+            var positions = new int[targets.size()];
+            var heads = new Plan[targets.size()];
+            for (int i = 0; i < heads.length; i++) {
+                heads[i] = targets.get(i).size() > 0 ? targets.get(i).get(0) : null;
+            }
+            for (;;) {
+                // 最も小さい予定を持つセグメントファイルを選ぶ。予定は、いずれか一つにのみある。
+                int selected = -1;
+                for (int i = 0; i < heads.length; i++) {
+                    if (heads[i] != null && (selected < 0 || heads[i].compareTo(heads[selected]) < 0)) {
+                        selected = i;
+                    }
+                }
+                if (selected < 0) {
+                    break;
+                }
+                var smallest = heads[selected];
+                int next = ++positions[selected];
+                heads[selected] = next < targets.get(selected).size() ? targets.get(selected).get(next) : null;
+
+                if (tombstones.contains(smallest)) {
+                    consumed.add(smallest);
+                    continue;
+                }
+                chunk.add(smallest);
+                if (chunk.size() == PlanSegment.MAX_PLANS) {
+                    merged.add(writeSegment(chunk));
+                    chunk = new ArrayList<>();
+                }
+            }
+            if (!chunk.isEmpty()) {
+                merged.add(writeSegment(chunk));
+            }
+
+            // 一覧を置き換えた後に、元のファイルを削除する。
+            segments.removeAll(targets);
+            segments.addAll(merged);
+            writeManifest();
+            for (var segment : targets) {
+                segmentSize -= segment.size();
+                Files.deleteIfExists(segment.file());
+            }
+            for (var segment : merged) {
+                segmentSize += segment.size();
+            }
+            consumed.forEach(tombstones::remove);
+        }
+        catch (IOException ioe) {
+            throw new UncheckedIOException(ioe);
+        }
+    }
+
+    /**
+     * 新しいセグメントファイルを作成し、開く。
+     * @param plans 昇順の予定
+     * @return セグメントファイル
+     * @exception IOException 書き込みに失敗した。
+     */
+    private PlanSegment writeSegment(List<Plan> plans) throws IOException
+    {
+        var file = directory.resolve("segment-" + nextSequence++ + ".seg");
+        PlanSegment.write(file, plans);
+        return new PlanSegment(file);
+    }
+
+    /**
+     * セグメントファイルの一覧を、一時ファイルに書き込んでfsyncしてから、アトミックに置き換える。
+     * 置き換える前にディレクトリをfsyncし、一覧にある新しいセグメントファイルの作成を永続化する。
+     * 置き換えた後にもう一度ディレクトリをfsyncし、置き換えを永続化する。
+     * @exception IOException 書き込みに失敗した。
+     */
+    private void writeManifest() throws IOException
+    {
+        var text = new StringBuilder();
+        for (var segment : segments) {
+            text.append(segment.file().getFileName()).append('\n');
+        }
+        var manifest = directory.resolve(MANIFEST);
+        var temporary = directory.resolve(MANIFEST + ".tmp");
+        try (var channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            var buffer = ByteBuffer.wrap(text.toString().getBytes(StandardCharsets.UTF_8));
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+        forceDirectory();
+        Files.move(temporary, manifest, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        forceDirectory();
+    }
+
+    /**
+     * ディレクトリをfsyncし、ファイルの作成、削除、名前の変更を永続化する。
+     * ディレクトリを開けないファイルシステムでは、何もしない。
+     * @exception IOException fsyncに失敗した。
+     */
+    private void forceDirectory() throws IOException
+    {
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(directory, StandardOpenOption.READ);
+        }
+        catch (IOException ioe) {
+            return;
+        }
+        try (channel) {
+            channel.force(true);
+        }
+    }
+
+    /**
+     * 予定が、いずれかのセグメントファイルにあるかを確認する。墓標の有無は問わない。
+     * 日時が、最初と最後の予定の日時の範囲外のセグメントファイルは、探索しない。
+     * @param plan 予定
+     * @return セグメントファイルにある場合はtrue
+     */
+    private boolean inSegments(Plan plan)
+    {
+        long key = DateTimeParser.toMinutes(plan.getDateTime());
+        for (var segment : segments) {
+            int size = segment.size();
+            if (size == 0 || key < segment.key(0) || key > segment.key(size - 1)) {
+                continue;
+            }
+            if (segment.contains(plan)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 閉じていないことを確認する。
+     * @exception IllegalStateException 閉じている。
+     */
+    private void ensureOpen()
+    {
+        if (isClosed) {
+            throw new IllegalStateException("schedule is closed");
+        }
+    }
+
+    /**
+     * セグメントファイルの名前から、番号を取得する。
+     * @param name ファイルの名前
+     * @return 番号
+     * @exception IOException 名前が不正。
+     */
+    private static long sequenceOf(String name) throws IOException
+    {
+        try {
+            return Long.parseLong(name.substring("segment-".length(), name.length() - ".seg".length()));
+        }
+        catch (IndexOutOfBoundsException | NumberFormatException e) {
+            throw new IOException("invalid segment name: " + name, e);
+        }
+    }
+
+    /**
+     * セグメントファイルの名前から、番号を取得する。
+     * @param name ファイルの名前
+     * @return 番号。名前が不正な場合は0。
+     */
+    private static long sequenceOrZero(String name)
+    {
+        try {
+            return sequenceOf(name);
+        }
+        catch (IOException ioe) {
+            return 0;
+        }
+    }
+}
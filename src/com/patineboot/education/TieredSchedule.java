@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2020, 2021, Patineboot
+ * All rights reserved.
+ */
+
+package com.patineboot.education;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.time.format.DateTimeParseException;
+import java.util.EnumSet;
+
+/**
+ * 古い予定をセグメントファイルに格納し、ヒープの使用量を一定に保つ予定表クラスです。
+ * メモリに格納する予定の件数が上限を超えると、日時の古い予定から順に、変更できないソート済みのセグメントファイルに書き出します。
+ * セグメントファイルはメモリにマップし、検索、重複の確認は二分探索します。
+ * セグメントファイルは、同じ程度の大きさのものが一定数たまると、一つにマージします。
+ *
+ * 予定表を閉じると、メモリの全ての予定をセグメントファイルに書き出します。
+ * 閉じずに終了した場合は、最後に書き出した後の登録、削除は失われます。
+ * 検索結果は、検索時のスナップショットとなり、予定表の変更を反映しません。
+ * 予定の登録、削除で書き出しに失敗した場合は、UncheckedIOExceptionが発生します。
+ * 予定表は、スレッドセーフです。
+ */
+public class TieredSchedule extends Schedule implements Closeable {
+
+    /**
+     * 予定の格納先
+     */
+    private final TieredPlanStore store;
+
+    /**
+     * ディレクトリから予定表を開く。ディレクトリがない場合は作成する。
+     *
+     * @param directory 予定表のディレクトリ
+     * @param capacity 最大登録可能件数
+     * @param storage メモリの予定の格納方式
+     * @param memoryLimit メモリに格納する予定の上限。1以上。
+     * @exception IOException ファイルの読み込みに失敗した。
+     * @exception IllegalArgumentException capacityまたはmemoryLimitが0以下の場合。directory、storageがnullの場合。
+     * @exception IllegalStateException セグメントファイルの予定が、最大登録件数を超える。
+     */
+    public TieredSchedule(Path directory, long capacity, Storage storage, long memoryLimit) throws IOException
+    {
+        this(capacity, open(directory, storage, memoryLimit));
+    }
+
+    /**
+     * 予定の格納先から、予定表を作成する。
+     * @param capacity 最大登録可能件数
+     * @param store 予定の格納先
+     */
+    private TieredSchedule(long capacity, TieredPlanStore store)
+    {
+        super(capacity, store, EnumSet.noneOf(Option.class));
+        this.store = store;
+    }
+
+    /**
+     * ディレクトリのセグメントファイルを開く。
+     * @param directory 予定表のディレクトリ
+     * @param storage メモリの予定の格納方式
+     * @param memoryLimit メモリに格納する予定の上限
+     * @return 予定の格納先
+     * @exception IOException ファイルの読み込みに失敗した。
+     */
+    private static TieredPlanStore open(Path directory, Storage storage, long memoryLimit) throws IOException
+    {
+        if (directory == null) {
+            throw new IllegalArgumentException("directory is null.");
+        }
+        if (memoryLimit <= 0) {
+            throw new IllegalArgumentException("memoryLimit is zero or negative value");
+        }
+        return new TieredPlanStore(directory, createStore(storage), memoryLimit);
+    }
+
+    /**
+     * 指定した日時より前の予定を、メモリからセグメントファイルに書き出す。
+     * @param beforeDateTime 日時(これを含まない)
+     * @exception IOException 書き込みに失敗した。
+     * @exception DateTimeParseException 日時形式が不正。
+     * @exception IllegalArgumentException beforeDateTimeがnull。
+     * @exception IllegalStateException 予定表が閉じている。
+     */
+    public void flush(String beforeDateTime) throws IOException
+    {
+        if (beforeDateTime == null) {
+            throw new IllegalArgumentException("beforeDateTime is null.");
+        }
+        store.flush(new Plan(beforeDateTime, ""));
+    }
+
+    /**
+     * 全てのセグメントファイルをマージし、削除した予定をファイルから取り除く。
+     * @exception IOException 書き込みに失敗した。
+     * @exception IllegalStateException 予定表が閉じている。
+     */
+    public void compact() throws IOException
+    {
+        try {
+            store.compact();
+        }
+        catch (UncheckedIOException uioe) {
+            throw uioe.getCause();
+        }
+    }
+
+    /**
+     * セグメントファイルの数を取得する。
+     * @return セグメントファイルの数
+     */
+    int segmentCount()
+    {
+        return store.segmentCount();
+    }
+
+    /**
+     * メモリの全ての予定をセグメントファイルに書き出し、予定表を閉じる。
+     * 閉じた後は、予定の登録、削除はできない。
+     * @exception IOException 書き込みに失敗した。
+     */
+    @Override
+    public void close() throws IOException
+    {
+        store.close();
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2020, 2021, Patineboot
+ * All rights reserved.
+ */
+
+package com.patineboot.education;
+
+import java.util.List;
+import java.util.SortedSet;
+import java.util.function.LongConsumer;
+import java.util.TreeSet;
+
+/**
+ * TreeSetで予定を格納するクラスです。
+ * 検索結果は、TreeSetのビューとして、予定表の変更を反映します。
+ */
+final class TreePlanStore implements PlanStore {
+
+    /**
+     * 予定のセット
+     */
+    private final TreeSet<Plan> plans = new TreeSet<>();
+
+    @Override
+    public long size()
+    {
+        return plans.size();
+    }
+
+    @Override
+    public boolean add(Plan plan)
+    {
+        return plans.add(plan);
+    }
+
+    @Override
+    public boolean remove(Plan plan)
+    {
+        return plans.remove(plan);
+    }
+
+    @Override
+    public Plan addAll(Plan[] sorted)
+    {
+        return PlanStore.addAll(plans, sorted);
+    }
+
+    @Override
+    public SortedSet<Plan> subSet(Plan from, Plan to)
+    {
+        return plans.subSet(from, to);
+    }
+
+    @Override
+    public Plan[] removeRange(Plan from, Plan to)
+    {
+        return PlanStore.removeRange(plans, from, to);
+    }
+
+    @Override
+    public boolean retainsDuration()
+    {
+        return true;
+    }
+
+    @Override
+    public List<Plan> page(Plan from, boolean fromInclusive, Plan to, int limit, boolean descending)
+    {
+        return PlanStore.page(plans, from, fromInclusive, to, limit, descending);
+    }
+
+    @Override
+    public void forEachKey(Plan from, Plan to, LongConsumer action)
+    {
+        PlanStore.forEachKey(plans, from, to, action);
+    }
+}